@@ -20,6 +20,53 @@ public class ConfigMaster {
 	private final String AWS_secretKey;
 	private final String AWS_accessKey;
 	private final int serviceCallRetries;
+	private final boolean contentAddressing;
+	// store files as content-defined chunks plus a manifest (only files with content hashes)
+	private final boolean chunkedStorage;
+	private final int storageChunkBytes;
+	// upload changed files as deltas against their last synced version (only files with content hashes)
+	private final boolean deltaTransfer;
+	private final long deltaThresholdBytes;
+	private final int deltaChainLength;
+	
+	// debug lines in the log, one per file being synced
+	private final boolean debugLogging;
+	
+	// daemon mode
+	private final boolean daemonMode;
+	private final long watchQuietPeriodMillis;
+	private final int remotePollIntervalSeconds;
+	
+	// performance tuning
+	private final int scannerThreads;
+	private final int hashingThreads;
+	private final int hashingQueueDepth;
+	private final int mergeThreads;
+	private final boolean mergeUseVirtualThreads;
+	private final String mergePlanner;
+	private final int mergeSortBufferSize;
+	private final int lookupThreads;
+	private final long metadataWriteDelayMillis;
+	private final boolean warmKnownHashCache;
+	private final int indexBatchSize;
+	private final long indexBatchMillis;
+	private final String indexEngine;
+	private final String mappedIndexPath;
+	private final String indexSynchronous;
+	private final long indexMmapSizeBytes;
+	private final int indexReadConnections;
+	private final long multipartThresholdBytes;
+	private final long multipartPartSizeBytes;
+	private final int uploadThreads;
+	private final long rangedDownloadThresholdBytes;
+	private final long downloadSegmentBytes;
+	private final int downloadThreads;
+	private final String blobFormat;
+	private final int blobChunkBytes;
+	private final int cryptoThreads;
+	
+	// alternative S3 endpoint, e.g. a local S3 stand-in for testing
+	private final String s3Endpoint;
 	
 	// singleton object
 	private static ConfigMaster config = null;
@@ -48,6 +95,44 @@ public class ConfigMaster {
 		cloudVersionsDomain = properties.getProperty("cloudVersionsDomain", "CloudVersions");
 		lastSyncDatesDomain = properties.getProperty("lastSyncDatesDomain", "LastSyncDates");
 		serviceCallRetries = Integer.parseInt(properties.getProperty("serviceCallRetries", "3"));
+		contentAddressing = Boolean.parseBoolean(properties.getProperty("contentAddressing", "false"));
+		chunkedStorage = Boolean.parseBoolean(properties.getProperty("chunkedStorage", "false"));
+		storageChunkBytes = Integer.parseInt(properties.getProperty("storageChunkBytes", Integer.toString(1024 * 1024)));
+		deltaTransfer = Boolean.parseBoolean(properties.getProperty("deltaTransfer", "false"));
+		deltaThresholdBytes = Long.parseLong(properties.getProperty("deltaThresholdBytes", Integer.toString(1024 * 1024)));
+		deltaChainLength = Integer.parseInt(properties.getProperty("deltaChainLength", "10"));
+		debugLogging = Boolean.parseBoolean(properties.getProperty("debugLogging", "true"));
+		daemonMode = Boolean.parseBoolean(properties.getProperty("daemonMode", "false"));
+		watchQuietPeriodMillis = Long.parseLong(properties.getProperty("watchQuietPeriodMillis", "2000"));
+		remotePollIntervalSeconds = Integer.parseInt(properties.getProperty("remotePollIntervalSeconds", "60"));
+		int processors = Runtime.getRuntime().availableProcessors();
+		scannerThreads = Integer.parseInt(properties.getProperty("scannerThreads", Integer.toString(processors)));
+		hashingThreads = Integer.parseInt(properties.getProperty("hashingThreads", Integer.toString(processors)));
+		hashingQueueDepth = Integer.parseInt(properties.getProperty("hashingQueueDepth", Integer.toString(hashingThreads * 4)));
+		mergeThreads = Integer.parseInt(properties.getProperty("mergeThreads", "1"));
+		mergeUseVirtualThreads = Boolean.parseBoolean(properties.getProperty("mergeUseVirtualThreads", "false"));
+		mergePlanner = properties.getProperty("mergePlanner", "hash");
+		mergeSortBufferSize = Integer.parseInt(properties.getProperty("mergeSortBufferSize", "100000"));
+		lookupThreads = Integer.parseInt(properties.getProperty("lookupThreads", "4"));
+		metadataWriteDelayMillis = Long.parseLong(properties.getProperty("metadataWriteDelayMillis", "1000"));
+		warmKnownHashCache = Boolean.parseBoolean(properties.getProperty("warmKnownHashCache", "false"));
+		indexBatchSize = Integer.parseInt(properties.getProperty("indexBatchSize", "1000"));
+		indexBatchMillis = Long.parseLong(properties.getProperty("indexBatchMillis", "1000"));
+		indexEngine = properties.getProperty("indexEngine", "sqlite");
+		mappedIndexPath = properties.getProperty("mappedIndexPath", "file_index.mmap");
+		indexSynchronous = properties.getProperty("indexSynchronous", "NORMAL");
+		indexMmapSizeBytes = Long.parseLong(properties.getProperty("indexMmapSizeBytes", Long.toString(64L * 1024 * 1024)));
+		indexReadConnections = Integer.parseInt(properties.getProperty("indexReadConnections", "4"));
+		multipartThresholdBytes = Long.parseLong(properties.getProperty("multipartThresholdBytes", Long.toString(100L * 1024 * 1024)));
+		multipartPartSizeBytes = Long.parseLong(properties.getProperty("multipartPartSizeBytes", Long.toString(16L * 1024 * 1024)));
+		uploadThreads = Integer.parseInt(properties.getProperty("uploadThreads", "4"));
+		rangedDownloadThresholdBytes = Long.parseLong(properties.getProperty("rangedDownloadThresholdBytes", Long.toString(100L * 1024 * 1024)));
+		downloadSegmentBytes = Long.parseLong(properties.getProperty("downloadSegmentBytes", Long.toString(16L * 1024 * 1024)));
+		downloadThreads = Integer.parseInt(properties.getProperty("downloadThreads", "4"));
+		blobFormat = properties.getProperty("blobFormat", "jets3t");
+		blobChunkBytes = Integer.parseInt(properties.getProperty("blobChunkBytes", Integer.toString(1024 * 1024)));
+		cryptoThreads = Integer.parseInt(properties.getProperty("cryptoThreads", Integer.toString(processors)));
+		s3Endpoint = properties.getProperty("s3Endpoint");
 	}
 	
 	// singleton getInstance method
@@ -105,4 +190,152 @@ public class ConfigMaster {
 	public String getEncryptionKey() {
 		return encryptionKey;
 	}
+
+	public boolean isContentAddressing() {
+		return contentAddressing;
+	}
+
+	public boolean isChunkedStorage() {
+		return chunkedStorage;
+	}
+
+	public int getStorageChunkBytes() {
+		return storageChunkBytes;
+	}
+
+	public boolean isDeltaTransfer() {
+		return deltaTransfer;
+	}
+
+	public long getDeltaThresholdBytes() {
+		return deltaThresholdBytes;
+	}
+
+	public int getDeltaChainLength() {
+		return deltaChainLength;
+	}
+
+	public boolean isDebugLogging() {
+		return debugLogging;
+	}
+
+	public boolean isDaemonMode() {
+		return daemonMode;
+	}
+
+	public long getWatchQuietPeriodMillis() {
+		return watchQuietPeriodMillis;
+	}
+
+	public int getRemotePollIntervalSeconds() {
+		return remotePollIntervalSeconds;
+	}
+
+	public int getScannerThreads() {
+		return scannerThreads;
+	}
+
+	public int getHashingThreads() {
+		return hashingThreads;
+	}
+
+	public int getHashingQueueDepth() {
+		return hashingQueueDepth;
+	}
+
+	public int getMergeThreads() {
+		return mergeThreads;
+	}
+
+	public boolean isMergeUseVirtualThreads() {
+		return mergeUseVirtualThreads;
+	}
+
+	public String getMergePlanner() {
+		return mergePlanner;
+	}
+
+	public int getMergeSortBufferSize() {
+		return mergeSortBufferSize;
+	}
+
+	public int getLookupThreads() {
+		return lookupThreads;
+	}
+
+	public long getMetadataWriteDelayMillis() {
+		return metadataWriteDelayMillis;
+	}
+
+	public boolean isWarmKnownHashCache() {
+		return warmKnownHashCache;
+	}
+
+	public int getIndexBatchSize() {
+		return indexBatchSize;
+	}
+
+	public long getIndexBatchMillis() {
+		return indexBatchMillis;
+	}
+
+	public String getIndexEngine() {
+		return indexEngine;
+	}
+
+	public String getMappedIndexPath() {
+		return mappedIndexPath;
+	}
+
+	public String getIndexSynchronous() {
+		return indexSynchronous;
+	}
+
+	public long getIndexMmapSizeBytes() {
+		return indexMmapSizeBytes;
+	}
+
+	public int getIndexReadConnections() {
+		return indexReadConnections;
+	}
+
+	public long getMultipartThresholdBytes() {
+		return multipartThresholdBytes;
+	}
+
+	public long getMultipartPartSizeBytes() {
+		return multipartPartSizeBytes;
+	}
+
+	public int getUploadThreads() {
+		return uploadThreads;
+	}
+
+	public long getRangedDownloadThresholdBytes() {
+		return rangedDownloadThresholdBytes;
+	}
+
+	public long getDownloadSegmentBytes() {
+		return downloadSegmentBytes;
+	}
+
+	public int getDownloadThreads() {
+		return downloadThreads;
+	}
+
+	public String getBlobFormat() {
+		return blobFormat;
+	}
+
+	public int getBlobChunkBytes() {
+		return blobChunkBytes;
+	}
+
+	public int getCryptoThreads() {
+		return cryptoThreads;
+	}
+
+	public String getS3Endpoint() {
+		return s3Endpoint;
+	}
 }
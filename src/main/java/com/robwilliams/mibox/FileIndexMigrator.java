@@ -0,0 +1,68 @@
+package com.robwilliams.mibox;
+
+import java.io.File;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.util.FileIndex;
+import com.robwilliams.mibox.util.MappedFileIndex;
+import com.robwilliams.mibox.util.SQLiteConnectionSource;
+import com.robwilliams.mibox.util.SQLiteFileIndex;
+
+/**
+ * Copies the local file index from the local_files table of the SQLite database into a new memory-mapped
+ * index, for switching to indexEngine = mapped. Run it while MiBox is stopped:
+ * <pre>
+ * java com.robwilliams.mibox.FileIndexMigrator [database] [mapped index]
+ * </pre>
+ * The defaults are file_index.db and file_index.mmap. The database is only read, so going back to
+ * indexEngine = sqlite is possible (though changes made in the meantime are only in the mapped index).
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class FileIndexMigrator {
+
+	private static final int BATCH_SIZE = 1000;
+
+	public static void main(String[] args) throws Exception {
+		String databasePath = args.length > 0 ? args[0] : "file_index.db";
+		File mappedIndexFile = new File(args.length > 1 ? args[1] : "file_index.mmap");
+		if (!new File(databasePath).isFile()) {
+			System.err.println("No database at " + databasePath);
+			System.exit(1);
+		}
+		if (mappedIndexFile.exists()) {
+			System.err.println(mappedIndexFile + " already exists, remove it first to migrate again");
+			System.exit(1);
+		}
+
+		SQLiteConnectionSource connectionSource = new SQLiteConnectionSource("jdbc:sqlite:" + databasePath, "NORMAL", 0, 1);
+		SQLiteFileIndex source = new SQLiteFileIndex(connectionSource, 1);
+		final MappedFileIndex target = new MappedFileIndex(mappedIndexFile, true);
+		final Map<String, MiBoxFile> batch = new LinkedHashMap<String, MiBoxFile>();
+		try {
+			// every record has synced after the beginning of time, so they all come whole
+			source.scan(new Date(Long.MIN_VALUE), new FileIndex.ScanVisitor() {
+				public void visitRecentlySynced(MiBoxFile record) throws Exception {
+					batch.put(record.getName(), record);
+					if (batch.size() >= BATCH_SIZE) {
+						target.write(batch);
+						batch.clear();
+					}
+				}
+				public void visitSynced(String name, long lastModifiedTime) {
+					throw new IllegalStateException("Record of " + name + " has no last sync time");
+				}
+			});
+			target.write(batch);
+			System.out.println("Copied " + target.size() + " files from " + databasePath + " to " + mappedIndexFile);
+		} finally {
+			target.close();
+			source.close();
+			connectionSource.close();
+		}
+	}
+}
@@ -1,7 +1,10 @@
 package com.robwilliams.mibox;
 
+import java.io.File;
+import java.net.URI;
 import java.sql.SQLException;
 
+import org.jets3t.service.Jets3tProperties;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.security.AWSCredentials;
 import org.jets3t.service.security.ProviderCredentials;
@@ -11,9 +14,22 @@ import com.amazonaws.services.simpledb.AmazonSimpleDB;
 import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
-import com.j256.ormlite.jdbc.JdbcConnectionSource;
 import com.j256.ormlite.support.ConnectionSource;
+import com.robwilliams.mibox.dataObjects.DownloadedSegment;
+import com.robwilliams.mibox.dataObjects.FileSignature;
+import com.robwilliams.mibox.dataObjects.KnownHash;
+import com.robwilliams.mibox.dataObjects.LocalChunk;
 import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.dataObjects.PendingDownload;
+import com.robwilliams.mibox.dataObjects.PendingUpload;
+import com.robwilliams.mibox.dataObjects.UploadedPart;
+import com.robwilliams.mibox.util.FileIndex;
+import com.robwilliams.mibox.util.FileIndexWriter;
+import com.robwilliams.mibox.util.KnownHashCache;
+import com.robwilliams.mibox.util.MappedFileIndex;
+import com.robwilliams.mibox.util.SQLiteConnectionSource;
+import com.robwilliams.mibox.util.SQLiteFileIndex;
+import com.robwilliams.mibox.util.SimpleDBWriteBuffer;
 
 
 public class Global {
@@ -21,8 +37,19 @@ public class Global {
 	private ConfigMaster config;
     private RestS3Service s3;
 	private AmazonSimpleDB sdb;
-	private ConnectionSource connectionSource;
+	private SimpleDBWriteBuffer sdbWriteBuffer;
+	private SQLiteConnectionSource connectionSource;
 	private Dao<MiBoxFile, String> fileMetadataDao;
+	private FileIndex fileIndex;
+	private FileIndexWriter fileIndexWriter;
+	private Dao<KnownHash, String> knownHashDao;
+	private KnownHashCache knownHashCache;
+	private Dao<PendingUpload, String> pendingUploadDao;
+	private Dao<UploadedPart, Integer> uploadedPartDao;
+	private Dao<PendingDownload, String> pendingDownloadDao;
+	private Dao<DownloadedSegment, Integer> downloadedSegmentDao;
+	private Dao<LocalChunk, Integer> localChunkDao;
+	private Dao<FileSignature, String> fileSignatureDao;
 	
 	// singleton object
 	private static Global global = null;
@@ -31,15 +58,39 @@ public class Global {
 	private Global() {
 		logger = LogMaster.getLogger();
 		config = ConfigMaster.getConfig();
+		logger.setDebugEnabled(config.isDebugLogging());
 		try {
 			ProviderCredentials credentials = new AWSCredentials(config.getAWSAccesskey(), config.getAWSSecretkey());
-			s3 = new RestS3Service(credentials);
+			if (config.getS3Endpoint() != null) {
+				s3 = new RestS3Service(credentials, "MiBox", null, getS3EndpointProperties(config.getS3Endpoint()));
+			} else {
+				s3 = new RestS3Service(credentials);
+			}
 			BasicAWSCredentials oAWSCredentials = new BasicAWSCredentials(config.getAWSAccesskey(), config.getAWSSecretkey());
 			sdb = new AmazonSimpleDBClient(oAWSCredentials);
+			sdbWriteBuffer = new SimpleDBWriteBuffer(sdb, config.getMetadataWriteDelayMillis());
 		
 			// create a connection source to database and instantiate the DAO
-			connectionSource = new JdbcConnectionSource("jdbc:sqlite:file_index.db");
+			// (pooled, since merge actions may use the DAO from several threads at once)
+			connectionSource = new SQLiteConnectionSource("jdbc:sqlite:file_index.db", config.getIndexSynchronous(),
+					config.getIndexMmapSizeBytes(), config.getIndexReadConnections());
 			fileMetadataDao =  DaoManager.createDao(connectionSource, MiBoxFile.class);
+			if ("mapped".equalsIgnoreCase(config.getIndexEngine())) {
+				fileIndex = new MappedFileIndex(new File(config.getMappedIndexPath()), !"OFF".equalsIgnoreCase(config.getIndexSynchronous()));
+			} else if ("sqlite".equalsIgnoreCase(config.getIndexEngine())) {
+				fileIndex = new SQLiteFileIndex(connectionSource, config.getIndexReadConnections());
+			} else {
+				throw new IllegalArgumentException("Unknown indexEngine: " + config.getIndexEngine());
+			}
+			fileIndexWriter = new FileIndexWriter(fileIndex, sdbWriteBuffer, config.getIndexBatchSize(), config.getIndexBatchMillis());
+			knownHashDao = DaoManager.createDao(connectionSource, KnownHash.class);
+			knownHashCache = new KnownHashCache(knownHashDao);
+			pendingUploadDao = DaoManager.createDao(connectionSource, PendingUpload.class);
+			uploadedPartDao = DaoManager.createDao(connectionSource, UploadedPart.class);
+			pendingDownloadDao = DaoManager.createDao(connectionSource, PendingDownload.class);
+			downloadedSegmentDao = DaoManager.createDao(connectionSource, DownloadedSegment.class);
+			localChunkDao = DaoManager.createDao(connectionSource, LocalChunk.class);
+			fileSignatureDao = DaoManager.createDao(connectionSource, FileSignature.class);
 		} catch (Exception e) {
 			// TODO: do something nicer to error handle this	
 			e.printStackTrace();
@@ -47,6 +98,21 @@ public class Global {
 		}
 	}
 	
+	// JetS3t settings for talking to the S3 compatible service at the given URL, e.g. http://localhost:9000
+	private static Jets3tProperties getS3EndpointProperties(String endpoint) {
+		URI uri = URI.create(endpoint);
+		boolean https = "https".equalsIgnoreCase(uri.getScheme());
+		Jets3tProperties properties = new Jets3tProperties();
+		properties.setProperty("s3service.s3-endpoint", uri.getHost());
+		if (uri.getPort() != -1) {
+			properties.setProperty(https ? "s3service.s3-endpoint-https-port" : "s3service.s3-endpoint-http-port", Integer.toString(uri.getPort()));
+		}
+		properties.setProperty("s3service.https-only", Boolean.toString(https));
+		// stand-ins usually don't have DNS for bucket.host style names
+		properties.setProperty("s3service.disable-dns-buckets", "true");
+		return properties;
+	}
+	
 	// implement singleton getInstance API
 	public static Global getInstance() {
 		if (global == null) {
@@ -65,6 +131,11 @@ public class Global {
 		return gl.sdb;
 	}
 	
+	public static SimpleDBWriteBuffer getSDBWriteBuffer() {
+		Global gl = getInstance();
+		return gl.sdbWriteBuffer;
+	}
+	
 	public static LogMaster getLogger() {
 		Global gl = getInstance();
 		return gl.logger;
@@ -83,9 +154,57 @@ public class Global {
 		return gl.fileMetadataDao;
 	}
 
+	public static FileIndex getFileIndex() {
+		Global gl = getInstance();
+		return gl.fileIndex;
+	}
+
+	public static FileIndexWriter getFileIndexWriter() {
+		Global gl = getInstance();
+		return gl.fileIndexWriter;
+	}
+
+	public static KnownHashCache getKnownHashCache() {
+		Global gl = getInstance();
+		return gl.knownHashCache;
+	}
+
+	public static Dao<PendingUpload, String> getPendingUploadDAO() {
+		Global gl = getInstance();
+		return gl.pendingUploadDao;
+	}
+
+	public static Dao<UploadedPart, Integer> getUploadedPartDAO() {
+		Global gl = getInstance();
+		return gl.uploadedPartDao;
+	}
+
+	public static Dao<PendingDownload, String> getPendingDownloadDAO() {
+		Global gl = getInstance();
+		return gl.pendingDownloadDao;
+	}
+
+	public static Dao<DownloadedSegment, Integer> getDownloadedSegmentDAO() {
+		Global gl = getInstance();
+		return gl.downloadedSegmentDao;
+	}
+
+	public static Dao<LocalChunk, Integer> getLocalChunkDAO() {
+		Global gl = getInstance();
+		return gl.localChunkDao;
+	}
+
+	public static Dao<FileSignature, String> getFileSignatureDAO() {
+		Global gl = getInstance();
+		return gl.fileSignatureDao;
+	}
+
 	public static void cleanUp() throws SQLException {
 		if (global != null) {
 			Global gl = getInstance();
+			gl.sdbWriteBuffer.shutdown();
+			gl.fileIndexWriter.shutdown();
+			gl.fileIndex.close();
 			gl.connectionSource.close();
 			global = null;
 		}
@@ -0,0 +1,78 @@
+package com.robwilliams.mibox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.simpledb.model.Item;
+import com.robwilliams.mibox.exceptions.IntegrityError;
+import com.robwilliams.mibox.snapshots.CloudFileSnapshot;
+import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
+
+/**
+ * The default MergePlanner. Pairs up the snapshots of each file by looking them up in the maps: the local
+ * snapshots with their cloud snapshot (if any), then the cloud snapshots that have no local one.
+ * Both sides have to be in memory as maps.
+ * <br><br>
+ * The pairs are classified all at once with classifyAll(...), which splits big syncs over several threads,
+ * before their actions are applied in the same order as the pairs.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class HashMergePlanner extends MergePlanner {
+
+	public void prepareMerge(Map<String, LocalFileSnapshot> localFileSnapshots,
+			Map<String, CloudFileSnapshot> cloudFileSnapshots) throws IntegrityError {
+
+		// pair up every local file with its cloud snapshot, if any exists, then every cloud file with no local snapshot
+		int cloudOnly = 0;
+		for (String fileName : cloudFileSnapshots.keySet()) {
+			if (!localFileSnapshots.containsKey(fileName)) {
+				cloudOnly++;
+			}
+		}
+		int files = localFileSnapshots.size() + cloudOnly;
+		LocalFileSnapshot[] locals = new LocalFileSnapshot[files];
+		CloudFileSnapshot[] clouds = new CloudFileSnapshot[files];
+		int i = 0;
+		for (LocalFileSnapshot localFileSnapshot : localFileSnapshots.values()) {
+			locals[i] = localFileSnapshot;
+			clouds[i++] = cloudFileSnapshots.get(localFileSnapshot.getFileName());
+		}
+		for (CloudFileSnapshot cloudFileSnapshot : cloudFileSnapshots.values()) {
+			if (!localFileSnapshots.containsKey(cloudFileSnapshot.getFileName())) {
+				clouds[i++] = cloudFileSnapshot;
+			}
+		}
+
+		ActionKind[] kinds = classifyAll(locals, clouds);
+
+		// local deletes need to know whether the cloud has a row for the file, so look all of them up at once
+		List<String> locallyDeletedFileNames = new ArrayList<String>();
+		for (i = 0; i < files; i++) {
+			if (kinds[i] == ActionKind.LOCALLY_DELETED) {
+				locallyDeletedFileNames.add(locals[i].getFileName());
+			}
+		}
+		Map<String, Item> cloudItemsForLocalDeletes = lookUpCloudItems(locallyDeletedFileNames);
+
+		for (i = 0; i < files; i++) {
+			if (kinds[i] == ActionKind.LOCALLY_DELETED) {
+				CloudFileSnapshot relatedCloudFileSnapshot = planLocallyDeleted(locals[i], cloudItemsForLocalDeletes.get(locals[i].getFileName()));
+				if (relatedCloudFileSnapshot != null) {
+					// put in map since it's a new snapshot
+					cloudFileSnapshots.put(relatedCloudFileSnapshot.getFileName(), relatedCloudFileSnapshot);
+				}
+			} else if (kinds[i] == ActionKind.PENDING_DELETES) {
+				LocalFileSnapshot relatedLocalFileSnapshot = planPendingDeletes(clouds[i]);
+				if (relatedLocalFileSnapshot != null) {
+					// put in map since it's a new snapshot
+					localFileSnapshots.put(relatedLocalFileSnapshot.getFileName(), relatedLocalFileSnapshot);
+				}
+			} else {
+				apply(kinds[i], locals[i], clouds[i]);
+			}
+		}
+	}
+}
@@ -7,6 +7,8 @@ public class LogMaster {
 	// singleton object
 	private static LogMaster logger = null;
 	
+	private volatile boolean debugEnabled = true;
+	
 	// private constructor
 	private LogMaster() {
 		// TODO: open file?
@@ -24,6 +26,18 @@ public class LogMaster {
 	// getters and setters
 	//
 	
+	/**
+	 * Code that logs a lot (like one line per file of a sync) should check this before building its messages.
+	 * @return false if debug lines are thrown away
+	 */
+	public boolean isDebugEnabled() {
+		return debugEnabled;
+	}
+	
+	public void setDebugEnabled(boolean debugEnabled) {
+		this.debugEnabled = debugEnabled;
+	}
+	
 	public void writeFatalLine(String message) {
 		writeLine("[FATAL] " + message);
 	}
@@ -37,6 +51,7 @@ public class LogMaster {
 	}
 	
 	public void writeDebugLine(String message) {
+		if (!debugEnabled) return;
 		writeLine("[DEBUG] " + message);
 	}
 	
@@ -13,8 +13,17 @@ import org.jets3t.service.security.EncryptionUtil;
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
 import com.amazonaws.services.simpledb.model.CreateDomainRequest;
 import com.j256.ormlite.table.TableUtils;
+import com.robwilliams.mibox.dataObjects.DownloadedSegment;
+import com.robwilliams.mibox.dataObjects.FileSignature;
+import com.robwilliams.mibox.dataObjects.KnownHash;
+import com.robwilliams.mibox.dataObjects.LocalChunk;
 import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.dataObjects.PendingDownload;
+import com.robwilliams.mibox.dataObjects.PendingUpload;
+import com.robwilliams.mibox.dataObjects.UploadedPart;
 import com.robwilliams.mibox.exceptions.IntegrityError;
+import com.robwilliams.mibox.exceptions.SnapshotError;
+import com.robwilliams.mibox.exceptions.SyncActionError;
 
 public class Main {
 	public static void main(String[] args) throws Exception { // TODO: ABSOLUTELY DO NOT KEEP THIS THROWS EXCEPTION
@@ -44,6 +53,20 @@ public class Main {
         // initialize file index database	        
         try {
 			TableUtils.createTableIfNotExists(Global.getORMLiteConnection(), MiBoxFile.class);
+			// tables created by older versions don't have the indexes the sync queries rely on
+			Global.getFileMetadataDAO().executeRaw("CREATE INDEX IF NOT EXISTS local_files_lastSyncTime_idx ON local_files (lastSyncTime)");
+			Global.getFileMetadataDAO().executeRaw("CREATE INDEX IF NOT EXISTS local_files_lastModifiedTime_idx ON local_files (lastModifiedTime)");
+			TableUtils.createTableIfNotExists(Global.getORMLiteConnection(), KnownHash.class);
+			TableUtils.createTableIfNotExists(Global.getORMLiteConnection(), PendingUpload.class);
+			// tables created by older versions don't have these yet. Their uploads have no MD5, so they're restarted.
+			addColumnIfMissing("pending_uploads", "length", "BIGINT");
+			addColumnIfMissing("pending_uploads", "md5", "VARCHAR");
+			TableUtils.createTableIfNotExists(Global.getORMLiteConnection(), UploadedPart.class);
+			TableUtils.createTableIfNotExists(Global.getORMLiteConnection(), PendingDownload.class);
+			TableUtils.createTableIfNotExists(Global.getORMLiteConnection(), DownloadedSegment.class);
+			TableUtils.createTableIfNotExists(Global.getORMLiteConnection(), LocalChunk.class);
+			TableUtils.createTableIfNotExists(Global.getORMLiteConnection(), FileSignature.class);
+			Global.getKnownHashCache().load();
 		} catch (SQLException e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -56,6 +79,9 @@ public class Main {
 		s3.enableBucketVersioning(Global.getConfig().getFilenameHashMapBucket());
 		// create Hash -> Data map bucket
 		s3.createBucket(Global.getConfig().getHashDataMapBucket());
+		if (Global.getConfig().isWarmKnownHashCache()) {
+			Global.getKnownHashCache().warmUp(s3, Global.getConfig().getHashDataMapBucket());
+		}
 		
 		// initialize SimpleDB
 		AmazonSimpleDB sdb = Global.getSDB();
@@ -66,10 +92,30 @@ public class Main {
 		// perform initial sync
 		SyncMaster sm = new SyncMaster();
 		try {
+			// in daemon mode, start watching first so that changes made during the initial sync aren't missed
+			WatchMaster watchMaster = null;
+			if (Global.getConfig().isDaemonMode()) {
+				watchMaster = new WatchMaster(sm);
+				watchMaster.watch();
+			}
+			
 			sm.performInitialSync();
+			
+			// in daemon mode, keep running and sync changes as they happen
+			if (watchMaster != null) {
+				watchMaster.run();
+			}
 		} catch (IntegrityError e1) {
 			System.out.println(e1.getMessage());
 			System.exit(1);
+		} catch (SyncActionError e2) {
+			Global.getLogger().writeFatalLine(e2.getMessage());
+			e2.printStackTrace();
+			System.exit(1);
+		} catch (SnapshotError e3) {
+			Global.getLogger().writeFatalLine(e3.getMessage());
+			e3.printStackTrace();
+			System.exit(1);
 		}
 		
         // clean up
@@ -81,4 +127,14 @@ public class Main {
 		}
 
 	}
+
+	private static void addColumnIfMissing(String table, String column, String type) throws SQLException {
+		// each row of table_info describes one column, with the column's name second
+		for (String[] columnInfo : Global.getFileMetadataDAO().queryRaw("PRAGMA table_info(" + table + ")").getResults()) {
+			if (columnInfo[1].equalsIgnoreCase(column)) {
+				return;
+			}
+		}
+		Global.getFileMetadataDAO().executeRaw("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+	}
 }
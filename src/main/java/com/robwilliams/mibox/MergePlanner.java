@@ -0,0 +1,377 @@
+package com.robwilliams.mibox;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.amazonaws.services.simpledb.model.Item;
+import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.exceptions.IntegrityError;
+import com.robwilliams.mibox.snapshots.CloudFileSnapshot;
+import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
+import com.robwilliams.mibox.snapshots.actions.CloudFileAddedAction;
+import com.robwilliams.mibox.snapshots.actions.CloudFileChangedAction;
+import com.robwilliams.mibox.snapshots.actions.CloudFileDeletedAction;
+import com.robwilliams.mibox.snapshots.actions.DummyFileAction;
+import com.robwilliams.mibox.snapshots.actions.LocalFileAddedAction;
+import com.robwilliams.mibox.snapshots.actions.LocalFileChangedAction;
+import com.robwilliams.mibox.snapshots.actions.LocalFileConflictAction;
+import com.robwilliams.mibox.snapshots.actions.LocalFileDeletedAction;
+import com.robwilliams.mibox.snapshots.actions.LocalFileUnchangedAction;
+import com.robwilliams.mibox.util.FileUtil;
+import com.robwilliams.mibox.util.SimpleDBUtil;
+
+/**
+ * By comparing the local and cloud file snapshots, a MergePlanner determines
+ * the actions necessary to merge the results. It annotates the snapshot objects
+ * with the FileSnapshotAction representing an action to be performed.
+ * <br><br>
+ * The decision tree for one file lives here, so that every planner makes the same decisions. The code may
+ * look confusing because it's a ton of IF statements, but it is actually a very simple decision tree.
+ * The planners only differ in how they pair up the local and cloud snapshots of each file:
+ * HashMergePlanner looks them up in maps, SortMergePlanner walks both sides in file name order.
+ * <br><br>
+ * Deciding is split in two. classify(...) only looks at the two snapshots and returns an ActionKind, without
+ * allocating anything, so a big sync can classify its files on several threads (see classifyAll(...)).
+ * apply(...) then sets the actions (sharing DummyFileAction.INSTANCE) and logs the decision, one file after
+ * another. The few kinds that need to look at the cloud or the disk are decided by planLocallyDeleted(...)
+ * and planPendingDeletes(...) instead.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public abstract class MergePlanner {
+
+	/**
+	 * What classify(...) decided for a file.
+	 */
+	public enum ActionKind {
+		// files with both a local and a cloud snapshot
+		UNCHANGED("Unchanged action chosen for local file: "),
+		CONFLICT_SAME_MODIFIED_DATE("Conflict due to diff hash/same LMD: "),
+		CONFLICT_SINCE_LAST_SYNC("Conflict due to last sync'd LMD: "),
+		LOCAL_CHANGED("Changed action chosen for local file: "),
+		CLOUD_CHANGED("Changed action chosen for cloud file: "),
+		TIME_TRAVEL(null), // an IntegrityError
+		INCONSISTENT(null), // an IntegrityError too
+		// files with only a local snapshot
+		LOCAL_ADDED("Added action chosen for local file: "),
+		LOCALLY_DELETED(null), // depends on the cloud row, see planLocallyDeleted(...)
+		// files with only a cloud snapshot
+		CLOUD_ADDED("Added action chosen for cloud file: "),
+		PENDING_DELETES(null); // depends on the local file, see planPendingDeletes(...)
+
+		private final String logMessage; // followed by the file name, if apply(...) logs this kind
+
+		private ActionKind(String logMessage) {
+			this.logMessage = logMessage;
+		}
+	}
+
+	// below this many files a sync isn't worth splitting up
+	private static final int SPLIT_THRESHOLD = 4096;
+	private static final ForkJoinPool CLASSIFYING_POOL = new ForkJoinPool();
+
+	protected final LogMaster logger;
+
+	protected MergePlanner() {
+		logger = Global.getLogger();
+	}
+
+	/**
+	 * Determine the actions of every snapshot in the given maps. Snapshots created along the way
+	 * (for files that turn out to need deleting on the other side) are added to the maps.
+	 * <br><br>
+	 * This is usually called before SyncMaster's merge(...) method.
+	 *
+	 * @param localFileSnapshots
+	 * @param cloudFileSnapshots
+	 * @throws IntegrityError indicates something is very wrong with the integrity of the metadata
+	 */
+	public abstract void prepareMerge(Map<String, LocalFileSnapshot> localFileSnapshots,
+			Map<String, CloudFileSnapshot> cloudFileSnapshots) throws IntegrityError;
+
+	/**
+	 * Decide what to do with a file, from its snapshots alone. Doesn't change or allocate anything.
+	 * @param localFileSnapshot null if the file has only a cloud snapshot
+	 * @param relatedCloudFileSnapshot null if the file has only a local snapshot
+	 * @return the kind of action to take
+	 */
+	public static ActionKind classify(LocalFileSnapshot localFileSnapshot, CloudFileSnapshot relatedCloudFileSnapshot) {
+		if (relatedCloudFileSnapshot == null) {
+			// file not existing on cloud means one of two cases
+			// 1) file was deleted locally, in which case the snapshot will be marked as existsLocally = false
+			// 2) it is a local addition or change (which are both handled by LocalFileAddedAction anyway)
+			return localFileSnapshot.existsLocally() ? ActionKind.LOCAL_ADDED : ActionKind.LOCALLY_DELETED;
+		}
+		if (localFileSnapshot == null) {
+			// file exists on cloud but we have no local snapshot
+			// this means one of two cases
+			// 1) cloud snapshot is for a file with pending deletes
+			// 2) file was added or modified on cloud and should be downloaded to local
+			return relatedCloudFileSnapshot.getPendingDeletes() > 0 ? ActionKind.PENDING_DELETES : ActionKind.CLOUD_ADDED;
+		}
+		// we have both snapshots, so file was changed on cloud since last sync
+		// next compare last modified dates
+		if (localFileSnapshot.getLastModifiedTime() == relatedCloudFileSnapshot.getLastModifiedTime()) {
+			// last modified dates are equal, so next compare hashes
+			if (localFileSnapshot.hasSameHash(relatedCloudFileSnapshot)) {
+				// filename, last modified date, and hash are all equal
+				// therefore, there was no change to this file
+				// (which in all honesty is a super rare case, since it means the user modified file locally,
+				//  then manually copied to another computer and sync'd to cloud there.)
+				return ActionKind.UNCHANGED;
+			} else { // hashes not equal
+				// if hashes are not equal, then it is a conflict
+				// not to mention, also a quite rare occurrence:
+				// (the file was updated separately on two computers but modified at same second)
+				return ActionKind.CONFLICT_SAME_MODIFIED_DATE;
+			}
+		} else { // last modified dates are not equal
+			// Check for a very rare case
+			// (file was touch'd but not changed)
+			if (localFileSnapshot.hasSameHash(relatedCloudFileSnapshot)) {
+				// Since the file didn't change, the most recently modified version will trump the other.
+				// Even though the LocalFileChanged and CloudFileChanged will call the heavy Added actions,
+				// it shouldn't involve network upload/download of file due to hash matching.
+				if (localFileSnapshot.getLastModifiedTime() > relatedCloudFileSnapshot.getLastModifiedTime()) {
+					// local file is more recently modified, so local change trumps
+					return ActionKind.LOCAL_CHANGED;
+				} else {
+					// cloud file must be more recently modified (or they're equal, so take cloud anyway)
+					return ActionKind.CLOUD_CHANGED;
+				}
+			}
+			// next, check for a horrible situation that should never happen
+			// if it does happen, it means time travel has been invented, or the local DB is corrupted, or file metadata was tampered with
+			else if (localFileSnapshot.getLastSyncedLastModifiedTime() > relatedCloudFileSnapshot.getLastModifiedTime()
+					|| localFileSnapshot.getLastSyncedLastModifiedTime() > localFileSnapshot.getLastModifiedTime()) {
+				return ActionKind.TIME_TRAVEL;
+			}
+			// next, check for more common conflict case
+			else if (localFileSnapshot.getLastSyncedLastModifiedTime() != 0 // this only applies if there is a last sync'd last-mod-date
+					&& localFileSnapshot.getLastSyncedLastModifiedTime() < relatedCloudFileSnapshot.getLastModifiedTime()
+					&& localFileSnapshot.getLastSyncedLastModifiedTime() < localFileSnapshot.getLastModifiedTime()) {
+
+				// One final very rare case that we need to check for before declaring this is a conflict.
+				// Make sure that the local file actually changed. There is no sense in making a conflict just
+				// because someone touch'd the local file after syncing, when the cloud has a real change.
+				if (localFileSnapshot.isHashLastSynced()) {
+					// we know the cloud was actually changed, because if cloud hash == local hash we would be in branch above
+					return ActionKind.CLOUD_CHANGED;
+				} else {
+					// Finally, we know it's a conflict.
+					// This is a conflict because it means the file changed both locally and on the cloud in the time
+					// since the last successful sync of this file. (Remember cloud mod date and local mod date are not equal
+					// AND hashes are not equal, else we would have been in a different branch.)
+					// Therefore, there is no way to merge files or determine which one should be kept.
+					return ActionKind.CONFLICT_SINCE_LAST_SYNC;
+				}
+			}
+			// next, finally handle the usual case where cloud or local file is more recent and trumps the other
+			// (this is actually quite rare now that we are partial sync'ing)
+			else if (localFileSnapshot.getLastModifiedTime() > relatedCloudFileSnapshot.getLastModifiedTime()) {
+				// local file is more recently modified, so local change trumps
+				return ActionKind.LOCAL_CHANGED;
+			} else if (relatedCloudFileSnapshot.getLastModifiedTime() > localFileSnapshot.getLastModifiedTime()) {
+				// cloud file is more recently modified, so cloud change trumps
+				return ActionKind.CLOUD_CHANGED;
+			}
+			// if it gets this far, something is wrong
+			// I'm not convinced this is even reachable code, but better safe than sorry.
+			else {
+				return ActionKind.INCONSISTENT;
+			}
+		}
+	}
+
+	/**
+	 * classify(...) every pair of snapshots, on several threads if there are many.
+	 * @param localFileSnapshots local snapshot of each file, or null
+	 * @param cloudFileSnapshots cloud snapshot of the same file, or null
+	 * @return the kind for each file
+	 */
+	public static ActionKind[] classifyAll(LocalFileSnapshot[] localFileSnapshots, CloudFileSnapshot[] cloudFileSnapshots) {
+		ActionKind[] kinds = new ActionKind[localFileSnapshots.length];
+		Classify all = new Classify(localFileSnapshots, cloudFileSnapshots, kinds, 0, kinds.length);
+		if (kinds.length <= SPLIT_THRESHOLD) {
+			all.compute();
+		} else {
+			CLASSIFYING_POOL.invoke(all);
+		}
+		return kinds;
+	}
+
+	// classifies a range of files, splitting it in halves until they're small enough
+	@SuppressWarnings("serial")
+	private static class Classify extends RecursiveAction {
+		private final LocalFileSnapshot[] localFileSnapshots;
+		private final CloudFileSnapshot[] cloudFileSnapshots;
+		private final ActionKind[] kinds;
+		private final int from;
+		private final int to;
+
+		Classify(LocalFileSnapshot[] localFileSnapshots, CloudFileSnapshot[] cloudFileSnapshots, ActionKind[] kinds, int from, int to) {
+			this.localFileSnapshots = localFileSnapshots;
+			this.cloudFileSnapshots = cloudFileSnapshots;
+			this.kinds = kinds;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from <= SPLIT_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					kinds[i] = classify(localFileSnapshots[i], cloudFileSnapshots[i]);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Classify(localFileSnapshots, cloudFileSnapshots, kinds, from, middle),
+						new Classify(localFileSnapshots, cloudFileSnapshots, kinds, middle, to));
+			}
+		}
+	}
+
+	/**
+	 * Set the actions for a file classified as the given kind, and log the decision.
+	 * @param kind any kind but LOCALLY_DELETED and PENDING_DELETES
+	 * @param localFileSnapshot
+	 * @param relatedCloudFileSnapshot
+	 * @throws IntegrityError for TIME_TRAVEL and INCONSISTENT
+	 */
+	protected void apply(ActionKind kind, LocalFileSnapshot localFileSnapshot, CloudFileSnapshot relatedCloudFileSnapshot) throws IntegrityError {
+		switch (kind) {
+		case UNCHANGED:
+			localFileSnapshot.setAction(new LocalFileUnchangedAction(localFileSnapshot));
+			relatedCloudFileSnapshot.setAction(DummyFileAction.INSTANCE);
+			break;
+		case CONFLICT_SAME_MODIFIED_DATE:
+		case CONFLICT_SINCE_LAST_SYNC:
+			localFileSnapshot.setAction(new LocalFileConflictAction(localFileSnapshot, relatedCloudFileSnapshot));
+			// all heavy lifting for conflicts happens in Local, so Cloud snapshot will do nothing
+			// This was an arbitrary design decision;
+			// it just as easily could have been Cloud doing all work and Local dummy'ing.
+			relatedCloudFileSnapshot.setAction(DummyFileAction.INSTANCE);
+			break;
+		case LOCAL_CHANGED:
+			localFileSnapshot.setAction(new LocalFileChangedAction(localFileSnapshot));
+			relatedCloudFileSnapshot.setAction(DummyFileAction.INSTANCE);
+			break;
+		case CLOUD_CHANGED:
+			localFileSnapshot.setAction(DummyFileAction.INSTANCE);
+			relatedCloudFileSnapshot.setAction(new CloudFileChangedAction(relatedCloudFileSnapshot));
+			break;
+		case LOCAL_ADDED:
+			localFileSnapshot.setAction(new LocalFileAddedAction(localFileSnapshot));
+			break;
+		case CLOUD_ADDED:
+			relatedCloudFileSnapshot.setAction(new CloudFileAddedAction(relatedCloudFileSnapshot));
+			break;
+		case TIME_TRAVEL:
+			throw new IntegrityError("Local file or cloud file was modified before a modified date previously recorded for them!");
+		case INCONSISTENT:
+			throw new IntegrityError("File metadata is messed up");
+		default:
+			throw new IllegalArgumentException(kind + " can't be decided from the snapshots alone");
+		}
+		if (kind.logMessage != null && logger.isDebugEnabled()) {
+			String fileName = localFileSnapshot != null ? localFileSnapshot.getFileName() : relatedCloudFileSnapshot.getFileName();
+			logger.writeDebugLine(kind.logMessage + fileName);
+		}
+	}
+
+	/**
+	 * Look up the cloud rows of locally deleted files that have no cloud snapshot, all at once.
+	 * planLocallyDeleted(...) needs to know whether the cloud has a row for such a file.
+	 * @param fileNames
+	 * @return item per file name, for the files the cloud has a row for
+	 */
+	protected Map<String, Item> lookUpCloudItems(Collection<String> fileNames) {
+		if (fileNames.isEmpty()) {
+			return new HashMap<String, Item>();
+		}
+		return SimpleDBUtil.selectItemsByName(Global.getSDB(), Global.getConfig().getCloudFilesDomain(),
+				CloudFileSnapshot.SELECT_ATTRIBUTES, fileNames, null, Global.getConfig().getLookupThreads());
+	}
+
+	/**
+	 * Decide for a local snapshot classified as LOCALLY_DELETED.
+	 * @param localFileSnapshot
+	 * @param item the file's cloud row from lookUpCloudItems(...), if the cloud has one
+	 * @return a new cloud snapshot, if the file needs deleting from the cloud
+	 */
+	protected CloudFileSnapshot planLocallyDeleted(LocalFileSnapshot localFileSnapshot, Item item) {
+		CloudFileSnapshot relatedCloudFileSnapshot = null;
+		// there are two sub-cases. Either the cloud knows about this file already or it doesn't.
+		// the CloudFiles lookup tells us which case it is
+        if (item != null) {
+        	// case 1.1: cloud knows about file, so delete from cloud
+        	try {
+				relatedCloudFileSnapshot = new CloudFileSnapshot(item);
+				relatedCloudFileSnapshot.setAction(new CloudFileDeletedAction(relatedCloudFileSnapshot));
+				localFileSnapshot.setAction(DummyFileAction.INSTANCE);
+				if (logger.isDebugEnabled()) {
+					logger.writeDebugLine("Deleted action chosen for cloud file: " + relatedCloudFileSnapshot.getFileName());
+				}
+        	} catch (Exception e) {
+				relatedCloudFileSnapshot = null; // swallow Exception, probably just case 1.2
+			}
+        }
+        // case 1.2: cloud doesn't have row for file, which means it has already been deleted or never synced.
+        // either way, nothing needs to be done
+        else {
+        	localFileSnapshot.setAction(DummyFileAction.INSTANCE);
+        }
+		return relatedCloudFileSnapshot;
+	}
+
+	/**
+	 * Decide for a cloud snapshot classified as PENDING_DELETES.
+	 * @param cloudFileSnapshot
+	 * @return a new local snapshot, if the file needs deleting locally
+	 * @throws IntegrityError indicates something is very wrong with the integrity of the metadata
+	 */
+	protected LocalFileSnapshot planPendingDeletes(CloudFileSnapshot cloudFileSnapshot) throws IntegrityError {
+		LocalFileSnapshot relatedLocalFileSnapshot = null;
+		// this has two subcases
+		try {
+			File file = new File(FileUtil.getLocalFilePath(cloudFileSnapshot.getFileName()));
+			// 1.1) local file exists on file system, so delete it
+			if (file.exists()) {
+				// get file data from DB.
+				MiBoxFile existingFileRecord = Global.getFileIndex().queryForName(cloudFileSnapshot.getFileName());
+				// it's impossible for it to not exist in DB and be in this code path, due to how local file snapshots are created
+				if (existingFileRecord == null) {
+					throw new IntegrityError("File exists on filesystem without DB entry and yet no local snapshot was made for it");
+				}
+				try {
+					relatedLocalFileSnapshot = new LocalFileSnapshot(existingFileRecord, file);
+				} catch (Exception ex) {
+					// TODO: More bad error handling. PLz fix
+					ex.printStackTrace();
+					System.exit(1);
+				}
+				relatedLocalFileSnapshot.setAction(new LocalFileDeletedAction(relatedLocalFileSnapshot));
+				cloudFileSnapshot.setAction(DummyFileAction.INSTANCE);
+				if (logger.isDebugEnabled()) {
+					logger.writeDebugLine("Deleted action chosen for local file: " + relatedLocalFileSnapshot.getFileName());
+				}
+			}
+			// 1.2) local file doesn't exist, in which case this host never downloaded this file or it has already been deleted
+			//      either way, nothing needs to be done
+			else {
+				cloudFileSnapshot.setAction(DummyFileAction.INSTANCE);
+			}
+		} catch (IntegrityError e) {
+			throw e;
+		} catch (Exception e) {
+			// failed to read the file index
+			// TODO: make sure this makes sense
+			; // swallow exception
+		}
+		return relatedLocalFileSnapshot;
+	}
+}
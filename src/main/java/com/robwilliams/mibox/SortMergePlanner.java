@@ -0,0 +1,130 @@
+package com.robwilliams.mibox;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.amazonaws.services.simpledb.model.Item;
+import com.robwilliams.mibox.exceptions.IntegrityError;
+import com.robwilliams.mibox.snapshots.CloudFileSnapshot;
+import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
+
+/**
+ * A MergePlanner for boxes too big to keep all their snapshots in memory. It reads the local and the cloud
+ * snapshots as two streams sorted by file name (see SnapshotSorter) and walks them side by side, like a
+ * sort-merge join. Each file is decided as soon as both streams have moved past its name, and handed to a
+ * Listener, so only the current snapshot of each stream is needed in memory.
+ * <br><br>
+ * Locally deleted files without a cloud snapshot need their cloud row looked up. Those are collected and looked
+ * up LOOKUP_BATCH_SIZE at a time, so they are decided a little later than the files around them.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class SortMergePlanner extends MergePlanner {
+
+	private static final int LOOKUP_BATCH_SIZE = 1000;
+
+	/**
+	 * Receives the snapshots of each file once their actions are decided.
+	 */
+	public interface Listener {
+		/**
+		 * @param localFileSnapshot the file's local snapshot, or null if it only has a cloud one
+		 * @param cloudFileSnapshot the file's cloud snapshot, or null if it only has a local one
+		 */
+		void planned(LocalFileSnapshot localFileSnapshot, CloudFileSnapshot cloudFileSnapshot);
+	}
+
+	/**
+	 * Determine the actions of every file in two streams of snapshots.
+	 * @param localFileSnapshots local snapshots, sorted by file name
+	 * @param cloudFileSnapshots cloud snapshots, sorted by file name
+	 * @param listener gets the snapshots of every file, including snapshots created along the way
+	 * @throws IntegrityError indicates something is very wrong with the integrity of the metadata.
+	 *         The listener may have already been given some of the files.
+	 */
+	public void plan(Iterator<LocalFileSnapshot> localFileSnapshots, Iterator<CloudFileSnapshot> cloudFileSnapshots,
+			Listener listener) throws IntegrityError {
+		List<LocalFileSnapshot> locallyDeleted = new ArrayList<LocalFileSnapshot>();
+		LocalFileSnapshot localFileSnapshot = localFileSnapshots.hasNext() ? localFileSnapshots.next() : null;
+		CloudFileSnapshot cloudFileSnapshot = cloudFileSnapshots.hasNext() ? cloudFileSnapshots.next() : null;
+		String previousFileName = null;
+
+		while (localFileSnapshot != null || cloudFileSnapshot != null) {
+			int order;
+			if (localFileSnapshot == null) {
+				order = 1;
+			} else if (cloudFileSnapshot == null) {
+				order = -1;
+			} else {
+				order = localFileSnapshot.getFileName().compareTo(cloudFileSnapshot.getFileName());
+			}
+			String fileName = order <= 0 ? localFileSnapshot.getFileName() : cloudFileSnapshot.getFileName();
+			if (previousFileName != null && previousFileName.compareTo(fileName) >= 0) {
+				throw new IllegalArgumentException("Snapshots are not sorted by file name: " + fileName + " after " + previousFileName);
+			}
+			previousFileName = fileName;
+
+			LocalFileSnapshot local = order <= 0 ? localFileSnapshot : null;
+			CloudFileSnapshot cloud = order >= 0 ? cloudFileSnapshot : null;
+			ActionKind kind = classify(local, cloud);
+			if (kind == ActionKind.LOCALLY_DELETED) {
+				locallyDeleted.add(local);
+				if (locallyDeleted.size() >= LOOKUP_BATCH_SIZE) {
+					planLocallyDeleted(locallyDeleted, listener);
+				}
+			} else if (kind == ActionKind.PENDING_DELETES) {
+				listener.planned(planPendingDeletes(cloud), cloud);
+			} else {
+				apply(kind, local, cloud);
+				listener.planned(local, cloud);
+			}
+
+			if (order <= 0) {
+				localFileSnapshot = localFileSnapshots.hasNext() ? localFileSnapshots.next() : null;
+			}
+			if (order >= 0) {
+				cloudFileSnapshot = cloudFileSnapshots.hasNext() ? cloudFileSnapshots.next() : null;
+			}
+		}
+		planLocallyDeleted(locallyDeleted, listener);
+	}
+
+	/**
+	 * Same as HashMergePlanner, by sorting the maps' snapshots and planning them with plan(...).
+	 */
+	public void prepareMerge(final Map<String, LocalFileSnapshot> localFileSnapshots,
+			final Map<String, CloudFileSnapshot> cloudFileSnapshots) throws IntegrityError {
+		plan(new TreeMap<String, LocalFileSnapshot>(localFileSnapshots).values().iterator(),
+				new TreeMap<String, CloudFileSnapshot>(cloudFileSnapshots).values().iterator(), new Listener() {
+			public void planned(LocalFileSnapshot localFileSnapshot, CloudFileSnapshot cloudFileSnapshot) {
+				// put new snapshots in the maps
+				if (localFileSnapshot != null) {
+					localFileSnapshots.put(localFileSnapshot.getFileName(), localFileSnapshot);
+				}
+				if (cloudFileSnapshot != null) {
+					cloudFileSnapshots.put(cloudFileSnapshot.getFileName(), cloudFileSnapshot);
+				}
+			}
+		});
+	}
+
+	// look up the cloud rows of a batch of locally deleted files, decide them and clear the batch
+	private void planLocallyDeleted(List<LocalFileSnapshot> locallyDeleted, Listener listener) {
+		if (locallyDeleted.isEmpty()) {
+			return;
+		}
+		List<String> fileNames = new ArrayList<String>();
+		for (LocalFileSnapshot localFileSnapshot : locallyDeleted) {
+			fileNames.add(localFileSnapshot.getFileName());
+		}
+		Map<String, Item> cloudItems = lookUpCloudItems(fileNames);
+		for (LocalFileSnapshot localFileSnapshot : locallyDeleted) {
+			listener.planned(localFileSnapshot, planLocallyDeleted(localFileSnapshot, cloudItems.get(localFileSnapshot.getFileName())));
+		}
+		locallyDeleted.clear();
+	}
+}
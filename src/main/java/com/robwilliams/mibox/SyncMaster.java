@@ -1,42 +1,53 @@
 package com.robwilliams.mibox;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.sql.SQLException;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
 import com.amazonaws.services.simpledb.model.Item;
-import com.amazonaws.services.simpledb.model.PutAttributesRequest;
 import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
-import com.amazonaws.services.simpledb.model.SelectRequest;
 import com.robwilliams.mibox.dataObjects.MiBoxFile;
 import com.robwilliams.mibox.exceptions.IntegrityError;
+import com.robwilliams.mibox.exceptions.SnapshotError;
+import com.robwilliams.mibox.exceptions.SyncActionError;
 import com.robwilliams.mibox.snapshots.CloudFileSnapshot;
+import com.robwilliams.mibox.snapshots.FileSnapshot;
 import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
-import com.robwilliams.mibox.snapshots.actions.CloudFileAddedAction;
-import com.robwilliams.mibox.snapshots.actions.CloudFileChangedAction;
-import com.robwilliams.mibox.snapshots.actions.CloudFileDeletedAction;
-import com.robwilliams.mibox.snapshots.actions.DummyFileAction;
-import com.robwilliams.mibox.snapshots.actions.LocalFileAddedAction;
-import com.robwilliams.mibox.snapshots.actions.LocalFileChangedAction;
-import com.robwilliams.mibox.snapshots.actions.LocalFileConflictAction;
-import com.robwilliams.mibox.snapshots.actions.LocalFileDeletedAction;
-import com.robwilliams.mibox.snapshots.actions.LocalFileUnchangedAction;
+import com.robwilliams.mibox.snapshots.actions.ActionExecutor;
 import com.robwilliams.mibox.util.DateUtil;
+import com.robwilliams.mibox.util.FileIndex;
+import com.robwilliams.mibox.util.FileScanner;
 import com.robwilliams.mibox.util.FileUtil;
+import com.robwilliams.mibox.util.SimpleDBSelectIterator;
 import com.robwilliams.mibox.util.SimpleDBUtil;
+import com.robwilliams.mibox.util.SimpleDBWriteBuffer;
+import com.robwilliams.mibox.util.SnapshotSorter;
+import com.robwilliams.mibox.util.SyncStats;
 
 /**
  * SyncMaster's job is to handle all tasks associated with syncing the cloud
  * and local databases. This includes the initial sync that occurs when the program
- * launches, as well as syncs that happen as a result of JNotify events or remote
- * data changes.
+ * launches, as well as syncs that happen as a result of file-change events (see WatchMaster)
+ * or remote data changes.
  * <br><br>
  * @author Rob Williams
  * @since July 16, 2011
@@ -45,65 +56,285 @@ import com.robwilliams.mibox.util.SimpleDBUtil;
 public class SyncMaster {
 	
 	private LogMaster logger;
+	private final MergePlanner planner;
 	
 	public SyncMaster() {
+		this(newMergePlanner(Global.getConfig().getMergePlanner()));
+	}
+	
+	/**
+	 * @param planner decides the merge actions, see ConfigMaster's mergePlanner
+	 */
+	public SyncMaster(MergePlanner planner) {
 		logger = Global.getLogger();
+		this.planner = planner;
+	}
+	
+	private static MergePlanner newMergePlanner(String name) {
+		if ("hash".equalsIgnoreCase(name)) {
+			return new HashMergePlanner();
+		} else if ("sort".equalsIgnoreCase(name)) {
+			return new SortMergePlanner();
+		}
+		throw new IllegalArgumentException("Unknown mergePlanner: " + name);
+	}
+	
+	/**
+	 * Where getLocalFileSnapshots(...) and getCloudFileSnapshots(...) put the snapshots they make,
+	 * so they can go into a map or a SnapshotSorter. Must be safe to call from several threads at once.
+	 */
+	private interface SnapshotSink<T extends FileSnapshot> {
+		void add(T snapshot) throws Exception;
 	}
 		 
 	 /**
 	  * Retrieve a collection of LocalFileSnapshot objects representing the local
 	  * files in the user's MiBox.
+	  * <br><br>
+	  * The local DB is streamed rather than loaded whole, and sorted by file name alongside the files found on
+	  * disk (see getLocalFileSnapshots(Date, SnapshotSink)), so a file's full record is only read if it changed,
+	  * is missing, or was synced after lastSyncDate.
+	  * <br><br>
+	  * New and changed files need to be hashed (and therefore encrypted), which is handed off to a
+	  * bounded pool of hashing threads so the comparison can keep going. The results are joined before returning,
+	  * and the returned map is sorted by file name so that its order doesn't depend on thread timing.
 	  * @return collection of LocalFileSnapshot's
+	  * @throws SnapshotError if the box or the local DB could not be read
 	  */
-	 public Map<String, LocalFileSnapshot> getLocalFileSnapshots(Date lastSyncDate) {
-		 
-		 Map<String, LocalFileSnapshot> localFileSnapshots = new HashMap<String, LocalFileSnapshot>();
+	 public Map<String, LocalFileSnapshot> getLocalFileSnapshots(final Date lastSyncDate) throws SnapshotError {
+		 // the scan fills this map from several threads at once
+		 final Map<String, LocalFileSnapshot> localFileSnapshots = new ConcurrentHashMap<String, LocalFileSnapshot>();
+		 try {
+			 getLocalFileSnapshots(lastSyncDate, new SnapshotSink<LocalFileSnapshot>() {
+				 public void add(LocalFileSnapshot snapshot) {
+					 localFileSnapshots.put(snapshot.getFileName(), snapshot);
+				 }
+			 });
+		 } catch (Exception ex) {
+			 throw new SnapshotError("Could not scan the box", ex);
+		 }
+		 return new TreeMap<String, LocalFileSnapshot>(localFileSnapshots);
+	 }
+	 
+	 /**
+	  * Same as getLocalFileSnapshots(Date), but each snapshot goes to the sink as soon as it's ready
+	  * instead of being collected.
+	  * <br><br>
+	  * Neither the local DB nor the box is held in memory: the name and last modified time of every DB record, and of
+	  * every file on disk, go to a SnapshotSorter each (which keep at most mergeSortBufferSize of them in memory, and
+	  * the rest on disk), and the two sorted lists are then walked side by side. A file's full DB record is only read
+	  * if it changed, was deleted, or was synced after lastSyncDate.
+	  * @throws Exception the first thing that went wrong, once the hashing pool is finished
+	  */
+	 private void getLocalFileSnapshots(final Date lastSyncDate, final SnapshotSink<LocalFileSnapshot> sink) throws Exception {
+		 int bufferSize = Global.getConfig().getMergeSortBufferSize();
+		 final SnapshotSorter<ListedFile> filesFromDB = new SnapshotSorter<ListedFile>(LISTED_FILE, bufferSize, null);
+		 final SnapshotSorter<ListedFile> filesOnDisk = new SnapshotSorter<ListedFile>(LISTED_FILE, bufferSize, null);
+		 // the first failure of a hashing task
+		 final AtomicReference<Exception> failure = new AtomicReference<Exception>();
 		 
+		 ExecutorService hashingExecutor = null;
 		 try {
-			 // get all file information from local DB
-			 List<MiBoxFile> filesFromDB = Global.getFileMetadataDAO().queryForAll();
-			 for (MiBoxFile fileFromDB : filesFromDB) {
-				 File file = new File(FileUtil.getLocalFilePath(fileFromDB.getName()));
-				 LocalFileSnapshot snapshot = new LocalFileSnapshot(fileFromDB, file);
-				 localFileSnapshots.put(fileFromDB.getName(), snapshot);
+			 // files synced since lastSyncDate always need a snapshot (usually there are only a few),
+			 // for the rest the last modified time tells whether they need one
+			 Global.getFileIndex().scan(lastSyncDate, new FileIndex.ScanVisitor() {
+				 public void visitRecentlySynced(MiBoxFile fileFromDB) throws Exception {
+					 filesFromDB.add(new ListedFile(fileFromDB.getName(), fileFromDB.getLastModifiedTime().getTime(), true));
+				 }
+				 public void visitSynced(String name, long lastModifiedTime) throws Exception {
+					 filesFromDB.add(new ListedFile(name, lastModifiedTime, false));
+				 }
+			 });
+			 
+			 // walk the box directory
+			 FileScanner scanner = new FileScanner(Global.getConfig().getScannerThreads());
+			 try {
+				 scanner.scan(Paths.get(Global.getConfig().getBoxPath()), new FileScanner.Visitor() {
+					 public void visitFile(String relativePath, BasicFileAttributes attributes) throws Exception {
+						 if (FileUtil.isTempFile(relativePath)) return; // download in progress
+						 filesOnDisk.add(new ListedFile(relativePath, attributes.lastModifiedTime().toMillis(), false));
+					 }
+				 });
+			 } finally {
+				 scanner.shutdown();
 			 }
 			 
-			 // get list of all files in box directory
-			 File boxDirectory = new File(Global.getConfig().getBoxPath());
-			 Collection<File> files = FileUtil.listFiles(boxDirectory, null, true);
+			 // compare each file on disk to what we know from the DB and act accordingly (details inline below).
+			 // New and changed files need hashing, so they're handed to the hashing pool and the walk moves on.
+			 hashingExecutor = newHashingExecutor();
+			 Iterator<ListedFile> fromDB = filesFromDB.sorted();
+			 Iterator<ListedFile> onDisk = filesOnDisk.sorted();
+			 ListedFile fileFromDB = fromDB.hasNext() ? fromDB.next() : null;
+			 ListedFile fileOnDisk = onDisk.hasNext() ? onDisk.next() : null;
+			 while ((fileFromDB != null || fileOnDisk != null) && failure.get() == null) {
+				 int order = fileFromDB == null ? 1 : fileOnDisk == null ? -1 : fileFromDB.name.compareTo(fileOnDisk.name);
+				 final String relativePath = order < 0 ? fileFromDB.name : fileOnDisk.name;
+				 final File file = new File(FileUtil.getLocalFilePath(relativePath));
+				 
+				 if (order < 0) {
+					 // the walk didn't find it, so it has been deleted locally and needs a snapshot from its DB record
+					 sink.add(new LocalFileSnapshot(Global.getFileIndex().queryForName(relativePath), file));
+				 } else if (order > 0) {
+					 // there is no DB record, so we create a new snapshot straight from the local file
+					 final Date fileModifiedTime = new Date(fileOnDisk.lastModifiedTime);
+					 hashingExecutor.execute(new HashingTask(sink, failure) {
+						 LocalFileSnapshot snapshot() throws Exception {
+							 return new LocalFileSnapshot(relativePath, fileModifiedTime, file);
+						 }
+					 });
+				 } else if (fileFromDB.lastModifiedTime != fileOnDisk.lastModifiedTime) {
+					 // the DB record is out-dated. We want to keep its "last sync" fields, but calculate the file hash over again.
+					 final Date fileModifiedTime = new Date(fileOnDisk.lastModifiedTime);
+					 hashingExecutor.execute(new HashingTask(sink, failure) {
+						 LocalFileSnapshot snapshot() throws Exception {
+							 LocalFileSnapshot snapshot = new LocalFileSnapshot(Global.getFileIndex().queryForName(relativePath), file);
+							 return new LocalFileSnapshot(relativePath, fileModifiedTime, snapshot, file);
+						 }
+					 });
+				 } else if (fileFromDB.recentlySynced) {
+					 // unchanged, but it was synced after lastSyncDate, so the merge needs it
+					 sink.add(new LocalFileSnapshot(Global.getFileIndex().queryForName(relativePath), file));
+				 }
+				 // otherwise it hasn't changed since it was synced before lastSyncDate, and we don't need a snapshot at all
+				 
+				 if (order <= 0) {
+					 fileFromDB = fromDB.hasNext() ? fromDB.next() : null;
+				 }
+				 if (order >= 0) {
+					 fileOnDisk = onDisk.hasNext() ? onDisk.next() : null;
+				 }
+			 }
 			 
-			 // loop through each file
-			 // compare it to what we know from the DB and act accordingly (details inline below)
-			 for (File file : files) {
-				 if (file.isDirectory()) continue; // skip directories
-				 String relativePath = boxDirectory.toURI().relativize(file.toURI()).getPath();
-				 Date fileModifiedTime = new Date(file.lastModified());
-				 LocalFileSnapshot snapshot = localFileSnapshots.get(relativePath);
-				 // compare existing snapshot (from DB) to local file on disk
-				 if (snapshot != null && snapshot.getLastModifiedDate().equals(fileModifiedTime)) {
-					 // database has record with same last modified date
-					 // if the database's lastSyncTime is older than lastSyncDate for this host, we can safely remove this snapshot from the map
-					 // because it means it hasn't changed
-					 if (snapshot.getLastSyncTime().compareTo(lastSyncDate) <= 0) {
-						 localFileSnapshots.remove(relativePath);
+			 // wait for the hashing pool to finish
+			 hashingExecutor.shutdown();
+			 while (!hashingExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+				 ; // keep waiting, large files take a while to hash
+			 }
+			 if (failure.get() != null) {
+				 // report what actually went wrong while hashing
+				 throw failure.get();
+			 }
+		 } finally {
+			 if (hashingExecutor != null) {
+				 hashingExecutor.shutdownNow();
+			 }
+			 filesFromDB.close();
+			 filesOnDisk.close();
+		 }
+	 }
+	 
+	 /**
+	  * A file's name and last modified time, as listed by the local DB or found on disk by getLocalFileSnapshots(...).
+	  */
+	 private static class ListedFile {
+		 final String name;
+		 final long lastModifiedTime;
+		 final boolean recentlySynced; // DB record synced after lastSyncDate
+		 
+		 ListedFile(String name, long lastModifiedTime, boolean recentlySynced) {
+			 this.name = name;
+			 this.lastModifiedTime = lastModifiedTime;
+			 this.recentlySynced = recentlySynced;
+		 }
+	 }
+	 
+	 private static final SnapshotSorter.Codec<ListedFile> LISTED_FILE = new SnapshotSorter.Codec<ListedFile>() {
+		 public String getFileName(ListedFile listedFile) {
+			 return listedFile.name;
+		 }
+		 public void write(ListedFile listedFile, DataOutput out) throws IOException {
+			 out.writeUTF(listedFile.name);
+			 out.writeLong(listedFile.lastModifiedTime);
+			 out.writeBoolean(listedFile.recentlySynced);
+		 }
+		 public ListedFile read(DataInput in) throws IOException {
+			 return new ListedFile(in.readUTF(), in.readLong(), in.readBoolean());
+		 }
+	 };
+	 
+	 /**
+	  * Hashes one file for getLocalFileSnapshots(...) and hands the snapshot to the sink,
+	  * keeping the first failure instead of the snapshot if something goes wrong.
+	  */
+	 private static abstract class HashingTask implements Runnable {
+		 private final SnapshotSink<LocalFileSnapshot> sink;
+		 private final AtomicReference<Exception> failure;
+		 
+		 HashingTask(SnapshotSink<LocalFileSnapshot> sink, AtomicReference<Exception> failure) {
+			 this.sink = sink;
+			 this.failure = failure;
+		 }
+		 
+		 abstract LocalFileSnapshot snapshot() throws Exception;
+		 
+		 public void run() {
+			 if (failure.get() != null) {
+				 return; // the scan is being abandoned
+			 }
+			 try {
+				 sink.add(snapshot());
+			 } catch (Exception ex) {
+				 failure.compareAndSet(null, ex);
+			 }
+		 }
+	 }
+	 
+	 /**
+	  * Create the pool used to hash new and changed files. Its queue is bounded, and once it is full
+	  * the submitting thread hashes the file itself, which slows the scan down to the speed of hashing
+	  * instead of letting a backlog pile up in memory.
+	  */
+	 private ExecutorService newHashingExecutor() {
+		 int threads = Global.getConfig().getHashingThreads();
+		 return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				 new ArrayBlockingQueue<Runnable>(Global.getConfig().getHashingQueueDepth()),
+				 new ThreadPoolExecutor.CallerRunsPolicy());
+	 }
+	 
+	 /**
+	  * Retrieve LocalFileSnapshot objects for just the given paths, making the same decisions as the full scan
+	  * in getLocalFileSnapshots(Date). A path that no longer exists is treated as a deleted file, or as a deleted
+	  * directory if the DB knows about files below it.
+	  * @param relativePaths paths relative to the box, as used in the DBs and on the cloud
+	  * @return map of LocalFileSnapshot's for the paths that need syncing
+	  * @throws SnapshotError if one of the paths or the local DB could not be read
+	  */
+	 public Map<String, LocalFileSnapshot> getLocalFileSnapshots(Collection<String> relativePaths, Date lastSyncDate) throws SnapshotError {
+		 Map<String, LocalFileSnapshot> localFileSnapshots = new HashMap<String, LocalFileSnapshot>();
+		 
+		 try {
+			 FileIndex index = Global.getFileIndex();
+			 for (String relativePath : relativePaths) {
+				 File file = new File(FileUtil.getLocalFilePath(relativePath));
+				 MiBoxFile fileFromDB = index.queryForName(relativePath);
+				 if (file.isFile()) {
+					 Date fileModifiedTime = new Date(file.lastModified());
+					 if (fileFromDB == null) {
+						 localFileSnapshots.put(relativePath, new LocalFileSnapshot(relativePath, fileModifiedTime, file));
+					 } else if (!fileFromDB.getLastModifiedTime().equals(fileModifiedTime)) {
+						 LocalFileSnapshot dbSnapshot = new LocalFileSnapshot(fileFromDB, file);
+						 localFileSnapshots.put(relativePath, new LocalFileSnapshot(relativePath, fileModifiedTime, dbSnapshot, file));
+					 } else if (fileFromDB.getLastSyncTime().compareTo(lastSyncDate) > 0) {
+						 localFileSnapshots.put(relativePath, new LocalFileSnapshot(fileFromDB, file));
 					 }
-				 } else {
-					 // If snapshot is not null but LMD's are not equal, it implies the DB record is out-dated.
-					 // We want to keep the "last sync" data fields from DB, but calculate the file hash over again.
-					 if (snapshot != null) {
-						 snapshot = new LocalFileSnapshot(relativePath, fileModifiedTime, snapshot, file);
+					 // otherwise the file matches the DB (usually because we just wrote it ourselves), so there is nothing to do
+				 } else if (!file.exists()) {
+					 // deleted file
+					 if (fileFromDB != null) {
+						 localFileSnapshots.put(relativePath, new LocalFileSnapshot(fileFromDB, file));
 					 }
-					 // Otherwise, there is no DB record, so we create a new snapshot straight from the local file.
+					 // deleted directory. Only the directory itself gets an event, so look for the files the DB has below it.
 					 else {
-						 snapshot = new LocalFileSnapshot(relativePath, fileModifiedTime, file);
+						 String directoryPrefix = relativePath + "/";
+						 for (MiBoxFile childFromDB : index.queryForPrefix(directoryPrefix)) {
+							 File childFile = new File(FileUtil.getLocalFilePath(childFromDB.getName()));
+							 localFileSnapshots.put(childFromDB.getName(), new LocalFileSnapshot(childFromDB, childFile));
+						 }
 					 }
-					 localFileSnapshots.put(relativePath, snapshot);
 				 }
 			 }
 		 } catch (Exception ex) {
-			 // TODO: handle error better
-			 ex.printStackTrace();
-			 System.exit(1);
+			 throw new SnapshotError("Could not read the changed paths", ex);
 		 }
 		 return localFileSnapshots;
 	 }
@@ -112,26 +343,66 @@ public class SyncMaster {
 	  * Retrieve a collection of CloudFileSnapshot objects representing the remote
 	  * files stored in the user's AWS account.
 	  * @return collection of CloudFileSnapshot's
+	  * @throws SnapshotError if the cloud files could not be queried
+	  */
+	 public Map<String, CloudFileSnapshot> getCloudFileSnapshots(String lastSyncDate) throws SnapshotError {
+		 final Map<String, CloudFileSnapshot> cloudFileSnapshots = new HashMap<String, CloudFileSnapshot>();
+		 
+		 try {
+			 getCloudFileSnapshots(lastSyncDate, new SnapshotSink<CloudFileSnapshot>() {
+				 public void add(CloudFileSnapshot snapshot) {
+					 cloudFileSnapshots.put(snapshot.getFileName(), snapshot);
+				 }
+			 });
+		 } catch (Exception ex) {
+			 throw new SnapshotError("Could not query the cloud files", ex);
+		 }
+		 
+		 return cloudFileSnapshots;
+	 }
+	 
+	 /**
+	  * Same as getCloudFileSnapshots(String), but each snapshot goes to the sink as soon as its page arrives.
+	  */
+	 private void getCloudFileSnapshots(String lastSyncDate, SnapshotSink<CloudFileSnapshot> sink) throws Exception {
+		 AmazonSimpleDB sdb = Global.getSDB();
+		
+		 // now, we only select cloud files which were synced after our lastSyncDate, or has pending deletes
+		 // (and only the attributes the snapshots need, in pages as large as SimpleDB allows)
+		 String selectExpression = "select " + CloudFileSnapshot.SELECT_ATTRIBUTES + " from `" + Global.getConfig().getCloudFilesDomain() + "`";
+		 selectExpression += " where lastSyncDate > '" + SimpleDBUtil.escapeSingleQuotedString(lastSyncDate) + "'";
+		 selectExpression += " OR pendingDeletes > '0'";
+		 selectExpression += " limit " + SimpleDBSelectIterator.MAX_PAGE_SIZE;
+		 // the iterator follows NextToken through every page, fetching the next one while we process this one
+		 SimpleDBSelectIterator items = new SimpleDBSelectIterator(sdb, selectExpression);
+		 try {
+			 while (items.hasNext()) {
+				 Item item = items.next();
+				 // construct snapshot and add to result
+				 sink.add(new CloudFileSnapshot(item));
+			 }
+		 } finally {
+			 items.close();
+		 }
+	 }
+
+	 /**
+	  * Retrieve CloudFileSnapshot objects for just the given files, using the same rules as getCloudFileSnapshots(String).
+	  * @return map of CloudFileSnapshot's for the files which changed on the cloud
+	  * @throws SnapshotError if the cloud files could not be queried
 	  */
-	 public Map<String, CloudFileSnapshot> getCloudFileSnapshots(String lastSyncDate) {
+	 public Map<String, CloudFileSnapshot> getCloudFileSnapshots(String lastSyncDate, Collection<String> fileNames) throws SnapshotError {
 		 Map<String, CloudFileSnapshot> cloudFileSnapshots = new HashMap<String, CloudFileSnapshot>();
 		 
 		 try {
-			 AmazonSimpleDB sdb = Global.getSDB();
-			
-			 // now, we only select cloud files which were synced after our lastSyncDate, or has pending deletes
-			 String selectExpression = "select * from `" + Global.getConfig().getCloudFilesDomain() + "`";
-			 selectExpression += " where lastSyncDate > '" + SimpleDBUtil.escapeSingleQuotedString(lastSyncDate) + "'";
-			 selectExpression += " OR pendingDeletes > '0'";
-			 SelectRequest selectRequest = new SelectRequest(selectExpression);
-	         for (Item item : sdb.select(selectRequest).getItems()) {
-	        	 // construct snapshot and add to result Map
-	        	 cloudFileSnapshots.put(item.getName(), new CloudFileSnapshot(item));
-	         }
+			 String condition = "lastSyncDate > '" + SimpleDBUtil.escapeSingleQuotedString(lastSyncDate) + "' OR pendingDeletes > '0'";
+			 Map<String, Item> items = SimpleDBUtil.selectItemsByName(Global.getSDB(), Global.getConfig().getCloudFilesDomain(),
+					 CloudFileSnapshot.SELECT_ATTRIBUTES, fileNames, condition, Global.getConfig().getLookupThreads());
+			 for (Item item : items.values()) {
+				 cloudFileSnapshots.put(item.getName(), new CloudFileSnapshot(item));
+			 }
 		 } catch (Exception ex) {
-			 //TODO: handle error better
-			 ex.printStackTrace();
-			 System.exit(1);
+			 throw new SnapshotError("Could not query the cloud files", ex);
 		 }
 		 
 		 return cloudFileSnapshots;
@@ -140,12 +411,26 @@ public class SyncMaster {
 	/**
 	  * This is usually called when the daemon is first launched to sync all local files with all cloud files.
 	  * @throws IntegrityError indicates something is very wrong with the integrity of the metadata
+	  * @throws SnapshotError if the snapshots could not be gathered, before anything was merged
 	  */
-	 public void performInitialSync() throws IntegrityError {
+	 public void performInitialSync() throws IntegrityError, SnapshotError {
+		 SyncStats.reset();
+		 
 		 // query SimpleDB for the last successful sync date for this MiBox host
-		 String selectExpression = "select * from `" + Global.getConfig().getLastSyncDatesDomain() + "`";
-		 selectExpression += " where itemName() = '" + SimpleDBUtil.escapeSingleQuotedString(Global.getConfig().getMiBoxHostName()) + "'";
-		 String lastSyncDate = SimpleDBUtil.selectAttributeFromSingleRow(Global.getSDB(), selectExpression, "lastSyncDate", "1970-01-01 00:00:00");
+		 String lastSyncDate = queryLastSyncDate();
+		 
+		 // a sort-merge planner doesn't need the snapshots in memory
+		 if (planner instanceof SortMergePlanner) {
+			 Date parsedLastSyncDate;
+			 try {
+				 parsedLastSyncDate = DateUtil.parse(lastSyncDate);
+			 } catch (ParseException e) {
+				 lastSyncDate = "1970-01-01 00:00:00";
+				 parsedLastSyncDate = new Date(0);
+			 }
+			 performSortMergeSync(parsedLastSyncDate, lastSyncDate);
+			 return;
+		 }
 		 
 		 // get snapshots for cloud and local files that have changed since last sync date
 		 Map<String, LocalFileSnapshot> localFileSnapshots;
@@ -163,6 +448,62 @@ public class SyncMaster {
 		 performSync(localFileSnapshots, cloudFileSnapshots);
 	 }
 	 
+	 /**
+	  * Sync only the given local paths, which WatchMaster reports after seeing file-change events for them.
+	  * Cloud files are only consulted for these paths, so the last sync date is left alone;
+	  * the rest of the cloud's changes are picked up by performRemoteSync().
+	  * @param relativePaths paths relative to the box, as used in the DBs and on the cloud
+	  * @throws IntegrityError indicates something is very wrong with the integrity of the metadata
+	  * @throws SnapshotError if the snapshots could not be gathered, before anything was merged
+	  */
+	 public void performPathSync(Collection<String> relativePaths) throws IntegrityError, SnapshotError {
+		 SyncStats.reset();
+		 String lastSyncDate = queryLastSyncDate();
+		 Map<String, LocalFileSnapshot> localFileSnapshots;
+		 try {
+			 localFileSnapshots = getLocalFileSnapshots(relativePaths, DateUtil.parse(lastSyncDate));
+		 } catch (ParseException e) {
+			 lastSyncDate = "1970-01-01 00:00:00";
+			 localFileSnapshots = getLocalFileSnapshots(relativePaths, new Date(0));
+		 }
+		 if (localFileSnapshots.isEmpty()) {
+			 return; // nothing actually changed
+		 }
+		 Map<String, CloudFileSnapshot> cloudFileSnapshots = getCloudFileSnapshots(lastSyncDate, localFileSnapshots.keySet());
+		 performSync(localFileSnapshots, cloudFileSnapshots, false);
+	 }
+	 
+	 /**
+	  * Sync the files which changed on the cloud since the last sync date, without scanning the whole box.
+	  * Local changes are assumed to be tracked separately by WatchMaster.
+	  * @throws IntegrityError indicates something is very wrong with the integrity of the metadata
+	  * @throws SnapshotError if the snapshots could not be gathered, before anything was merged
+	  */
+	 public void performRemoteSync() throws IntegrityError, SnapshotError {
+		 SyncStats.reset();
+		 String lastSyncDate = queryLastSyncDate();
+		 Date parsedLastSyncDate;
+		 try {
+			 parsedLastSyncDate = DateUtil.parse(lastSyncDate);
+		 } catch (ParseException e) {
+			 lastSyncDate = "1970-01-01 00:00:00";
+			 parsedLastSyncDate = new Date(0);
+		 }
+		 Map<String, CloudFileSnapshot> cloudFileSnapshots = getCloudFileSnapshots(lastSyncDate);
+		 Map<String, LocalFileSnapshot> localFileSnapshots = getLocalFileSnapshots(cloudFileSnapshots.keySet(), parsedLastSyncDate);
+		 performSync(localFileSnapshots, cloudFileSnapshots, true);
+	 }
+	 
+	 /**
+	  * Query SimpleDB for the last successful sync date for this MiBox host.
+	  * @return the date string, or epoch time if this host has never synced
+	  */
+	 private String queryLastSyncDate() {
+		 String selectExpression = "select * from `" + Global.getConfig().getLastSyncDatesDomain() + "`";
+		 selectExpression += " where itemName() = '" + SimpleDBUtil.escapeSingleQuotedString(Global.getConfig().getMiBoxHostName()) + "'";
+		 return SimpleDBUtil.selectAttributeFromSingleRow(Global.getSDB(), selectExpression, "lastSyncDate", "1970-01-01 00:00:00");
+	 }
+	 
 	 /**
 	  * Perform synchronization between local files and cloud files.
 	  * @param localFileSnapshots Snapshots of the local files to sync.
@@ -171,6 +512,18 @@ public class SyncMaster {
 	  */
 	public void performSync(Map<String, LocalFileSnapshot> localFileSnapshots,
 				Map<String, CloudFileSnapshot> cloudFileSnapshots) throws IntegrityError {
+		performSync(localFileSnapshots, cloudFileSnapshots, true);
+	}
+	
+	/**
+	  * Perform synchronization between local files and cloud files.
+	  * @param localFileSnapshots Snapshots of the local files to sync.
+	  * @param cloudFileSnapshots Snapshots of the cloud files to sync.
+	  * @param persistLastSyncDate false if the snapshots don't cover every change since the last sync date
+	  * @throws IntegrityError indicates something is very wrong with the integrity of the metadata
+	  */
+	private void performSync(Map<String, LocalFileSnapshot> localFileSnapshots,
+				Map<String, CloudFileSnapshot> cloudFileSnapshots, boolean persistLastSyncDate) throws IntegrityError {
 		// determine what merge actions to take
 		prepareMerge(localFileSnapshots, cloudFileSnapshots);
 		
@@ -178,244 +531,135 @@ public class SyncMaster {
 		merge(localFileSnapshots, cloudFileSnapshots);
 		
 		// inform cloud of a successful sync
-		persistLastSyncDate();
+		if (persistLastSyncDate) {
+			persistLastSyncDate();
+		}
+		
+		logger.writeDebugLine("Sync finished: " + SyncStats.summary());
 	 }
 
 	/**
-	  * By comparing the local and cloud file snapshots, this method determines
-	  * the actions necessary to merge the results. It annotates the snapshot objects
-	  * with the FileSnapshotStatus representing an action to be performed.
+	  * Same as performSync(...) for all changes since the last sync date, without holding all the snapshots
+	  * in memory. The snapshots are sorted by SnapshotSorter's (which keep at most mergeSortBufferSize
+	  * of them in memory each, and the rest on disk), and each file is merged as soon as the SortMergePlanner
+	  * has decided it.
 	  * <br><br>
-	  * The code may look confusing because it's a ton of IF statements, but it is
-	  * actually a very simple decision tree. Maybe I'll make a diagram at some point
-	  * to explain it clearly.
-	  * <br><br>
-	  * This method is usually called before the merge(...) method.
-	  * 
-	  * @param localFileSnapshots
-	  * @param cloudFileSnapshots
+	  * Unlike performSync(...), files before an IntegrityError have already been merged when it is thrown.
+	  * @param localLastSyncDate
+	  * @param lastSyncDate
 	  * @throws IntegrityError indicates something is very wrong with the integrity of the metadata
+	  * @throws SnapshotError if the snapshots could not be gathered, before anything was merged
 	  */
-	private void prepareMerge(Map<String, LocalFileSnapshot> localFileSnapshots,
-			Map<String, CloudFileSnapshot> cloudFileSnapshots) throws IntegrityError {
-		
-		// loop through all local file snapshots
-		for (LocalFileSnapshot localFileSnapshot : localFileSnapshots.values()) {
-			// retrieve the cloud file snapshot corresponding to this local file, if any exists
-			CloudFileSnapshot relatedCloudFileSnapshot = cloudFileSnapshots.get(localFileSnapshot.getFileName());
-			// if there is no cloud snapshot, relatedCloudFileSnapshot will be null
-			if (relatedCloudFileSnapshot == null) {
-				// file not existing on cloud means one of two cases
-				// 1) file was deleted locally, in which case the snapshot will be marked as existsLocally = false
-				if (localFileSnapshot.existsLocally() == false) {
-					// there are two sub-cases. Either the cloud knows about this file already or it doesn't.
-					// query CloudFiles to determine which case it is
-					AmazonSimpleDB sdb = Global.getSDB();
-					String selectExpression = "select * from `" + Global.getConfig().getCloudFilesDomain() + 
-							"` where itemName() = '" + SimpleDBUtil.escapeSingleQuotedString(localFileSnapshot.getFileName()) + "'";
-			        SelectRequest selectRequest = new SelectRequest(selectExpression);
-			        List<Item> items = sdb.select(selectRequest).getItems();
-			        // only care about DB entry if there is exactly one, because otherwise something weird is up
-			        if (items != null && items.size() == 1) {
-			        	// case 1.1: cloud knows about file, so delete from cloud
-			        	Item item = items.get(0);
-			        	try {
-							relatedCloudFileSnapshot = new CloudFileSnapshot(item);
-							// put in map since it's a new snapshot
-							cloudFileSnapshots.put(relatedCloudFileSnapshot.getFileName(), relatedCloudFileSnapshot);
-							relatedCloudFileSnapshot.setAction(new CloudFileDeletedAction(relatedCloudFileSnapshot));
-							localFileSnapshot.setAction(new DummyFileAction());
-							logger.writeDebugLine("Deleted action chosen for cloud file: " + relatedCloudFileSnapshot.getFileName());
-			        	} catch (Exception e) {
-							; // swallow Exception, probably just case 1.2
-						}
-			        }
-			        // case 1.2: cloud doesn't have row for file, which means it has already been deleted or never synced.
-			        // either way, nothing needs to be done
-			        else {
-			        	localFileSnapshot.setAction(new DummyFileAction());
-			        }
-				}
-				// 2) it is a local addition or change (which are both handled by LocalFileAddedAction anyway)	
-				else {
-					localFileSnapshot.setAction(new LocalFileAddedAction(localFileSnapshot));	
-					logger.writeDebugLine("Added action chosen for local file: " + localFileSnapshot.getFileName());
-				}
-			} else { // we have cloud snapshot, so file was changed on cloud since last sync
-				// next compare last modified dates
-				if (localFileSnapshot.getLastModifiedDate().equals(relatedCloudFileSnapshot.getLastModifiedDate())) {
-					// last modified dates are equal, so next compare hashes
-					if (localFileSnapshot.getHash().equals(relatedCloudFileSnapshot.getHash())) {
-						// filename, last modified date, and hash are all equal
-						// therefore, there was no change to this file
-						// (which in all honesty is a super rare case, since it means the user modified file locally,
-						//  then manually copied to another computer and sync'd to cloud there.)
-						localFileSnapshot.setAction(new LocalFileUnchangedAction(localFileSnapshot));
-						relatedCloudFileSnapshot.setAction(new DummyFileAction());
-						logger.writeDebugLine("Unchanged action chosen for local file: " + localFileSnapshot.getFileName());
-					} else { // hashes not equal
-						// if hashes are not equal, then it is a conflict
-						// not to mention, also a quite rare occurrence:
-						// (the file was updated separately on two computers but modified at same second)
-						localFileSnapshot.setAction(new LocalFileConflictAction(localFileSnapshot, relatedCloudFileSnapshot));
-						// all heavy lifting for conflicts happens in Local, so Cloud snapshot will do nothing
-						// This was an arbitrary design decision;
-						// it just as easily could have been Cloud doing all work and Local dummy'ing.
-						relatedCloudFileSnapshot.setAction(new DummyFileAction()); 
-						logger.writeDebugLine("Conflict due to diff hash/same LMD: " + localFileSnapshot.getFileName());
+	private void performSortMergeSync(Date localLastSyncDate, String lastSyncDate) throws IntegrityError, SnapshotError {
+		int bufferSize = Global.getConfig().getMergeSortBufferSize();
+		final SnapshotSorter<LocalFileSnapshot> localSorter = new SnapshotSorter<LocalFileSnapshot>(SnapshotSorter.LOCAL, bufferSize, null);
+		final SnapshotSorter<CloudFileSnapshot> cloudSorter = new SnapshotSorter<CloudFileSnapshot>(SnapshotSorter.CLOUD, bufferSize, null);
+		try {
+			Iterator<LocalFileSnapshot> localFileSnapshots = null;
+			Iterator<CloudFileSnapshot> cloudFileSnapshots = null;
+			try {
+				getLocalFileSnapshots(localLastSyncDate, new SnapshotSink<LocalFileSnapshot>() {
+					public void add(LocalFileSnapshot snapshot) throws IOException {
+						localSorter.add(snapshot);
 					}
-				} else { // last modified dates are not equal
-					// Check for a very rare case
-					// (file was touch'd but not changed)
-					if (localFileSnapshot.getHash().equals(relatedCloudFileSnapshot.getHash())) {
-						// Since the file didn't change, the most recently modified version will trump the other.
-						// Even though the LocalFileChanged and CloudFileChanged will call the heavy Added actions,
-						// it shouldn't involve network upload/download of file due to hash matching.
-						if (localFileSnapshot.getLastModifiedDate().compareTo(relatedCloudFileSnapshot.getLastModifiedDate()) > 0) {
-							// local file is more recently modified, so local change trumps
-							localFileSnapshot.setAction(new LocalFileChangedAction(localFileSnapshot));
-							relatedCloudFileSnapshot.setAction(new DummyFileAction());
-							logger.writeDebugLine("Changed action chosen for local file: " + localFileSnapshot.getFileName());
-						} else {
-							// cloud file must be more recently modified (or they're equal, so take cloud anyway)
-							localFileSnapshot.setAction(new DummyFileAction());
-							relatedCloudFileSnapshot.setAction(new CloudFileChangedAction(relatedCloudFileSnapshot));
-							logger.writeDebugLine("Changed action chosen for cloud file: " + relatedCloudFileSnapshot.getFileName());
-						}
+				});
+				getCloudFileSnapshots(lastSyncDate, new SnapshotSink<CloudFileSnapshot>() {
+					public void add(CloudFileSnapshot snapshot) throws IOException {
+						cloudSorter.add(snapshot);
 					}
-					// next, check for a horrible situation that should never happen
-					// if it does happen, it means time travel has been invented, or the local DB is corrupted, or file metadata was tampered with
-					else if (localFileSnapshot.getLastSyncedLastModifiedDate().compareTo(relatedCloudFileSnapshot.getLastModifiedDate()) > 0
-							|| localFileSnapshot.getLastSyncedLastModifiedDate().compareTo(localFileSnapshot.getLastModifiedDate()) > 0) {
-						throw new IntegrityError("Local file or cloud file was modified before a modified date previously recorded for them!");
-					}
-					// next, check for more common conflict case
-					else if (!localFileSnapshot.getLastSyncedLastModifiedDate().equals(new Date(0)) // this only applies if there is a last sync'd last-mod-date
-							&& localFileSnapshot.getLastSyncedLastModifiedDate().compareTo(relatedCloudFileSnapshot.getLastModifiedDate()) < 0
-							&& localFileSnapshot.getLastSyncedLastModifiedDate().compareTo(localFileSnapshot.getLastModifiedDate()) < 0) {
-						
-						// One final very rare case that we need to check for before declaring this is a conflict.
-						// Make sure that the local file actually changed. There is no sense in making a conflict just
-						// because someone touch'd the local file after syncing, when the cloud has a real change.
-						if (localFileSnapshot.getHash().equals(localFileSnapshot.getLastSyncedHash())) {
-							// we know the cloud was actually changed, because if cloud hash == local hash we would be in branch above
-							localFileSnapshot.setAction(new DummyFileAction());
-							relatedCloudFileSnapshot.setAction(new CloudFileChangedAction(relatedCloudFileSnapshot));
-							logger.writeDebugLine("Changed action chosen for cloud file: " + relatedCloudFileSnapshot.getFileName());
-						} else {
-							// Finally, we know it's a conflict.
-							// This is a conflict because it means the file changed both locally and on the cloud in the time
-							// since the last successful sync of this file. (Remember cloud mod date and local mod date are not equal
-							// AND hashes are not equal, else we would have been in a different branch.)
-							// Therefore, there is no way to merge files or determine which one should be kept.
-							localFileSnapshot.setAction(new LocalFileConflictAction(localFileSnapshot, relatedCloudFileSnapshot));
-							relatedCloudFileSnapshot.setAction(new DummyFileAction());
-							logger.writeDebugLine("Conflict due to last sync'd LMD: " + localFileSnapshot.getFileName());
-						}
-					}
-					// next, finally handle the usual case where cloud or local file is more recent and trumps the other
-					// (this is actually quite rare now that we are partial sync'ing)
-					else if (localFileSnapshot.getLastModifiedDate().compareTo(relatedCloudFileSnapshot.getLastModifiedDate()) > 0) {
-						// local file is more recently modified, so local change trumps
-						localFileSnapshot.setAction(new LocalFileChangedAction(localFileSnapshot));
-						relatedCloudFileSnapshot.setAction(new DummyFileAction());
-						logger.writeDebugLine("Changed action chosen for local file: " + localFileSnapshot.getFileName());
-					} else if (relatedCloudFileSnapshot.getLastModifiedDate().compareTo(localFileSnapshot.getLastModifiedDate()) > 0) {
-						// cloud file is more recently modified, so cloud change trumps
-						localFileSnapshot.setAction(new DummyFileAction());
-						relatedCloudFileSnapshot.setAction(new CloudFileChangedAction(relatedCloudFileSnapshot));
-						logger.writeDebugLine("Changed action chosen for cloud file: " + relatedCloudFileSnapshot.getFileName());
-					}
-					// if it gets this far, something is wrong
-					// I'm not convinced this is even reachable code, but better safe than sorry.
-					else {
-						throw new IntegrityError("File metadata is messed up");
-					}
-				}
+				});
+				localFileSnapshots = localSorter.sorted();
+				cloudFileSnapshots = cloudSorter.sorted();
+			} catch (Exception ex) {
+				throw new SnapshotError("Could not gather the snapshots to merge", ex);
 			}
+			logger.writeDebugLine("Merging " + localSorter.size() + " local and " + cloudSorter.size() + " cloud snapshots, "
+					+ (localSorter.getRunCount() + cloudSorter.getRunCount()) + " sorted runs on disk");
 			
-		}
-		
-		// loop through all cloud file snapshots
-		for (CloudFileSnapshot cloudFileSnapshot : cloudFileSnapshots.values()) {
-			// first check if action is non-null.
-			// This means we already processed this file in local snapshot loop,
-			// so skip this snapshot.
-			if (cloudFileSnapshot.getAction() != null) {
-				continue;
-			}
-			
-			// retrieve the local file snapshot corresponding to this cloud file, if any exists
-			// (and in fact, we know one won't exist because if it did then we would have processed it in above loop)
-			LocalFileSnapshot relatedLocalFileSnapshot = localFileSnapshots.get(cloudFileSnapshot.getFileName());
-			if (relatedLocalFileSnapshot == null) {
-				// file exists on cloud but we have no local snapshot
-				// this means one of two cases
-				
-				// 1) cloud snapshot is for a file with pending deletes
-				// this has two subcases
-				if (cloudFileSnapshot.getPendingDeletes() > 0) {
-					try {
-						File file = new File(FileUtil.getLocalFilePath(cloudFileSnapshot.getFileName()));
-						// 1.1) local file exists on file system, so delete it
-						if (file.exists()) {
-							// get file data from DB.
-							MiBoxFile existingFileRecord = Global.getFileMetadataDAO().queryForId(cloudFileSnapshot.getFileName());
-							// it's impossible for it to not exist in DB and be in this code path, due to how local file snapshots are created
-							if (existingFileRecord == null) {
-								throw new IntegrityError("File exists on filesystem without DB entry and yet no local snapshot was made for it");
-							}
-							try {
-								relatedLocalFileSnapshot = new LocalFileSnapshot(existingFileRecord, file);
-							} catch (Exception ex) {
-								// TODO: More bad error handling. PLz fix
-								ex.printStackTrace();
-								System.exit(1);
-							}
-							// put in map since it's a new snapshot
-							localFileSnapshots.put(relatedLocalFileSnapshot.getFileName(), relatedLocalFileSnapshot);
-							relatedLocalFileSnapshot.setAction(new LocalFileDeletedAction(relatedLocalFileSnapshot));
-							cloudFileSnapshot.setAction(new DummyFileAction());
-							logger.writeDebugLine("Deleted action chosen for local file: " + relatedLocalFileSnapshot.getFileName());
-						}
-						// 1.2) local file doesn't exist, in which case this host never downloaded this file or it has already been deleted
-						//      either way, nothing needs to be done
-						else {
-							cloudFileSnapshot.setAction(new DummyFileAction());
-						}
-					} catch (SQLException e) {
-						// TODO: make sure this makes sense
-						; // swallow exception, and continue to #2 below
+			// executes the actions for merging as the planner decides them
+			final ActionExecutor executor = new ActionExecutor(Global.getConfig().getMergeThreads(), Global.getConfig().isMergeUseVirtualThreads());
+			try {
+				((SortMergePlanner) planner).plan(localFileSnapshots, cloudFileSnapshots, new SortMergePlanner.Listener() {
+					public void planned(LocalFileSnapshot localFileSnapshot, CloudFileSnapshot cloudFileSnapshot) {
+						executor.submit(localFileSnapshot != null ? localFileSnapshot.getAction() : null,
+								cloudFileSnapshot != null ? cloudFileSnapshot.getAction() : null);
 					}
-				} else {
-					// TODO: make sure when I implement JNotify handlers that a local deletion only removes from local DB if it removes from cloud successfully
-					// 2) file was added or modified on cloud and should be downloaded to local
-					cloudFileSnapshot.setAction(new CloudFileAddedAction(cloudFileSnapshot));
-					logger.writeDebugLine("Added action chosen for cloud file: " + cloudFileSnapshot.getFileName());
+				});
+			} finally {
+				try {
+					executor.awaitCompletion();
+				} finally {
+					// sends the cloud metadata writes still waiting for a full batch, then commits the local index changes
+					// (in that order, so the index never says a file is synced before the cloud does)
+					Global.getFileIndexWriter().flush();
 				}
 			}
+		} finally {
+			localSorter.close();
+			cloudSorter.close();
 		}
+		
+		// inform cloud of a successful sync
+		persistLastSyncDate();
+		
+		logger.writeDebugLine("Sync finished: " + SyncStats.summary());
+	}
+	
+	/**
+	  * Determine the actions for merging the given snapshots, using this SyncMaster's MergePlanner.
+	  * Snapshots created along the way are added to the maps.
+	  * <br><br>
+	  * This method is usually called before the merge(...) method.
+	  * 
+	  * @param localFileSnapshots
+	  * @param cloudFileSnapshots
+	  * @throws IntegrityError indicates something is very wrong with the integrity of the metadata
+	  */
+	private void prepareMerge(Map<String, LocalFileSnapshot> localFileSnapshots,
+			Map<String, CloudFileSnapshot> cloudFileSnapshots) throws IntegrityError {
+		planner.prepareMerge(localFileSnapshots, cloudFileSnapshots);
 	}
 	
 	/**
 	 * After this method is finished running, the local and cloud file data and metadata should
 	 * be identical. This is accomplished by making any necessary file and database changes, both
 	 * locally and remotely.
+	 * <br><br>
+	 * Actions for different files may run in parallel (see mergeThreads), but the local and cloud
+	 * actions for the same file always run one after another, local first.
 	 * 
 	 * @param localFileSnapshots
 	 * @param cloudFileSnapshots
 	 * @throws IntegrityError indicates something is very wrong with the integrity of the metadata
+	 * @throws SyncActionError the first action that failed, after the rest of the running actions have finished
 	 */
 	private void merge(Map<String, LocalFileSnapshot> localFileSnapshots,
 			Map<String, CloudFileSnapshot> cloudFileSnapshots) throws IntegrityError {
+		ActionExecutor executor = new ActionExecutor(Global.getConfig().getMergeThreads(), Global.getConfig().isMergeUseVirtualThreads());
 				
 		for (LocalFileSnapshot localFileSnapshot : localFileSnapshots.values()) {
-			localFileSnapshot.getAction().run();
+			CloudFileSnapshot cloudFileSnapshot = cloudFileSnapshots.get(localFileSnapshot.getFileName());
+			if (cloudFileSnapshot != null) {
+				executor.submit(localFileSnapshot.getAction(), cloudFileSnapshot.getAction());
+			} else {
+				executor.submit(localFileSnapshot.getAction());
+			}
 		}
 		
 		for (CloudFileSnapshot cloudFileSnapshot : cloudFileSnapshots.values()) {
-			cloudFileSnapshot.getAction().run();
-		}		
+			// files that also have a local snapshot were submitted above
+			if (!localFileSnapshots.containsKey(cloudFileSnapshot.getFileName())) {
+				executor.submit(cloudFileSnapshot.getAction());
+			}
+		}
+		
+		try {
+			executor.awaitCompletion();
+		} finally {
+			// sends the cloud metadata writes still waiting for a full batch, then commits the local index changes
+			// (in that order, so the index never says a file is synced before the cloud does)
+			Global.getFileIndexWriter().flush();
+		}
 	}
 	
 	/**
@@ -424,13 +668,13 @@ public class SyncMaster {
 	 */
 	@SuppressWarnings("serial")
 	private void persistLastSyncDate() {
-		AmazonSimpleDB sdb = Global.getSDB();
 		List<ReplaceableAttribute> attributes = new ArrayList<ReplaceableAttribute>() {{			
 			add(new ReplaceableAttribute("lastSyncDate", DateUtil.dateToString(new Date()), true));
 		}};
-		PutAttributesRequest request =
-				new PutAttributesRequest(Global.getConfig().getLastSyncDatesDomain(), Global.getConfig().getMiBoxHostName(), attributes);
-		sdb.putAttributes(request);
+		SimpleDBWriteBuffer writeBuffer = Global.getSDBWriteBuffer();
+		writeBuffer.put(Global.getConfig().getLastSyncDatesDomain(), Global.getConfig().getMiBoxHostName(), attributes);
+		// the sync only counts once the date is actually on the cloud
+		writeBuffer.flush();
 	}
 	 
 }
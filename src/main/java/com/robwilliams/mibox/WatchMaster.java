@@ -0,0 +1,231 @@
+package com.robwilliams.mibox;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.robwilliams.mibox.exceptions.IntegrityError;
+import com.robwilliams.mibox.exceptions.SnapshotError;
+import com.robwilliams.mibox.util.FileUtil;
+
+/**
+ * WatchMaster keeps MiBox running after the initial sync. It watches every directory in the box
+ * for file-change events and collects the paths they touch into a dirty set. Once a path has gone
+ * a short quiet period without any new events (so we don't upload files that are still being written),
+ * SyncMaster syncs just the quiet paths instead of re-scanning the whole box.
+ * <br><br>
+ * The box is watched from before the initial sync starts (see watch()), so changes made while it runs
+ * are queued by the WatchService and synced once run() starts, instead of being missed.
+ * <br><br>
+ * Changes made on other hosts don't generate local events, so the cloud is also polled for changes
+ * every remotePollIntervalSeconds. Between events and polls the thread is blocked in the WatchService,
+ * so an idle box costs next to nothing.
+ * <br><br>
+ * A sync whose snapshots can't be gathered (say a file is locked, or SimpleDB is briefly unreachable) is
+ * tried again later instead of stopping the daemon: its paths go back in the dirty set, a full sync
+ * stays pending, and a cloud poll waits for the next interval.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class WatchMaster {
+
+	private final SyncMaster syncMaster;
+	private final LogMaster logger;
+	private final Path boxPath;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+	private final Map<String, Long> dirtyPaths = new HashMap<String, Long>(); // relative path -> time of latest event
+	private final long quietPeriodMillis;
+	private final long remotePollIntervalMillis;
+
+	public WatchMaster(SyncMaster syncMaster) throws IOException {
+		this.syncMaster = syncMaster;
+		this.logger = Global.getLogger();
+		this.boxPath = Paths.get(Global.getConfig().getBoxPath());
+		this.watchService = boxPath.getFileSystem().newWatchService();
+		this.quietPeriodMillis = Global.getConfig().getWatchQuietPeriodMillis();
+		this.remotePollIntervalMillis = Global.getConfig().getRemotePollIntervalSeconds() * 1000L;
+	}
+
+	/**
+	 * Start watching the box for changes, which are only synced once run() is called. Call this before the
+	 * initial sync, so nothing changed while it runs is missed.
+	 * @throws IOException if the box directory can't be watched
+	 */
+	public void watch() throws IOException {
+		if (!watchedDirectories.isEmpty()) return; // already watching
+		registerTree(boxPath, false);
+		logger.writeDebugLine("Watching " + watchedDirectories.size() + " directories for changes");
+	}
+
+	/**
+	 * Watch the box (if watch() wasn't called yet) and sync changes until the thread is interrupted.
+	 * @throws IntegrityError indicates something is very wrong with the integrity of the metadata
+	 * @throws IOException if the box directory can't be watched
+	 * @throws InterruptedException when the daemon is asked to stop
+	 */
+	public void run() throws IntegrityError, IOException, InterruptedException {
+		watch();
+
+		long nextRemoteSync = System.currentTimeMillis() + remotePollIntervalMillis;
+		long nextFullSync = -1; // when to retry a full sync that failed, if one did
+		while (true) {
+			// sleep until the next event, the next dirty path going quiet, or the next cloud poll, whichever is first
+			long now = System.currentTimeMillis();
+			long wakeUp = nextRemoteSync;
+			if (nextFullSync >= 0) {
+				wakeUp = Math.min(wakeUp, nextFullSync);
+			}
+			for (Long lastEvent : dirtyPaths.values()) {
+				wakeUp = Math.min(wakeUp, lastEvent + quietPeriodMillis);
+			}
+			WatchKey key = watchService.poll(Math.max(wakeUp - now, 0), TimeUnit.MILLISECONDS);
+			boolean overflowed = false;
+			while (key != null) {
+				overflowed |= processEvents(key);
+				key = watchService.poll(); // drain anything else that is already queued
+			}
+
+			if (overflowed || (nextFullSync >= 0 && System.currentTimeMillis() >= nextFullSync)) {
+				// the OS dropped events, so we no longer know what changed. Fall back to a full sync.
+				if (overflowed) logger.writeWarningLine("File-change events were lost, performing full sync");
+				dirtyPaths.clear();
+				try {
+					syncMaster.performInitialSync();
+					nextFullSync = -1;
+				} catch (SnapshotError e) {
+					logger.writeWarningLine("Full sync failed, trying again in a moment: " + e.getCause());
+					nextFullSync = System.currentTimeMillis() + quietPeriodMillis;
+				}
+				nextRemoteSync = System.currentTimeMillis() + remotePollIntervalMillis;
+				continue;
+			}
+
+			// sync every path that has been quiet for long enough
+			now = System.currentTimeMillis();
+			List<String> quietPaths = new ArrayList<String>();
+			Iterator<Map.Entry<String, Long>> iterator = dirtyPaths.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, Long> entry = iterator.next();
+				if (now - entry.getValue() >= quietPeriodMillis) {
+					quietPaths.add(entry.getKey());
+					iterator.remove();
+				}
+			}
+			if (!quietPaths.isEmpty()) {
+				logger.writeDebugLine("Syncing " + quietPaths.size() + " changed path(s)");
+				try {
+					syncMaster.performPathSync(quietPaths);
+				} catch (SnapshotError e) {
+					// nothing was merged, so sync them again once they've had another quiet period
+					logger.writeWarningLine("Syncing changed paths failed, trying again in a moment: " + e.getCause());
+					long retry = System.currentTimeMillis();
+					for (String path : quietPaths) {
+						dirtyPaths.put(path, retry);
+					}
+				}
+			}
+
+			// pick up changes made by other hosts
+			if (now >= nextRemoteSync) {
+				try {
+					syncMaster.performRemoteSync();
+				} catch (SnapshotError e) {
+					logger.writeWarningLine("Polling the cloud failed, trying again at the next poll: " + e.getCause());
+				}
+				nextRemoteSync = System.currentTimeMillis() + remotePollIntervalMillis;
+			}
+		}
+	}
+
+	/**
+	 * Record the paths touched by a key's pending events in the dirty set.
+	 * @return true if the OS reported that events were lost
+	 */
+	private boolean processEvents(WatchKey key) throws IOException {
+		boolean overflowed = false;
+		Path directory = watchedDirectories.get(key);
+		long now = System.currentTimeMillis();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				overflowed = true;
+				continue;
+			}
+			if (directory == null) continue; // key was cancelled after the event was queued
+
+			Path child = directory.resolve((Path) event.context());
+			if (Files.isDirectory(child)) {
+				// a new directory (possibly moved in with files already inside) gets watched too,
+				// and its files marked dirty since they won't generate events of their own
+				if (event.kind() == ENTRY_CREATE) {
+					registerTree(child, true);
+				}
+				// modify events on directories only mean their contents changed, which we hear about separately
+				continue;
+			}
+			String relativePath = relativize(child);
+			if (FileUtil.isTempFile(relativePath)) continue; // our own download in progress
+			// deletes are marked dirty too; for a deleted directory SyncMaster picks up every file it contained
+			dirtyPaths.put(relativePath, now);
+		}
+		if (!key.reset()) {
+			// directory no longer exists
+			watchedDirectories.remove(key);
+		}
+		return overflowed;
+	}
+
+	/**
+	 * Register a directory and all of its sub-directories with the watch service.
+	 * @param markFilesDirty if true, every file found is also added to the dirty set
+	 */
+	private void registerTree(Path start, final boolean markFilesDirty) throws IOException {
+		final long now = System.currentTimeMillis();
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+				WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+				watchedDirectories.put(key, directory);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				if (markFilesDirty && attributes.isRegularFile() && !FileUtil.isTempFile(relativize(file))) {
+					dirtyPaths.put(relativize(file), now);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException ex) {
+				return FileVisitResult.CONTINUE; // probably deleted while we were walking, its event will follow
+			}
+		});
+	}
+
+	// UNIX style path relative to the box, as used in the DBs and on the cloud
+	private String relativize(Path path) {
+		return boxPath.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+}
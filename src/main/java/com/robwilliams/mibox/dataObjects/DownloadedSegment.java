@@ -0,0 +1,41 @@
+package com.robwilliams.mibox.dataObjects;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * One finished segment of a PendingDownload.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+@DatabaseTable(tableName = "downloaded_segments")
+public class DownloadedSegment {
+	@DatabaseField(generatedId = true)
+	private int id;
+	@DatabaseField(index = true)
+	private String hash; // hash of the PendingDownload this segment belongs to
+	@DatabaseField
+	private int segmentNumber;
+	
+	public DownloadedSegment() {
+		// ORMLite needs a no-arg constructor
+	}
+	
+	public DownloadedSegment(String hash, int segmentNumber) {
+		this.hash = hash;
+		this.segmentNumber = segmentNumber;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public int getSegmentNumber() {
+		return segmentNumber;
+	}
+}
@@ -0,0 +1,44 @@
+package com.robwilliams.mibox.dataObjects;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * The block signature (see BlockSignature) of a file as of its last sync, so that the next version can be uploaded
+ * as a delta against it (see DeltaStorage). There is one per file, replaced whenever the file is synced.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+@DatabaseTable(tableName = "file_signatures")
+public class FileSignature {
+	@DatabaseField(id = true)
+	private String name; // file name, relative to the box
+	@DatabaseField
+	private String hash; // content hash of the version the signature is of
+	@DatabaseField(dataType = DataType.BYTE_ARRAY)
+	private byte[] signature;
+
+	public FileSignature() {
+		// ORMLite needs a no-arg constructor
+	}
+
+	public FileSignature(String name, String hash, byte[] signature) {
+		this.name = name;
+		this.hash = hash;
+		this.signature = signature;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public byte[] getSignature() {
+		return signature;
+	}
+}
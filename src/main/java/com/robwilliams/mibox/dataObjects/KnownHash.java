@@ -0,0 +1,33 @@
+package com.robwilliams.mibox.dataObjects;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * A hash whose data is known to exist in the HashDataMap bucket, because this host uploaded
+ * or downloaded it (or saw it in a listing of the bucket). See KnownHashCache.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+@DatabaseTable(tableName = "known_hashes")
+public class KnownHash {
+	@DatabaseField(id = true)
+	private String hash;
+	
+	public KnownHash() {
+		// ORMLite needs a no-arg constructor
+	}
+	
+	public KnownHash(String hash) {
+		this.hash = hash;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public void setHash(String hash) {
+		this.hash = hash;
+	}
+}
@@ -0,0 +1,56 @@
+package com.robwilliams.mibox.dataObjects;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * Where a chunk (see ChunkedStorage) could be found on this host when a file made of it was last uploaded or
+ * downloaded. The file may have changed since, so the data has to be checked against the hash before it's used.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+@DatabaseTable(tableName = "local_chunks")
+public class LocalChunk {
+	@DatabaseField(generatedId = true)
+	private int id;
+	@DatabaseField(index = true)
+	private String hash; // SHA-256 of the chunk's data
+	@DatabaseField(index = true)
+	private String path; // file the chunk is in
+	@DatabaseField
+	private long offset;
+	@DatabaseField
+	private int length;
+
+	public LocalChunk() {
+		// ORMLite needs a no-arg constructor
+	}
+
+	public LocalChunk(String hash, String path, long offset, int length) {
+		this.hash = hash;
+		this.path = path;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+}
@@ -12,13 +12,13 @@ public class MiBoxFile {
     private String name; // name of the file (including path relative to MiBox root)
     @DatabaseField
     private String hash; // hash of the file, used to determine if contents changed
-	@DatabaseField
+	@DatabaseField(index = true)
     private Date lastModifiedTime; // last modified time of file, used to naively tell if files changed (obviously much quicker than hash)
 	@DatabaseField
 	private Date lastSyncedLastModifiedTime; // last modified time of file, as of the last sync
 	@DatabaseField
 	private String lastSyncedHash; // hash of file, as of the last sync
-	@DatabaseField
+	@DatabaseField(index = true)
 	private Date lastSyncTime; // time of last sync with cloud
 	
 	public MiBoxFile() {
@@ -0,0 +1,51 @@
+package com.robwilliams.mibox.dataObjects;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * A ranged download from the HashDataMap bucket which has been started but not completed yet.
+ * The segments downloaded so far are recorded as DownloadedSegment's, so that an interrupted
+ * download can pick up where it stopped. See BlobDownloader.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+@DatabaseTable(tableName = "pending_downloads")
+public class PendingDownload {
+	@DatabaseField(id = true)
+	private String hash; // key of the object being downloaded
+	@DatabaseField
+	private long length; // size of the (encrypted) object
+	@DatabaseField
+	private long segmentSize; // the segments were planned with this size, so a resume must use it too
+	@DatabaseField
+	private String partFilePath; // where the segments are being written
+	
+	public PendingDownload() {
+		// ORMLite needs a no-arg constructor
+	}
+	
+	public PendingDownload(String hash, long length, long segmentSize, String partFilePath) {
+		this.hash = hash;
+		this.length = length;
+		this.segmentSize = segmentSize;
+		this.partFilePath = partFilePath;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getSegmentSize() {
+		return segmentSize;
+	}
+
+	public String getPartFilePath() {
+		return partFilePath;
+	}
+}
@@ -0,0 +1,91 @@
+package com.robwilliams.mibox.dataObjects;
+
+import java.util.Date;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * A multipart upload to the HashDataMap bucket which has been started but not completed yet.
+ * Kept in the local DB (along with an UploadedPart for every finished part) so that an interrupted
+ * upload can be resumed by the next sync. See BlobUploader.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+@DatabaseTable(tableName = "pending_uploads")
+public class PendingUpload {
+	@DatabaseField(id = true)
+	private String hash; // key of the object being uploaded
+	@DatabaseField
+	private String uploadId; // S3's id for the multipart upload
+	@DatabaseField
+	private long partSize; // the parts were planned with this size, so a resume must use it too
+	@DatabaseField
+	private long length; // of the encrypted data
+	@DatabaseField
+	private String md5; // of the encrypted data, as hex. Together with the length, what a resume must be uploading too
+	@DatabaseField
+	private Date startTime;
+	
+	public PendingUpload() {
+		// ORMLite needs a no-arg constructor
+	}
+	
+	public PendingUpload(String hash, String uploadId, long partSize, long length, String md5, Date startTime) {
+		this.hash = hash;
+		this.uploadId = uploadId;
+		this.partSize = partSize;
+		this.length = length;
+		this.md5 = md5;
+		this.startTime = startTime;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public void setHash(String hash) {
+		this.hash = hash;
+	}
+
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	public void setUploadId(String uploadId) {
+		this.uploadId = uploadId;
+	}
+
+	public long getPartSize() {
+		return partSize;
+	}
+
+	public void setPartSize(long partSize) {
+		this.partSize = partSize;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public void setLength(long length) {
+		this.length = length;
+	}
+
+	public String getMd5() {
+		return md5;
+	}
+
+	public void setMd5(String md5) {
+		this.md5 = md5;
+	}
+
+	public Date getStartTime() {
+		return startTime;
+	}
+
+	public void setStartTime(Date startTime) {
+		this.startTime = startTime;
+	}
+}
@@ -0,0 +1,55 @@
+package com.robwilliams.mibox.dataObjects;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * One finished part of a PendingUpload.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+@DatabaseTable(tableName = "uploaded_parts")
+public class UploadedPart {
+	@DatabaseField(generatedId = true)
+	private int id;
+	@DatabaseField(index = true)
+	private String hash; // hash of the PendingUpload this part belongs to
+	@DatabaseField
+	private int partNumber;
+	@DatabaseField
+	private String etag;
+	@DatabaseField
+	private long size;
+	
+	public UploadedPart() {
+		// ORMLite needs a no-arg constructor
+	}
+	
+	public UploadedPart(String hash, int partNumber, String etag, long size) {
+		this.hash = hash;
+		this.partNumber = partNumber;
+		this.etag = etag;
+		this.size = size;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public int getPartNumber() {
+		return partNumber;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public long getSize() {
+		return size;
+	}
+}
@@ -0,0 +1,16 @@
+package com.robwilliams.mibox.exceptions;
+
+/**
+ * Thrown when the local or cloud snapshots for a sync could not be gathered, e.g. a file was deleted
+ * or locked while it was being hashed, or SimpleDB could not be reached. Nothing has been merged yet
+ * when it is thrown, so the sync can simply be tried again later.
+ */
+public class SnapshotError extends Exception {
+
+	public SnapshotError(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	private static final long serialVersionUID = 6410833157524302912L;
+
+}
@@ -0,0 +1,16 @@
+package com.robwilliams.mibox.exceptions;
+
+/**
+ * Thrown when a FileSnapshotAction could not be completed. Actions may be running
+ * on worker threads, so instead of exiting on the spot they throw this and let
+ * SyncMaster stop the merge and report the failure.
+ */
+public class SyncActionError extends RuntimeException {
+
+	public SyncActionError(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	private static final long serialVersionUID = 3532470921185870148L;
+
+}
@@ -1,5 +1,8 @@
 package com.robwilliams.mibox.snapshots;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Date;
 import java.util.List;
 
@@ -8,8 +11,12 @@ import com.amazonaws.services.simpledb.model.Item;
 import com.robwilliams.mibox.util.DateUtil;
 
 public class CloudFileSnapshot extends FileSnapshot {
+	// the CloudFiles attributes read by CloudFileSnapshot(Item), for use in select expressions
+	public static final String SELECT_ATTRIBUTES = "lastModifiedDate, hash, source, pendingDeletes, size";
+	
 	private String source;
 	private int pendingDeletes;
+	private long size = -1; // size of the original file, or -1 if unknown (files synced by older versions)
 
 	public String getSource() {
 		return source;
@@ -26,17 +33,56 @@ public class CloudFileSnapshot extends FileSnapshot {
 		this.pendingDeletes = pendingDeletes;
 	}
 
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
 	public CloudFileSnapshot(String fileName, Date lastModifiedDate, String hash,
 			String source, int pendingDeletes) {
 		
 		this.fileName = fileName;
-		this.lastModifiedDate = lastModifiedDate;
-		this.hash = hash;
+		setLastModifiedDate(lastModifiedDate);
+		setHash(hash);
 		this.action = null;
 		this.source = source;
 		this.pendingDeletes = pendingDeletes;
 	}
 	
+	/**
+	 * Write everything needed to rebuild this snapshot with readFrom(DataInput), so that SnapshotSorter can
+	 * keep snapshots on disk. The action isn't written.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		writeFileSnapshot(out);
+		out.writeUTF(source);
+		out.writeInt(pendingDeletes);
+		out.writeLong(size);
+	}
+	
+	/**
+	 * Rebuild a snapshot written by writeTo(DataOutput).
+	 * @param in
+	 * @return the snapshot, without an action
+	 * @throws IOException
+	 */
+	public static CloudFileSnapshot readFrom(DataInput in) throws IOException {
+		return new CloudFileSnapshot(in);
+	}
+	
+	private CloudFileSnapshot(DataInput in) throws IOException {
+		readFileSnapshot(in);
+		this.action = null;
+		this.source = in.readUTF().intern();
+		this.pendingDeletes = in.readInt();
+		this.size = in.readLong();
+	}
+	
 	public CloudFileSnapshot(Item item) throws Exception {
 		 fileName = item.getName();
 		 // parse attributes
@@ -44,16 +90,19 @@ public class CloudFileSnapshot extends FileSnapshot {
 		 for (Attribute attribute : attributes) {
 	   		 String attributeName = attribute.getName();
 	   		 if (attributeName.equals("lastModifiedDate")) {
-	   			 lastModifiedDate = DateUtil.parse(attribute.getValue());
+	   			 setLastModifiedDate(DateUtil.parse(attribute.getValue()));
 	   		 } else if (attributeName.equals("hash")) {
-	   			 hash = attribute.getValue();
+	   			 setHash(attribute.getValue());
 	   		 } else if (attributeName.equals("source")) {
-	   			 source = attribute.getValue();
+	   			 // there are only a few hosts, so share one string per host instead of one per file
+	   			 source = attribute.getValue().intern();
 	   		 } else if (attributeName.equals("pendingDeletes")) {
 	   			 pendingDeletes = Integer.parseInt(attribute.getValue());
+	   		 } else if (attributeName.equals("size")) {
+	   			 size = Long.parseLong(attribute.getValue());
 	   		 }
 	   	 }
-	   	 if (fileName == null || lastModifiedDate == null || hash == null || source == null) {
+	   	 if (fileName == null || getLastModifiedTime() == NO_TIME || getHash() == null || source == null) {
 	   		 throw new Exception("Missing attributes from cloud DB for file " + item.getName());
 	   	 }
 	}
@@ -1,13 +1,37 @@
 package com.robwilliams.mibox.snapshots;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 
 import com.robwilliams.mibox.snapshots.actions.FileSnapshotAction;
+import com.robwilliams.mibox.util.HashUtil;
+
+/**
+ * What's known about one file at the start of a sync, on one side (local or cloud).
+ * <br><br>
+ * A sync keeps a snapshot of every changed file in memory, so they are kept small: times are epoch millis
+ * instead of Date objects, and hex hashes are kept as bytes. The Date and String getters build those
+ * on demand; code that compares a lot of snapshots should use getLastModifiedTime() and hasSameHash(...).
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public abstract class FileSnapshot {
+	// stands for a null Date
+	protected static final long NO_TIME = Long.MIN_VALUE;
+	// how writeHash(...) tells the ways of keeping a hash apart
+	private static final byte HASH_NULL = 0;
+	private static final byte HASH_BYTES = 1;
+	private static final byte HASH_STRING = 2;
 
-public abstract class FileSnapshot {	
 	protected String fileName;
-	protected Date lastModifiedDate;
-	protected String hash;
+	private long lastModifiedTime = NO_TIME;
+	// the hash is kept in binary if it's a hex hash, else as it is
+	private byte[] hashBytes;
+	private String hashString;
 	protected FileSnapshotAction action;
 	public String getFileName() {
 		return fileName;
@@ -16,16 +40,38 @@ public abstract class FileSnapshot {
 		this.fileName = fileName;
 	}
 	public Date getLastModifiedDate() {
-		return lastModifiedDate;
+		return toDate(lastModifiedTime);
 	}
 	public void setLastModifiedDate(Date lastModifiedDate) {
-		this.lastModifiedDate = lastModifiedDate;
+		this.lastModifiedTime = toMillis(lastModifiedDate);
+	}
+	/**
+	 * @return last modified time in epoch millis, without building a Date
+	 */
+	public long getLastModifiedTime() {
+		return lastModifiedTime;
 	}
 	public String getHash() {
-		return hash;
+		return hashBytes != null ? HashUtil.toHex(hashBytes) : hashString;
 	}
 	public void setHash(String hash) {
-		this.hash = hash;
+		this.hashBytes = HashUtil.fromHex(hash);
+		this.hashString = hashBytes != null ? null : hash;
+	}
+	/**
+	 * Same as getHash().equals(other.getHash()), without building the strings.
+	 * @param other
+	 * @return true if both snapshots have the same hash
+	 */
+	public boolean hasSameHash(FileSnapshot other) {
+		return hasHash(other.hashBytes, other.hashString);
+	}
+	// compare with a hash kept the same way
+	protected boolean hasHash(byte[] otherBytes, String otherString) {
+		if (hashBytes != null) {
+			return Arrays.equals(hashBytes, otherBytes);
+		}
+		return otherBytes == null && hashString.equals(otherString);
 	}
 	public FileSnapshotAction getAction() {
 		return action;
@@ -34,4 +80,51 @@ public abstract class FileSnapshot {
 		this.action = action;
 	}
 
+	// the fields kept here, for writeTo(DataOutput) of the subclasses
+	protected void writeFileSnapshot(DataOutput out) throws IOException {
+		out.writeUTF(fileName);
+		out.writeLong(lastModifiedTime);
+		writeHash(out, hashBytes, hashString);
+	}
+	// the other way around
+	protected void readFileSnapshot(DataInput in) throws IOException {
+		fileName = in.readUTF();
+		lastModifiedTime = in.readLong();
+		Object hash = readHash(in);
+		hashBytes = hash instanceof byte[] ? (byte[]) hash : null;
+		hashString = hash instanceof String ? (String) hash : null;
+	}
+
+	// a hash kept the same way as in FileSnapshot: a tag (null, bytes or string), then the hash
+	protected static void writeHash(DataOutput out, byte[] bytes, String string) throws IOException {
+		if (bytes != null) {
+			out.writeByte(HASH_BYTES);
+			out.writeByte(bytes.length);
+			out.write(bytes);
+		} else if (string != null) {
+			out.writeByte(HASH_STRING);
+			out.writeUTF(string);
+		} else {
+			out.writeByte(HASH_NULL);
+		}
+	}
+	// returns the byte[] or String written by writeHash(...), or null
+	protected static Object readHash(DataInput in) throws IOException {
+		byte tag = in.readByte();
+		if (tag == HASH_BYTES) {
+			byte[] bytes = new byte[in.readUnsignedByte()];
+			in.readFully(bytes);
+			return bytes;
+		}
+		return tag == HASH_STRING ? in.readUTF() : null;
+	}
+
+	protected static long toMillis(Date date) {
+		return date == null ? NO_TIME : date.getTime();
+	}
+
+	protected static Date toDate(long millis) {
+		return millis == NO_TIME ? null : new Date(millis);
+	}
+
 }
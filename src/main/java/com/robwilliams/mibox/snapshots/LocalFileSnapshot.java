@@ -1,5 +1,7 @@
 package com.robwilliams.mibox.snapshots;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
@@ -13,37 +15,118 @@ import org.jets3t.service.utils.ServiceUtils;
 
 import com.robwilliams.mibox.Global;
 import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.util.FileUtil;
+import com.robwilliams.mibox.util.HashUtil;
 import com.robwilliams.mibox.util.S3Util;
 
 public class LocalFileSnapshot extends FileSnapshot {
-	private final Date lastSyncedLastModifiedDate;
-	private final String lastSyncedHash;
-	private S3Object s3Object; // not final because it needs to be modified as part of LocalFileConflictAction
-	private final Date lastSyncTime;
+	private final long lastSyncedLastModifiedTime;
+	// kept like the hash, see FileSnapshot
+	private final byte[] lastSyncedHashBytes;
+	private final String lastSyncedHashString;
+	private S3Object s3Object; // built on demand by getS3Object(), since building it means encrypting the whole file
+	// null while the file is at its usual place in the box (which is nearly always), so the path isn't kept twice.
+	// Not final because it needs to be modified as part of LocalFileConflictAction
+	private File localFile;
+	private final boolean hasLocalFile; // false for snapshots made by the test-only constructor
+	private final long lastSyncTime;
 	private final boolean existsLocally;
 	public Date getLastSyncedLastModifiedDate() {
-		return lastSyncedLastModifiedDate;
+		return toDate(lastSyncedLastModifiedTime);
+	}
+	/**
+	 * @return last synced last modified time in epoch millis, without building a Date
+	 */
+	public long getLastSyncedLastModifiedTime() {
+		return lastSyncedLastModifiedTime;
 	}
 	public String getLastSyncedHash() {
-		return lastSyncedHash;
+		return lastSyncedHashBytes != null ? HashUtil.toHex(lastSyncedHashBytes) : lastSyncedHashString;
+	}
+	/**
+	 * Same as getHash().equals(getLastSyncedHash()), without building the strings.
+	 * @return true if the file's contents are the same as when it was last synced
+	 */
+	public boolean isHashLastSynced() {
+		return hasHash(lastSyncedHashBytes, lastSyncedHashString);
 	}
-	public S3Object getS3Object() {
+	/**
+	 * Get the S3 object used to send this file to the cloud Hash->Data bucket. Most snapshots are
+	 * never uploaded, so the object (and the encrypted temp file behind it) is only built the first
+	 * time this is called.
+	 * @return the S3Object, or null for snapshots made by the test-only constructor
+	 * @throws Exception if the file could not be read or encrypted
+	 */
+	public synchronized S3Object getS3Object() throws Exception {
+		if (s3Object == null && hasLocalFile) {
+			if (HashUtil.isContentHash(getHash())) {
+				// keyed by content, so the MD5 S3 checks the upload against is only known once the file is encrypted
+				s3Object = existsLocally ? S3Util.createObjectForUploadWithPrecomputedHash(getHash(), getLocalFile(), null)
+						: new S3Object(getHash());
+			} else {
+				if (existsLocally) {
+					// hash was already pre-computed, so don't re-compute it
+					// this handles encryption transparently
+					s3Object = S3Util.createObjectForUploadWithPrecomputedHash(getHash(), getLocalFile(), getHash());
+				} else {
+					s3Object = new S3Object(getHash());
+				}
+				s3Object.setMd5Hash(ServiceUtils.fromHex(getHash()));
+			}
+		}
 		return s3Object;
 	}
-	public void setS3Object(S3Object s3Object) {
+	public synchronized void setS3Object(S3Object s3Object) {
 		this.s3Object = s3Object;
 	}
+	/**
+	 * @return the file on disk, or null for snapshots made by the test-only constructor
+	 */
+	public synchronized File getLocalFile() {
+		if (!hasLocalFile) return null;
+		return localFile != null ? localFile : new File(FileUtil.getLocalFilePath(fileName));
+	}
+	
+	/**
+	 * Point this snapshot at a different file on disk with the same contents (e.g. after a rename).
+	 * Any S3 object already built for the old file is discarded.
+	 * @param localFile
+	 */
+	public synchronized void setLocalFile(File localFile) {
+		this.localFile = localFile;
+		this.s3Object = null;
+	}
 	public Date getLastSyncTime() {
-		return lastSyncTime;
+		return toDate(lastSyncTime);
 	}
 	public boolean existsLocally() {
 		return existsLocally;
 	}
 	
+	// With contentAddressing, the hash is a SHA-256 of the file and the S3 object is left to getS3Object(), so files are
+	// only encrypted if they're uploaded. Otherwise the hash is the MD5 of the encrypted data, so building the S3 object
+	// (which encrypts the file) is how it's computed. The encrypted copy is deleted straight away, since most files
+	// turn out to be unchanged; getS3Object() makes it again if the file does need uploading.
+	private void hashFile(File file) throws Exception {
+		s3Object = null;
+		if (Global.getConfig().isContentAddressing() && !file.isDirectory()) {
+			setHash(HashUtil.contentHash(file));
+		} else {
+			S3Object hashObject = S3Util.createObjectForUpload(file);
+			if (hashObject.getDataInputFile() != null) hashObject.getDataInputFile().delete();
+			setHash(hashObject.getKey());
+		}
+	}
+	
+	// only keep the file if it's somewhere unusual
+	private static File unusualFile(String fileName, File file) {
+		return file.getPath().equals(FileUtil.getLocalFilePath(fileName)) ? null : file;
+	}
+	
 	/**
 	 * Constructor that is used to construct a snapshot straight from a local file.
 	 * This implies that there is no local DB record for that file.
-	 * Hash is calculated using JetS3t's S3Object
+	 * Hash is calculated from the file, see hashFile(File)
 	 * @param fileName
 	 * @param lastModifiedDate
 	 * @param file
@@ -53,17 +136,17 @@ public class LocalFileSnapshot extends FileSnapshot {
 	public LocalFileSnapshot(String fileName, Date lastModifiedDate, File file) throws Exception {
 		
 		this.fileName = fileName;
-		this.lastModifiedDate = lastModifiedDate;
+		setLastModifiedDate(lastModifiedDate);
 		
-		// build up S3 object that will be used to send file to cloud Hash->Data bucket
-		// this also computes the hash and handles encryption transparently
-		s3Object = S3Util.createObjectForUpload(file);
-		this.hash = s3Object.getKey();
+		hashFile(file);
+		this.localFile = unusualFile(fileName, file);
+		this.hasLocalFile = true;
 				
 		this.action = null;
-		this.lastSyncedLastModifiedDate = new Date(0);
-		this.lastSyncedHash = "";
-		this.lastSyncTime = new Date(0);
+		this.lastSyncedLastModifiedTime = 0;
+		this.lastSyncedHashBytes = null;
+		this.lastSyncedHashString = "";
+		this.lastSyncTime = 0;
 		this.existsLocally = true; // true because we are creating this from local file
 	}
 	
@@ -71,7 +154,7 @@ public class LocalFileSnapshot extends FileSnapshot {
 	 * Constructor that gets new hash and file information from file, but everything else is from an existing DB record.
 	 * This implies that there was a DB record, but it is out-dated. We use all the "last sync" data fields from the DB,
 	 * but the file information is newly calculated.
-	 * Hash is calculated using JetS3t's S3Object
+	 * Hash is calculated from the file, see hashFile(File)
 	 * @param fileName
 	 * @param lastModifiedDate
 	 * @param snapshot
@@ -82,17 +165,17 @@ public class LocalFileSnapshot extends FileSnapshot {
 	public LocalFileSnapshot(String fileName, Date lastModifiedDate, LocalFileSnapshot snapshot, File file) throws Exception {
 		
 		this.fileName = fileName;
-		this.lastModifiedDate = lastModifiedDate;
+		setLastModifiedDate(lastModifiedDate);
 		
-		// build up S3 object that will be used to send file to cloud Hash->Data bucket
-		// this also computes the hash and handles encryption transparently
-		s3Object = S3Util.createObjectForUpload(file);
-		this.hash = s3Object.getKey();
+		hashFile(file);
+		this.localFile = unusualFile(fileName, file);
+		this.hasLocalFile = true;
 		
 		this.action = null;
-		this.lastSyncedLastModifiedDate = snapshot.getLastSyncedLastModifiedDate();
-		this.lastSyncedHash = snapshot.getLastSyncedHash();
-		this.lastSyncTime = snapshot.getLastSyncTime();
+		this.lastSyncedLastModifiedTime = snapshot.lastSyncedLastModifiedTime;
+		this.lastSyncedHashBytes = snapshot.lastSyncedHashBytes;
+		this.lastSyncedHashString = snapshot.lastSyncedHashString;
+		this.lastSyncTime = snapshot.lastSyncTime;
 		this.existsLocally = true; // true because we are creating this from local file
 	}
 	
@@ -105,25 +188,65 @@ public class LocalFileSnapshot extends FileSnapshot {
 	 */
 	public LocalFileSnapshot(MiBoxFile fileDataRecord, File file) throws Exception {
 		this.fileName = fileDataRecord.getName();
-		this.lastModifiedDate = fileDataRecord.getLastModifiedTime();
-		this.hash = fileDataRecord.getHash();
+		setLastModifiedDate(fileDataRecord.getLastModifiedTime());
+		setHash(fileDataRecord.getHash());
 		
-		// build up S3 object that will be used to send file to cloud Hash->Data bucket
-		// since hash was already pre-computed, don't re-compute it
-		if (file.exists()) {
-			// this handles encryption transparently
-			s3Object = S3Util.createObjectForUploadWithPrecomputedHash(this.hash, file, this.hash);
-			this.existsLocally = true;
-		} else {
-			s3Object = new S3Object(this.hash);
-			this.existsLocally = false;
-		}
-		s3Object.setMd5Hash(ServiceUtils.fromHex(this.hash));
+		// the S3 object that will be used to send file to cloud Hash->Data bucket is built lazily by getS3Object(),
+		// because most of these snapshots turn out to be unchanged and are never uploaded
+		this.localFile = unusualFile(fileName, file);
+		this.hasLocalFile = true;
+		this.s3Object = null;
+		this.existsLocally = file.exists();
 		
 		this.action = null;
-		this.lastSyncedLastModifiedDate = fileDataRecord.getLastSyncedLastModifiedTime();
-		this.lastSyncedHash = fileDataRecord.getLastSyncedHash();
-		this.lastSyncTime = fileDataRecord.getLastSyncTime();
+		this.lastSyncedLastModifiedTime = toMillis(fileDataRecord.getLastSyncedLastModifiedTime());
+		this.lastSyncedHashBytes = HashUtil.fromHex(fileDataRecord.getLastSyncedHash());
+		this.lastSyncedHashString = lastSyncedHashBytes != null ? null : fileDataRecord.getLastSyncedHash();
+		this.lastSyncTime = toMillis(fileDataRecord.getLastSyncTime());
+	}
+	
+	/**
+	 * Write everything needed to rebuild this snapshot with readFrom(DataInput), so that SnapshotSorter can
+	 * keep snapshots on disk. The action isn't written, and neither is an S3 object that was built already:
+	 * getS3Object() builds it again if the file turns out to need uploading.
+	 * @param out
+	 * @throws IOException
+	 */
+	public synchronized void writeTo(DataOutput out) throws IOException {
+		writeFileSnapshot(out);
+		out.writeLong(lastSyncedLastModifiedTime);
+		writeHash(out, lastSyncedHashBytes, lastSyncedHashString);
+		out.writeLong(lastSyncTime);
+		out.writeBoolean(existsLocally);
+		out.writeBoolean(hasLocalFile);
+		out.writeBoolean(localFile != null);
+		if (localFile != null) {
+			out.writeUTF(localFile.getPath());
+		}
+	}
+	
+	/**
+	 * Rebuild a snapshot written by writeTo(DataOutput).
+	 * @param in
+	 * @return the snapshot, without an action
+	 * @throws IOException
+	 */
+	public static LocalFileSnapshot readFrom(DataInput in) throws IOException {
+		return new LocalFileSnapshot(in);
+	}
+	
+	private LocalFileSnapshot(DataInput in) throws IOException {
+		readFileSnapshot(in);
+		this.action = null;
+		this.lastSyncedLastModifiedTime = in.readLong();
+		Object lastSyncedHash = readHash(in);
+		this.lastSyncedHashBytes = lastSyncedHash instanceof byte[] ? (byte[]) lastSyncedHash : null;
+		this.lastSyncedHashString = lastSyncedHash instanceof String ? (String) lastSyncedHash : null;
+		this.lastSyncTime = in.readLong();
+		this.existsLocally = in.readBoolean();
+		this.hasLocalFile = in.readBoolean();
+		this.localFile = in.readBoolean() ? new File(in.readUTF()) : null;
+		this.s3Object = null;
 	}
 	
 	/**
@@ -133,14 +256,17 @@ public class LocalFileSnapshot extends FileSnapshot {
 	public LocalFileSnapshot(String fileName, Date lastModifiedDate, String hash,
 			Date lastSyncedLastModifiedDate, String lastSyncedHash, Date lastSyncDate, boolean existsLocally) {
 		this.fileName = fileName;
-		this.lastModifiedDate = lastModifiedDate;
-		this.hash = hash;
+		setLastModifiedDate(lastModifiedDate);
+		setHash(hash);
 		this.action = null;
-		this.lastSyncedLastModifiedDate = lastSyncedLastModifiedDate;
-		this.lastSyncedHash = lastSyncedHash;
-		this.lastSyncTime = lastSyncDate;
+		this.lastSyncedLastModifiedTime = toMillis(lastSyncedLastModifiedDate);
+		this.lastSyncedHashBytes = HashUtil.fromHex(lastSyncedHash);
+		this.lastSyncedHashString = lastSyncedHashBytes != null ? null : lastSyncedHash;
+		this.lastSyncTime = toMillis(lastSyncDate);
 		this.existsLocally = existsLocally;
 		this.s3Object = null;
+		this.localFile = null;
+		this.hasLocalFile = false;
 	}
 
 }
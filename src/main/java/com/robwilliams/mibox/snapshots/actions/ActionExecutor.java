@@ -0,0 +1,124 @@
+package com.robwilliams.mibox.snapshots.actions;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.robwilliams.mibox.Global;
+import com.robwilliams.mibox.exceptions.SyncActionError;
+
+/**
+ * Runs FileSnapshotActions for SyncMaster's merge. Each call to submit(...) is one unit of work:
+ * the actions passed to it run one after another, in order, on the same thread. Separate submissions
+ * run in parallel on up to "threads" workers, so all actions for one file should be submitted together.
+ * <br><br>
+ * With a single thread, everything runs right away on the calling thread, exactly like the old serial merge.
+ * <br><br>
+ * The first action to fail stops any submissions that haven't started yet. Once the submissions already
+ * in flight have finished, awaitCompletion() throws that first failure.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class ActionExecutor {
+
+	private final ExecutorService executor; // null when running serially
+	private final Semaphore permits; // bounds how many submissions are queued or running
+	private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+	/**
+	 * @param threads maximum number of submissions to run at the same time
+	 * @param useVirtualThreads run each submission on its own virtual thread, if the JVM supports them
+	 */
+	public ActionExecutor(int threads, boolean useVirtualThreads) {
+		threads = Math.max(threads, 1);
+		permits = new Semaphore(threads);
+		if (threads == 1) {
+			executor = null;
+		} else if (useVirtualThreads) {
+			ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+			if (virtualThreadExecutor == null) {
+				Global.getLogger().writeWarningLine("Virtual threads are not supported by this JVM, using " + threads + " platform threads");
+				virtualThreadExecutor = Executors.newFixedThreadPool(threads);
+			}
+			executor = virtualThreadExecutor;
+		} else {
+			executor = Executors.newFixedThreadPool(threads);
+		}
+	}
+
+	/**
+	 * Queue actions that must run in the given order. Blocks while all workers are busy.
+	 * Null actions are skipped.
+	 * @param actions
+	 */
+	public void submit(final FileSnapshotAction... actions) {
+		if (failure.get() != null) {
+			return; // merge is being abandoned
+		}
+		if (executor == null) {
+			runInOrder(actions);
+			return;
+		}
+		permits.acquireUninterruptibly();
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					// check again, something may have failed while this was queued
+					if (failure.get() == null) {
+						runInOrder(actions);
+					}
+				} finally {
+					permits.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for every submission to finish and shut down the worker threads.
+	 * @throws SyncActionError the first failure of any action, if there was one
+	 */
+	public void awaitCompletion() {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+					; // keep waiting, uploads of large files can take a while
+				}
+			} catch (InterruptedException ex) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				failure.compareAndSet(null, new SyncActionError("Interrupted while waiting for merge to finish", ex));
+			}
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	private void runInOrder(FileSnapshotAction[] actions) {
+		try {
+			for (FileSnapshotAction action : actions) {
+				if (action != null) {
+					action.run();
+				}
+			}
+		} catch (RuntimeException ex) {
+			failure.compareAndSet(null, ex);
+		}
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor() only exists on newer JVMs, so look it up at runtime
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+}
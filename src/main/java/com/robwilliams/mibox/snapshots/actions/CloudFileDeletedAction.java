@@ -8,13 +8,11 @@ import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
 import com.amazonaws.services.simpledb.model.Attribute;
-import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
 import com.amazonaws.services.simpledb.model.Item;
-import com.amazonaws.services.simpledb.model.PutAttributesRequest;
 import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
 import com.amazonaws.services.simpledb.model.SelectRequest;
 import com.robwilliams.mibox.Global;
-import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.exceptions.SyncActionError;
 import com.robwilliams.mibox.snapshots.CloudFileSnapshot;
 import com.robwilliams.mibox.util.DateUtil;
 import com.robwilliams.mibox.util.SimpleDBUtil;
@@ -37,12 +35,6 @@ public class CloudFileDeletedAction implements FileSnapshotAction {
 	
 	public void run() {
 		try {
-			// clean row from local database
-			MiBoxFile existingFileRecord = Global.getFileMetadataDAO().queryForId(snapshot.getFileName());
-			if (existingFileRecord != null) {
-				Global.getFileMetadataDAO().delete(existingFileRecord);
-			}
-			
 			// delete remote file
 			RestS3Service s3 = Global.getS3();
 			s3.deleteObject(Global.getConfig().getFilenameHashMapBucket(), snapshot.getFileName());
@@ -93,33 +85,32 @@ public class CloudFileDeletedAction implements FileSnapshotAction {
 			// finally, hostCount is (hopefully) accurate number of hosts which still need the file to be deleted
 			// call method to update pending deletes on the cloud DB
 			// (this is extracted method because it is used in LocalFileDeleted as well)
-			updatePendingDeletes(sdb, snapshot.getFileName(), hostCount);
+			updatePendingDeletes(snapshot.getFileName(), hostCount);
+			
+			// clean row from local database (after the cloud rows, which are flushed before it is committed)
+			Global.getFileIndexWriter().delete(snapshot.getFileName());
 		} catch (Exception ex) {
-			// TODO: Better error handling here
-			ex.printStackTrace();
-			System.exit(1);
+			throw new SyncActionError("Failed to delete cloud file " + snapshot.getFileName(), ex);
 		}
 		
 	}
 
 	/**
 	 * Encapsulate all logic needed to update pendingDeletes on cloud.
-	 * @param sdb
+	 * The write goes through the SimpleDB write buffer, so it is sent along with other files' writes.
 	 * @param cloudFileName
 	 * @param pendingDeletes
 	 */
-	public static void updatePendingDeletes(AmazonSimpleDB sdb, String cloudFileName, int pendingDeletes) {
+	public static void updatePendingDeletes(String cloudFileName, int pendingDeletes) {
 		// if pending deletes <= 0, then there are no pending deletes so we can actually delete row from CloudFiles
 		if (pendingDeletes <= 0) {
-			sdb.deleteAttributes(new DeleteAttributesRequest(Global.getConfig().getCloudFilesDomain(), cloudFileName));
+			Global.getSDBWriteBuffer().delete(Global.getConfig().getCloudFilesDomain(), cloudFileName);
 		}
 		// otherwise, we must save this hostCount info to the pendingDeletes column of the CloudFiles row
 		else {
 			List<ReplaceableAttribute> attributes = new ArrayList<ReplaceableAttribute>();
 			attributes.add(new ReplaceableAttribute("pendingDeletes", Integer.toString(pendingDeletes), true));
-			PutAttributesRequest request =
-					new PutAttributesRequest(Global.getConfig().getCloudFilesDomain(), cloudFileName, attributes);
-			sdb.putAttributes(request);
+			Global.getSDBWriteBuffer().put(Global.getConfig().getCloudFilesDomain(), cloudFileName, attributes);
 		}
 	}
 
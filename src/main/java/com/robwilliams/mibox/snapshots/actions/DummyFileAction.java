@@ -6,12 +6,16 @@ package com.robwilliams.mibox.snapshots.actions;
  * which do not require any action. For example, if the local
  * and cloud snapshots are already perfectly in sync, nothing will
  * need to be done.
+ * <br><br>
+ * It has no state, so INSTANCE can be shared by every snapshot.
  *  
  * @author Rob Williams
  *
  */
 public class DummyFileAction implements FileSnapshotAction {
 
+	public static final DummyFileAction INSTANCE = new DummyFileAction();
+
 	public void run() {		
 		;
 	}
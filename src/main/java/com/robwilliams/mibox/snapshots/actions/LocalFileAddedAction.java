@@ -1,5 +1,6 @@
 package com.robwilliams.mibox.snapshots.actions;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -9,20 +10,28 @@ import org.jets3t.service.model.S3Object;
 import org.jets3t.service.multi.ThreadedStorageService;
 
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.services.simpledb.AmazonSimpleDB;
 import com.amazonaws.services.simpledb.model.PutAttributesRequest;
 import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
 import com.amazonaws.services.simpledb.model.UpdateCondition;
 import com.robwilliams.mibox.Global;
 import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.exceptions.SyncActionError;
 import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
+import com.robwilliams.mibox.util.BlobUploader;
+import com.robwilliams.mibox.util.ChunkedStorage;
 import com.robwilliams.mibox.util.DateUtil;
+import com.robwilliams.mibox.util.DeltaStorage;
+import com.robwilliams.mibox.util.KnownHashCache;
+import com.robwilliams.mibox.util.SimpleDBWriteBuffer;
 
 /**
  * If the local file does not exist on cloud, this action adds it to the cloud.
  * It will make sure the local database is in order, and upload the new
  * file to the cloud, making necessary cloud DB changes.
  * <br><br>
+ * With deltaTransfer, a changed file may only upload what changed since it was last synced (see DeltaStorage).
+ * With chunkedStorage, only the chunks of the file the cloud doesn't have yet are uploaded (see ChunkedStorage).
+ * <br><br>
  * @author Rob Williams
  *
  */
@@ -40,12 +49,36 @@ public class LocalFileAddedAction implements FileSnapshotAction {
 		try {
 			// upload file data to S3 HashData bucket
 			RestS3Service s3 = Global.getS3();
-			try {
-				s3.getObjectDetails(Global.getConfig().getHashDataMapBucket(), snapshot.getHash());
-			} catch (Exception ex) {
-				// eat exception
-				// it was most likely caused by hash not already existing on server, so let's upload it
-				s3.putObject(Global.getConfig().getHashDataMapBucket(), snapshot.getS3Object());				
+			KnownHashCache knownHashes = Global.getKnownHashCache();
+			File localFile = snapshot.existsLocally() ? snapshot.getLocalFile() : null;
+			// only ask S3 whether it has the data if we don't already know it does
+			if (!knownHashes.isKnown(snapshot.getHash())) {
+				try {
+					s3.getObjectDetails(Global.getConfig().getHashDataMapBucket(), snapshot.getHash());
+				} catch (Exception ex) {
+					// eat exception
+					// it was most likely caused by hash not already existing on server, so let's upload it
+					if (localFile != null && DeltaStorage.upload(snapshot.getFileName(), snapshot.getHash(), snapshot.getLastSyncedHash(), localFile)) {
+						; // only what changed since the last synced version
+					} else if (localFile != null && ChunkedStorage.isUsedFor(snapshot.getHash())) {
+						// only the chunks the bucket doesn't have yet
+						ChunkedStorage.upload(snapshot.getHash(), localFile);
+					} else {
+						S3Object dataObject = snapshot.getS3Object();
+						try {
+							BlobUploader.upload(dataObject);
+						} finally {
+							// the encrypted copy is only needed for the upload
+							if (dataObject.getDataInputFile() != null) dataObject.getDataInputFile().delete();
+							snapshot.setS3Object(null);
+						}
+					}
+				}
+				knownHashes.add(snapshot.getHash());
+			}
+			if (localFile != null) {
+				// so the next version can be uploaded as a delta against this one
+				DeltaStorage.remember(snapshot.getFileName(), snapshot.getHash(), localFile);
 			}
 			
 			// add file to S3 File Hash bucket
@@ -55,45 +88,44 @@ public class LocalFileAddedAction implements FileSnapshotAction {
 			metadataObject.addMetadata("source", Global.getConfig().getMiBoxHostName());
 			s3.putObject(Global.getConfig().getFilenameHashMapBucket(), metadataObject);
 			
-			// add row to local DB
-			MiBoxFile fileDataRecord = new MiBoxFile(snapshot);
-			Global.getFileMetadataDAO().createOrUpdate(fileDataRecord);
-			
-			// add row to cloud files DB
-			AmazonSimpleDB sdb = Global.getSDB();
+			// add row to cloud files DB (batched with other files' writes)
+			SimpleDBWriteBuffer writeBuffer = Global.getSDBWriteBuffer();
 			List<ReplaceableAttribute> attributes = new ArrayList<ReplaceableAttribute>() {{
 				add(new ReplaceableAttribute("hash", snapshot.getHash(), true));
 				add(new ReplaceableAttribute("lastModifiedDate", DateUtil.dateToString(snapshot.getLastModifiedDate()), true));
 				add(new ReplaceableAttribute("source", Global.getConfig().getMiBoxHostName(), true));
 				add(new ReplaceableAttribute("lastSyncDate", DateUtil.dateToString(new Date()), true));
 			}};
-			PutAttributesRequest request =
-					new PutAttributesRequest(Global.getConfig().getCloudFilesDomain(), snapshot.getFileName(), attributes);
-			sdb.putAttributes(request);
+			if (snapshot.getLocalFile() != null) {
+				// lets other hosts decide how to download it
+				attributes.add(new ReplaceableAttribute("size", Long.toString(snapshot.getLocalFile().length()), true));
+			}
+			writeBuffer.put(Global.getConfig().getCloudFilesDomain(), snapshot.getFileName(), attributes);
 			
 			// keep track of when the file was added. Update condition is set to false so that it doesn't get updated if already exists
-			attributes.clear();
+			// (conditional puts can't be batched, so this one goes straight to SimpleDB)
+			attributes = new ArrayList<ReplaceableAttribute>();
 			attributes.add(new ReplaceableAttribute("addDate", DateUtil.dateToString(new Date()), true));
 			UpdateCondition condition = new UpdateCondition("addDate", null, false);
-			request = new PutAttributesRequest(Global.getConfig().getCloudFilesDomain(), snapshot.getFileName(), attributes, condition);
+			PutAttributesRequest request = new PutAttributesRequest(Global.getConfig().getCloudFilesDomain(), snapshot.getFileName(), attributes, condition);
 			try {
-				sdb.putAttributes(request);
+				Global.getSDB().putAttributes(request);
 			} catch (AmazonServiceException ex) {
 				; // eat exception, since it just means the file already had an Add Date (i.e. the UpdateCondition failed)
 			}
 				
 			// add row to cloud version DB
 			// the version database has a key of hash+lmd+filename, then source as its one attribute
-			attributes.clear();
+			attributes = new ArrayList<ReplaceableAttribute>();
 			attributes.add(new ReplaceableAttribute("source", Global.getConfig().getMiBoxHostName(), true));
 			String itemName = snapshot.getHash() + DateUtil.dateToString(snapshot.getLastModifiedDate()) + snapshot.getFileName();
-			request = new PutAttributesRequest(Global.getConfig().getCloudVersionsDomain(), itemName, attributes);
-			sdb.putAttributes(request);
+			writeBuffer.put(Global.getConfig().getCloudVersionsDomain(), itemName, attributes);
 			
+			// add row to local DB (after the cloud rows, which are flushed before it is committed)
+			MiBoxFile fileDataRecord = new MiBoxFile(snapshot);
+			Global.getFileIndexWriter().createOrUpdate(fileDataRecord);
 		} catch (Exception e) {
-			// TODO: handle cleaner
-			e.printStackTrace();
-			System.exit(1);
+			throw new SyncActionError("Failed to add local file " + snapshot.getFileName() + " to cloud", e);
 		}
 		
 		
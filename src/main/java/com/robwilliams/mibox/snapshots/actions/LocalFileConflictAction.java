@@ -8,11 +8,11 @@ import org.jets3t.service.utils.Mimetypes;
 import org.jets3t.service.utils.ServiceUtils;
 
 import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.exceptions.SyncActionError;
 import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
 import com.robwilliams.mibox.snapshots.CloudFileSnapshot;
 import com.robwilliams.mibox.util.FileUtil;
 import com.robwilliams.mibox.util.DateUtil;
-import com.robwilliams.mibox.util.S3Util;
 import com.robwilliams.mibox.Global;
 
 /**
@@ -71,10 +71,10 @@ public class LocalFileConflictAction implements FileSnapshotAction {
 			cloudFileDeletedAction.run();
 			
 			// initiate add of new local file
-			// requires modifying local snapshot with new filename and new S3Object pointing to the new file
+			// requires modifying local snapshot with new filename and pointing it at the new file
+			// (its S3Object is rebuilt from the new file if LocalFileAddedAction actually needs to upload it)
 			localSnapshot.setFileName(newLocalFileName);
-			S3Object s3Object = S3Util.createObjectForUploadWithPrecomputedHash(localSnapshot.getHash(), newLocalFile, localSnapshot.getHash());
-			localSnapshot.setS3Object(s3Object);
+			localSnapshot.setLocalFile(newLocalFile);
 			LocalFileAddedAction localFileAddedAction = new LocalFileAddedAction(localSnapshot);
 			localFileAddedAction.run();
 			
@@ -86,14 +86,13 @@ public class LocalFileConflictAction implements FileSnapshotAction {
 			// initiate local add of the cloud file
 			// (this gets it into the CloudFiles DB)
 			File newCloudFile = new File(newCloudFileName);
-			MiBoxFile newCloudFileDataRecord = Global.getFileMetadataDAO().queryForId(newCloudFileName);
+			MiBoxFile newCloudFileDataRecord = Global.getFileIndexWriter().queryForId(newCloudFileName);
 			LocalFileSnapshot cloudConflictedSnapshot = new LocalFileSnapshot(newCloudFileDataRecord, newCloudFile);
 			localFileAddedAction = new LocalFileAddedAction(cloudConflictedSnapshot);
 			localFileAddedAction.run();
 		} catch (Exception ex) {
-			// TODO: do something better here, redrive?
-			ex.printStackTrace();
-			System.exit(1);
+			// TODO: redrive?
+			throw new SyncActionError("Failed to resolve conflict for " + localSnapshot.getFileName(), ex);
 		}
 	}
 
@@ -4,7 +4,7 @@ import java.io.File;
 
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
 import com.robwilliams.mibox.Global;
-import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.exceptions.SyncActionError;
 import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
 import com.robwilliams.mibox.util.FileUtil;
 import com.robwilliams.mibox.util.SimpleDBUtil;
@@ -29,11 +29,7 @@ public class LocalFileDeletedAction implements FileSnapshotAction {
 	public void run() {
 		try {
 			// clean row from local database
-			MiBoxFile existingFileRecord;		
-			existingFileRecord = Global.getFileMetadataDAO().queryForId(snapshot.getFileName());
-			if (existingFileRecord != null) {
-				Global.getFileMetadataDAO().delete(existingFileRecord);
-			}
+			Global.getFileIndexWriter().delete(snapshot.getFileName());
 			
 			// actually delete the local file
 			File file = new File(FileUtil.getLocalFilePath(snapshot.getFileName()));
@@ -53,12 +49,10 @@ public class LocalFileDeletedAction implements FileSnapshotAction {
 				pendingDeletes--;
 				
 				// call method to update pending deletes on the cloud DB
-				CloudFileDeletedAction.updatePendingDeletes(sdb, snapshot.getFileName(), pendingDeletes);
+				CloudFileDeletedAction.updatePendingDeletes(snapshot.getFileName(), pendingDeletes);
 			}
 		} catch (Exception e) {
-			// TODO: error handle better
-			e.printStackTrace();
-			System.exit(1);
+			throw new SyncActionError("Failed to delete local file " + snapshot.getFileName(), e);
 		}
 	}
 
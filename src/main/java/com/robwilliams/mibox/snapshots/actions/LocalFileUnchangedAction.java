@@ -2,6 +2,7 @@ package com.robwilliams.mibox.snapshots.actions;
 
 import com.robwilliams.mibox.Global;
 import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.exceptions.SyncActionError;
 import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
 
 /**
@@ -34,11 +35,9 @@ public class LocalFileUnchangedAction implements FileSnapshotAction {
 		// add or update local DB with file information
 		try {
 			MiBoxFile fileDataRecord = new MiBoxFile(snapshot);	
-			Global.getFileMetadataDAO().createOrUpdate(fileDataRecord);
+			Global.getFileIndexWriter().createOrUpdate(fileDataRecord);
 		} catch (Exception ex) {
-			// TODO: clean up error handling
-			ex.printStackTrace();
-			System.exit(1);
+			throw new SyncActionError("Failed to record unchanged file " + snapshot.getFileName() + " in local DB", ex);
 		}
 	}
 
@@ -0,0 +1,262 @@
+package com.robwilliams.mibox.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * rsync style deltas: a new version of a file described as blocks to copy from an older version (the base) and the
+ * bytes in between. Making a delta only needs the base's BlockSignature, applying one needs the base itself.
+ * A delta looks like this:
+ * <pre>
+ * "MBXD" | version (1 byte) | base content hash (32 bytes) | new length (8 bytes) | block size (4 bytes) | operations | 'E'
+ * </pre>
+ * where each operation is either 'C', first block (4 bytes), number of blocks (4 bytes) to copy blocks of the base,
+ * or 'D', length (4 bytes), bytes.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class BinaryDelta {
+
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = { 'M', 'B', 'X', 'D' };
+	private static final int HASH_BYTES = 32;
+	private static final int COPY = 'C';
+	private static final int DATA = 'D';
+	private static final int END = 'E';
+	// longest run of new bytes written as one operation, so they don't all have to be kept in memory
+	private static final int MAX_DATA_BYTES = 1024 * 1024;
+
+	/**
+	 * Make a delta from the base to the new version of a file.
+	 * @param base signature of the base
+	 * @param baseHash content hash of the base
+	 * @param in the new version, read to the end but not closed
+	 * @param length length of the new version
+	 * @param out where the delta goes, not closed
+	 * @param wholeDigest if not null, updated with all of the new version
+	 * @param signature if not null, updated with all of the new version, so its signature can be kept for next time
+	 * @throws IOException
+	 */
+	public static void encode(BlockSignature base, String baseHash, InputStream in, long length, OutputStream out,
+			MessageDigest wholeDigest, BlockSignature.Builder signature) throws IOException {
+		DataOutputStream delta = new DataOutputStream(out);
+		int blockBytes = base.getBlockBytes();
+		writeHeader(delta, baseHash, length, blockBytes);
+		Encoder encoder = new Encoder(delta);
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+
+		byte[] buffer = new byte[Math.max(4 * blockBytes, MAX_DATA_BYTES)];
+		int pos = 0; // start of the window the weak checksum is of
+		int end = 0;
+		int literal = 0; // start of the bytes that matched no block, which haven't been written yet
+		boolean eof = false;
+		boolean rolling = false; // whether a and b are the sums of the window at pos
+		int a = 0;
+		int b = 0;
+		long read = 0;
+		while (true) {
+			if (!eof && end - pos < blockBytes) {
+				encoder.data(buffer, literal, pos - literal);
+				System.arraycopy(buffer, pos, buffer, 0, end - pos);
+				end -= pos;
+				pos = 0;
+				literal = 0;
+				while (end < buffer.length) {
+					int len = in.read(buffer, end, buffer.length - end);
+					if (len < 0) {
+						eof = true;
+						break;
+					}
+					if (wholeDigest != null) wholeDigest.update(buffer, end, len);
+					if (signature != null) signature.update(buffer, end, len);
+					end += len;
+					read += len;
+				}
+			}
+			if (end - pos < blockBytes) {
+				break;
+			}
+			if (!rolling) {
+				a = 0;
+				b = 0;
+				for (int i = 0; i < blockBytes; i++) {
+					int x = buffer[pos + i] & 0xff;
+					a += x;
+					b += (blockBytes - i) * x;
+				}
+				rolling = true;
+			}
+			int block = base.find(BlockSignature.weak(a, b), buffer, pos, md5);
+			if (block >= 0) {
+				encoder.data(buffer, literal, pos - literal);
+				encoder.copy(block);
+				pos += blockBytes;
+				literal = pos;
+				rolling = false;
+				continue;
+			}
+			// no block starts here, so move the window along by a byte
+			if (pos + blockBytes < end) {
+				int gone = buffer[pos] & 0xff;
+				a += (buffer[pos + blockBytes] & 0xff) - gone;
+				b += a - blockBytes * gone;
+			} else {
+				rolling = false;
+			}
+			pos++;
+			if (pos - literal >= MAX_DATA_BYTES) {
+				encoder.data(buffer, literal, pos - literal);
+				literal = pos;
+			}
+		}
+		encoder.data(buffer, literal, end - literal);
+		encoder.finish();
+		if (read != length) {
+			throw new IOException("Expected " + length + " bytes but read " + read);
+		}
+	}
+
+	// writes operations, joining copies of consecutive blocks into one
+	private static class Encoder {
+		private final DataOutputStream out;
+		private int copyStart = -1;
+		private int copyCount = 0;
+
+		Encoder(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void copy(int block) throws IOException {
+			if (copyStart >= 0 && copyStart + copyCount == block) {
+				copyCount++;
+				return;
+			}
+			flushCopy();
+			copyStart = block;
+			copyCount = 1;
+		}
+
+		void data(byte[] data, int off, int len) throws IOException {
+			if (len == 0) return;
+			flushCopy();
+			out.writeByte(DATA);
+			out.writeInt(len);
+			out.write(data, off, len);
+		}
+
+		void finish() throws IOException {
+			flushCopy();
+			out.writeByte(END);
+			out.flush();
+		}
+
+		private void flushCopy() throws IOException {
+			if (copyStart < 0) return;
+			out.writeByte(COPY);
+			out.writeInt(copyStart);
+			out.writeInt(copyCount);
+			copyStart = -1;
+			copyCount = 0;
+		}
+	}
+
+	/**
+	 * @param in a delta, of which only the header is read
+	 * @return content hash of the base the delta needs
+	 * @throws IOException if it isn't a delta
+	 */
+	public static String readBaseHash(InputStream in) throws IOException {
+		DataInputStream delta = new DataInputStream(in);
+		byte[] magic = new byte[MAGIC.length];
+		delta.readFully(magic);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (magic[i] != MAGIC[i]) {
+				throw new IOException("Not a delta");
+			}
+		}
+		int version = delta.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("Delta version " + version + " is not known to this MiBox");
+		}
+		byte[] hash = new byte[HASH_BYTES];
+		delta.readFully(hash);
+		return HashUtil.toHex(hash);
+	}
+
+	/**
+	 * Rebuild the new version of a file from a delta and its base.
+	 * @param in the delta, after its base hash (see readBaseHash()), read to the end but not closed
+	 * @param base the base, which the caller has checked against the base hash
+	 * @param out where the new version goes, not closed
+	 * @throws IOException if the delta is damaged, or doesn't fit the base
+	 */
+	public static void apply(InputStream in, RandomAccessFile base, OutputStream out) throws IOException {
+		DataInputStream delta = new DataInputStream(in);
+		long length = delta.readLong();
+		int blockBytes = delta.readInt();
+		if (blockBytes <= 0) {
+			throw new IOException("Delta has " + blockBytes + " byte blocks");
+		}
+		long baseLength = base.length();
+		byte[] buffer = new byte[Math.max(blockBytes, 64 * 1024)];
+		long written = 0;
+		while (true) {
+			int operation = delta.readUnsignedByte();
+			if (operation == END) {
+				break;
+			} else if (operation == COPY) {
+				long offset = (long) delta.readInt() * blockBytes;
+				long bytes = (long) delta.readInt() * blockBytes;
+				if (offset < 0 || bytes <= 0 || offset + bytes > baseLength) {
+					throw new IOException("Delta copies bytes " + offset + " to " + (offset + bytes) + " of a " + baseLength + " byte base");
+				}
+				base.seek(offset);
+				while (bytes > 0) {
+					int len = (int) Math.min(buffer.length, bytes);
+					base.readFully(buffer, 0, len);
+					out.write(buffer, 0, len);
+					bytes -= len;
+					written += len;
+				}
+			} else if (operation == DATA) {
+				int bytes = delta.readInt();
+				if (bytes <= 0) {
+					throw new IOException("Delta has " + bytes + " bytes of data");
+				}
+				while (bytes > 0) {
+					int len = Math.min(buffer.length, bytes);
+					delta.readFully(buffer, 0, len);
+					out.write(buffer, 0, len);
+					bytes -= len;
+					written += len;
+				}
+			} else {
+				throw new IOException("Delta is damaged (operation " + operation + ")");
+			}
+		}
+		if (written != length || delta.read() >= 0) {
+			throw new IOException("Delta is damaged (" + written + " of " + length + " bytes)");
+		}
+	}
+
+	private static void writeHeader(DataOutputStream out, String baseHash, long length, int blockBytes) throws IOException {
+		out.write(MAGIC);
+		out.writeByte(VERSION);
+		out.write(HashUtil.fromHex(baseHash));
+		out.writeLong(length);
+		out.writeInt(blockBytes);
+	}
+}
@@ -0,0 +1,334 @@
+package com.robwilliams.mibox.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.security.EncryptionUtil;
+import org.jets3t.service.utils.ServiceUtils;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.stmt.DeleteBuilder;
+import com.robwilliams.mibox.Global;
+import com.robwilliams.mibox.dataObjects.DownloadedSegment;
+import com.robwilliams.mibox.dataObjects.PendingDownload;
+import com.robwilliams.mibox.util.BlobUploader.Part;
+
+/**
+ * Downloads file data from the HashDataMap bucket. The data is streamed through decryption and (for old
+ * gzipped uploads) decompression straight into a temp file next to the target, and checked against its key on
+ * the way: the MD5 of the stored data, or for content hashes the SHA-256 of the file. The temp file is then given
+ * the right last modified date and renamed into place. A half-finished download therefore never shows up
+ * under the real file name.
+ * <br><br>
+ * Files stored as chunks have a ChunkManifest under their hash instead, and are put together by ChunkedStorage.
+ * Files stored as deltas are rebuilt from an older version by DeltaStorage.
+ * <br><br>
+ * Files smaller than rangedDownloadThresholdBytes are fetched with a single GET. Larger ones are split
+ * into segments which are fetched with ranged GETs on downloadThreads threads, into a preallocated
+ * (sparse) part file. Every finished segment is recorded in the local DB (see PendingDownload and
+ * DownloadedSegment), so an interrupted download resumes with the segments that are still missing
+ * instead of starting over.
+ * <br><br>
+ * Temp and part files start with FileUtil.TEMP_FILE_PREFIX, so the scanner and the watcher ignore them.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class BlobDownloader {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	// hashes with a ranged download in progress. A second file with the same content is downloaded
+	// with a single GET instead, so the two downloads don't share a part file.
+	private static final Set<String> activeRangedDownloads = Collections.synchronizedSet(new HashSet<String>());
+
+	/**
+	 * Download the data stored under hash into target, retrying failed requests and transfers.
+	 * @param hash key in the HashDataMap bucket, which is also the MD5 of the stored (encrypted) data,
+	 *        or a content hash (the SHA-256 of the file, see HashUtil)
+	 * @param target where the decrypted file should end up. Any existing file is replaced.
+	 * @param lastModifiedDate last modified date to give the file
+	 * @param size size of the original file if known (it decides whether ranged GETs are used), or -1
+	 * @throws Exception if the data couldn't be downloaded, even after retries
+	 */
+	public static void download(String hash, File target, Date lastModifiedDate, long size) throws Exception {
+		target.getParentFile().mkdirs(); // creates parent directories of file, if needed
+		boolean ranged = size >= Global.getConfig().getRangedDownloadThresholdBytes() && activeRangedDownloads.add(hash);
+		try {
+			int retries = 0;
+			while (true) {
+				try {
+					if (ranged) {
+						downloadRanged(hash, target, lastModifiedDate);
+					} else {
+						downloadOnce(hash, target, lastModifiedDate);
+					}
+					return;
+				} catch (Exception ex) {
+					// retry service calls and interrupted transfers (a ranged download continues where it stopped)
+					if ((ex instanceof ServiceException || ex instanceof IOException)
+							&& retries++ < Global.getConfig().getServiceCallRetries()) {
+						continue;
+					}
+					throw ex;
+				}
+			}
+		} finally {
+			if (ranged) {
+				activeRangedDownloads.remove(hash);
+			}
+		}
+	}
+
+	private static void downloadOnce(String hash, File target, Date lastModifiedDate) throws Exception {
+		S3Object object = Global.getS3().getObject(Global.getConfig().getHashDataMapBucket(), hash);
+		if (ChunkedStorage.isManifest(object)) {
+			ChunkedStorage.download(hash, decodingStream(object, object.getDataInputStream()), target, lastModifiedDate);
+			return;
+		}
+		if (DeltaStorage.isDelta(object)) {
+			DeltaStorage.download(hash, object, target, lastModifiedDate);
+			return;
+		}
+		decodeIntoPlace(object.getDataInputStream(), object, hash, target, lastModifiedDate);
+	}
+
+	private static void downloadRanged(final String hash, File target, Date lastModifiedDate) throws Exception {
+		final RestS3Service s3 = Global.getS3();
+		S3Object details = s3.getObjectDetails(Global.getConfig().getHashDataMapBucket(), hash);
+		if (ChunkedStorage.isManifest(details) || DeltaStorage.isDelta(details)) {
+			// stored as chunks or as a delta, so what there is to fetch under the hash is (much) smaller than the file
+			downloadOnce(hash, target, lastModifiedDate);
+			return;
+		}
+		long length = details.getContentLength();
+		List<Part> segments = BlobUploader.planParts(length, Global.getConfig().getDownloadSegmentBytes());
+		long segmentSize = segments.get(0).length;
+		File partFile = new File(target.getParentFile(), FileUtil.TEMP_FILE_PREFIX + hash + ".part");
+		Dao<PendingDownload, String> downloadDao = Global.getPendingDownloadDAO();
+		final Dao<DownloadedSegment, Integer> segmentDao = Global.getDownloadedSegmentDAO();
+
+		// pick up where an earlier attempt stopped, as long as it was downloading the same thing to the same place
+		PendingDownload pending = downloadDao.queryForId(hash);
+		if (pending != null && (pending.getLength() != length || pending.getSegmentSize() != segmentSize
+				|| !partFile.getPath().equals(pending.getPartFilePath()) || partFile.length() != length)) {
+			forgetDownload(hash);
+			pending = null;
+		}
+		Set<Integer> finishedSegments = new HashSet<Integer>();
+		if (pending == null) {
+			RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+			try {
+				file.setLength(length); // sparse on most file systems, so this costs no time
+			} finally {
+				file.close();
+			}
+			downloadDao.create(new PendingDownload(hash, length, segmentSize, partFile.getPath()));
+		} else {
+			for (DownloadedSegment segment : segmentDao.queryForEq("hash", hash)) {
+				finishedSegments.add(segment.getSegmentNumber());
+			}
+			Global.getLogger().writeDebugLine("Resuming download of " + hash + ", " + finishedSegments.size() + " of " + segments.size() + " segments already done");
+		}
+
+		// fetch the missing segments in parallel, recording each one once it's safely on disk
+		final FileChannel channel = new RandomAccessFile(partFile, "rw").getChannel();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Global.getConfig().getDownloadThreads()));
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (final Part segment : segments) {
+				if (finishedSegments.contains(segment.number)) continue;
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						downloadSegment(s3, hash, channel, segment);
+						channel.force(false);
+						segmentDao.create(new DownloadedSegment(hash, segment.number));
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} catch (ExecutionException ex) {
+			throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+		} finally {
+			executor.shutdownNow();
+			channel.close();
+		}
+
+		try {
+			decodeIntoPlace(new FileInputStream(partFile), details, hash, target, lastModifiedDate);
+		} catch (IOException ex) {
+			// the segments on disk are no good (or can't be read), so the next attempt starts from scratch
+			forgetDownload(hash);
+			partFile.delete();
+			throw ex;
+		}
+		forgetDownload(hash);
+		partFile.delete();
+	}
+
+	private static void downloadSegment(RestS3Service s3, String hash, FileChannel channel, Part segment) throws Exception {
+		int retries = 0;
+		while (true) {
+			InputStream in = null;
+			try {
+				S3Object object = s3.getObject(Global.getConfig().getHashDataMapBucket(), hash,
+						null, null, null, null, segment.offset, segment.offset + segment.length - 1);
+				in = object.getDataInputStream();
+				byte[] buffer = new byte[BUFFER_SIZE];
+				long position = segment.offset;
+				int len;
+				while ((len = in.read(buffer)) >= 0) {
+					ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, len);
+					while (bytes.hasRemaining()) {
+						position += channel.write(bytes, position);
+					}
+				}
+				if (position != segment.offset + segment.length) {
+					throw new IOException("Segment " + segment.number + " of " + hash + " ended after " + (position - segment.offset) + " bytes");
+				}
+				return;
+			} catch (Exception ex) {
+				// retry service calls and interrupted transfers of just this segment
+				if (!(ex instanceof ServiceException || ex instanceof IOException)
+						|| retries++ >= Global.getConfig().getServiceCallRetries()) {
+					throw ex;
+				}
+			} finally {
+				if (in != null) in.close();
+			}
+		}
+	}
+
+	// remove everything the local DB knows about a ranged download
+	private static void forgetDownload(String hash) throws Exception {
+		DeleteBuilder<DownloadedSegment, Integer> deleteBuilder = Global.getDownloadedSegmentDAO().deleteBuilder();
+		deleteBuilder.where().eq("hash", hash);
+		Global.getDownloadedSegmentDAO().delete(deleteBuilder.prepare());
+		Global.getPendingDownloadDAO().deleteById(hash);
+	}
+
+	/**
+	 * Verify, decrypt and decompress the stored data into a temp file, then move it into place.
+	 * @param encrypted the data as stored in the bucket
+	 * @param details the object (or its details), for its metadata
+	 * @throws IOException if the data doesn't hash to the key it was stored under: the stored data if the key is its MD5,
+	 *         the decrypted file if the key is a content hash
+	 */
+	private static void decodeIntoPlace(InputStream encrypted, StorageObject details, String hash, File target, Date lastModifiedDate) throws Exception {
+		File tempFile = File.createTempFile(FileUtil.TEMP_FILE_PREFIX, ".tmp", target.getParentFile());
+		try {
+			boolean contentKeyed = HashUtil.isContentHash(hash);
+			MessageDigest digest = MessageDigest.getInstance(contentKeyed ? "SHA-256" : "MD5");
+			InputStream raw = null;
+			InputStream in = null;
+			OutputStream out = null;
+			try {
+				raw = new BufferedInputStream(encrypted, BUFFER_SIZE);
+				if (!contentKeyed) {
+					raw = new DigestInputStream(raw, digest);
+				}
+				in = decodingStream(details, raw);
+				out = new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE);
+				if (contentKeyed) {
+					out = new DigestOutputStream(out, digest);
+				}
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int len;
+				while ((len = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, len);
+				}
+				// make sure every byte went through the digest, even if decoding finished early
+				while (raw.read(buffer) >= 0) {
+					; // keep reading
+				}
+			} finally {
+				if (in != null) in.close();
+				else if (raw != null) raw.close();
+				else encrypted.close();
+				if (out != null) out.close();
+			}
+
+			// the data's key is the MD5 of what was uploaded (or the SHA-256 of the file), so what we received must hash to it
+			String receivedHash = ServiceUtils.toHex(digest.digest());
+			if (!receivedHash.equalsIgnoreCase(hash)) {
+				throw new IOException("Downloaded data for " + hash + " has " + digest.getAlgorithm() + " " + receivedHash);
+			}
+
+			moveIntoPlace(tempFile, target, lastModifiedDate);
+		} finally {
+			// only still there if something went wrong
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Give a finished temp file its last modified date and rename it to the target, replacing any existing file.
+	 */
+	static void moveIntoPlace(File tempFile, File target, Date lastModifiedDate) throws IOException {
+		tempFile.setLastModified(lastModifiedDate.getTime());
+		try {
+			Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Wrap the raw data stream with whatever is needed to undo the encryption and compression
+	 * described by the object's metadata: a chunked blob (see ChunkedCipher) or whatever JetS3t did.
+	 */
+	static InputStream decodingStream(StorageObject object, InputStream in) throws Exception {
+		Object format = object.getMetadata(ChunkedCipher.METADATA_FORMAT);
+		if (format != null) {
+			if (!ChunkedCipher.FORMAT_NAME.equals(format.toString())) {
+				throw new IllegalStateException("Data is in a blob format this MiBox doesn't know: " + format);
+			}
+			return ChunkedCipher.get().decrypt(in);
+		}
+		Object algorithm = object.getMetadata(Constants.METADATA_JETS3T_CRYPTO_ALGORITHM);
+		if (algorithm != null) {
+			Object version = object.getMetadata(Constants.METADATA_JETS3T_CRYPTO_VERSION);
+			in = CryptoContext.get(algorithm.toString(), version != null ? version.toString() : EncryptionUtil.DEFAULT_VERSION).decrypt(in);
+		}
+		Object compression = object.getMetadata(Constants.METADATA_JETS3T_COMPRESSED);
+		if (compression != null && "gzip".equalsIgnoreCase(compression.toString())) {
+			in = new GZIPInputStream(in, BUFFER_SIZE);
+		}
+		return in;
+	}
+}
@@ -0,0 +1,286 @@
+package com.robwilliams.mibox.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.stmt.DeleteBuilder;
+import com.robwilliams.mibox.Global;
+import com.robwilliams.mibox.dataObjects.PendingUpload;
+import com.robwilliams.mibox.dataObjects.UploadedPart;
+
+/**
+ * Uploads file data to the HashDataMap bucket. Objects smaller than multipartThresholdBytes go up
+ * with a single putObject, as before. Larger ones use an S3 multipart upload: the encrypted temp file
+ * is cut into parts which are uploaded on uploadThreads threads at the same time.
+ * <br><br>
+ * The upload ID and the ETag of every finished part are kept in the local DB (see PendingUpload and
+ * UploadedPart), so when a sync is interrupted the next one only uploads the parts that are missing.
+ * The same key doesn't always mean the same bytes: a content hash (see HashUtil) is stored differently depending on
+ * blobFormat, blobChunkBytes, and whether the file went up whole, as chunks or as a delta. So an upload is only
+ * resumed if the length and MD5 of the encrypted data are still the same as when it was started.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class BlobUploader {
+
+	// S3 rejects parts smaller than this (except the last one), and uploads with more parts than MAX_PARTS
+	public static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+	public static final int MAX_PARTS = 10000;
+
+	/**
+	 * A byte range of the upload file, uploaded as one part.
+	 */
+	public static class Part {
+		public final int number; // S3 part numbers start at 1
+		public final long offset;
+		public final long length;
+
+		public Part(int number, long offset, long length) {
+			this.number = number;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Upload an object created by S3Util.createObjectForUpload... to the HashDataMap bucket.
+	 * @param object the object to upload, whose data is in its data input file
+	 * @throws Exception if the upload failed. Finished parts of a multipart upload are kept for the next attempt.
+	 */
+	public static void upload(S3Object object) throws Exception {
+		RestS3Service s3 = Global.getS3();
+		String bucketName = Global.getConfig().getHashDataMapBucket();
+		File dataFile = object.getDataInputFile();
+		if (dataFile == null || dataFile.length() < Global.getConfig().getMultipartThresholdBytes()) {
+			s3.putObject(bucketName, object);
+			return;
+		}
+
+		try {
+			uploadMultipart(s3, bucketName, object, dataFile);
+		} catch (ServiceException ex) {
+			if (!"NoSuchUpload".equals(ex.getErrorCode())) {
+				throw ex;
+			}
+			// the upload we were resuming is gone (S3 expired it, or someone aborted it), so start over
+			Global.getLogger().writeWarningLine("Multipart upload of " + object.getKey() + " no longer exists, restarting it");
+			forgetUpload(object.getKey());
+			uploadMultipart(s3, bucketName, object, dataFile);
+		}
+	}
+
+	/**
+	 * Abort the multipart upload to the HashDataMap bucket that an earlier sync started for a key, if there is one
+	 * and its data is shorter than maxLength, and forget about it.
+	 * @param key
+	 * @param maxLength only uploads of fewer bytes than this are aborted
+	 * @throws Exception if the local DB couldn't be read or updated
+	 */
+	public static void abandon(String key, long maxLength) throws Exception {
+		PendingUpload pending = Global.getPendingUploadDAO().queryForId(key);
+		if (pending == null || pending.getLength() >= maxLength) return;
+		abortQuietly(Global.getS3(), new MultipartUpload(pending.getUploadId(), Global.getConfig().getHashDataMapBucket(), key));
+		forgetUpload(key);
+	}
+
+	/**
+	 * Cut a file into parts of (about) partSize bytes. If that would make more than MAX_PARTS parts,
+	 * the parts are made bigger instead.
+	 * @param length size of the file
+	 * @param partSize wanted size of each part
+	 * @return parts covering the whole file, in order
+	 */
+	public static List<Part> planParts(long length, long partSize) {
+		partSize = Math.max(partSize, MIN_PART_SIZE);
+		if ((length + partSize - 1) / partSize > MAX_PARTS) {
+			partSize = (length + MAX_PARTS - 1) / MAX_PARTS;
+		}
+		List<Part> parts = new ArrayList<Part>();
+		long offset = 0;
+		int number = 1;
+		do {
+			long partLength = Math.min(partSize, length - offset);
+			parts.add(new Part(number++, offset, partLength));
+			offset += partLength;
+		} while (offset < length);
+		return parts;
+	}
+
+	private static void uploadMultipart(final RestS3Service s3, String bucketName, S3Object object, final File dataFile) throws Exception {
+		final String key = object.getKey();
+		long length = dataFile.length();
+		String md5 = object.getMd5HashAsHex();
+		List<Part> parts = planParts(length, Global.getConfig().getMultipartPartSizeBytes());
+		long partSize = parts.get(0).length;
+		Dao<PendingUpload, String> uploadDao = Global.getPendingUploadDAO();
+		final Dao<UploadedPart, Integer> partDao = Global.getUploadedPartDAO();
+
+		// resume the upload started by an earlier sync, if there is one
+		PendingUpload pending = uploadDao.queryForId(key);
+		if (pending != null && (pending.getPartSize() != partSize || pending.getLength() != length
+				|| md5 == null || !md5.equalsIgnoreCase(pending.getMd5()))) {
+			// the part size setting changed since then, so the finished parts don't line up anymore,
+			// or different data is being uploaded under the same key (e.g. blobFormat changed)
+			abortQuietly(s3, new MultipartUpload(pending.getUploadId(), bucketName, key));
+			forgetUpload(key);
+			pending = null;
+		}
+		final MultipartUpload upload;
+		Set<Integer> finishedParts = new HashSet<Integer>();
+		if (pending == null) {
+			// the object's metadata (encryption details etc.) is sent when the upload starts
+			upload = s3.multipartStartUpload(bucketName, object);
+			uploadDao.create(new PendingUpload(key, upload.getUploadId(), partSize, length, md5, new Date()));
+		} else {
+			upload = new MultipartUpload(pending.getUploadId(), bucketName, key);
+			for (UploadedPart part : partDao.queryForEq("hash", key)) {
+				finishedParts.add(part.getPartNumber());
+			}
+			Global.getLogger().writeDebugLine("Resuming upload of " + key + ", " + finishedParts.size() + " of " + parts.size() + " parts already done");
+		}
+
+		// upload the missing parts in parallel, recording each one as soon as it's done
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Global.getConfig().getUploadThreads()));
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (final Part part : parts) {
+				if (finishedParts.contains(part.number)) continue;
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						MultipartPart uploaded = uploadPart(s3, upload, dataFile, part);
+						partDao.create(new UploadedPart(key, part.number, uploaded.getEtag(), part.length));
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} catch (ExecutionException ex) {
+			throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// put the parts together
+		List<MultipartPart> uploadedParts = new ArrayList<MultipartPart>();
+		for (UploadedPart part : partDao.queryForEq("hash", key)) {
+			uploadedParts.add(new MultipartPart(part.getPartNumber(), null, part.getEtag(), part.getSize()));
+		}
+		Collections.sort(uploadedParts, new Comparator<MultipartPart>() {
+			public int compare(MultipartPart part1, MultipartPart part2) {
+				return part1.getPartNumber().compareTo(part2.getPartNumber());
+			}
+		});
+		s3.multipartCompleteUpload(upload, uploadedParts);
+		forgetUpload(key);
+	}
+
+	private static MultipartPart uploadPart(RestS3Service s3, MultipartUpload upload, File dataFile, Part part) throws Exception {
+		int retries = 0;
+		while (true) {
+			S3Object partObject = new S3Object(upload.getObjectKey());
+			try {
+				partObject.setDataInputStream(openRange(dataFile, part.offset, part.length));
+				partObject.setContentLength(part.length);
+				return s3.multipartUploadPart(upload, part.number, partObject);
+			} catch (ServiceException ex) {
+				// retry service calls, but not a vanished upload since no retry will bring it back
+				if ("NoSuchUpload".equals(ex.getErrorCode()) || retries++ >= Global.getConfig().getServiceCallRetries()) {
+					throw ex;
+				}
+			} finally {
+				partObject.closeDataInputStream();
+			}
+		}
+	}
+
+	// remove everything the local DB knows about an upload
+	private static void forgetUpload(String key) throws Exception {
+		DeleteBuilder<UploadedPart, Integer> deleteBuilder = Global.getUploadedPartDAO().deleteBuilder();
+		deleteBuilder.where().eq("hash", key);
+		Global.getUploadedPartDAO().delete(deleteBuilder.prepare());
+		Global.getPendingUploadDAO().deleteById(key);
+	}
+
+	private static void abortQuietly(RestS3Service s3, MultipartUpload upload) {
+		try {
+			s3.multipartAbortUpload(upload);
+		} catch (Exception ex) {
+			; // it may already be gone, and S3 cleans up abandoned parts eventually anyway
+		}
+	}
+
+	private static InputStream openRange(File file, long offset, long length) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		in.getChannel().position(offset);
+		return new RangeInputStream(new BufferedInputStream(in, 64 * 1024), length);
+	}
+
+	// reads at most "remaining" bytes from the underlying stream
+	private static class RangeInputStream extends FilterInputStream {
+		private long remaining;
+
+		RangeInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) return -1;
+			int b = super.read();
+			if (b >= 0) remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (remaining <= 0) return -1;
+			int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+			if (read > 0) remaining -= read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
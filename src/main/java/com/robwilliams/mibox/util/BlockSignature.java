@@ -0,0 +1,231 @@
+package com.robwilliams.mibox.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The rsync checksums of a file's blocks: a weak checksum that can be rolled along a file one byte at a time, and a
+ * strong one (MD5) to confirm a block whose weak checksum matches. BinaryDelta uses them to find the blocks of the
+ * last synced version of a file in the new version, without needing the last synced version itself.
+ * <br><br>
+ * Only whole blocks are included, so the end of a file that isn't a multiple of the block size is never matched.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class BlockSignature {
+
+	public static final int MIN_BLOCK_BYTES = 2048;
+	public static final int MAX_BLOCK_BYTES = 128 * 1024;
+	public static final int STRONG_BYTES = 16;
+
+	private final int blockBytes;
+	private final int[] weak;
+	private final byte[] strong;
+	// open hash table from weak checksum to block: the first block of each bucket, then the next one with the same bucket
+	private final int[] buckets;
+	private final int[] next;
+	private final int shift;
+
+	private BlockSignature(int blockBytes, int[] weak, byte[] strong) {
+		this.blockBytes = blockBytes;
+		this.weak = weak;
+		this.strong = strong;
+		int bits = Math.max(4, 33 - Integer.numberOfLeadingZeros(Math.max(1, weak.length)));
+		this.shift = 32 - bits;
+		this.buckets = new int[1 << bits];
+		Arrays.fill(buckets, -1);
+		this.next = new int[weak.length];
+		// backwards, so each chain lists the earliest block first
+		for (int i = weak.length - 1; i >= 0; i--) {
+			int bucket = bucket(weak[i]);
+			next[i] = buckets[bucket];
+			buckets[bucket] = i;
+		}
+	}
+
+	/**
+	 * About the square root of the file's length, like rsync, so that bigger files have fewer checksums to send
+	 * but small changes still only cost a small block.
+	 * @param length length of the file
+	 * @return a power of two between MIN_BLOCK_BYTES and MAX_BLOCK_BYTES
+	 */
+	public static int blockBytesFor(long length) {
+		int root = (int) Math.min(MAX_BLOCK_BYTES, (long) Math.sqrt((double) length));
+		return Math.max(MIN_BLOCK_BYTES, Integer.highestOneBit(Math.max(1, root)));
+	}
+
+	public int getBlockBytes() {
+		return blockBytes;
+	}
+
+	public int getBlockCount() {
+		return weak.length;
+	}
+
+	/**
+	 * @param a sum of the bytes (low 16 bits)
+	 * @param b sum of the bytes weighted by their distance from the end of the block (low 16 bits)
+	 * @return the weak checksum made from the two sums
+	 */
+	public static int weak(int a, int b) {
+		return (a & 0xffff) | (b << 16);
+	}
+
+	/**
+	 * Find a block with the given checksums.
+	 * @param weakChecksum weak checksum of data[off..off + blockBytes)
+	 * @param md5 used for the strong checksum, only if the weak checksum matches a block
+	 * @return the number of the first block that matches, or -1
+	 */
+	public int find(int weakChecksum, byte[] data, int off, MessageDigest md5) {
+		int block = buckets[bucket(weakChecksum)];
+		byte[] digest = null;
+		for (; block >= 0; block = next[block]) {
+			if (weak[block] != weakChecksum) continue;
+			if (digest == null) {
+				md5.update(data, off, blockBytes);
+				digest = md5.digest();
+			}
+			if (equalsStrong(block, digest)) {
+				return block;
+			}
+		}
+		return -1;
+	}
+
+	private boolean equalsStrong(int block, byte[] digest) {
+		int base = block * STRONG_BYTES;
+		for (int i = 0; i < STRONG_BYTES; i++) {
+			if (strong[base + i] != digest[i]) return false;
+		}
+		return true;
+	}
+
+	private int bucket(int weakChecksum) {
+		return (weakChecksum * 0x9E3779B1) >>> shift;
+	}
+
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + weak.length * (4 + STRONG_BYTES));
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(blockBytes);
+			out.writeInt(weak.length);
+			for (int checksum : weak) {
+				out.writeInt(checksum);
+			}
+			out.write(strong);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex); // can't happen when writing to memory
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param bytes a signature written by toBytes()
+	 * @throws IOException if it's damaged
+	 */
+	public static BlockSignature fromBytes(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		int blockBytes = in.readInt();
+		int count = in.readInt();
+		if (blockBytes <= 0 || count < 0 || bytes.length != 8 + (long) count * (4 + STRONG_BYTES)) {
+			throw new IOException("Block signature is damaged");
+		}
+		int[] weak = new int[count];
+		for (int i = 0; i < count; i++) {
+			weak[i] = in.readInt();
+		}
+		byte[] strong = new byte[count * STRONG_BYTES];
+		in.readFully(strong);
+		return new BlockSignature(blockBytes, weak, strong);
+	}
+
+	/**
+	 * Read a whole file and make its signature.
+	 * @param in the file, read to the end but not closed
+	 * @param blockBytes see blockBytesFor()
+	 */
+	public static BlockSignature of(InputStream in, int blockBytes) throws IOException {
+		Builder builder = new Builder(blockBytes);
+		byte[] buffer = new byte[64 * 1024];
+		int len;
+		while ((len = in.read(buffer)) >= 0) {
+			builder.update(buffer, 0, len);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Makes a signature from a file handed over a buffer at a time, so it can be made while the file is read for
+	 * something else.
+	 */
+	public static class Builder {
+		private final int blockBytes;
+		private final byte[] block;
+		private int filled = 0;
+		private int[] weak = new int[64];
+		private ByteArrayOutputStream strong = new ByteArrayOutputStream();
+		private int count = 0;
+		private final MessageDigest md5;
+
+		public Builder(int blockBytes) {
+			this.blockBytes = blockBytes;
+			this.block = new byte[blockBytes];
+			try {
+				this.md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+
+		public void update(byte[] data, int off, int len) {
+			while (len > 0) {
+				if (filled == 0 && len >= blockBytes) {
+					// a whole block, straight from the caller's buffer
+					add(data, off);
+					off += blockBytes;
+					len -= blockBytes;
+					continue;
+				}
+				int copied = Math.min(len, blockBytes - filled);
+				System.arraycopy(data, off, block, filled, copied);
+				filled += copied;
+				off += copied;
+				len -= copied;
+				if (filled == blockBytes) {
+					add(block, 0);
+					filled = 0;
+				}
+			}
+		}
+
+		private void add(byte[] data, int off) {
+			int a = 0;
+			int b = 0;
+			for (int i = 0; i < blockBytes; i++) {
+				int x = data[off + i] & 0xff;
+				a += x;
+				b += (blockBytes - i) * x;
+			}
+			if (count == weak.length) {
+				weak = Arrays.copyOf(weak, count * 2);
+			}
+			weak[count++] = weak(a, b);
+			md5.update(data, off, blockBytes);
+			strong.write(md5.digest(), 0, STRONG_BYTES);
+		}
+
+		public BlockSignature build() {
+			return new BlockSignature(blockBytes, Arrays.copyOf(weak, count), strong.toByteArray());
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.robwilliams.mibox.util;
+
+import java.util.BitSet;
+
+/**
+ * A plain Bloom filter over strings. mightContain(...) never returns false for a string that was added,
+ * and returns true for a string that wasn't added with a probability of about 1% while no more than
+ * expectedInsertions strings have been added. Past that the false positive rate slowly climbs.
+ * <br><br>
+ * Not thread-safe, callers must synchronize.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class BloomFilter {
+
+	// ~1% false positives needs about 9.6 bits per entry and 7 hash functions
+	private static final int BITS_PER_ENTRY = 10;
+	private static final int HASH_FUNCTIONS = 7;
+
+	private final BitSet bits;
+	private final int size;
+
+	public BloomFilter(int expectedInsertions) {
+		long bitCount = Math.max(64L, (long) expectedInsertions * BITS_PER_ENTRY);
+		this.size = (int) Math.min(bitCount, Integer.MAX_VALUE);
+		this.bits = new BitSet(size);
+	}
+
+	public void put(String value) {
+		int hash1 = value.hashCode();
+		int hash2 = secondHash(value);
+		for (int i = 0; i < HASH_FUNCTIONS; i++) {
+			bits.set(index(hash1 + i * hash2));
+		}
+	}
+
+	public boolean mightContain(String value) {
+		int hash1 = value.hashCode();
+		int hash2 = secondHash(value);
+		for (int i = 0; i < HASH_FUNCTIONS; i++) {
+			if (!bits.get(index(hash1 + i * hash2))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int index(int combinedHash) {
+		return (combinedHash & Integer.MAX_VALUE) % size;
+	}
+
+	// FNV-1a, which is independent enough of String.hashCode() for double hashing
+	private static int secondHash(String value) {
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x01000193;
+		}
+		return hash | 1; // odd, so the probes never all land on the same bit
+	}
+}
@@ -0,0 +1,119 @@
+package com.robwilliams.mibox.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.robwilliams.mibox.util.ContentChunker.Chunk;
+
+/**
+ * The list of chunks a file stored by ChunkedStorage is made of. It is stored (encrypted, like any other data) under
+ * the file's content hash, and looks like this:
+ * <pre>
+ * "MBXM" | version (1 byte) | file length (8 bytes) | chunk count (4 bytes) | per chunk: SHA-256 (32 bytes), length (4 bytes)
+ * </pre>
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class ChunkManifest {
+
+	/** metadata on the stored manifest, so downloads know to fetch the chunks it lists */
+	public static final String METADATA_MANIFEST = "mibox-chunk-manifest";
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = { 'M', 'B', 'X', 'M' };
+	private static final int HASH_BYTES = 32;
+
+	private final long length;
+	private final List<Chunk> chunks;
+
+	/**
+	 * @param chunks the file's chunks, in order and without gaps
+	 */
+	public ChunkManifest(List<Chunk> chunks) {
+		long length = 0;
+		for (Chunk chunk : chunks) {
+			if (chunk.offset != length) {
+				throw new IllegalArgumentException("Chunk at " + chunk.offset + " should be at " + length);
+			}
+			length += chunk.length;
+		}
+		this.length = length;
+		this.chunks = Collections.unmodifiableList(new ArrayList<Chunk>(chunks));
+	}
+
+	/**
+	 * @return length of the whole file
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public List<Chunk> getChunks() {
+		return chunks;
+	}
+
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAGIC.length + 13 + chunks.size() * (HASH_BYTES + 4));
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(length);
+			out.writeInt(chunks.size());
+			for (Chunk chunk : chunks) {
+				out.write(HashUtil.fromHex(chunk.hash));
+				out.writeInt(chunk.length);
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex); // can't happen when writing to memory
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param in a manifest written by toBytes(), which is read to its end but not closed
+	 * @throws IOException if it isn't a manifest, or is damaged
+	 */
+	public static ChunkManifest read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		byte[] magic = new byte[MAGIC.length];
+		data.readFully(magic);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (magic[i] != MAGIC[i]) {
+				throw new IOException("Not a chunk manifest");
+			}
+		}
+		int version = data.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("Chunk manifest version " + version + " is not known to this MiBox");
+		}
+		long length = data.readLong();
+		int count = data.readInt();
+		if (count < 0) {
+			throw new IOException("Chunk manifest has " + count + " chunks");
+		}
+		List<Chunk> chunks = new ArrayList<Chunk>(Math.min(count, 1 << 16));
+		long offset = 0;
+		byte[] hash = new byte[HASH_BYTES];
+		for (int i = 0; i < count; i++) {
+			data.readFully(hash);
+			int chunkLength = data.readInt();
+			if (chunkLength <= 0) {
+				throw new IOException("Chunk " + i + " of manifest is " + chunkLength + " bytes long");
+			}
+			chunks.add(new Chunk(offset, chunkLength, HashUtil.toHex(hash)));
+			offset += chunkLength;
+		}
+		if (offset != length || data.read() >= 0) {
+			throw new IOException("Chunk manifest is damaged");
+		}
+		return new ChunkManifest(chunks);
+	}
+}
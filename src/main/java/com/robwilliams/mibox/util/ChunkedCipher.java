@@ -0,0 +1,443 @@
+package com.robwilliams.mibox.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.robwilliams.mibox.Global;
+
+/**
+ * Encrypts file data as a series of chunks that are each sealed with AES-GCM, so that several threads can work on
+ * one file and any part of it can be decrypted without the rest. This is the "chunked" blobFormat, next to
+ * JetS3t's single AES-CBC stream (see CryptoContext), which is still what uploads use by default.
+ * <br><br>
+ * A blob is a header followed by the chunks:
+ * <pre>
+ * "MBXC", format version (1 byte), chunk size (int), length of the original data (long), wrapped data key (40 bytes)
+ * chunk 0: up to chunk size bytes of ciphertext, then a 16 byte tag
+ * chunk 1: ...
+ * </pre>
+ * Every chunk but the last holds exactly chunk size bytes of data, and empty files have one empty chunk. Chunk i is
+ * sealed with nonce i and the whole header as associated data, so chunks can't be moved, dropped or put in another blob
+ * without decryption failing.
+ * <br><br>
+ * Each file has its own AES-256 data key, derived from a digest of its content, the format version and the chunk size.
+ * The same file therefore always encrypts to the same bytes (and the same hash in the HashDataMap bucket) with the same
+ * settings, which the old format did too and which lets boxes share uploads of the same file. Since chunk i of a key
+ * always holds the same bytes of the same data, a nonce is only ever used twice with a key to seal the same data
+ * (the chunk size is part of the key so that boxes with different blobChunkBytes don't break that). The data key is stored
+ * in the header, wrapped (RFC 3394) with a key-encryption key. That key, and the one data keys are derived with, come
+ * from the encryptionKey setting through PBKDF2, once per process.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class ChunkedCipher {
+
+	/**
+	 * Metadata item that marks a blob in this format, so downloads know how to decrypt it.
+	 */
+	public static final String METADATA_FORMAT = "mibox-blob-format";
+	public static final String FORMAT_NAME = "chunked";
+
+	public static final int VERSION = 1;
+	public static final int TAG_BYTES = 16;
+	public static final int WRAPPED_KEY_BYTES = 40;
+	public static final int HEADER_BYTES = 4 + 1 + 4 + 8 + WRAPPED_KEY_BYTES;
+	public static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+
+	private static final byte[] MAGIC = { 'M', 'B', 'X', 'C' };
+	// fixed, like JetS3t's, because every box using the same encryptionKey has to derive the same keys
+	private static final byte[] SALT = "MiBox chunked blobs".getBytes(StandardCharsets.US_ASCII);
+	private static final int ITERATIONS = 100000;
+	private static final byte[] EMPTY = new byte[0];
+
+	private static ChunkedCipher configured = null;
+
+	private final ExecutorService workers;
+	private final int window;
+	private final SecretKey keyEncryptionKey;
+	private final SecretKey derivationKey;
+	private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+
+	/**
+	 * @return the ChunkedCipher for the configured encryption key, working on cryptoThreads threads
+	 */
+	public static synchronized ChunkedCipher get() throws GeneralSecurityException {
+		if (configured == null) {
+			int threads = Math.max(1, Global.getConfig().getCryptoThreads());
+			final AtomicInteger count = new AtomicInteger();
+			ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Crypto " + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			configured = new ChunkedCipher(Global.getConfig().getEncryptionKey(), workers, threads);
+		}
+		return configured;
+	}
+
+	/**
+	 * Derives the keys, which is slow on purpose, so keep the instance around.
+	 * @param encryptionKey password the keys are derived from
+	 * @param workers where chunks are encrypted and decrypted
+	 * @param threads how many threads workers has, so there's always enough work queued for them
+	 */
+	public ChunkedCipher(String encryptionKey, ExecutorService workers, int threads) throws GeneralSecurityException {
+		this.workers = workers;
+		this.window = 2 * Math.max(1, threads);
+		SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+		byte[] keys = factory.generateSecret(new PBEKeySpec(encryptionKey.toCharArray(), SALT, ITERATIONS, 512)).getEncoded();
+		this.keyEncryptionKey = new SecretKeySpec(keys, 0, 32, "AES");
+		this.derivationKey = new SecretKeySpec(keys, 32, 32, "HmacSHA256");
+	}
+
+	/**
+	 * @param length length of the original data
+	 * @param chunkSize
+	 * @return how long the blob of that data is
+	 */
+	public static long sealedLength(long length, int chunkSize) {
+		return HEADER_BYTES + length + chunkCount(length, chunkSize) * TAG_BYTES;
+	}
+
+	/**
+	 * Encrypt data into a blob, chunks at a time on the worker threads.
+	 * @param plain the data, which is closed along with the returned stream
+	 * @param length how long the data is. The blob fails to read to the end if it turns out to be different.
+	 * @param contentDigest digest of the data (SHA-256), which the file's data key is derived from
+	 * @param chunkSize how much data goes in each chunk
+	 * @return the blob, read from a stream so it can be written or hashed on the way
+	 */
+	public InputStream encrypt(InputStream plain, final long length, byte[] contentDigest, int chunkSize) throws GeneralSecurityException {
+		if (chunkSize <= 0 || chunkSize > MAX_CHUNK_BYTES) {
+			throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_BYTES + " bytes: " + chunkSize);
+		}
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(derivationKey);
+		mac.update(contentDigest);
+		mac.update(ByteBuffer.allocate(5).put((byte) VERSION).putInt(chunkSize).array());
+		final SecretKey dataKey = new SecretKeySpec(mac.doFinal(), "AES");
+		Cipher wrapper = Cipher.getInstance("AESWrap");
+		wrapper.init(Cipher.WRAP_MODE, keyEncryptionKey);
+		final Header header = new Header(chunkSize, length, wrapper.wrap(dataKey));
+		return new ChunkStream(plain, header, 0) {
+			protected byte[] transform(long index, byte[] chunk) throws GeneralSecurityException {
+				return seal(dataKey, header, index, chunk);
+			}
+		};
+	}
+
+	/**
+	 * Decrypt a whole blob, chunks at a time on the worker threads.
+	 * @param sealed the blob, which is closed along with the returned stream
+	 * @return the original data. Reading it throws an IOException if the blob has been tampered with, cut short
+	 *         or was encrypted with a different encryptionKey.
+	 */
+	public InputStream decrypt(InputStream sealed) throws IOException, GeneralSecurityException {
+		byte[] headerBytes = new byte[HEADER_BYTES];
+		new DataInputStream(sealed).readFully(headerBytes);
+		final Header header = Header.parse(headerBytes);
+		final SecretKey dataKey = unwrap(header);
+		return new ChunkStream(sealed, header, TAG_BYTES) {
+			protected byte[] transform(long index, byte[] chunk) throws GeneralSecurityException {
+				return open(dataKey, header, index, chunk);
+			}
+		};
+	}
+
+	/**
+	 * Decrypt part of a blob, only reading and decrypting the chunks that part is in.
+	 * @param sealed where the blob is
+	 * @param offset where the part starts in the original data
+	 * @param length how long the part is
+	 * @return the part of the original data
+	 * @throws IOException if the blob couldn't be read, or the chunks don't decrypt
+	 */
+	public byte[] decryptRange(final FileChannel sealed, long offset, int length) throws IOException, GeneralSecurityException {
+		ByteBuffer headerBytes = ByteBuffer.allocate(HEADER_BYTES);
+		readFully(sealed, headerBytes, 0);
+		final Header header = Header.parse(headerBytes.array());
+		if (offset < 0 || length < 0 || offset + length > header.length) {
+			throw new IllegalArgumentException("Range " + offset + "+" + length + " is outside of the " + header.length + " bytes in the blob");
+		}
+		if (length == 0) {
+			return EMPTY;
+		}
+		final SecretKey dataKey = unwrap(header);
+		long first = offset / header.chunkSize;
+		long last = (offset + length - 1) / header.chunkSize;
+		List<Future<byte[]>> chunks = new ArrayList<Future<byte[]>>();
+		for (long i = first; i <= last; i++) {
+			final long index = i;
+			chunks.add(workers.submit(new Callable<byte[]>() {
+				public byte[] call() throws Exception {
+					ByteBuffer chunk = ByteBuffer.allocate(header.plainChunkLength(index) + TAG_BYTES);
+					readFully(sealed, chunk, header.sealedOffset(index));
+					return open(dataKey, header, index, chunk.array());
+				}
+			}));
+		}
+		byte[] range = new byte[length];
+		int copied = 0;
+		for (int i = 0; i < chunks.size(); i++) {
+			byte[] chunk = result(chunks.get(i), first + i);
+			int from = i == 0 ? (int) (offset - first * header.chunkSize) : 0;
+			int count = Math.min(chunk.length - from, length - copied);
+			System.arraycopy(chunk, from, range, copied, count);
+			copied += count;
+		}
+		return range;
+	}
+
+	private SecretKey unwrap(Header header) throws IOException, GeneralSecurityException {
+		Cipher wrapper = Cipher.getInstance("AESWrap");
+		wrapper.init(Cipher.UNWRAP_MODE, keyEncryptionKey);
+		try {
+			return (SecretKey) wrapper.unwrap(header.wrappedKey, "AES", Cipher.SECRET_KEY);
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Blob's data key doesn't unwrap, it was encrypted with a different encryptionKey or is damaged", ex);
+		}
+	}
+
+	private byte[] seal(SecretKey dataKey, Header header, long index, byte[] chunk) throws GeneralSecurityException {
+		Cipher cipher = ciphers.get();
+		GCMParameterSpec nonce = nonce(index);
+		if (cipher != null) {
+			try {
+				cipher.init(Cipher.ENCRYPT_MODE, dataKey, nonce);
+			} catch (InvalidAlgorithmParameterException ex) {
+				// a Cipher refuses to seal with the key and nonce it last sealed with, which happens when the same
+				// file is encrypted twice in a row, so that takes a new one
+				cipher = null;
+			}
+		}
+		if (cipher == null) {
+			cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, dataKey, nonce);
+			ciphers.set(cipher);
+		}
+		cipher.updateAAD(header.bytes);
+		return cipher.doFinal(chunk);
+	}
+
+	private byte[] open(SecretKey dataKey, Header header, long index, byte[] chunk) throws GeneralSecurityException {
+		Cipher cipher = ciphers.get();
+		if (cipher == null) {
+			cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			ciphers.set(cipher);
+		}
+		cipher.init(Cipher.DECRYPT_MODE, dataKey, nonce(index));
+		cipher.updateAAD(header.bytes);
+		return cipher.doFinal(chunk);
+	}
+
+	private static GCMParameterSpec nonce(long index) {
+		return new GCMParameterSpec(TAG_BYTES * 8, ByteBuffer.allocate(12).putLong(4, index).array());
+	}
+
+	private static long chunkCount(long length, int chunkSize) {
+		return Math.max(1, (length + chunkSize - 1) / chunkSize);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new EOFException("Blob ends before chunk at " + position);
+			}
+		}
+	}
+
+	private static byte[] result(Future<byte[]> chunk, long index) throws IOException {
+		try {
+			return chunk.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for chunk " + index, ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof AEADBadTagException) {
+				throw new IOException("Chunk " + index + " of blob doesn't decrypt, it has been tampered with or is damaged", ex.getCause());
+			}
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			throw new IOException("Chunk " + index + " of blob failed", ex.getCause());
+		}
+	}
+
+	private static class Header {
+
+		final int chunkSize;
+		final long length;
+		final byte[] wrappedKey;
+		final byte[] bytes;
+
+		Header(int chunkSize, long length, byte[] wrappedKey) {
+			this.chunkSize = chunkSize;
+			this.length = length;
+			this.wrappedKey = wrappedKey;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES);
+			DataOutputStream out = new DataOutputStream(bytes);
+			try {
+				out.write(MAGIC);
+				out.writeByte(VERSION);
+				out.writeInt(chunkSize);
+				out.writeLong(length);
+				out.write(wrappedKey);
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex); // can't happen, it's all in memory
+			}
+			this.bytes = bytes.toByteArray();
+		}
+
+		static Header parse(byte[] bytes) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException("Not a chunked blob");
+			}
+			int version = in.readUnsignedByte();
+			if (version != VERSION) {
+				throw new IOException("Chunked blob is in format version " + version + ", this MiBox only reads " + VERSION);
+			}
+			int chunkSize = in.readInt();
+			long length = in.readLong();
+			if (chunkSize <= 0 || chunkSize > MAX_CHUNK_BYTES || length < 0) {
+				throw new IOException("Chunked blob has a damaged header");
+			}
+			byte[] wrappedKey = new byte[WRAPPED_KEY_BYTES];
+			in.readFully(wrappedKey);
+			return new Header(chunkSize, length, wrappedKey);
+		}
+
+		int plainChunkLength(long index) {
+			return (int) Math.min(chunkSize, length - index * chunkSize);
+		}
+
+		long sealedOffset(long index) {
+			return HEADER_BYTES + index * (chunkSize + TAG_BYTES);
+		}
+	}
+
+	// reads the input a chunk at a time, transforms several chunks at once on the workers and hands out the results in order
+	private abstract class ChunkStream extends InputStream {
+
+		private final InputStream in;
+		private final Header header;
+		private final int extraBytes; // how much longer each chunk of input is than the original data in it
+		private final long chunks;
+		private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+		private long read = 0; // chunks read from the input so far
+		private long done = 0; // chunks handed out so far
+		private byte[] current;
+		private int position = 0;
+
+		ChunkStream(InputStream in, Header header, int extraBytes) {
+			this.in = in;
+			this.header = header;
+			this.extraBytes = extraBytes;
+			this.chunks = chunkCount(header.length, header.chunkSize);
+			this.current = extraBytes == 0 ? header.bytes : EMPTY; // encrypting starts with the header
+		}
+
+		protected abstract byte[] transform(long index, byte[] chunk) throws Exception;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (position == current.length) {
+				if (!nextChunk()) {
+					return -1;
+				}
+			}
+			int count = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, count);
+			position += count;
+			return count;
+		}
+
+		private boolean nextChunk() throws IOException {
+			// keep the workers busy with the chunks after this one
+			while (read < chunks && pending.size() < window) {
+				final long index = read++;
+				final byte[] chunk = new byte[header.plainChunkLength(index) + extraBytes];
+				readChunk(chunk, index);
+				pending.add(workers.submit(new Callable<byte[]>() {
+					public byte[] call() throws Exception {
+						return transform(index, chunk);
+					}
+				}));
+			}
+			if (pending.isEmpty()) {
+				if (in.read() >= 0) {
+					throw new IOException("Data is longer than the " + header.length + " bytes the blob was meant to have");
+				}
+				return false;
+			}
+			current = result(pending.removeFirst(), done++);
+			position = 0;
+			return true;
+		}
+
+		private void readChunk(byte[] chunk, long index) throws IOException {
+			int filled = 0;
+			while (filled < chunk.length) {
+				int count = in.read(chunk, filled, chunk.length - filled);
+				if (count < 0) {
+					throw new EOFException("Data ended in chunk " + index + ", before the " + header.length + " bytes the blob was meant to have");
+				}
+				filled += count;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (Future<byte[]> chunk : pending) {
+				chunk.cancel(false);
+			}
+			pending.clear();
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package com.robwilliams.mibox.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.stmt.DeleteBuilder;
+import com.robwilliams.mibox.Global;
+import com.robwilliams.mibox.dataObjects.LocalChunk;
+import com.robwilliams.mibox.util.ContentChunker.Chunk;
+
+/**
+ * Stores files in the HashDataMap bucket as chunks (see ContentChunker) instead of one object per file. Each chunk
+ * is stored under "chunks/" plus its SHA-256, and a ChunkManifest listing them is stored under the file's content hash,
+ * so the rest of MiBox doesn't need to know the difference. The prefix keeps a file made of one chunk from having
+ * its chunk and its manifest under the same key.
+ * <br><br>
+ * Uploads skip chunks that are already in the bucket and upload the rest on uploadThreads threads, and downloads copy chunks that are already on this host (in
+ * the file being replaced, or any other file uploaded or downloaded as chunks, see LocalChunk) instead of fetching
+ * them. Chunks and manifests are encrypted like any other data, in the configured blobFormat.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class ChunkedStorage {
+
+	public static final String CHUNK_KEY_PREFIX = "chunks/";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static ContentChunker chunker = null;
+
+	public static synchronized ContentChunker getChunker() {
+		if (chunker == null) {
+			chunker = new ContentChunker(Global.getConfig().getStorageChunkBytes());
+		}
+		return chunker;
+	}
+
+	/**
+	 * @param hash the hash of a file about to be uploaded
+	 * @return true if the file should be stored as chunks: chunkedStorage is on and the hash is a content hash
+	 */
+	public static boolean isUsedFor(String hash) {
+		return Global.getConfig().isChunkedStorage() && HashUtil.isContentHash(hash);
+	}
+
+	/**
+	 * @param object an object from the HashDataMap bucket (or its details)
+	 * @return true if it's the manifest of a file stored as chunks
+	 */
+	public static boolean isManifest(StorageObject object) {
+		return object.getMetadata(ChunkManifest.METADATA_MANIFEST) != null;
+	}
+
+	public static String chunkKey(String chunkHash) {
+		return CHUNK_KEY_PREFIX + chunkHash;
+	}
+
+	/**
+	 * Upload a file as chunks, skipping the chunks the bucket already has, then its manifest. The manifest goes last,
+	 * so the file's hash only shows up in the bucket once everything needed to download it is there.
+	 * @param hash the file's content hash
+	 * @param file
+	 * @throws IOException if the file changed since it was hashed
+	 * @throws Exception if something couldn't be uploaded
+	 */
+	public static void upload(String hash, File file) throws Exception {
+		MessageDigest wholeDigest = MessageDigest.getInstance("SHA-256");
+		List<Chunk> chunks;
+		InputStream in = new FileInputStream(file);
+		try {
+			chunks = getChunker().split(in, wholeDigest);
+		} finally {
+			in.close();
+		}
+		if (!HashUtil.toHex(wholeDigest.digest()).equals(hash)) {
+			throw new IOException(file + " changed since it was hashed");
+		}
+
+		final RestS3Service s3 = Global.getS3();
+		final KnownHashCache knownHashes = Global.getKnownHashCache();
+		Set<String> done = new HashSet<String>();
+		final RandomAccessFile data = new RandomAccessFile(file, "r");
+		// check for and upload the missing chunks in parallel
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Global.getConfig().getUploadThreads()));
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (final Chunk chunk : chunks) {
+				final String key = chunkKey(chunk.hash);
+				if (!done.add(chunk.hash) || knownHashes.isKnown(key)) {
+					SyncStats.addChunkBytes(chunk.length, false);
+					continue;
+				}
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						try {
+							s3.getObjectDetails(Global.getConfig().getHashDataMapBucket(), key);
+							SyncStats.addChunkBytes(chunk.length, false);
+						} catch (Exception ex) {
+							// eat exception, it most likely means the chunk isn't there yet
+							byte[] chunkData;
+							synchronized (data) {
+								chunkData = readRange(data, chunk.offset, chunk.length);
+							}
+							upload(S3Util.createObjectForUpload(key, new ByteArrayInputStream(chunkData), chunk.length, chunk.hash));
+							SyncStats.addChunkBytes(chunk.length, true);
+						}
+						knownHashes.add(key);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} catch (ExecutionException ex) {
+			throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+		} finally {
+			executor.shutdownNow();
+			data.close();
+		}
+
+		byte[] manifest = new ChunkManifest(chunks).toBytes();
+		S3Object object = S3Util.createObjectForUpload(hash, new ByteArrayInputStream(manifest), manifest.length,
+				HashUtil.toHex(MessageDigest.getInstance("SHA-256").digest(manifest)));
+		object.addMetadata(ChunkManifest.METADATA_MANIFEST, Integer.toString(ChunkManifest.VERSION));
+		upload(object);
+		remember(file, chunks);
+	}
+
+	// upload, then throw away the encrypted temp file (there can be thousands of them per file)
+	private static void upload(S3Object object) throws Exception {
+		try {
+			BlobUploader.upload(object);
+		} finally {
+			object.getDataInputFile().delete();
+		}
+	}
+
+	/**
+	 * Download a file stored as chunks into a temp file next to the target, then move it into place. Chunks found on
+	 * this host are copied, the rest are fetched from the bucket. Every chunk is checked against its hash, and the
+	 * whole file against the file's hash.
+	 * @param hash the file's content hash
+	 * @param manifestData the decrypted manifest, which is closed afterwards
+	 * @param target
+	 * @param lastModifiedDate
+	 * @throws Exception
+	 */
+	static void download(String hash, InputStream manifestData, File target, Date lastModifiedDate) throws Exception {
+		ChunkManifest manifest;
+		try {
+			manifest = ChunkManifest.read(new BufferedInputStream(manifestData, BUFFER_SIZE));
+		} finally {
+			manifestData.close();
+		}
+
+		File tempFile = File.createTempFile(FileUtil.TEMP_FILE_PREFIX, ".tmp", target.getParentFile());
+		try {
+			MessageDigest wholeDigest = MessageDigest.getInstance("SHA-256");
+			OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE), wholeDigest);
+			RandomAccessFile written = new RandomAccessFile(tempFile, "r");
+			try {
+				// where in the temp file each chunk went, for files that have the same chunk more than once
+				Map<String, Long> writtenChunks = new HashMap<String, Long>();
+				for (Chunk chunk : manifest.getChunks()) {
+					byte[] data;
+					Long earlier = writtenChunks.get(chunk.hash);
+					if (earlier != null) {
+						out.flush();
+						data = readRange(written, earlier, chunk.length);
+						SyncStats.addChunkBytes(chunk.length, false);
+					} else {
+						data = findLocally(chunk);
+						if (data != null) {
+							SyncStats.addChunkBytes(chunk.length, false);
+						} else {
+							data = fetch(chunk);
+							SyncStats.addChunkBytes(chunk.length, true);
+						}
+						writtenChunks.put(chunk.hash, chunk.offset);
+					}
+					out.write(data);
+				}
+			} finally {
+				written.close();
+				out.close();
+			}
+
+			String receivedHash = HashUtil.toHex(wholeDigest.digest());
+			if (!receivedHash.equals(hash)) {
+				throw new IOException("Chunks downloaded for " + hash + " add up to " + receivedHash);
+			}
+			BlobDownloader.moveIntoPlace(tempFile, target, lastModifiedDate);
+		} finally {
+			// only still there if something went wrong
+			tempFile.delete();
+		}
+		remember(target, manifest.getChunks());
+	}
+
+	// the chunk's data from a file on this host that had it when it was last synced, or null if none of them still do
+	private static byte[] findLocally(Chunk chunk) throws Exception {
+		for (LocalChunk local : Global.getLocalChunkDAO().queryForEq("hash", chunk.hash)) {
+			if (local.getLength() != chunk.length) continue;
+			byte[] data;
+			try {
+				RandomAccessFile file = new RandomAccessFile(local.getPath(), "r");
+				try {
+					if (file.length() < local.getOffset() + chunk.length) continue;
+					data = readRange(file, local.getOffset(), chunk.length);
+				} finally {
+					file.close();
+				}
+			} catch (IOException ex) {
+				continue; // the file is gone, or can't be read
+			}
+			if (HashUtil.toHex(MessageDigest.getInstance("SHA-256").digest(data)).equals(chunk.hash)) {
+				return data;
+			}
+		}
+		return null;
+	}
+
+	// download and check one chunk, retrying failed requests and transfers
+	private static byte[] fetch(Chunk chunk) throws Exception {
+		RestS3Service s3 = Global.getS3();
+		String key = chunkKey(chunk.hash);
+		int retries = 0;
+		while (true) {
+			InputStream in = null;
+			try {
+				S3Object object = s3.getObject(Global.getConfig().getHashDataMapBucket(), key);
+				in = BlobDownloader.decodingStream(object, new BufferedInputStream(object.getDataInputStream(), BUFFER_SIZE));
+				byte[] data = new byte[chunk.length];
+				new DataInputStream(in).readFully(data);
+				if (in.read() >= 0) {
+					throw new IOException("Downloaded chunk " + chunk.hash + " is longer than " + chunk.length + " bytes");
+				}
+				String receivedHash = HashUtil.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+				if (!receivedHash.equals(chunk.hash)) {
+					throw new IOException("Downloaded chunk " + chunk.hash + " has SHA-256 " + receivedHash);
+				}
+				Global.getKnownHashCache().add(key);
+				return data;
+			} catch (Exception ex) {
+				if (!(ex instanceof ServiceException || ex instanceof IOException)
+						|| retries++ >= Global.getConfig().getServiceCallRetries()) {
+					throw ex;
+				}
+			} finally {
+				if (in != null) in.close();
+			}
+		}
+	}
+
+	// record where the file's chunks are, replacing whatever was recorded for it before
+	private static void remember(File file, final List<Chunk> chunks) throws Exception {
+		final Dao<LocalChunk, Integer> dao = Global.getLocalChunkDAO();
+		final String path = file.getAbsolutePath();
+		// one transaction, instead of one per chunk
+		dao.callBatchTasks(new Callable<Void>() {
+			public Void call() throws Exception {
+				DeleteBuilder<LocalChunk, Integer> deleteBuilder = dao.deleteBuilder();
+				deleteBuilder.where().eq("path", path);
+				dao.delete(deleteBuilder.prepare());
+				for (Chunk chunk : chunks) {
+					dao.create(new LocalChunk(chunk.hash, path, chunk.offset, chunk.length));
+				}
+				return null;
+			}
+		});
+	}
+
+	private static byte[] readRange(RandomAccessFile file, long offset, int length) throws IOException {
+		byte[] data = new byte[length];
+		file.seek(offset);
+		file.readFully(data);
+		return data;
+	}
+}
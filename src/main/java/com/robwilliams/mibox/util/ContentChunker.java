@@ -0,0 +1,152 @@
+package com.robwilliams.mibox.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Splits files into chunks at content-defined boundaries, so that inserting or removing bytes only changes the
+ * chunks around the edit: the chunks after it are cut at the same places as before, just shifted. Used by
+ * ChunkedStorage to store files as chunks that are shared between versions of a file, and between files.
+ * <br><br>
+ * A chunk ends where a rolling "gear" hash of the last 64 bytes has enough zero bits (FastCDC). Chunks are at least
+ * a quarter and at most four times the average size. Below the average size the hash needs more zero bits than
+ * above it, which keeps most chunks close to the average. The gear table comes from a fixed seed, so every box cuts
+ * the same file at the same places.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class ContentChunker {
+
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x4D69426F78L); // "MiBox"; never change it, or existing chunks stop matching
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * One chunk of a file.
+	 */
+	public static class Chunk {
+		public final long offset;
+		public final int length;
+		public final String hash; // SHA-256 of the chunk's data, as hex
+
+		public Chunk(long offset, int length, String hash) {
+			this.offset = offset;
+			this.length = length;
+			this.hash = hash;
+		}
+	}
+
+	private final int minBytes;
+	private final int averageBytes;
+	private final int maxBytes;
+	// masks on the high bits of the hash, which depend on all of the last 64 bytes
+	private final long strictMask;
+	private final long looseMask;
+
+	/**
+	 * @param averageBytes wanted average chunk size, rounded down to a power of two (at least 256)
+	 */
+	public ContentChunker(int averageBytes) {
+		int bits = 31 - Integer.numberOfLeadingZeros(Math.max(256, averageBytes));
+		this.averageBytes = 1 << bits;
+		this.minBytes = this.averageBytes / 4;
+		this.maxBytes = this.averageBytes * 4;
+		this.strictMask = -1L << (64 - (bits + 1));
+		this.looseMask = -1L << (64 - (bits - 1));
+	}
+
+	public int getMinBytes() {
+		return minBytes;
+	}
+
+	public int getAverageBytes() {
+		return averageBytes;
+	}
+
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Split data into chunks, hashing each one.
+	 * @param in the data, read to the end but not closed
+	 * @param wholeDigest if not null, updated with all the data, so the data doesn't need to be read again to hash it
+	 * @return the chunks, in order. Empty data has no chunks.
+	 * @throws IOException
+	 */
+	public List<Chunk> split(InputStream in, MessageDigest wholeDigest) throws IOException {
+		MessageDigest chunkDigest;
+		try {
+			chunkDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		// twice the biggest chunk, so the data only has to be moved to the front every few chunks
+		byte[] buffer = new byte[2 * maxBytes];
+		int start = 0;
+		int end = 0;
+		long offset = 0;
+		boolean eof = false;
+		while (true) {
+			if (!eof && end - start < maxBytes) {
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				start = 0;
+				while (end < buffer.length) {
+					int len = in.read(buffer, end, buffer.length - end);
+					if (len < 0) {
+						eof = true;
+						break;
+					}
+					end += len;
+				}
+			}
+			if (start == end) {
+				return chunks;
+			}
+			int length = cut(buffer, start, end - start);
+			chunkDigest.update(buffer, start, length);
+			if (wholeDigest != null) {
+				wholeDigest.update(buffer, start, length);
+			}
+			chunks.add(new Chunk(offset, length, HashUtil.toHex(chunkDigest.digest())));
+			offset += length;
+			start += length;
+		}
+	}
+
+	// how long the chunk starting at off is, given that len bytes are there (all of the rest of the data, or at least maxBytes)
+	private int cut(byte[] data, int off, int len) {
+		if (len <= minBytes) {
+			return len;
+		}
+		int last = Math.min(len, maxBytes);
+		int normal = Math.min(averageBytes, last);
+		long hash = 0;
+		int i = minBytes;
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[data[off + i] & 0xff];
+			if ((hash & strictMask) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < last; i++) {
+			hash = (hash << 1) + GEAR[data[off + i] & 0xff];
+			if ((hash & looseMask) == 0) {
+				return i + 1;
+			}
+		}
+		return last;
+	}
+}
@@ -0,0 +1,162 @@
+package com.robwilliams.mibox.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+
+import org.jets3t.service.security.EncryptionUtil;
+
+import com.robwilliams.mibox.Global;
+
+/**
+ * Encrypts and decrypts data the way JetS3t's EncryptionUtil does, with the expensive parts done once per process.
+ * <br><br>
+ * Creating an EncryptionUtil derives the key from the password, which is meant to be slow, so there is one
+ * CryptoContext for each encryption key, algorithm and version (downloads use whatever the object was uploaded with),
+ * created the first time it is asked for and shared by every thread after that.
+ * <br><br>
+ * Each thread also keeps the Cipher of its last stream that was read to the end. Finishing a stream resets its Cipher to
+ * the way it was right after being initialized, so the next stream on that thread can use it again instead of looking it
+ * up through the security providers. A stream that is closed early just lets its Cipher go.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class CryptoContext {
+
+	private static final ConcurrentMap<String, CryptoContext> contexts = new ConcurrentHashMap<String, CryptoContext>();
+
+	private final CipherFactory cipherFactory;
+	private final String version;
+	private final ThreadLocal<Cipher> encryptCiphers = new ThreadLocal<Cipher>();
+	private final ThreadLocal<Cipher> decryptCiphers = new ThreadLocal<Cipher>();
+
+	/**
+	 * @return the context for the configured encryption key
+	 */
+	public static CryptoContext get(String algorithm, String version) throws GeneralSecurityException {
+		return get(Global.getConfig().getEncryptionKey(), algorithm, version);
+	}
+
+	public static CryptoContext get(String encryptionKey, String algorithm, String version) throws GeneralSecurityException {
+		String id = algorithm + "/" + version + "/" + encryptionKey;
+		CryptoContext context = contexts.get(id);
+		if (context == null) {
+			// two threads may both derive the key the first time, but only one of them is kept
+			CryptoContext created = new CryptoContext(encryptionKey, algorithm, version);
+			context = contexts.putIfAbsent(id, created);
+			if (context == null) {
+				context = created;
+			}
+		}
+		return context;
+	}
+
+	private CryptoContext(String encryptionKey, String algorithm, String version) throws GeneralSecurityException {
+		this.cipherFactory = new CipherFactory(encryptionKey, algorithm, version);
+		this.version = version;
+	}
+
+	/**
+	 * @return the EncryptionUtil this context was created with, which is safe to share between threads
+	 */
+	public EncryptionUtil getEncryptionUtil() {
+		return cipherFactory;
+	}
+
+	public String getAlgorithm() {
+		return cipherFactory.getAlgorithm();
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Same as EncryptionUtil.encrypt(InputStream).
+	 */
+	public InputStream encrypt(InputStream in) throws GeneralSecurityException {
+		Cipher cipher = encryptCiphers.get();
+		if (cipher == null) {
+			cipher = cipherFactory.newEncryptCipher();
+		} else {
+			encryptCiphers.set(null); // in case this thread opens another stream before this one is done
+		}
+		return new ReusableCipherInputStream(in, cipher, encryptCiphers);
+	}
+
+	/**
+	 * Same as EncryptionUtil.decrypt(InputStream).
+	 */
+	public InputStream decrypt(InputStream in) throws GeneralSecurityException {
+		Cipher cipher = decryptCiphers.get();
+		if (cipher == null) {
+			cipher = cipherFactory.newDecryptCipher();
+		} else {
+			decryptCiphers.set(null);
+		}
+		return new ReusableCipherInputStream(in, cipher, decryptCiphers);
+	}
+
+	// EncryptionUtil already knows how to set up a Cipher, it just doesn't let anyone else do it
+	private static class CipherFactory extends EncryptionUtil {
+
+		public CipherFactory(String encryptionKey, String algorithm, String version) throws GeneralSecurityException {
+			super(encryptionKey, algorithm, version);
+		}
+
+		public Cipher newEncryptCipher() throws GeneralSecurityException {
+			return initEncryptCipher();
+		}
+
+		public Cipher newDecryptCipher() throws GeneralSecurityException {
+			return initDecryptCipher();
+		}
+	}
+
+	// hands its Cipher back to the thread that closes it, but only if the Cipher finished (and so reset itself)
+	private static class ReusableCipherInputStream extends CipherInputStream {
+
+		private final Cipher cipher;
+		private final ThreadLocal<Cipher> ciphers;
+		private boolean finished = false;
+
+		public ReusableCipherInputStream(InputStream in, Cipher cipher, ThreadLocal<Cipher> ciphers) {
+			super(in, cipher);
+			this.cipher = cipher;
+			this.ciphers = ciphers;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b < 0) {
+				finished = true;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read < 0) {
+				finished = true;
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			if (finished && ciphers.get() == null) {
+				ciphers.set(cipher);
+			}
+			finished = false; // closing twice mustn't hand it back twice
+		}
+	}
+}
@@ -7,33 +7,40 @@ import java.util.TimeZone;
 
 public class DateUtil {
 	
-	private static SimpleDateFormat getDateFormatter() {
-		// set up date formatter, for consistent date->string and string->date conversions
-		SimpleDateFormat dfm = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S");
-		dfm.setTimeZone(TimeZone.getTimeZone("America/Seattle")); //TODO: use ConfigUtil
-		return dfm;
-	}
+	// looked up once, rather than on every call
+	private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("America/Seattle"); //TODO: use ConfigUtil
 	
-	private static SimpleDateFormat getSimplerDateFormatter() {
-		// set up date formatter, for consistent date->string and string->date conversions
-		SimpleDateFormat dfm = new SimpleDateFormat("yyyy-MM-dd");
-		dfm.setTimeZone(TimeZone.getTimeZone("America/Seattle")); //TODO: use ConfigUtil
-		return dfm;
-	}
+	// SimpleDateFormat isn't thread-safe and is expensive to build, so every thread keeps its own
+	private static final ThreadLocal<SimpleDateFormat> dateFormatter = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			// set up date formatter, for consistent date->string and string->date conversions
+			SimpleDateFormat dfm = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S");
+			dfm.setTimeZone(TIME_ZONE);
+			return dfm;
+		}
+	};
+	
+	private static final ThreadLocal<SimpleDateFormat> simplerDateFormatter = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			// set up date formatter, for consistent date->string and string->date conversions
+			SimpleDateFormat dfm = new SimpleDateFormat("yyyy-MM-dd");
+			dfm.setTimeZone(TIME_ZONE);
+			return dfm;
+		}
+	};
 	
 	public static Date parse(String dateString) throws ParseException {
-		SimpleDateFormat dfm = getDateFormatter();
-		return dfm.parse(dateString);
+		return dateFormatter.get().parse(dateString);
 	}
 	
 	public static String dateToString(Date date) {
-		SimpleDateFormat dfm = getDateFormatter();
-		return dfm.format(date);
+		return dateFormatter.get().format(date);
 	}
 	
 	public static String dateToSimplerString(Date date) {
-		SimpleDateFormat dfm = getSimplerDateFormatter();
-		return dfm.format(date);
+		return simplerDateFormatter.get().format(date);
 	}
 
 	
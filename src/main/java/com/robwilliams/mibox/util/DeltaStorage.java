@@ -0,0 +1,237 @@
+package com.robwilliams.mibox.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Date;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+import com.j256.ormlite.dao.Dao;
+import com.robwilliams.mibox.ConfigMaster;
+import com.robwilliams.mibox.Global;
+import com.robwilliams.mibox.dataObjects.FileSignature;
+
+/**
+ * Uploads changed files to the HashDataMap bucket as deltas (see BinaryDelta) against the version last synced, and
+ * rebuilds them when they're downloaded. A delta is stored under the new version's content hash, like any other data,
+ * with metadata naming its base and how many deltas have to be applied to get from a whole upload to it.
+ * <br><br>
+ * Making a delta needs the signature of the last synced version, which is kept in the local DB (see FileSignature)
+ * since that version is gone from disk once the file changed. Applying one needs the base: usually the file being
+ * replaced, otherwise it is downloaded first (which may mean applying its delta in turn). To keep those chains short,
+ * a version that would be more than deltaChainLength deltas away from a whole upload is uploaded whole.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class DeltaStorage {
+
+	public static final String METADATA_DELTA_BASE = "mibox-delta-base";
+	public static final String METADATA_DELTA_DEPTH = "mibox-delta-depth";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * @param object an object from the HashDataMap bucket (or its details)
+	 * @return true if it's a delta
+	 */
+	public static boolean isDelta(StorageObject object) {
+		return object.getMetadata(METADATA_DELTA_BASE) != null;
+	}
+
+	/**
+	 * Upload a changed file as a delta against its last synced version, if that's possible and worth it: deltaTransfer
+	 * is on, both versions have content hashes, the file is at least deltaThresholdBytes long, the signature of the
+	 * last synced version is known, the chain isn't too long yet, and the delta is at most half the size of the file.
+	 * @param fileName the file's name, relative to the box
+	 * @param hash content hash of the new version
+	 * @param baseHash hash of the last synced version, or null if there is none
+	 * @param file
+	 * @return true if the file was uploaded, false if it should be uploaded whole
+	 * @throws IOException if the file changed since it was hashed
+	 * @throws Exception if the delta couldn't be uploaded
+	 */
+	public static boolean upload(String fileName, String hash, String baseHash, File file) throws Exception {
+		if (uploadDelta(fileName, hash, baseHash, file)) {
+			return true;
+		}
+		// an earlier sync may have started uploading a delta under this hash, which the whole upload mustn't resume.
+		// Encryption never makes data smaller, so anything shorter than the file was a delta.
+		BlobUploader.abandon(hash, file.length());
+		return false;
+	}
+
+	private static boolean uploadDelta(String fileName, String hash, String baseHash, File file) throws Exception {
+		ConfigMaster config = Global.getConfig();
+		if (!config.isDeltaTransfer() || baseHash == null || baseHash.equals(hash) || !HashUtil.isContentHash(hash)
+				|| !HashUtil.isContentHash(baseHash) || file.length() < config.getDeltaThresholdBytes()) {
+			return false;
+		}
+		FileSignature known = Global.getFileSignatureDAO().queryForId(fileName);
+		if (known == null || !baseHash.equals(known.getHash())) {
+			return false;
+		}
+		// nobody could apply a delta against a base that isn't in the bucket
+		int depth;
+		try {
+			S3Object details = Global.getS3().getObjectDetails(config.getHashDataMapBucket(), baseHash);
+			depth = isDelta(details) ? Integer.parseInt(details.getMetadata(METADATA_DELTA_DEPTH).toString()) + 1 : 1;
+		} catch (ServiceException ex) {
+			return false;
+		}
+		if (depth > config.getDeltaChainLength()) {
+			return false;
+		}
+
+		// make the delta, and the new version's signature for next time, in one pass over the file
+		long length = file.length();
+		MessageDigest wholeDigest = MessageDigest.getInstance("SHA-256");
+		MessageDigest deltaDigest = MessageDigest.getInstance("SHA-256");
+		BlockSignature.Builder signature = new BlockSignature.Builder(BlockSignature.blockBytesFor(length));
+		File deltaFile = File.createTempFile("MiBox", ".tmp");
+		try {
+			InputStream in = new FileInputStream(file);
+			OutputStream out = null;
+			try {
+				out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(deltaFile), BUFFER_SIZE), deltaDigest);
+				BinaryDelta.encode(BlockSignature.fromBytes(known.getSignature()), baseHash, in, length, out, wholeDigest, signature);
+			} finally {
+				in.close();
+				if (out != null) out.close();
+			}
+			if (!HashUtil.toHex(wholeDigest.digest()).equals(hash)) {
+				throw new IOException(file + " changed since it was hashed");
+			}
+			if (deltaFile.length() > length / 2) {
+				return false; // remember() makes the signature once the whole upload is done
+			}
+
+			S3Object object = S3Util.createObjectForUpload(hash, new BufferedInputStream(new FileInputStream(deltaFile), BUFFER_SIZE),
+					deltaFile.length(), HashUtil.toHex(deltaDigest.digest()));
+			object.addMetadata(METADATA_DELTA_BASE, baseHash);
+			object.addMetadata(METADATA_DELTA_DEPTH, Integer.toString(depth));
+			try {
+				BlobUploader.upload(object);
+			} finally {
+				object.getDataInputFile().delete();
+			}
+			keep(fileName, hash, signature.build());
+			SyncStats.addDelta(length, deltaFile.length());
+			return true;
+		} finally {
+			deltaFile.delete();
+		}
+	}
+
+	/**
+	 * Keep the signature of a file that was just synced, so its next version can be uploaded as a delta. Does nothing
+	 * unless deltaTransfer is on, and failures are only logged, since this is only an optimization.
+	 * @param fileName the file's name, relative to the box
+	 * @param hash the content hash the file was synced with
+	 * @param file
+	 */
+	public static void remember(String fileName, String hash, File file) {
+		ConfigMaster config = Global.getConfig();
+		if (!config.isDeltaTransfer() || !HashUtil.isContentHash(hash)) return;
+		try {
+			Dao<FileSignature, String> dao = Global.getFileSignatureDAO();
+			FileSignature known = dao.queryForId(fileName);
+			if (known != null && hash.equals(known.getHash())) {
+				return; // already made while the file was uploaded as a delta
+			}
+			long length = file.length();
+			if (length < config.getDeltaThresholdBytes()) {
+				if (known != null) dao.deleteById(fileName);
+				return;
+			}
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			BlockSignature signature;
+			InputStream in = new DigestInputStream(new FileInputStream(file), digest);
+			try {
+				signature = BlockSignature.of(in, BlockSignature.blockBytesFor(length));
+			} finally {
+				in.close();
+			}
+			if (HashUtil.toHex(digest.digest()).equals(hash)) {
+				keep(fileName, hash, signature);
+			} else if (known != null) {
+				// changed again already, so there's no signature of what was synced
+				dao.deleteById(fileName);
+			}
+		} catch (Exception ex) {
+			Global.getLogger().writeWarningLine("Failed to keep block signature of " + fileName + ": " + ex.getMessage());
+		}
+	}
+
+	private static void keep(String fileName, String hash, BlockSignature signature) throws Exception {
+		Global.getFileSignatureDAO().createOrUpdate(new FileSignature(fileName, hash, signature.toBytes()));
+	}
+
+	/**
+	 * Rebuild a file from a delta and its base into a temp file next to the target, then move it into place. If the
+	 * target isn't the base, the base is downloaded first. The result is checked against the file's hash.
+	 * @param hash the file's content hash
+	 * @param object the delta, as fetched from the bucket
+	 * @param target
+	 * @param lastModifiedDate
+	 * @throws Exception
+	 */
+	static void download(String hash, S3Object object, File target, Date lastModifiedDate) throws Exception {
+		String baseHash = object.getMetadata(METADATA_DELTA_BASE).toString();
+		File base = target;
+		File downloadedBase = null;
+		try {
+			if (!target.isFile() || !HashUtil.contentHash(target).equals(baseHash)) {
+				// this host doesn't have the base, so get it first (without keeping the delta's connection waiting)
+				object.closeDataInputStream();
+				downloadedBase = File.createTempFile(FileUtil.TEMP_FILE_PREFIX, ".tmp", target.getParentFile());
+				BlobDownloader.download(baseHash, downloadedBase, lastModifiedDate, -1);
+				base = downloadedBase;
+				object = Global.getS3().getObject(Global.getConfig().getHashDataMapBucket(), hash);
+			}
+
+			File tempFile = File.createTempFile(FileUtil.TEMP_FILE_PREFIX, ".tmp", target.getParentFile());
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				InputStream in = BlobDownloader.decodingStream(object, new BufferedInputStream(object.getDataInputStream(), BUFFER_SIZE));
+				RandomAccessFile baseData = null;
+				OutputStream out = null;
+				try {
+					in = new BufferedInputStream(in, BUFFER_SIZE);
+					if (!BinaryDelta.readBaseHash(in).equals(baseHash)) {
+						throw new IOException("Delta for " + hash + " isn't against " + baseHash);
+					}
+					baseData = new RandomAccessFile(base, "r");
+					out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE), digest);
+					BinaryDelta.apply(in, baseData, out);
+				} finally {
+					in.close();
+					if (baseData != null) baseData.close();
+					if (out != null) out.close();
+				}
+				String receivedHash = HashUtil.toHex(digest.digest());
+				if (!receivedHash.equals(hash)) {
+					throw new IOException("Delta for " + hash + " applied to " + baseHash + " gives " + receivedHash);
+				}
+				BlobDownloader.moveIntoPlace(tempFile, target, lastModifiedDate);
+			} finally {
+				// only still there if something went wrong
+				tempFile.delete();
+			}
+		} finally {
+			if (downloadedBase != null) downloadedBase.delete();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.robwilliams.mibox.util;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import com.robwilliams.mibox.dataObjects.MiBoxFile;
+
+/**
+ * The local file index: one MiBoxFile record per file in the box, keyed by its name. Which engine
+ * keeps it is chosen with the indexEngine setting (see SQLiteFileIndex and MappedFileIndex).
+ * <br><br>
+ * Implementations must allow lookups from several threads at once, also while a batch is written.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public interface FileIndex {
+
+	/**
+	 * Receives the records of a scan(...).
+	 */
+	public interface ScanVisitor {
+		/**
+		 * Called with the whole record of a file synced after the scan's date (or never).
+		 * @param record
+		 * @throws Exception
+		 */
+		void visitRecentlySynced(MiBoxFile record) throws Exception;
+
+		/**
+		 * Called for every other file, with just what's needed to tell if it changed since.
+		 * @param name
+		 * @param lastModifiedTime last modified time of the file in epoch millis, Long.MIN_VALUE if unknown
+		 * @throws Exception
+		 */
+		void visitSynced(String name, long lastModifiedTime) throws Exception;
+	}
+
+	/**
+	 * Look up a file's record.
+	 * @param name
+	 * @return the record, or null if there is none
+	 * @throws Exception
+	 */
+	MiBoxFile queryForName(String name) throws Exception;
+
+	/**
+	 * Look up the records of all files below a directory.
+	 * @param directoryPrefix the directory's name, ending with "/"
+	 * @return the records, in no particular order
+	 * @throws Exception
+	 */
+	List<MiBoxFile> queryForPrefix(String directoryPrefix) throws Exception;
+
+	/**
+	 * Visit every record, telling apart the files synced after lastSyncDate from the rest.
+	 * @param lastSyncDate
+	 * @param visitor
+	 * @throws Exception
+	 */
+	void scan(Date lastSyncDate, ScanVisitor visitor) throws Exception;
+
+	/**
+	 * Write a batch of changes, as one transaction if the engine supports it.
+	 * @param changes file name -> new record, or null if the record is to be deleted
+	 * @throws Exception
+	 */
+	void write(Map<String, MiBoxFile> changes) throws Exception;
+
+	/**
+	 * Release the engine's files and connections.
+	 */
+	void close();
+}
@@ -0,0 +1,211 @@
+package com.robwilliams.mibox.util;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.exceptions.SyncActionError;
+
+/**
+ * Collects changes to the local file index (the local_files table) and writes them in one transaction
+ * per batch, instead of one auto-committed (and fsync'd) transaction per row. Several changes to the
+ * same file are collapsed into the last one.
+ * <br><br>
+ * A batch is committed once it holds maxBatchSize changes, or once its oldest change has waited
+ * maxDelayMillis. queryForId(...) sees changes which haven't been committed yet, so actions can
+ * read back what they (or other actions) just wrote. Anything that needs the changes to be in the
+ * DB itself must call flush() first.
+ * <br><br>
+ * Only one batch is written at a time, but adding changes and looking up records doesn't wait for it:
+ * the batch being written is kept aside until its transaction has committed.
+ * <br><br>
+ * Actions queue a file's cloud metadata writes (see SimpleDBWriteBuffer) before its index change, and a change is
+ * only committed once every cloud write queued before it has been sent, so the index never says a file is synced
+ * before the cloud does. Changes whose cloud writes are still waiting in the buffer wait with them (the buffer
+ * sends them within its own delay), instead of each batch flushing the whole buffer. flush() does flush the buffer,
+ * and if that fails, the changes that were still waiting are dropped: their files look changed to the next sync.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class FileIndexWriter {
+
+	private final FileIndex index;
+	private final SimpleDBWriteBuffer cloudWrites;
+	private final int maxBatchSize;
+	private final ScheduledExecutorService flusher;
+	// held while a batch is written, so batches are committed in the order they were taken
+	private final Object commitLock = new Object();
+	// file name -> change, in the order they were made (and so in the order of their cloud writes)
+	private Map<String, Change> pending = new LinkedHashMap<String, Change>();
+	// the batch being written right now, if any
+	private Map<String, MiBoxFile> committing = Collections.emptyMap();
+	private RuntimeException backgroundFailure; // thrown from the next flush()
+
+	private static class Change {
+		final MiBoxFile record; // new record, or null if the record is to be deleted
+		final long cloudWrite; // the latest cloud write queued before the change (see SimpleDBWriteBuffer)
+		final long time;
+
+		Change(MiBoxFile record, long cloudWrite) {
+			this.record = record;
+			this.cloudWrite = cloudWrite;
+			this.time = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @param index the local file index
+	 * @param cloudWrites the cloud writes changes wait for, or null
+	 * @param maxBatchSize most changes to commit in one transaction
+	 * @param maxDelayMillis longest time a change may wait to be committed
+	 */
+	public FileIndexWriter(FileIndex index, SimpleDBWriteBuffer cloudWrites, int maxBatchSize, final long maxDelayMillis) {
+		this.index = index;
+		this.cloudWrites = cloudWrites;
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "File index writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				boolean due;
+				synchronized (FileIndexWriter.this) {
+					due = !pending.isEmpty() && System.currentTimeMillis() - pending.values().iterator().next().time >= maxDelayMillis;
+				}
+				if (due) {
+					try {
+						commit();
+					} catch (RuntimeException ex) {
+						synchronized (FileIndexWriter.this) {
+							if (backgroundFailure == null) {
+								backgroundFailure = ex;
+							}
+						}
+					}
+				}
+			}
+		}, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queue an insert or update of a file's record.
+	 * @param record
+	 */
+	public void createOrUpdate(MiBoxFile record) {
+		change(record.getName(), record);
+	}
+
+	/**
+	 * Queue the deletion of a file's record, if it has one.
+	 * @param name
+	 */
+	public void delete(String name) {
+		change(name, null);
+	}
+
+	/**
+	 * Look up a file's record, including changes that haven't been committed yet.
+	 * @param name
+	 * @return the record, or null if there is none
+	 * @throws Exception
+	 */
+	public MiBoxFile queryForId(String name) throws Exception {
+		synchronized (this) {
+			if (pending.containsKey(name)) {
+				return pending.get(name).record;
+			}
+			if (committing.containsKey(name)) {
+				return committing.get(name);
+			}
+		}
+		return index.queryForName(name);
+	}
+
+	/**
+	 * Send the cloud writes that are still waiting, then commit every change that is still waiting.
+	 * @throws SyncActionError if cloud writes or changes could not be written, now or during an earlier background commit
+	 */
+	public void flush() {
+		synchronized (commitLock) {
+			if (cloudWrites != null) {
+				try {
+					cloudWrites.flush();
+				} catch (RuntimeException ex) {
+					// some of the changes may be for files whose cloud writes were lost
+					synchronized (this) {
+						pending.clear();
+					}
+					throw ex;
+				}
+			}
+			commit();
+		}
+		synchronized (this) {
+			if (backgroundFailure != null) {
+				RuntimeException failure = backgroundFailure;
+				backgroundFailure = null;
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Flush and stop the background commit thread.
+	 */
+	public void shutdown() {
+		flusher.shutdown();
+		flush();
+	}
+
+	private void change(String name, MiBoxFile record) {
+		boolean full;
+		synchronized (this) {
+			pending.remove(name); // so the map stays in order of the latest change
+			pending.put(name, new Change(record, cloudWrites != null ? cloudWrites.getLastWrite() : 0));
+			full = pending.size() >= maxBatchSize;
+		}
+		if (full) {
+			commit();
+		}
+	}
+
+	// write the changes whose cloud writes have all been sent in one transaction
+	private void commit() {
+		synchronized (commitLock) {
+			Map<String, MiBoxFile> batch = new LinkedHashMap<String, MiBoxFile>();
+			synchronized (this) {
+				// changes are in the order of their cloud writes, so the ones that can go are at the front
+				long firstUnsentWrite = cloudWrites != null ? cloudWrites.getFirstUnsentWrite() : Long.MAX_VALUE;
+				Iterator<Map.Entry<String, Change>> iterator = pending.entrySet().iterator();
+				while (iterator.hasNext()) {
+					Map.Entry<String, Change> entry = iterator.next();
+					if (entry.getValue().cloudWrite >= firstUnsentWrite) break;
+					batch.put(entry.getKey(), entry.getValue().record);
+					iterator.remove();
+				}
+				if (batch.isEmpty()) return;
+				committing = batch;
+			}
+			try {
+				index.write(batch);
+			} catch (Exception ex) {
+				throw new SyncActionError("Failed to write " + batch.size() + " changes to the local file index", ex);
+			} finally {
+				synchronized (this) {
+					committing = Collections.emptyMap();
+				}
+			}
+		}
+	}
+}
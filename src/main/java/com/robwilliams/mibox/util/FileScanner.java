@@ -0,0 +1,124 @@
+package com.robwilliams.mibox.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Walks a directory tree with NIO, reading the BasicFileAttributes of each entry exactly once.
+ * Every sub-directory becomes its own fork-join task, so large trees are listed by several
+ * threads at the same time.
+ * <br><br>
+ * Rather than building up a collection of File's like FileUtil.listFiles(...), each regular file
+ * is streamed straight to a Visitor along with its UNIX style path relative to the scan root.
+ * The visitor is called from the pool's worker threads, so it must be thread-safe.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class FileScanner {
+
+	/**
+	 * Callback for each regular file found during a scan.
+	 */
+	public interface Visitor {
+		public void visitFile(String relativePath, BasicFileAttributes attributes) throws Exception;
+	}
+
+	private final ForkJoinPool pool;
+
+	public FileScanner(int parallelism) {
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Walk the tree below root, calling the visitor for every regular file. Directories are not
+	 * passed to the visitor. Files that disappear while the scan is running are silently skipped.
+	 * @param root directory to scan
+	 * @param visitor receives every regular file found
+	 * @throws Exception the first exception thrown by the visitor or by the file system, if any
+	 */
+	public void scan(Path root, Visitor visitor) throws Exception {
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		pool.invoke(new DirectoryTask(root, "", visitor, failure));
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	/**
+	 * Release the worker threads. The scanner can't be used after this.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	@SuppressWarnings("serial")
+	private static class DirectoryTask extends RecursiveAction {
+		private final Path directory;
+		private final String relativePrefix; // relative path of directory, including trailing slash (empty for root)
+		private final Visitor visitor;
+		private final AtomicReference<Exception> failure; // shared by all tasks of one scan
+
+		DirectoryTask(Path directory, String relativePrefix, Visitor visitor, AtomicReference<Exception> failure) {
+			this.directory = directory;
+			this.relativePrefix = relativePrefix;
+			this.visitor = visitor;
+			this.failure = failure;
+		}
+
+		@Override
+		protected void compute() {
+			// don't bother continuing once some other part of the scan has failed
+			if (failure.get() != null) return;
+
+			DirectoryStream<Path> entries;
+			try {
+				entries = Files.newDirectoryStream(directory);
+			} catch (NoSuchFileException ex) {
+				return; // directory was deleted since its parent was listed
+			} catch (IOException ex) {
+				failure.compareAndSet(null, ex);
+				return;
+			}
+
+			List<DirectoryTask> subdirectories = new ArrayList<DirectoryTask>();
+			try {
+				for (Path entry : entries) {
+					BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+					} catch (NoSuchFileException ex) {
+						continue; // deleted since the directory was listed
+					}
+					String relativePath = relativePrefix + entry.getFileName().toString();
+					if (attributes.isDirectory()) {
+						subdirectories.add(new DirectoryTask(entry, relativePath + "/", visitor, failure));
+					} else if (attributes.isRegularFile()) {
+						visitor.visitFile(relativePath, attributes);
+					}
+				}
+			} catch (Exception ex) {
+				failure.compareAndSet(null, ex);
+				return;
+			} finally {
+				try {
+					entries.close();
+				} catch (IOException ex) {
+					; // nothing useful to do about this
+				}
+			}
+
+			// recurse into sub-directories, letting idle workers steal them
+			invokeAll(subdirectories);
+		}
+	}
+}
@@ -17,6 +17,17 @@ import com.robwilliams.mibox.Global;
 
 public class FileUtil {
 	
+	// downloads are written to temp files starting with this, which must never be synced themselves
+	public static final String TEMP_FILE_PREFIX = ".mibox~";
+	
+	/**
+	 * @param relativePath UNIX style path, relative to the box
+	 * @return true if this is one of MiBox's own temp files
+	 */
+	public static boolean isTempFile(String relativePath) {
+		return relativePath.substring(relativePath.lastIndexOf('/') + 1).startsWith(TEMP_FILE_PREFIX);
+	}
+	
 	/**
 	 * Given a relative file path (the kind used in the DBs and on the cloud)
 	 * return a string representing the local absolute file path, using correct
@@ -0,0 +1,101 @@
+package com.robwilliams.mibox.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Converts hashes between their usual hex string form and the binary form snapshots keep them in,
+ * which takes about a third of the memory (an MD5 hash is 16 bytes instead of a 32 character String).
+ * <br><br>
+ * A file's hash is either the MD5 of its encrypted data, or with the contentAddressing setting the SHA-256
+ * of its contents (a content hash), which is twice as long. The two kinds can be told apart by their length.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class HashUtil {
+
+	/**
+	 * Length of a content hash in hex.
+	 */
+	public static final int CONTENT_HASH_LENGTH = 64;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * @param file
+	 * @return the content hash of the file, which is read once and not encrypted
+	 * @throws IOException
+	 */
+	public static String contentHash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex); // every JVM has SHA-256
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int len;
+			while ((len = in.read(buffer)) >= 0) {
+				digest.update(buffer, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @param hash
+	 * @return true if the hash is a content hash, false if it's a hash of encrypted data
+	 */
+	public static boolean isContentHash(String hash) {
+		return hash != null && hash.length() == CONTENT_HASH_LENGTH;
+	}
+
+	/**
+	 * @param hash
+	 * @return the bytes of a lower case hex hash, or null if the string isn't one (and would not
+	 *         come back the same from toHex(...)), in which case it has to be kept as it is
+	 */
+	public static byte[] fromHex(String hash) {
+		if (hash == null || hash.isEmpty() || hash.length() % 2 != 0) {
+			return null;
+		}
+		byte[] bytes = new byte[hash.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int high = lowerHexDigit(hash.charAt(2 * i));
+			int low = lowerHexDigit(hash.charAt(2 * i + 1));
+			if (high < 0 || low < 0) {
+				return null;
+			}
+			bytes[i] = (byte) (high << 4 | low);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param bytes
+	 * @return the bytes as a lower case hex string
+	 */
+	public static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX[(bytes[i] >>> 4) & 0x0F];
+			hex[2 * i + 1] = HEX[bytes[i] & 0x0F];
+		}
+		return new String(hex);
+	}
+
+	private static int lowerHexDigit(char c) {
+		if (c >= '0' && c <= '9') return c - '0';
+		if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+		return -1;
+	}
+}
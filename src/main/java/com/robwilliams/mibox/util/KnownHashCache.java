@@ -0,0 +1,132 @@
+package com.robwilliams.mibox.util;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.StorageObject;
+
+import com.j256.ormlite.dao.CloseableIterator;
+import com.j256.ormlite.dao.Dao;
+import com.robwilliams.mibox.Global;
+import com.robwilliams.mibox.dataObjects.KnownHash;
+
+/**
+ * Remembers which hashes are known to exist in the HashDataMap bucket, so that uploads don't need a
+ * HEAD request to find out. Hashes are added after every successful upload or download, and are kept
+ * in the known_hashes table so they survive restarts.
+ * <br><br>
+ * A Bloom filter in front of the table answers most "never seen it" lookups without touching the DB.
+ * A lookup that passes the filter is confirmed against the table, so false positives can't cause
+ * an upload to be skipped. Data is never deleted from the HashDataMap bucket, so known hashes never
+ * go stale.
+ * <br><br>
+ * Optionally, warmUp() lists the whole bucket in the background, which helps a new host that is
+ * about to upload files other hosts already have.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class KnownHashCache {
+
+	// the filter is sized for this many hashes, or twice what's in the table, whichever is more
+	private static final int MIN_EXPECTED_HASHES = 100000;
+	// how many keys to ask S3 for per listing request (S3 returns at most 1000)
+	private static final int LISTING_CHUNK_SIZE = 1000;
+
+	private final Dao<KnownHash, String> dao;
+	private BloomFilter filter = new BloomFilter(MIN_EXPECTED_HASHES);
+
+	public KnownHashCache(Dao<KnownHash, String> dao) {
+		this.dao = dao;
+	}
+
+	/**
+	 * Fill the Bloom filter from the known_hashes table. The table must exist by now.
+	 * @throws SQLException
+	 */
+	public void load() throws SQLException {
+		BloomFilter loaded = new BloomFilter((int) Math.max(MIN_EXPECTED_HASHES, dao.countOf() * 2));
+		CloseableIterator<KnownHash> iterator = dao.iterator();
+		try {
+			while (iterator.hasNext()) {
+				loaded.put(iterator.next().getHash());
+			}
+		} finally {
+			iterator.close();
+		}
+		synchronized (this) {
+			filter = loaded;
+		}
+	}
+
+	/**
+	 * @param hash
+	 * @return true if the hash is known to exist in the HashDataMap bucket. False means it may or may not exist.
+	 * @throws SQLException
+	 */
+	public boolean isKnown(String hash) throws SQLException {
+		boolean mightBeKnown;
+		synchronized (this) {
+			mightBeKnown = filter.mightContain(hash);
+		}
+		boolean known = mightBeKnown && dao.idExists(hash);
+		if (known) {
+			SyncStats.addKnownHashHit();
+		} else {
+			SyncStats.addKnownHashMiss();
+		}
+		return known;
+	}
+
+	/**
+	 * Record that the hash exists in the HashDataMap bucket.
+	 * @param hash
+	 * @throws SQLException
+	 */
+	public void add(String hash) throws SQLException {
+		synchronized (this) {
+			filter.put(hash);
+		}
+		dao.createOrUpdate(new KnownHash(hash));
+	}
+
+	/**
+	 * Start listing the HashDataMap bucket on a background thread, adding every key found to the cache.
+	 * Failures are logged and otherwise ignored, since the cache is only an optimization.
+	 * @param s3
+	 * @param bucketName
+	 */
+	public void warmUp(final RestS3Service s3, final String bucketName) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					String priorLastKey = null;
+					long count = 0;
+					while (true) {
+						StorageObjectsChunk chunk = s3.listObjectsChunked(bucketName, null, null, LISTING_CHUNK_SIZE, priorLastKey);
+						final StorageObject[] objects = chunk.getObjects();
+						// one transaction per chunk, instead of one per hash
+						dao.callBatchTasks(new Callable<Void>() {
+							public Void call() throws Exception {
+								for (StorageObject object : objects) {
+									add(object.getKey());
+								}
+								return null;
+							}
+						});
+						count += objects.length;
+						priorLastKey = chunk.getPriorLastKey();
+						if (chunk.isListingComplete() || priorLastKey == null) break;
+					}
+					Global.getLogger().writeDebugLine("Known hash cache warmed up with " + count + " hashes from " + bucketName);
+				} catch (Exception ex) {
+					Global.getLogger().writeWarningLine("Failed to warm up known hash cache: " + ex.getMessage());
+				}
+			}
+		}, "Known hash cache warm-up");
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,544 @@
+package com.robwilliams.mibox.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.robwilliams.mibox.dataObjects.MiBoxFile;
+
+/**
+ * The local file index kept in a memory-mapped file of its own, instead of going through ORMLite and JDBC.
+ * Records have a fixed layout next to the file name: the three dates as epoch millis and the two hashes
+ * as binary. An update of an existing file overwrites its record in place, a new file is appended, and a
+ * deleted file's record is only marked dead. Once dead records take up more than half of the file, it is
+ * compacted (at the end of a write, or when it is opened): the live records are written to a side file, which is
+ * then copied over the start of the index file. The index file itself is never replaced or truncated, since
+ * Windows doesn't allow that while it's mapped, and Java has no way to unmap it on purpose. If MiBox stops during
+ * a compaction, a side file that was finished is copied again when the index is opened, otherwise it's ignored.
+ * <br><br>
+ * The name -> record lookup is an open-addressing hash table of longs on the heap (hash of the name and
+ * offset of the record), so the records themselves stay off the heap until they're asked for.
+ * <br><br>
+ * Layout: a header (magic, version, end of the used part, dead bytes) followed by the records:
+ * <pre>
+ * int length | byte live | short name length | name (UTF-8) | long lastModifiedTime
+ * | long lastSyncedLastModifiedTime | long lastSyncTime | byte hash length | 32 bytes hash
+ * | byte lastSyncedHash length | 32 bytes lastSyncedHash
+ * </pre>
+ * Hashes must be hex strings of up to 64 characters (or empty), and come back in lower case.
+ * <br><br>
+ * Unlike SQLite, a batch is not written atomically: a crash during a write may leave some of its records
+ * updated and others not. A record appended by the batch only becomes visible once the header says so.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class MappedFileIndex implements FileIndex {
+
+	private static final int MAGIC = 0x4D425849; // "MBXI"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int END_OFFSET = 8;
+	private static final int DEAD_BYTES_OFFSET = 16;
+
+	private static final int MAX_HASH_BYTES = 32;
+	private static final int NAME_OFFSET = 7; // after length, live flag and name length
+	// everything of a record except its name
+	private static final int FIXED_SIZE = NAME_OFFSET + 3 * 8 + 2 * (1 + MAX_HASH_BYTES);
+	private static final long NULL_TIME = Long.MIN_VALUE;
+	private static final int INITIAL_CAPACITY = 1024 * 1024;
+	// don't bother compacting less than this
+	private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final File file;
+	private final boolean forceWrites;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private RandomAccessFile randomAccessFile;
+	private MappedByteBuffer buffer;
+	private int end; // offset of the first unused byte
+	private long deadBytes;
+	// open-addressing hash table with linear probing: (name hash << 32) | record offset, 0 when free
+	private long[] slots;
+	private int liveRecords;
+
+	/**
+	 * Open the index file, creating it if it doesn't exist yet.
+	 * @param file
+	 * @param forceWrites whether to force every batch to the disk before write(...) returns
+	 * @throws IOException if the file can't be opened or isn't a valid index
+	 */
+	public MappedFileIndex(File file, boolean forceWrites) throws IOException {
+		this.file = file;
+		this.forceWrites = forceWrites;
+		open();
+		File compacted = getCompactFile();
+		if (compacted.exists()) {
+			// MiBox stopped during a compaction
+			copyBack(compacted);
+		} else {
+			load();
+		}
+		if (isWorthCompacting()) {
+			compact();
+		}
+	}
+
+	public MiBoxFile queryForName(String name) throws IOException {
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			int slot = findSlot(name, encode(name));
+			return slots[slot] == 0 ? null : readRecord(offsetOf(slots[slot]));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Looks at every record, which is still quick since no record is decoded unless it matches.
+	 */
+	public List<MiBoxFile> queryForPrefix(String directoryPrefix) throws IOException {
+		byte[] prefix = encode(directoryPrefix);
+		List<MiBoxFile> records = new ArrayList<MiBoxFile>();
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			for (int offset = HEADER_SIZE; offset < end; offset += buffer.getInt(offset)) {
+				if (isLive(offset) && nameStartsWith(offset, prefix)) {
+					records.add(readRecord(offset));
+				}
+			}
+			return records;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Records are visited in the order they were added. Writes wait until the scan is done.
+	 */
+	public void scan(Date lastSyncDate, ScanVisitor visitor) throws Exception {
+		long lastSyncMillis = lastSyncDate.getTime();
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			for (int offset = HEADER_SIZE; offset < end; offset += buffer.getInt(offset)) {
+				if (!isLive(offset)) continue;
+				int fixed = offset + NAME_OFFSET + nameLength(offset);
+				long lastSyncTime = buffer.getLong(fixed + 16);
+				if (lastSyncTime == NULL_TIME || lastSyncTime > lastSyncMillis) {
+					visitor.visitRecentlySynced(readRecord(offset));
+				} else {
+					visitor.visitSynced(readName(offset), buffer.getLong(fixed));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void write(Map<String, MiBoxFile> changes) throws IOException {
+		// refuse the whole batch up front, rather than failing halfway through it
+		for (MiBoxFile record : changes.values()) {
+			if (record != null) {
+				checkHash(record.getHash());
+				checkHash(record.getLastSyncedHash());
+			}
+		}
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			int oldEnd = end;
+			for (Map.Entry<String, MiBoxFile> change : changes.entrySet()) {
+				byte[] name = encode(change.getKey());
+				int slot = findSlot(change.getKey(), name);
+				MiBoxFile record = change.getValue();
+				if (record != null) {
+					if (slots[slot] != 0) {
+						// same name, so the record has the same size: overwrite it
+						writeFixedFields(offsetOf(slots[slot]) + NAME_OFFSET + name.length, record);
+					} else {
+						int offset = append(name, record);
+						slots[slot] = ((long) hash(change.getKey()) << 32) | offset;
+						liveRecords++;
+						if (liveRecords * 2 > slots.length) {
+							rehash(slots.length * 2);
+						}
+					}
+				} else if (slots[slot] != 0) {
+					int offset = offsetOf(slots[slot]);
+					buffer.put(offset + 4, (byte) 0);
+					deadBytes += buffer.getInt(offset);
+					removeSlot(slot);
+					liveRecords--;
+				}
+			}
+			// make the records durable before the header points at the appended ones
+			if (forceWrites && end != oldEnd) {
+				buffer.force();
+			}
+			writeHeader();
+			if (forceWrites) {
+				buffer.force();
+			}
+			if (isWorthCompacting()) {
+				compact();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			closeFile();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of files in the index
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return liveRecords;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return bytes of the index file taken up by records of deleted files
+	 */
+	public long getDeadBytes() {
+		lock.readLock().lock();
+		try {
+			return deadBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void open() throws IOException {
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		boolean isNew = randomAccessFile.length() == 0;
+		if (isNew) {
+			randomAccessFile.setLength(INITIAL_CAPACITY);
+		}
+		buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+		if (isNew) {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			end = HEADER_SIZE;
+			deadBytes = 0;
+			writeHeader();
+		}
+	}
+
+	// read the header and rebuild the lookup table from the live records
+	private void load() throws IOException {
+		slots = new long[1024];
+		liveRecords = 0;
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			closeFile();
+			throw new IOException(file + " is not a MiBox file index");
+		}
+		end = (int) buffer.getLong(END_OFFSET);
+		deadBytes = buffer.getLong(DEAD_BYTES_OFFSET);
+		for (int offset = HEADER_SIZE; offset < end; offset += buffer.getInt(offset)) {
+			int length = buffer.getInt(offset);
+			if (length < FIXED_SIZE || offset + length > end) {
+				closeFile();
+				throw new IOException(file + " is corrupt at offset " + offset);
+			}
+			if (isLive(offset)) {
+				String name = readName(offset);
+				int slot = findSlot(name, encode(name));
+				slots[slot] = ((long) hash(name) << 32) | offset;
+				liveRecords++;
+				if (liveRecords * 2 > slots.length) {
+					rehash(slots.length * 2);
+				}
+			}
+		}
+	}
+
+	private void closeFile() {
+		try {
+			if (randomAccessFile != null) {
+				randomAccessFile.close();
+			}
+		} catch (IOException ex) {
+			; // nothing left to do with it
+		}
+		randomAccessFile = null;
+		buffer = null; // the mapping goes away once it's garbage collected
+	}
+
+	private void checkOpen() throws IOException {
+		if (buffer == null) throw new IOException("File index " + file + " is closed");
+	}
+
+	private boolean isWorthCompacting() {
+		return deadBytes >= MIN_COMPACT_BYTES && deadBytes * 2 > end - HEADER_SIZE;
+	}
+
+	private File getCompactFile() {
+		return new File(file.getPath() + ".compact");
+	}
+
+	// copy the live records to the side file, then back over the index file
+	private void compact() throws IOException {
+		File compacted = getCompactFile();
+		RandomAccessFile target = new RandomAccessFile(compacted, "rw");
+		try {
+			target.setLength(0);
+			FileChannel channel = target.getChannel();
+			int targetEnd = HEADER_SIZE;
+			ByteBuffer source = buffer.duplicate();
+			for (int offset = HEADER_SIZE; offset < end; offset += buffer.getInt(offset)) {
+				if (!isLive(offset)) continue;
+				int length = buffer.getInt(offset);
+				source.limit(offset + length).position(offset);
+				writeFully(channel, source, targetEnd);
+				source.limit(source.capacity());
+				targetEnd += length;
+			}
+			// the header goes last, so a side file that has one is finished
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putLong(END_OFFSET, targetEnd);
+			header.putLong(DEAD_BYTES_OFFSET, 0);
+			channel.force(false);
+			writeFully(channel, header, 0);
+			channel.force(false);
+		} finally {
+			target.close();
+		}
+		copyBack(compacted);
+	}
+
+	// copy a finished side file over the start of the index file, delete it, and reload the index
+	private void copyBack(File compacted) throws IOException {
+		RandomAccessFile source = new RandomAccessFile(compacted, "r");
+		try {
+			long length = source.length();
+			if (length >= HEADER_SIZE && length <= buffer.capacity() && source.readInt() == MAGIC) {
+				FileChannel channel = source.getChannel();
+				ByteBuffer target = buffer.duplicate();
+				target.limit((int) length).position(0);
+				while (target.hasRemaining()) {
+					if (channel.read(target, target.position()) < 0) {
+						throw new IOException(compacted + " got shorter while it was copied");
+					}
+				}
+				buffer.force();
+			}
+		} finally {
+			source.close();
+		}
+		if (!compacted.delete()) {
+			throw new IOException("Failed to delete " + compacted);
+		}
+		load();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+		while (data.hasRemaining()) {
+			position += channel.write(data, position);
+		}
+	}
+
+	private void writeHeader() {
+		buffer.putLong(END_OFFSET, end);
+		buffer.putLong(DEAD_BYTES_OFFSET, deadBytes);
+	}
+
+	private int append(byte[] name, MiBoxFile record) throws IOException {
+		if (name.length > 0xFFFF) throw new IOException("File name too long for the file index: " + record.getName());
+		int length = FIXED_SIZE + name.length;
+		ensureCapacity((long) end + length);
+		int offset = end;
+		buffer.putInt(offset, length);
+		buffer.put(offset + 4, (byte) 1);
+		buffer.putShort(offset + 5, (short) name.length);
+		ByteBuffer target = buffer.duplicate();
+		target.position(offset + NAME_OFFSET);
+		target.put(name);
+		writeFixedFields(offset + NAME_OFFSET + name.length, record);
+		end += length;
+		return offset;
+	}
+
+	private void ensureCapacity(long needed) throws IOException {
+		if (needed <= buffer.capacity()) return;
+		long capacity = Math.max(needed, (long) buffer.capacity() * 2);
+		if (capacity > Integer.MAX_VALUE) {
+			if (needed > Integer.MAX_VALUE) throw new IOException("File index " + file + " can't grow beyond 2 GB");
+			capacity = Integer.MAX_VALUE;
+		}
+		randomAccessFile.setLength(capacity);
+		buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	private void writeFixedFields(int fixed, MiBoxFile record) {
+		buffer.putLong(fixed, toMillis(record.getLastModifiedTime()));
+		buffer.putLong(fixed + 8, toMillis(record.getLastSyncedLastModifiedTime()));
+		buffer.putLong(fixed + 16, toMillis(record.getLastSyncTime()));
+		writeHash(fixed + 24, record.getHash());
+		writeHash(fixed + 24 + 1 + MAX_HASH_BYTES, record.getLastSyncedHash());
+	}
+
+	private static void checkHash(String hash) {
+		if (hash == null) return;
+		boolean valid = hash.length() % 2 == 0 && hash.length() <= MAX_HASH_BYTES * 2;
+		for (int i = 0; valid && i < hash.length(); i++) {
+			valid = Character.digit(hash.charAt(i), 16) >= 0;
+		}
+		if (!valid) {
+			throw new IllegalArgumentException("Not a hash the file index can store: " + hash);
+		}
+	}
+
+	private void writeHash(int offset, String hash) {
+		if (hash == null) {
+			buffer.put(offset, (byte) -1);
+			return;
+		}
+		buffer.put(offset, (byte) (hash.length() / 2));
+		for (int i = 0; i < hash.length() / 2; i++) {
+			int high = Character.digit(hash.charAt(2 * i), 16);
+			int low = Character.digit(hash.charAt(2 * i + 1), 16);
+			buffer.put(offset + 1 + i, (byte) (high << 4 | low));
+		}
+	}
+
+	private MiBoxFile readRecord(int offset) {
+		int fixed = offset + NAME_OFFSET + nameLength(offset);
+		return new MiBoxFile(readName(offset), readHash(fixed + 24), toDate(buffer.getLong(fixed)),
+				toDate(buffer.getLong(fixed + 8)), readHash(fixed + 24 + 1 + MAX_HASH_BYTES), toDate(buffer.getLong(fixed + 16)));
+	}
+
+	private String readHash(int offset) {
+		int length = buffer.get(offset);
+		if (length < 0) return null;
+		char[] hex = new char[length * 2];
+		for (int i = 0; i < length; i++) {
+			int b = buffer.get(offset + 1 + i) & 0xFF;
+			hex[2 * i] = HEX[b >>> 4];
+			hex[2 * i + 1] = HEX[b & 0x0F];
+		}
+		return new String(hex);
+	}
+
+	private boolean isLive(int offset) {
+		return buffer.get(offset + 4) != 0;
+	}
+
+	private int nameLength(int offset) {
+		return buffer.getShort(offset + 5) & 0xFFFF;
+	}
+
+	private String readName(int offset) {
+		byte[] name = new byte[nameLength(offset)];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset + NAME_OFFSET);
+		source.get(name);
+		return new String(name, UTF8);
+	}
+
+	private boolean nameStartsWith(int offset, byte[] prefix) {
+		if (nameLength(offset) < prefix.length) return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (buffer.get(offset + NAME_OFFSET + i) != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	// slot holding the name, or the free slot where it would go
+	private int findSlot(String name, byte[] encodedName) {
+		int hash = hash(name);
+		int mask = slots.length - 1;
+		for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+			long entry = slots[slot];
+			if (entry == 0) return slot;
+			if ((int) (entry >>> 32) == hash) {
+				int offset = offsetOf(entry);
+				if (nameLength(offset) == encodedName.length && nameStartsWith(offset, encodedName)) {
+					return slot;
+				}
+			}
+		}
+	}
+
+	// backward shift deletion, so lookups never have to step over removed entries
+	private void removeSlot(int slot) {
+		int mask = slots.length - 1;
+		int free = slot;
+		for (int next = (free + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+			int home = mix((int) (slots[next] >>> 32)) & mask;
+			// move the entry into the gap unless its home lies (cyclically) between the gap and where it is
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				slots[free] = slots[next];
+				free = next;
+			}
+		}
+		slots[free] = 0;
+	}
+
+	private void rehash(int capacity) {
+		long[] old = slots;
+		slots = new long[capacity];
+		int mask = capacity - 1;
+		for (long entry : old) {
+			if (entry == 0) continue;
+			int slot = mix((int) (entry >>> 32)) & mask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = entry;
+		}
+	}
+
+	private static int offsetOf(long entry) {
+		return (int) entry;
+	}
+
+	private static int hash(String name) {
+		return name.hashCode();
+	}
+
+	// spread String.hashCode's bits, which cluster for similar paths
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static byte[] encode(String name) {
+		return name.getBytes(UTF8);
+	}
+
+	private static long toMillis(Date date) {
+		return date == null ? NULL_TIME : date.getTime();
+	}
+
+	private static Date toDate(long millis) {
+		return millis == NULL_TIME ? null : new Date(millis);
+	}
+}
@@ -1,33 +1,57 @@
 package com.robwilliams.mibox.util;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Method;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Date;
 
 import org.jets3t.service.Constants;
 import org.jets3t.service.acl.AccessControlList;
-import org.jets3t.service.io.BytesProgressWatcher;
 import org.jets3t.service.model.S3Object;
 import org.jets3t.service.security.EncryptionUtil;
 import org.jets3t.service.utils.Mimetypes;
-import org.jets3t.service.utils.ObjectUtils;
 import org.jets3t.service.utils.ServiceUtils;
 
 import com.robwilliams.mibox.Global;
 
 public class S3Util {
 	
+	private static final String ENCRYPTION_ALGORITHM = "PBEWITHSHA256AND128BITAES-CBC-BC";
+	private static final String ENCRYPTION_VERSION = "2";
+	
 	public static EncryptionUtil getEncryptionUtil() throws Exception {
-		return new EncryptionUtil(Global.getConfig().getEncryptionKey(), "PBEWITHSHA256AND128BITAES-CBC-BC", "2");
+		return getCryptoContext().getEncryptionUtil();
+	}
+	
+	/**
+	 * @return the shared CryptoContext uploads are encrypted with, so the key is only derived once
+	 */
+	public static CryptoContext getCryptoContext() throws Exception {
+		return CryptoContext.get(ENCRYPTION_ALGORITHM, ENCRYPTION_VERSION);
 	}
 	
 	/**
 	 * Basically I just copied the ObjectUtils.createObjectForUpload from JetS3t's ObjectUtils, so that it could work
 	 * with a pre-computed hash. In the case of MiBox, that hash comes from local DB record and can potentially
 	 * save a lot of computation time.
+	 * <br><br>
+	 * Unlike JetS3t, the data file is only read once: it is encrypted into a temp file while the MD5 hashes
+	 * of both the original and the encrypted data are computed on the fly. The chunked blobFormat (see ChunkedCipher)
+	 * reads it twice, since the file's key is derived from its content, unless objectKey is a content hash already.
+	 * <br><br>
+	 * If objectKey is a content hash (see HashUtil), the file is checked against it while it's encrypted, so a file that
+	 * changed since it was hashed isn't uploaded under its old hash.
+	 * <br><br>
+	 * The caller has to delete the object's data input file once it's done with it: temp files aren't deleted when
+	 * the JVM exits, since a daemon would keep a list of thousands of them for good.
 	 * @param objectKey If null, it will be set to the hash.
 	 * @param dataFile
 	 * @param hash Precomputed hash. If null, the hash will be computed.
@@ -36,6 +60,7 @@ public class S3Util {
 	 */
 	public static S3Object createObjectForUploadWithPrecomputedHash(String objectKey, File dataFile, String hash) throws Exception {
 	    S3Object s3Object = new S3Object(objectKey != null ? objectKey : "dummy"); // if key is null, set key to dummy and change to hash at end
+	    boolean contentKeyed = objectKey != null && HashUtil.isContentHash(objectKey);
 	
 	    // Set object explicitly to private access by default.
 	    s3Object.setAcl(AccessControlList.REST_CANNED_PRIVATE);
@@ -47,37 +72,160 @@ public class S3Util {
 	        s3Object.setContentLength(0);
 	        s3Object.setContentType(Mimetypes.MIMETYPE_BINARY_OCTET_STREAM);
 	    } else {
-	        s3Object.setContentType(Mimetypes.getInstance().getMimetype(dataFile));
-	        // hack: use reflection to call private method of JetS3t
-	        Method transformMethod = ObjectUtils.class.getDeclaredMethod("transformUploadFile", File.class, S3Object.class, EncryptionUtil.class, boolean.class, BytesProgressWatcher.class);
-	        transformMethod.setAccessible(true); // mark as non-private
-	        File uploadFile = (File) transformMethod.invoke(null, dataFile, s3Object, getEncryptionUtil(), false, (BytesProgressWatcher) null);
+	        // encrypt to a temp file, hashing what we read and what we write along the way
+	        MessageDigest originalDigest = MessageDigest.getInstance("MD5");
+	        MessageDigest uploadDigest = MessageDigest.getInstance("MD5");
+	        MessageDigest contentDigest = MessageDigest.getInstance("SHA-256");
+	        InputStream in;
+	        long length = dataFile.length();
+	        byte[] keyDigest = null;
+	        if (!contentKeyed && ChunkedCipher.FORMAT_NAME.equals(Global.getConfig().getBlobFormat())) {
+	        	// the chunked format derives the data key from the content hash, so the file has to be hashed first
+	        	length = digestFile(dataFile, originalDigest, contentDigest);
+	        	keyDigest = contentDigest.digest();
+	        	in = new BufferedInputStream(new FileInputStream(dataFile));
+	        } else {
+	        	in = new DigestInputStream(new BufferedInputStream(new FileInputStream(dataFile)), originalDigest);
+	        	if (contentKeyed) {
+	        		in = new DigestInputStream(in, contentDigest);
+	        		keyDigest = HashUtil.fromHex(objectKey);
+	        	}
+	        }
+	        File uploadFile = encryptToTempFile(s3Object, in, length, keyDigest, uploadDigest);
+	        if (contentKeyed && !HashUtil.toHex(contentDigest.digest()).equals(objectKey)) {
+	        	uploadFile.delete();
+	        	throw new IOException(dataFile + " changed since it was hashed");
+	        }
+	        SyncStats.addEncryptedBytes(dataFile.length());
+	        
+	        s3Object.setContentType(Mimetypes.MIMETYPE_OCTET_STREAM);
 	        s3Object.setContentLength(uploadFile.length());
 	        s3Object.setDataInputFile(uploadFile);
 	
-	        // Compute the upload file's MD5 hash.
-	        InputStream inputStream = new BufferedInputStream(new FileInputStream(uploadFile));
+	        // MD5 hash of the upload file (which is also its key, unless it's keyed by content)
 	        if (hash != null) {
 	        	s3Object.setMd5Hash(ServiceUtils.fromHex(hash));
 	        } else {
-	        	s3Object.setMd5Hash(ServiceUtils.computeMD5Hash(inputStream));
+	        	s3Object.setMd5Hash(uploadDigest.digest());
 	        }
 	        
-	        if (!uploadFile.equals(dataFile)) {
-	            // Compute the MD5 hash of the *original* file, if upload file has been altered
-	            // through encryption or gzipping.
-	            inputStream = new BufferedInputStream(new FileInputStream(dataFile));
-	
-	            s3Object.addMetadata(
-	                S3Object.METADATA_HEADER_ORIGINAL_HASH_MD5,
-	                ServiceUtils.toBase64(ServiceUtils.computeMD5Hash(inputStream)));
-	        }
+	        // MD5 hash of the *original* file, since upload file has been altered through encryption
+	        s3Object.addMetadata(
+	            S3Object.METADATA_HEADER_ORIGINAL_HASH_MD5,
+	            ServiceUtils.toBase64(originalDigest.digest()));
 	    }
-	    s3Object.setKey(s3Object.getMd5HashAsHex());
+	    s3Object.setKey(contentKeyed ? objectKey : s3Object.getMd5HashAsHex());
 	    return s3Object;
 	}
 	
 	public static S3Object createObjectForUpload(File dataFile) throws Exception {
 		return createObjectForUploadWithPrecomputedHash(null, dataFile, null);
 	}
+	
+	/**
+	 * Like createObjectForUploadWithPrecomputedHash, for data that isn't a file in the box, such as a chunk of one
+	 * or a chunk manifest (see ChunkedStorage). The data is checked against its hash while it's encrypted.
+	 * The caller has to delete the object's data input file, the same way.
+	 * @param objectKey key to store the data under
+	 * @param data the data, which is read to the end and closed
+	 * @param length how long the data is
+	 * @param contentHash SHA-256 of the data (see HashUtil)
+	 * @return
+	 * @throws Exception
+	 */
+	public static S3Object createObjectForUpload(String objectKey, InputStream data, long length, String contentHash) throws Exception {
+		S3Object s3Object = new S3Object(objectKey);
+		s3Object.setAcl(AccessControlList.REST_CANNED_PRIVATE);
+		MessageDigest originalDigest = MessageDigest.getInstance("MD5");
+		MessageDigest uploadDigest = MessageDigest.getInstance("MD5");
+		MessageDigest contentDigest = MessageDigest.getInstance("SHA-256");
+		InputStream in = new DigestInputStream(new DigestInputStream(data, originalDigest), contentDigest);
+		File uploadFile = encryptToTempFile(s3Object, in, length, HashUtil.fromHex(contentHash), uploadDigest);
+		if (!HashUtil.toHex(contentDigest.digest()).equals(contentHash)) {
+			uploadFile.delete();
+			throw new IOException("Data for " + objectKey + " changed since it was hashed");
+		}
+		SyncStats.addEncryptedBytes(length);
+		s3Object.setContentType(Mimetypes.MIMETYPE_OCTET_STREAM);
+		s3Object.setContentLength(uploadFile.length());
+		s3Object.setDataInputFile(uploadFile);
+		s3Object.setMd5Hash(uploadDigest.digest());
+		s3Object.addMetadata(S3Object.METADATA_HEADER_ORIGINAL_HASH_MD5, ServiceUtils.toBase64(originalDigest.digest()));
+		return s3Object;
+	}
+	
+	/**
+	 * Encrypt data into a new temp file in the configured blobFormat, adding the metadata downloads need
+	 * to decrypt it to the object.
+	 * @param in the data, which is closed afterwards
+	 * @param length how long the data is
+	 * @param keyDigest SHA-256 of the data, which the chunked format derives the data key from (unused otherwise)
+	 * @param uploadDigest updated with every byte written to the temp file
+	 * @return the temp file
+	 * @throws Exception
+	 */
+	private static File encryptToTempFile(S3Object s3Object, InputStream in, long length, byte[] keyDigest, MessageDigest uploadDigest) throws Exception {
+		String blobFormat = Global.getConfig().getBlobFormat();
+		if (ChunkedCipher.FORMAT_NAME.equals(blobFormat)) {
+			File uploadFile = copyToTempFile(ChunkedCipher.get().encrypt(in, length, keyDigest, Global.getConfig().getBlobChunkBytes()), uploadDigest);
+			s3Object.addMetadata(ChunkedCipher.METADATA_FORMAT, ChunkedCipher.FORMAT_NAME);
+			return uploadFile;
+		} else if ("jets3t".equals(blobFormat)) {
+			CryptoContext cryptoContext = getCryptoContext();
+			File uploadFile = copyToTempFile(cryptoContext.encrypt(in), uploadDigest);
+			// same metadata JetS3t adds to encrypted uploads, so that downloads know how to decrypt
+			s3Object.addMetadata(Constants.METADATA_JETS3T_CRYPTO_ALGORITHM, cryptoContext.getAlgorithm());
+			s3Object.addMetadata(Constants.METADATA_JETS3T_CRYPTO_VERSION, ENCRYPTION_VERSION);
+			return uploadFile;
+		} else {
+			in.close();
+			throw new IllegalArgumentException("Unknown blobFormat: " + blobFormat);
+		}
+	}
+	
+	/**
+	 * Write encrypted data into a new temp file.
+	 * @param in the encrypted data, which is closed afterwards
+	 * @param encryptedDigest updated with every byte written to the temp file
+	 * @return the temp file
+	 * @throws Exception
+	 */
+	private static File copyToTempFile(InputStream in, MessageDigest encryptedDigest) throws Exception {
+		OutputStream out = null;
+		try {
+			File tempFile = File.createTempFile("MiBox", ".tmp");
+			out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)), encryptedDigest);
+			byte[] buffer = new byte[64 * 1024];
+			int len;
+			while ((len = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, len);
+			}
+			return tempFile;
+		} finally {
+			in.close();
+			if (out != null) out.close();
+		}
+	}
+	
+	/**
+	 * Read a file through some digests.
+	 * @return how long the file is
+	 */
+	private static long digestFile(File dataFile, MessageDigest... digests) throws Exception {
+		InputStream in = new FileInputStream(dataFile);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			long length = 0;
+			int len;
+			while ((len = in.read(buffer)) >= 0) {
+				for (MessageDigest digest : digests) {
+					digest.update(buffer, 0, len);
+				}
+				length += len;
+			}
+			return length;
+		} finally {
+			in.close();
+		}
+	}
 }
@@ -0,0 +1,79 @@
+package com.robwilliams.mibox.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
+import com.j256.ormlite.jdbc.JdbcPooledConnectionSource;
+import com.j256.ormlite.logger.Logger;
+import com.j256.ormlite.support.DatabaseConnection;
+
+/**
+ * Pooled ORMLite connection source for the local SQLite database, which tunes every connection it opens:
+ * <ul>
+ * <li>write-ahead log journaling, so readers never wait for a write transaction (and the other way around)</li>
+ * <li>the configured synchronous level. NORMAL only syncs the log at checkpoints, instead of on every commit</li>
+ * <li>the configured mmap size, so reads of a warm index don't copy pages through read() calls</li>
+ * <li>a busy timeout, since other connections may write at the same time</li>
+ * </ul>
+ * Plain JDBC connections with the same settings can be opened with openConnection().
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class SQLiteConnectionSource extends JdbcPooledConnectionSource {
+
+	// how long a connection waits for another one's write lock before giving up
+	private static final int BUSY_TIMEOUT_MILLIS = 30000;
+
+	private final String synchronous;
+	private final long mmapSizeBytes;
+
+	/**
+	 * @param url JDBC URL of the database, e.g. jdbc:sqlite:file_index.db
+	 * @param synchronous SQLite synchronous level: OFF, NORMAL or FULL
+	 * @param mmapSizeBytes how much of the database file may be memory-mapped (0 for none)
+	 * @param maxConnectionsFree how many idle connections the pool keeps open
+	 * @throws SQLException
+	 */
+	public SQLiteConnectionSource(String url, String synchronous, long mmapSizeBytes, int maxConnectionsFree) throws SQLException {
+		super(url);
+		if (!synchronous.matches("(?i)OFF|NORMAL|FULL|EXTRA")) {
+			throw new IllegalArgumentException("Unknown SQLite synchronous level: " + synchronous);
+		}
+		this.synchronous = synchronous.toUpperCase();
+		this.mmapSizeBytes = mmapSizeBytes;
+		setMaxConnectionsFree(Math.max(1, maxConnectionsFree));
+	}
+
+	/**
+	 * Open a plain JDBC connection with the same settings as the pooled ones. The caller must close it.
+	 * @return the connection
+	 * @throws SQLException
+	 */
+	public Connection openConnection() throws SQLException {
+		Connection connection = DriverManager.getConnection(getUrl());
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				statement.execute("PRAGMA journal_mode = WAL");
+				statement.execute("PRAGMA synchronous = " + synchronous);
+				statement.execute("PRAGMA mmap_size = " + mmapSizeBytes);
+				statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS);
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException ex) {
+			connection.close();
+			throw ex;
+		}
+		return connection;
+	}
+
+	@Override
+	protected DatabaseConnection makeConnection(Logger logger) throws SQLException {
+		return new JdbcDatabaseConnection(openConnection());
+	}
+}
@@ -0,0 +1,318 @@
+package com.robwilliams.mibox.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.robwilliams.mibox.dataObjects.MiBoxFile;
+
+/**
+ * The local file index kept in the local_files table of the SQLite database (the default engine).
+ * Looking up one file by name and writing a batch of changes use prepared statements that are kept
+ * open, instead of having ORMLite build and prepare the same statement for every call.
+ * <br><br>
+ * Writes go through one dedicated connection, so batches never compete with each other for SQLite's
+ * write lock. Lookups borrow one of a fixed number of read connections. The database is in WAL mode
+ * (see SQLiteConnectionSource), so lookups from merge or watcher threads carry on while a batch is
+ * being written, and see the index as of the last commit.
+ * <br><br>
+ * Connections and statements are opened on first use, since the table may not exist yet when this
+ * object is created.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class SQLiteFileIndex implements FileIndex {
+
+	private static final String COLUMNS = "name, hash, lastModifiedTime, lastSyncedLastModifiedTime, lastSyncedHash, lastSyncTime";
+	private static final String SELECT_SQL = "SELECT " + COLUMNS + " FROM local_files WHERE name = ?";
+	private static final String UPSERT_SQL = "INSERT OR REPLACE INTO local_files (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?)";
+	private static final String DELETE_SQL = "DELETE FROM local_files WHERE name = ?";
+	// '0' is the character after '/', so this is every name starting with the prefix
+	private static final String PREFIX_SQL = "SELECT " + COLUMNS + " FROM local_files WHERE name >= ? AND name < ?";
+	private static final String RECENT_SQL = "SELECT " + COLUMNS + " FROM local_files WHERE lastSyncTime > ? OR lastSyncTime IS NULL";
+	private static final String SYNCED_SQL = "SELECT name, lastModifiedTime FROM local_files WHERE lastSyncTime <= ?";
+
+	// a connection with its prepared statements
+	private static class IndexConnection {
+		final Connection connection;
+		final List<PreparedStatement> statements = new ArrayList<PreparedStatement>();
+
+		IndexConnection(Connection connection) {
+			this.connection = connection;
+		}
+
+		PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement statement = connection.prepareStatement(sql);
+			statements.add(statement);
+			return statement;
+		}
+
+		void close() {
+			try {
+				for (PreparedStatement statement : statements) {
+					statement.close();
+				}
+				connection.close();
+			} catch (SQLException ex) {
+				; // nothing left to do with it
+			}
+		}
+	}
+
+	private static class Reader extends IndexConnection {
+		final PreparedStatement select;
+
+		Reader(Connection connection) throws SQLException {
+			super(connection);
+			select = prepare(SELECT_SQL);
+		}
+	}
+
+	private static class Writer extends IndexConnection {
+		final PreparedStatement upsert;
+		final PreparedStatement delete;
+
+		Writer(Connection connection) throws SQLException {
+			super(connection);
+			upsert = prepare(UPSERT_SQL);
+			delete = prepare(DELETE_SQL);
+		}
+	}
+
+	private final SQLiteConnectionSource connectionSource;
+	private final int readConnections;
+	// idle readers. Fewer than readConnections may have been opened so far.
+	private final BlockingQueue<Reader> readers;
+	private int openedReaders; // guarded by readers
+	private Writer writer; // guarded by this
+	private volatile boolean closed;
+
+	/**
+	 * @param connectionSource where the connections come from
+	 * @param readConnections most lookups running at the same time
+	 */
+	public SQLiteFileIndex(SQLiteConnectionSource connectionSource, int readConnections) {
+		this.connectionSource = connectionSource;
+		this.readConnections = Math.max(1, readConnections);
+		this.readers = new ArrayBlockingQueue<Reader>(this.readConnections);
+	}
+
+	public MiBoxFile queryForName(String name) throws SQLException {
+		Reader reader = borrowReader();
+		boolean healthy = false;
+		try {
+			reader.select.setString(1, name);
+			ResultSet results = reader.select.executeQuery();
+			try {
+				MiBoxFile record = null;
+				if (results.next()) {
+					record = readRecord(results);
+				}
+				healthy = true;
+				return record;
+			} finally {
+				results.close();
+			}
+		} finally {
+			returnReader(reader, healthy);
+		}
+	}
+
+	public List<MiBoxFile> queryForPrefix(String directoryPrefix) throws SQLException {
+		List<MiBoxFile> records = new ArrayList<MiBoxFile>();
+		Reader reader = borrowReader();
+		boolean healthy = false;
+		try {
+			PreparedStatement statement = reader.connection.prepareStatement(PREFIX_SQL);
+			try {
+				statement.setString(1, directoryPrefix);
+				statement.setString(2, directoryPrefix.substring(0, directoryPrefix.length() - 1) + "0");
+				ResultSet results = statement.executeQuery();
+				while (results.next()) {
+					records.add(readRecord(results));
+				}
+				results.close();
+			} finally {
+				statement.close();
+			}
+			healthy = true;
+			return records;
+		} finally {
+			returnReader(reader, healthy);
+		}
+	}
+
+	public void scan(Date lastSyncDate, ScanVisitor visitor) throws Exception {
+		Reader reader = borrowReader();
+		boolean healthy = false;
+		try {
+			// files synced since lastSyncDate (usually only a few), then just name and last modified time of the rest
+			PreparedStatement recent = reader.connection.prepareStatement(RECENT_SQL);
+			try {
+				setDate(recent, 1, lastSyncDate);
+				ResultSet results = recent.executeQuery();
+				try {
+					while (results.next()) {
+						visitor.visitRecentlySynced(readRecord(results));
+					}
+				} finally {
+					results.close();
+				}
+			} finally {
+				recent.close();
+			}
+			PreparedStatement synced = reader.connection.prepareStatement(SYNCED_SQL);
+			try {
+				setDate(synced, 1, lastSyncDate);
+				ResultSet results = synced.executeQuery();
+				try {
+					while (results.next()) {
+						Timestamp lastModifiedTime = results.getTimestamp(2);
+						visitor.visitSynced(results.getString(1), lastModifiedTime == null ? Long.MIN_VALUE : lastModifiedTime.getTime());
+					}
+				} finally {
+					results.close();
+				}
+			} finally {
+				synced.close();
+			}
+			healthy = true;
+		} finally {
+			returnReader(reader, healthy);
+		}
+	}
+
+	/**
+	 * Write a batch of changes in one transaction.
+	 * @throws SQLException if the batch could not be written, in which case none of it was
+	 */
+	public synchronized void write(Map<String, MiBoxFile> changes) throws SQLException {
+		if (closed) throw new SQLException("File index is closed");
+		if (writer == null) {
+			writer = new Writer(connectionSource.openConnection());
+		}
+		Connection connection = writer.connection;
+		connection.setAutoCommit(false);
+		try {
+			int upserts = 0;
+			int deletes = 0;
+			for (Map.Entry<String, MiBoxFile> change : changes.entrySet()) {
+				MiBoxFile record = change.getValue();
+				if (record != null) {
+					writer.upsert.setString(1, record.getName());
+					writer.upsert.setString(2, record.getHash());
+					setDate(writer.upsert, 3, record.getLastModifiedTime());
+					setDate(writer.upsert, 4, record.getLastSyncedLastModifiedTime());
+					writer.upsert.setString(5, record.getLastSyncedHash());
+					setDate(writer.upsert, 6, record.getLastSyncTime());
+					writer.upsert.addBatch();
+					upserts++;
+				} else {
+					writer.delete.setString(1, change.getKey());
+					writer.delete.addBatch();
+					deletes++;
+				}
+			}
+			// a file is in the batch only once, so the order between upserts and deletes doesn't matter
+			if (upserts > 0) writer.upsert.executeBatch();
+			if (deletes > 0) writer.delete.executeBatch();
+			connection.commit();
+		} catch (SQLException ex) {
+			try {
+				connection.rollback();
+			} catch (SQLException rollbackEx) {
+				; // the original failure is the one worth reporting
+			}
+			writer.upsert.clearBatch();
+			writer.delete.clearBatch();
+			throw ex;
+		} finally {
+			connection.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * Close every connection. Lookups still running close theirs when they finish.
+	 * The connection source itself is left open.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			if (writer != null) {
+				writer.close();
+				writer = null;
+			}
+		}
+		synchronized (readers) {
+			Reader reader;
+			while ((reader = readers.poll()) != null) {
+				reader.close();
+				openedReaders--;
+			}
+		}
+	}
+
+	private Reader borrowReader() throws SQLException {
+		while (true) {
+			synchronized (readers) {
+				if (closed) throw new SQLException("File index is closed");
+				Reader reader = readers.poll();
+				if (reader != null) return reader;
+				if (openedReaders < readConnections) {
+					reader = new Reader(connectionSource.openConnection());
+					openedReaders++;
+					return reader;
+				}
+			}
+			// every reader is busy, so wait for one to come back (or to be closed, which makes room for a new one)
+			try {
+				Reader reader = readers.poll(100, TimeUnit.MILLISECONDS);
+				if (reader != null) return reader;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a file index connection", ex);
+			}
+		}
+	}
+
+	private void returnReader(Reader reader, boolean healthy) {
+		synchronized (readers) {
+			if (healthy && !closed) {
+				readers.offer(reader);
+			} else {
+				// don't hand out a connection in an unknown state, a new one is opened when needed
+				reader.close();
+				openedReaders--;
+			}
+		}
+	}
+
+	// dates are stored the way ORMLite stores them, so both can read each other's rows
+	private static void setDate(PreparedStatement statement, int index, Date date) throws SQLException {
+		if (date == null) {
+			statement.setNull(index, Types.TIMESTAMP);
+		} else {
+			statement.setTimestamp(index, new Timestamp(date.getTime()));
+		}
+	}
+
+	private static MiBoxFile readRecord(ResultSet results) throws SQLException {
+		return new MiBoxFile(results.getString(1), results.getString(2), toDate(results.getTimestamp(3)),
+				toDate(results.getTimestamp(4)), results.getString(5), toDate(results.getTimestamp(6)));
+	}
+
+	private static Date toDate(Timestamp timestamp) {
+		return timestamp == null ? null : new Date(timestamp.getTime());
+	}
+}
@@ -0,0 +1,125 @@
+package com.robwilliams.mibox.util;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.robwilliams.mibox.Global;
+
+/**
+ * Iterates over every item returned by a SimpleDB select expression. SimpleDB returns results a page
+ * at a time, so this follows the NextToken of each page until there are no more.
+ * <br><br>
+ * As soon as a page arrives, the request for the following page is sent from a background thread,
+ * so the next page is usually already waiting by the time the caller is done with the current one.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class SimpleDBSelectIterator implements Iterator<Item> {
+
+	// SimpleDB returns at most this many items per page, and only 100 unless asked for more
+	public static final int MAX_PAGE_SIZE = 2500;
+
+	private final AmazonSimpleDB sdb;
+	private final String selectExpression;
+	private final ExecutorService prefetcher;
+	private Iterator<Item> currentPage = Collections.<Item>emptyList().iterator();
+	private Future<SelectResult> nextPage; // null once the last page has been received
+
+	/**
+	 * Starts fetching the first page right away.
+	 * @param sdb
+	 * @param selectExpression the select expression, which should end with a limit clause if more than 100 items per page are wanted
+	 */
+	public SimpleDBSelectIterator(AmazonSimpleDB sdb, String selectExpression) {
+		this.sdb = sdb;
+		this.selectExpression = selectExpression;
+		this.prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "SimpleDB select prefetcher");
+				thread.setDaemon(true); // don't keep the JVM alive if the caller stops iterating early
+				return thread;
+			}
+		});
+		this.nextPage = fetch(null);
+	}
+
+	public boolean hasNext() {
+		while (!currentPage.hasNext() && nextPage != null) {
+			SelectResult result = waitForNextPage();
+			currentPage = result.getItems().iterator();
+			if (result.getNextToken() != null) {
+				nextPage = fetch(result.getNextToken());
+			} else {
+				nextPage = null;
+				prefetcher.shutdown();
+			}
+		}
+		return currentPage.hasNext();
+	}
+
+	public Item next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return currentPage.next();
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stop fetching pages. Only needed if the caller stops before the iterator is exhausted.
+	 */
+	public void close() {
+		nextPage = null;
+		prefetcher.shutdownNow();
+	}
+
+	private Future<SelectResult> fetch(final String nextToken) {
+		return prefetcher.submit(new Callable<SelectResult>() {
+			public SelectResult call() {
+				int retries = 0;
+				while (true) {
+					try {
+						return sdb.select(new SelectRequest(selectExpression).withNextToken(nextToken));
+					} catch (AmazonServiceException ex) {
+						// retry service calls
+						if (retries++ >= Global.getConfig().getServiceCallRetries()) {
+							throw ex;
+						}
+					}
+				}
+			}
+		});
+	}
+
+	private SelectResult waitForNextPage() {
+		try {
+			return nextPage.get();
+		} catch (ExecutionException ex) {
+			close();
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new RuntimeException(ex.getCause());
+		} catch (InterruptedException ex) {
+			close();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for SimpleDB results", ex);
+		}
+	}
+}
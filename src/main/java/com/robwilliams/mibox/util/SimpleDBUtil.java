@@ -1,14 +1,28 @@
 package com.robwilliams.mibox.util;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
 import com.amazonaws.services.simpledb.model.Attribute;
 import com.amazonaws.services.simpledb.model.Item;
 import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.robwilliams.mibox.Global;
 
 public class SimpleDBUtil {
 	
+	// SimpleDB allows at most 20 values in an IN (...) comparison
+	public static final int MAX_IN_VALUES = 20;
+	
 	/**
 	 * Given a SimpleDB select expression which expects a single row result, return either the attribute requested if it exists
 	 * or return the given default value. The default value is also returned if the query returns empty, more than one row, or
@@ -56,4 +70,88 @@ public class SimpleDBUtil {
 	public static String escapeSingleQuotedString(String str) {
 		return str.replaceAll("'", "''");
 	}
+	
+	/**
+	 * Look up many items by name, instead of running one select per item. The names are split into
+	 * itemName() in (...) queries of up to MAX_IN_VALUES each, and up to "threads" of those queries
+	 * are sent at the same time.
+	 * @param sdb AmazonSimpleDB instance to use for the queries
+	 * @param domain domain to select from
+	 * @param attributes attribute list to select, e.g. "*"
+	 * @param itemNames names of the items to look up
+	 * @param condition extra condition every item must meet (e.g. "pendingDeletes > '0'"), or null for none
+	 * @param threads maximum number of queries in flight at once
+	 * @return the items found, keyed by item name. Names which don't exist (or don't meet the condition) are left out.
+	 */
+	public static Map<String, Item> selectItemsByName(final AmazonSimpleDB sdb, String domain, String attributes,
+													  Collection<String> itemNames, String condition, int threads) {
+		Map<String, Item> found = new HashMap<String, Item>();
+		if (itemNames.isEmpty()) {
+			return found;
+		}
+		
+		// build one select expression per chunk of names
+		List<String> selectExpressions = new ArrayList<String>();
+		StringBuilder names = new StringBuilder();
+		int namesInChunk = 0;
+		for (String itemName : itemNames) {
+			if (namesInChunk > 0) names.append(", ");
+			names.append('\'').append(escapeSingleQuotedString(itemName)).append('\'');
+			if (++namesInChunk == MAX_IN_VALUES) {
+				selectExpressions.add(buildItemNameInExpression(domain, attributes, names, condition));
+				names.setLength(0);
+				namesInChunk = 0;
+			}
+		}
+		if (namesInChunk > 0) {
+			selectExpressions.add(buildItemNameInExpression(domain, attributes, names, condition));
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, selectExpressions.size())));
+		try {
+			List<Future<List<Item>>> results = new ArrayList<Future<List<Item>>>();
+			for (final String selectExpression : selectExpressions) {
+				results.add(executor.submit(new Callable<List<Item>>() {
+					public List<Item> call() {
+						int retries = 0;
+						while (true) {
+							try {
+								// a chunk never has more than MAX_IN_VALUES items, so it always fits on a single page (100 items)
+								return sdb.select(new SelectRequest(selectExpression)).getItems();
+							} catch (AmazonServiceException ex) {
+								// retry service calls
+								if (retries++ >= Global.getConfig().getServiceCallRetries()) {
+									throw ex;
+								}
+							}
+						}
+					}
+				}));
+			}
+			for (Future<List<Item>> result : results) {
+				for (Item item : result.get()) {
+					found.put(item.getName(), item);
+				}
+			}
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new RuntimeException(ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for SimpleDB results", ex);
+		} finally {
+			executor.shutdownNow();
+		}
+		return found;
+	}
+	
+	private static String buildItemNameInExpression(String domain, String attributes, CharSequence quotedNames, String condition) {
+		String selectExpression = "select " + attributes + " from `" + domain + "` where itemName() in (" + quotedNames + ")";
+		if (condition != null) {
+			selectExpression += " and (" + condition + ")";
+		}
+		return selectExpression;
+	}
 }
@@ -0,0 +1,300 @@
+package com.robwilliams.mibox.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.BatchDeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.DeletableItem;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import com.robwilliams.mibox.Global;
+import com.robwilliams.mibox.exceptions.SyncActionError;
+
+/**
+ * Collects unconditional SimpleDB writes and sends them as BatchPutAttributes / BatchDeleteAttributes
+ * calls of up to 25 items per domain, instead of one PutAttributes or DeleteAttributes call per item.
+ * Several puts to the same item are merged into one.
+ * <br><br>
+ * A domain's batch is sent as soon as it is full, or once its oldest write has waited maxDelayMillis.
+ * Anything that needs to be on the cloud before continuing (e.g. before the last sync date is recorded)
+ * must be followed by flush(). Conditional puts can't be batched by SimpleDB, so they still go straight to sdb.
+ * <br><br>
+ * Only one batch is sent at a time, but queueing writes doesn't wait for it: the batch is taken out of the
+ * buffer before it is sent.
+ * <br><br>
+ * Every write is numbered, so that others can wait for particular writes instead of flushing everything:
+ * getLastWrite() numbers the latest one, and every write numbered below getFirstUnsentWrite() has been sent
+ * (see FileIndexWriter). A write whose batch failed is never counted as sent, until the failure has been
+ * thrown from flush().
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class SimpleDBWriteBuffer {
+
+	// SimpleDB accepts at most 25 items per batch call
+	public static final int MAX_BATCH_ITEMS = 25;
+
+	private final AmazonSimpleDB sdb;
+	private final long maxDelayMillis;
+	private final Map<String, DomainBatch> batches = new HashMap<String, DomainBatch>();
+	private final ScheduledExecutorService flusher;
+	// held while a batch is sent, so batches reach SimpleDB in the order they were taken
+	private final Object sendLock = new Object();
+	private long lastWrite; // number of the latest write
+	private long sendingFrom = Long.MAX_VALUE; // first write of the batch being sent right now, if any
+	private long failedFrom = Long.MAX_VALUE; // first write of the batches that failed since the last flush()
+	private RuntimeException sendFailure; // thrown from the next flush()
+
+	// pending writes for one domain. If an item is waiting to be put and deleted, the delete came first.
+	private static class DomainBatch {
+		final Map<String, List<ReplaceableAttribute>> puts = new LinkedHashMap<String, List<ReplaceableAttribute>>();
+		final LinkedHashSet<String> deletes = new LinkedHashSet<String>();
+		long oldestWrite;
+		long firstWrite; // number of the first write in the batch
+
+		boolean isEmpty() {
+			return puts.isEmpty() && deletes.isEmpty();
+		}
+	}
+
+	/**
+	 * @param sdb AmazonSimpleDB instance to send the batches with
+	 * @param maxDelayMillis longest time a write may wait for its batch to fill up
+	 */
+	public SimpleDBWriteBuffer(AmazonSimpleDB sdb, long maxDelayMillis) {
+		this.sdb = sdb;
+		this.maxDelayMillis = maxDelayMillis;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "SimpleDB write buffer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flushOlderThan(System.currentTimeMillis() - SimpleDBWriteBuffer.this.maxDelayMillis);
+			}
+		}, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queue a put of the given attributes, as PutAttributes without an update condition would do.
+	 * @param domain
+	 * @param itemName
+	 * @param attributes
+	 */
+	public void put(String domain, String itemName, List<ReplaceableAttribute> attributes) {
+		boolean full;
+		synchronized (this) {
+			DomainBatch batch = getBatch(domain);
+			lastWrite++;
+			List<ReplaceableAttribute> pending = batch.puts.get(itemName);
+			if (pending == null) {
+				// if the item is waiting to be deleted too, the delete is sent first
+				batch.puts.put(itemName, new ArrayList<ReplaceableAttribute>(attributes));
+			} else {
+				// merge with the earlier put, later replacing values win
+				for (ReplaceableAttribute attribute : attributes) {
+					if (Boolean.TRUE.equals(attribute.getReplace())) {
+						Iterator<ReplaceableAttribute> iterator = pending.iterator();
+						while (iterator.hasNext()) {
+							if (iterator.next().getName().equals(attribute.getName())) {
+								iterator.remove();
+							}
+						}
+					}
+					pending.add(attribute);
+				}
+			}
+			full = batch.puts.size() >= MAX_BATCH_ITEMS;
+		}
+		if (full) {
+			send(domain);
+		}
+	}
+
+	/**
+	 * Queue the deletion of a whole item, as DeleteAttributes without attributes would do.
+	 * @param domain
+	 * @param itemName
+	 */
+	public void delete(String domain, String itemName) {
+		boolean full;
+		synchronized (this) {
+			DomainBatch batch = getBatch(domain);
+			lastWrite++;
+			batch.puts.remove(itemName); // no sense in writing it first
+			batch.deletes.add(itemName);
+			full = batch.deletes.size() >= MAX_BATCH_ITEMS;
+		}
+		if (full) {
+			send(domain);
+		}
+	}
+
+	/**
+	 * Send everything that is still waiting.
+	 * @throws SyncActionError if a batch could not be written, now or since the last flush()
+	 */
+	public void flush() {
+		flushOlderThan(Long.MAX_VALUE);
+		synchronized (this) {
+			failedFrom = Long.MAX_VALUE;
+			if (sendFailure != null) {
+				RuntimeException failure = sendFailure;
+				sendFailure = null;
+				throw failure;
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of the latest write queued, or 0 if there was none yet
+	 */
+	public synchronized long getLastWrite() {
+		return lastWrite;
+	}
+	
+	/**
+	 * @return the number of the first write that is still queued, being sent, or was in a batch that failed
+	 * since the last flush(), or Long.MAX_VALUE if every write has been sent
+	 */
+	public synchronized long getFirstUnsentWrite() {
+		long first = Math.min(sendingFrom, failedFrom);
+		for (DomainBatch batch : batches.values()) {
+			if (!batch.isEmpty()) {
+				first = Math.min(first, batch.firstWrite);
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Flush and stop the background flushing thread.
+	 */
+	public void shutdown() {
+		flusher.shutdown();
+		flush();
+	}
+
+	private void flushOlderThan(long time) {
+		List<String> due = new ArrayList<String>();
+		synchronized (this) {
+			for (Map.Entry<String, DomainBatch> entry : batches.entrySet()) {
+				DomainBatch batch = entry.getValue();
+				if (!batch.isEmpty() && batch.oldestWrite <= time) {
+					due.add(entry.getKey());
+				}
+			}
+		}
+		for (String domain : due) {
+			try {
+				send(domain);
+			} catch (RuntimeException ex) {
+				; // eat exception, send() keeps it for flush()
+			}
+		}
+	}
+
+	// send whatever is waiting for a domain, deletes first
+	private void send(String domain) {
+		synchronized (sendLock) {
+			DomainBatch batch;
+			synchronized (this) {
+				batch = batches.get(domain);
+				if (batch == null || batch.isEmpty()) return;
+				batches.put(domain, new DomainBatch());
+				sendingFrom = batch.firstWrite;
+			}
+			try {
+				sendDeletes(domain, batch);
+				sendPuts(domain, batch);
+			} catch (RuntimeException ex) {
+				// thrown here, and again from the next flush() in case it happened in the background
+				synchronized (this) {
+					failedFrom = Math.min(failedFrom, batch.firstWrite);
+					if (sendFailure == null) {
+						sendFailure = ex;
+					}
+				}
+				throw ex;
+			} finally {
+				synchronized (this) {
+					sendingFrom = Long.MAX_VALUE;
+				}
+			}
+		}
+	}
+
+	private DomainBatch getBatch(String domain) {
+		DomainBatch batch = batches.get(domain);
+		if (batch == null) {
+			batch = new DomainBatch();
+			batches.put(domain, batch);
+		}
+		if (batch.isEmpty()) {
+			batch.oldestWrite = System.currentTimeMillis();
+			batch.firstWrite = lastWrite + 1;
+		}
+		return batch;
+	}
+
+	private void sendPuts(String domain, DomainBatch batch) {
+		List<ReplaceableItem> items = new ArrayList<ReplaceableItem>();
+		for (Map.Entry<String, List<ReplaceableAttribute>> put : batch.puts.entrySet()) {
+			items.add(new ReplaceableItem(put.getKey(), put.getValue()));
+		}
+		// more may have been queued while an earlier batch was sent
+		for (int start = 0; start < items.size(); start += MAX_BATCH_ITEMS) {
+			List<ReplaceableItem> chunk = items.subList(start, Math.min(start + MAX_BATCH_ITEMS, items.size()));
+			int retries = 0;
+			while (true) {
+				try {
+					sdb.batchPutAttributes(new BatchPutAttributesRequest(domain, chunk));
+					break;
+				} catch (AmazonServiceException ex) {
+					// retry service calls
+					if (retries++ >= Global.getConfig().getServiceCallRetries()) {
+						throw new SyncActionError("Failed to write " + chunk.size() + " items to " + domain, ex);
+					}
+				}
+			}
+		}
+	}
+
+	private void sendDeletes(String domain, DomainBatch batch) {
+		List<DeletableItem> items = new ArrayList<DeletableItem>();
+		for (String itemName : batch.deletes) {
+			items.add(new DeletableItem(itemName, null));
+		}
+		for (int start = 0; start < items.size(); start += MAX_BATCH_ITEMS) {
+			List<DeletableItem> chunk = items.subList(start, Math.min(start + MAX_BATCH_ITEMS, items.size()));
+			int retries = 0;
+			while (true) {
+				try {
+					sdb.batchDeleteAttributes(new BatchDeleteAttributesRequest(domain, chunk));
+					break;
+				} catch (AmazonServiceException ex) {
+					// retry service calls
+					if (retries++ >= Global.getConfig().getServiceCallRetries()) {
+						throw new SyncActionError("Failed to delete " + chunk.size() + " items from " + domain, ex);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package com.robwilliams.mibox.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.robwilliams.mibox.snapshots.CloudFileSnapshot;
+import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
+
+/**
+ * Sorts snapshots by file name without holding all of them in memory, for SortMergePlanner. Anything else
+ * with a file name can be sorted the same way, given a Codec for it.
+ * <br><br>
+ * Snapshots can be added in any order, from several threads at once. Once maxInMemory of them are waiting,
+ * they are sorted and written to a temp file (a "run"). sorted() merges the runs and the snapshots still in
+ * memory, reading each run one snapshot at a time. So at most maxInMemory snapshots, plus one per run, are in
+ * memory at any time. Every MAX_RUNS runs are merged into one, so there are never more than that many files open.
+ * <br><br>
+ * Call close() when done to remove the temp files.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class SnapshotSorter<T> {
+
+	/**
+	 * How snapshots are written to and read back from the runs, and the name they're sorted by.
+	 */
+	public interface Codec<T> {
+		void write(T snapshot, DataOutput out) throws IOException;
+		T read(DataInput in) throws IOException;
+		String getFileName(T snapshot);
+	}
+
+	public static final Codec<LocalFileSnapshot> LOCAL = new Codec<LocalFileSnapshot>() {
+		public String getFileName(LocalFileSnapshot snapshot) {
+			return snapshot.getFileName();
+		}
+		public void write(LocalFileSnapshot snapshot, DataOutput out) throws IOException {
+			snapshot.writeTo(out);
+		}
+		public LocalFileSnapshot read(DataInput in) throws IOException {
+			return LocalFileSnapshot.readFrom(in);
+		}
+	};
+
+	public static final Codec<CloudFileSnapshot> CLOUD = new Codec<CloudFileSnapshot>() {
+		public String getFileName(CloudFileSnapshot snapshot) {
+			return snapshot.getFileName();
+		}
+		public void write(CloudFileSnapshot snapshot, DataOutput out) throws IOException {
+			snapshot.writeTo(out);
+		}
+		public CloudFileSnapshot read(DataInput in) throws IOException {
+			return CloudFileSnapshot.readFrom(in);
+		}
+	};
+
+	private static final int MAX_RUNS = 64;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Codec<T> codec;
+	private final Comparator<T> byFileName;
+	private final int maxInMemory;
+	private final File directory;
+	private final List<T> buffer = new ArrayList<T>();
+	private final List<Run> runs = new ArrayList<Run>();
+	private final List<RunIterator> openRuns = new ArrayList<RunIterator>();
+	private int size;
+	private boolean sorting;
+
+	/**
+	 * @param codec LOCAL, CLOUD, or one of your own
+	 * @param maxInMemory how many snapshots are kept in memory before they are written to a run
+	 * @param directory where runs are written, or null for the default temp directory
+	 */
+	public SnapshotSorter(final Codec<T> codec, int maxInMemory, File directory) {
+		this.codec = codec;
+		this.byFileName = new Comparator<T>() {
+			public int compare(T a, T b) {
+				return codec.getFileName(a).compareTo(codec.getFileName(b));
+			}
+		};
+		this.maxInMemory = Math.max(maxInMemory, 1);
+		this.directory = directory;
+	}
+
+	/**
+	 * Add a snapshot, writing a run if there are now maxInMemory of them in memory.
+	 * @param snapshot
+	 * @throws IOException if the run could not be written
+	 */
+	public synchronized void add(T snapshot) throws IOException {
+		if (sorting) {
+			throw new IllegalStateException("Snapshots can't be added once sorted() has been called");
+		}
+		buffer.add(snapshot);
+		size++;
+		if (buffer.size() >= maxInMemory) {
+			spill();
+		}
+	}
+
+	/**
+	 * @return how many snapshots have been added
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return how many runs have been written and not merged into another one yet
+	 */
+	public synchronized int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Merge everything added so far into one iterator in file name order. Can only be called once,
+	 * and no more snapshots can be added afterwards. The iterator throws a RuntimeException if a run can't be read.
+	 * @return the snapshots, sorted by file name
+	 * @throws IOException if a run could not be opened
+	 */
+	public synchronized Iterator<T> sorted() throws IOException {
+		if (sorting) {
+			throw new IllegalStateException("sorted() can only be called once");
+		}
+		sorting = true;
+		Collections.sort(buffer, byFileName);
+		return merge(runs, buffer.iterator());
+	}
+
+	/**
+	 * Remove the runs and close any still being read.
+	 */
+	public synchronized void close() {
+		for (RunIterator run : openRuns) {
+			run.close();
+		}
+		openRuns.clear();
+		for (Run run : runs) {
+			run.file.delete();
+		}
+		runs.clear();
+		buffer.clear();
+	}
+
+	private void spill() throws IOException {
+		Collections.sort(buffer, byFileName);
+		runs.add(writeRun(buffer.iterator(), buffer.size()));
+		buffer.clear();
+		if (runs.size() >= MAX_RUNS) {
+			// merge them all into one bigger run
+			List<Run> merging = new ArrayList<Run>(runs);
+			int count = 0;
+			for (Run run : merging) {
+				count += run.count;
+			}
+			Run merged = writeRun(merge(merging, Collections.<T>emptyList().iterator()), count);
+			for (Run run : merging) {
+				run.file.delete();
+			}
+			openRuns.clear(); // all read to the end, which closes them
+			runs.clear();
+			runs.add(merged);
+		}
+	}
+
+	private Run writeRun(Iterator<T> snapshots, int count) throws IOException {
+		File file = File.createTempFile("mibox-sort", ".run", directory);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		try {
+			while (snapshots.hasNext()) {
+				codec.write(snapshots.next(), out);
+			}
+		} finally {
+			out.close();
+		}
+		return new Run(file, count);
+	}
+
+	private Iterator<T> merge(List<Run> sortedRuns, Iterator<T> sortedInMemory) throws IOException {
+		List<Iterator<T>> sources = new ArrayList<Iterator<T>>();
+		for (Run run : sortedRuns) {
+			RunIterator reader = new RunIterator(run);
+			openRuns.add(reader);
+			sources.add(reader);
+		}
+		sources.add(sortedInMemory);
+		return new MergingIterator(sources);
+	}
+
+	private static class Run {
+		final File file;
+		final int count;
+
+		Run(File file, int count) {
+			this.file = file;
+			this.count = count;
+		}
+	}
+
+	// reads the snapshots of one run back, closing the file after the last one
+	private class RunIterator implements Iterator<T> {
+		private final Run run;
+		private DataInputStream in;
+		private int remaining;
+
+		RunIterator(Run run) throws IOException {
+			this.run = run;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), BUFFER_SIZE));
+			this.remaining = run.count;
+		}
+
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		public T next() {
+			if (remaining <= 0) {
+				throw new NoSuchElementException();
+			}
+			try {
+				T snapshot = codec.read(in);
+				if (--remaining == 0) {
+					close();
+				}
+				return snapshot;
+			} catch (IOException ex) {
+				close();
+				throw new RuntimeException("Could not read sorted snapshots from " + run.file, ex);
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		void close() {
+			remaining = 0;
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ex) {
+					; // only read from, nothing lost
+				}
+				in = null;
+			}
+		}
+	}
+
+	// merges sorted iterators into one, keeping the next snapshot of each in a priority queue
+	private class MergingIterator implements Iterator<T> {
+		private final PriorityQueue<Head> heads;
+
+		MergingIterator(List<Iterator<T>> sources) {
+			heads = new PriorityQueue<Head>(Math.max(sources.size(), 1));
+			for (Iterator<T> source : sources) {
+				if (source.hasNext()) {
+					heads.add(new Head(source.next(), source));
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		public T next() {
+			Head head = heads.poll();
+			if (head == null) {
+				throw new NoSuchElementException();
+			}
+			T snapshot = head.snapshot;
+			if (head.source.hasNext()) {
+				head.snapshot = head.source.next();
+				heads.add(head);
+			}
+			return snapshot;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private class Head implements Comparable<Head> {
+		T snapshot;
+		final Iterator<T> source;
+
+		Head(T snapshot, Iterator<T> source) {
+			this.snapshot = snapshot;
+			this.source = source;
+		}
+
+		public int compareTo(Head other) {
+			return byFileName.compare(snapshot, other.snapshot);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.robwilliams.mibox.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how much work the current sync has done. They are reset
+ * when a sync starts and logged by SyncMaster when it finishes.
+ * <br><br>
+ * All counters are safe to update from several threads at once.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class SyncStats {
+
+	private static final AtomicLong encryptedBytes = new AtomicLong();
+	private static final AtomicLong knownHashHits = new AtomicLong();
+	private static final AtomicLong knownHashMisses = new AtomicLong();
+	private static final AtomicLong chunkBytes = new AtomicLong();
+	private static final AtomicLong transferredChunkBytes = new AtomicLong();
+	private static final AtomicLong deltaFileBytes = new AtomicLong();
+	private static final AtomicLong deltaBytes = new AtomicLong();
+
+	public static void reset() {
+		encryptedBytes.set(0);
+		knownHashHits.set(0);
+		knownHashMisses.set(0);
+		chunkBytes.set(0);
+		transferredChunkBytes.set(0);
+		deltaFileBytes.set(0);
+		deltaBytes.set(0);
+	}
+
+	/**
+	 * Record that a file of the given size was encrypted in preparation for upload.
+	 * @param bytes size of the original (unencrypted) file
+	 */
+	public static void addEncryptedBytes(long bytes) {
+		encryptedBytes.addAndGet(bytes);
+	}
+
+	public static long getEncryptedBytes() {
+		return encryptedBytes.get();
+	}
+
+	/**
+	 * Record a known hash cache lookup which found the hash, so no HEAD request was needed.
+	 */
+	public static void addKnownHashHit() {
+		knownHashHits.incrementAndGet();
+	}
+
+	/**
+	 * Record a known hash cache lookup which didn't find the hash.
+	 */
+	public static void addKnownHashMiss() {
+		knownHashMisses.incrementAndGet();
+	}
+
+	public static long getKnownHashHits() {
+		return knownHashHits.get();
+	}
+
+	public static long getKnownHashMisses() {
+		return knownHashMisses.get();
+	}
+
+	/**
+	 * Record a chunk of a file uploaded or downloaded by ChunkedStorage.
+	 * @param bytes size of the chunk (unencrypted)
+	 * @param transferred false if it didn't need to be uploaded or downloaded, because the other side already had it
+	 */
+	public static void addChunkBytes(long bytes, boolean transferred) {
+		chunkBytes.addAndGet(bytes);
+		if (transferred) {
+			transferredChunkBytes.addAndGet(bytes);
+		}
+	}
+
+	public static long getChunkBytes() {
+		return chunkBytes.get();
+	}
+
+	public static long getTransferredChunkBytes() {
+		return transferredChunkBytes.get();
+	}
+
+	/**
+	 * @return bytes of chunks that didn't need to be transferred
+	 */
+	public static long getSavedChunkBytes() {
+		return getChunkBytes() - getTransferredChunkBytes();
+	}
+
+	/**
+	 * @return bytes of files stored as chunks per byte that was transferred, e.g. 4.0 if three quarters of the
+	 *         chunks were already there (infinite if none had to be transferred, 1.0 if there were no chunks)
+	 */
+	public static double getDedupRatio() {
+		long total = getChunkBytes();
+		return total == 0 ? 1.0 : total / (double) getTransferredChunkBytes();
+	}
+
+	/**
+	 * Record a file uploaded as a delta by DeltaStorage.
+	 * @param fileBytes size of the file
+	 * @param deltaBytes size of the delta that was uploaded instead (unencrypted)
+	 */
+	public static void addDelta(long fileBytes, long deltaBytes) {
+		SyncStats.deltaFileBytes.addAndGet(fileBytes);
+		SyncStats.deltaBytes.addAndGet(deltaBytes);
+	}
+
+	public static long getDeltaFileBytes() {
+		return deltaFileBytes.get();
+	}
+
+	public static long getDeltaBytes() {
+		return deltaBytes.get();
+	}
+
+	/**
+	 * @return human readable summary of all counters, for the log
+	 */
+	public static String summary() {
+		return "encrypted " + getEncryptedBytes() + " bytes"
+				+ ", known hash cache " + getKnownHashHits() + " hits / " + getKnownHashMisses() + " misses"
+				+ ", chunks " + getTransferredChunkBytes() + " of " + getChunkBytes() + " bytes transferred (dedup ratio "
+				+ String.format("%.2f", getDedupRatio()) + ", " + getSavedChunkBytes() + " bytes saved)"
+				+ ", deltas " + getDeltaBytes() + " bytes uploaded for " + getDeltaFileBytes() + " bytes of files";
+	}
+}
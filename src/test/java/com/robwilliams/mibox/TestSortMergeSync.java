@@ -0,0 +1,241 @@
+package com.robwilliams.mibox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.exceptions.IntegrityError;
+import com.robwilliams.mibox.snapshots.CloudFileSnapshot;
+import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
+import com.robwilliams.mibox.util.DateUtil;
+import com.robwilliams.mibox.util.FileIndex;
+import com.robwilliams.mibox.util.FileIndexWriter;
+import com.robwilliams.mibox.util.FileUtil;
+import com.robwilliams.mibox.util.HashUtil;
+import com.robwilliams.mibox.util.MappedFileIndex;
+import com.robwilliams.mibox.util.SimpleDBWriteBuffer;
+
+/**
+ * Run SyncMaster's performSortMergeSync on a real box directory and local file index, with a SimpleDB that
+ * only lives in memory. The planner records what it is given instead of running any actions, so nothing is
+ * uploaded or downloaded; what matters here is that the box and the index are compared correctly while the
+ * sorters spill to disk (mergeSortBufferSize is 2).
+ * <br><br>
+ * Like TestSyncMaster, this reaches into private state with reflection: Global's file index and SimpleDB,
+ * and a few ConfigMaster settings, are swapped out for the duration of each test.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class TestSortMergeSync {
+
+	private static final Date LAST_SYNC = new Date(1310000000000L);
+	private static final String OLD_HASH = "00000000000000000000000000000000000000000000000000000000000000aa";
+	private static final String RECENT_HASH = "00000000000000000000000000000000000000000000000000000000000000bb";
+
+	private final Map<String, Object> savedConfig = new HashMap<String, Object>();
+	private final List<String> sentDomains = Collections.synchronizedList(new ArrayList<String>());
+	private final List<Item> cloudItems = new ArrayList<Item>();
+	private File box;
+	private File indexFile;
+	private FileIndex index;
+
+	// file name -> {local snapshot, cloud snapshot} as given to the planner's listener
+	private final Map<String, Object[]> planned = new TreeMap<String, Object[]>();
+	private final SortMergePlanner recordingPlanner = new SortMergePlanner() {
+		public void plan(Iterator<LocalFileSnapshot> localFileSnapshots, Iterator<CloudFileSnapshot> cloudFileSnapshots,
+				Listener listener) throws IntegrityError {
+			super.plan(localFileSnapshots, cloudFileSnapshots, new Listener() {
+				public void planned(LocalFileSnapshot localFileSnapshot, CloudFileSnapshot cloudFileSnapshot) {
+					String fileName = localFileSnapshot != null ? localFileSnapshot.getFileName() : cloudFileSnapshot.getFileName();
+					planned.put(fileName, new Object[] { localFileSnapshot, cloudFileSnapshot });
+				}
+			});
+		}
+	};
+
+	@Before
+	public void before() throws Exception {
+		box = File.createTempFile("mibox-box", "");
+		box.delete();
+		box.mkdir();
+		indexFile = File.createTempFile("mibox-index", ".mmap");
+		indexFile.delete();
+
+		ConfigMaster config = ConfigMaster.getConfig();
+		setConfig(config, "boxPath", box.getPath());
+		setConfig(config, "mergeSortBufferSize", 2);
+		setConfig(config, "contentAddressing", true);
+
+		AmazonSimpleDB sdb = (AmazonSimpleDB) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { AmazonSimpleDB.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("select")) {
+							// the changed cloud files, and nothing for the planner's look-ups
+							String selectExpression = ((SelectRequest) args[0]).getSelectExpression();
+							boolean changedFiles = selectExpression.contains("pendingDeletes > '0'") && !selectExpression.contains("itemName()");
+							return new SelectResult().withItems(changedFiles ? cloudItems : Collections.<Item>emptyList());
+						} else if (method.getName().equals("batchPutAttributes")) {
+							sentDomains.add(((BatchPutAttributesRequest) args[0]).getDomainName());
+						}
+						return null;
+					}
+				});
+		index = new MappedFileIndex(indexFile, false);
+		SimpleDBWriteBuffer sdbWriteBuffer = new SimpleDBWriteBuffer(sdb, 60 * 60 * 1000);
+
+		// replace the parts of Global the sync uses
+		Global global = Global.getInstance();
+		Global.getSDBWriteBuffer().shutdown();
+		Global.getFileIndexWriter().shutdown();
+		Global.getFileIndex().close();
+		setField(global, "sdb", sdb);
+		setField(global, "sdbWriteBuffer", sdbWriteBuffer);
+		setField(global, "fileIndex", index);
+		setField(global, "fileIndexWriter", new FileIndexWriter(index, sdbWriteBuffer, 100, 60 * 60 * 1000));
+	}
+
+	@After
+	public void after() throws Exception {
+		Global.cleanUp();
+		for (Map.Entry<String, Object> saved : savedConfig.entrySet()) {
+			setField(ConfigMaster.getConfig(), saved.getKey(), saved.getValue());
+		}
+		delete(box);
+		indexFile.delete();
+	}
+
+	@Test
+	public void testComparesBoxWithIndex() throws Exception {
+		Date before = new Date(LAST_SYNC.getTime() - 60000);
+		Date after = new Date(LAST_SYNC.getTime() + 60000);
+		Map<String, MiBoxFile> records = new HashMap<String, MiBoxFile>();
+		// enough unchanged files for several sorted runs, none of which need a snapshot
+		for (int i = 0; i < 10; i++) {
+			records.put("same" + i, record("same" + i, OLD_HASH, writeFile("same" + i, before), before));
+		}
+		records.put("changed", record("changed", OLD_HASH, before, before));
+		writeFile("changed", after);
+		records.put("deleted", record("deleted", OLD_HASH, before, before));
+		records.put("recent", record("recent", RECENT_HASH, writeFile("recent", before), after));
+		index.write(records);
+		writeFile("new", after);
+		writeFile("dir/nested", after);
+		writeFile("dir/" + FileUtil.TEMP_FILE_PREFIX + "download", after);
+		cloudItems.add(new Item("cloudOnly", Arrays.asList(new Attribute("hash", OLD_HASH),
+				new Attribute("lastModifiedDate", DateUtil.dateToString(after)), new Attribute("source", "otherbox"))));
+
+		performSortMergeSync();
+
+		assertEquals(Arrays.asList("changed", "cloudOnly", "deleted", "dir/nested", "new", "recent"), new ArrayList<String>(planned.keySet()));
+
+		LocalFileSnapshot changed = local("changed");
+		assertEquals(HashUtil.contentHash(new File(box, "changed")), changed.getHash());
+		assertEquals(OLD_HASH, changed.getLastSyncedHash());
+
+		assertFalse(local("deleted").existsLocally());
+		assertEquals(OLD_HASH, local("deleted").getHash());
+
+		// unchanged, so it comes from the DB without being hashed again
+		assertEquals(RECENT_HASH, local("recent").getHash());
+		assertTrue(local("recent").existsLocally());
+
+		assertEquals(HashUtil.contentHash(new File(box, "new")), local("new").getHash());
+		assertEquals(HashUtil.contentHash(new File(box, "dir/nested")), local("dir/nested").getHash());
+
+		assertNull(planned.get("cloudOnly")[0]);
+		assertNotNull(planned.get("cloudOnly")[1]);
+		assertNull(planned.get("new")[1]);
+
+		// the sync was recorded on the cloud
+		assertTrue(sentDomains.contains(ConfigMaster.getConfig().getLastSyncDatesDomain()));
+	}
+
+	@Test
+	public void testEmptyBoxAndIndex() throws Exception {
+		performSortMergeSync();
+
+		assertTrue(planned.isEmpty());
+		assertTrue(sentDomains.contains(ConfigMaster.getConfig().getLastSyncDatesDomain()));
+	}
+
+	private void performSortMergeSync() throws Exception {
+		Method performSortMergeSync = SyncMaster.class.getDeclaredMethod("performSortMergeSync", Date.class, String.class);
+		performSortMergeSync.setAccessible(true);
+		performSortMergeSync.invoke(new SyncMaster(recordingPlanner), LAST_SYNC, DateUtil.dateToString(LAST_SYNC));
+	}
+
+	private LocalFileSnapshot local(String fileName) {
+		return (LocalFileSnapshot) planned.get(fileName)[0];
+	}
+
+	private static MiBoxFile record(String name, String hash, Date lastModifiedTime, Date lastSyncTime) {
+		return new MiBoxFile(name, hash, lastModifiedTime, lastModifiedTime, hash, lastSyncTime);
+	}
+
+	private Date writeFile(String relativePath, Date lastModifiedTime) throws IOException {
+		File file = new File(box, relativePath);
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(relativePath.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		file.setLastModified(lastModifiedTime.getTime());
+		return new Date(file.lastModified());
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private void setConfig(ConfigMaster config, String name, Object value) throws Exception {
+		Field field = ConfigMaster.class.getDeclaredField(name);
+		field.setAccessible(true);
+		savedConfig.put(name, field.get(config));
+		field.set(config, value);
+	}
+
+	private static void setField(Object target, String name, Object value) throws Exception {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+}
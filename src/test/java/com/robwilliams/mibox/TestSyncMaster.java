@@ -7,6 +7,8 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -15,6 +17,9 @@ import java.util.TimeZone;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
 import com.robwilliams.mibox.snapshots.CloudFileSnapshot;
 import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
@@ -24,10 +29,13 @@ import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
  * since these are testing the internal private method of SyncMaster. But I just felt like that crazy block
  * of 20 IF statements needed some verification, albeit brittle verification.
  * <br><br>
+ * Every test runs once per MergePlanner, since they all have to make the same decisions.
+ * <br><br>
  * @author Rob Williams
  *
  */
 @SuppressWarnings("serial")
+@RunWith(Parameterized.class)
 public class TestSyncMaster {
 
 	// Note: I'm not testing performInitialSync directly because it's too complex an operation.
@@ -36,12 +44,25 @@ public class TestSyncMaster {
 	private DateFormat dfm;
 	private Method prepareMerge;
 	private SyncMaster sm;
+	private final MergePlanner planner;
+	
+	@Parameters
+	public static Collection<Object[]> planners() {
+		return Arrays.asList(new Object[][] {
+			{ new HashMergePlanner() },
+			{ new SortMergePlanner() }
+		});
+	}
+	
+	public TestSyncMaster(MergePlanner planner) {
+		this.planner = planner;
+	}
 	
 	@Before
 	public void before() throws Exception {
 		// make SyncMaster object, which is pretty empty
 		// test will fill it with necessary state, if any
-		sm = new SyncMaster();
+		sm = new SyncMaster(planner);
 		
 		// set up date formatter, for easy test data creation
 		dfm = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -0,0 +1,121 @@
+package com.robwilliams.mibox.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.robwilliams.mibox.util.ChunkedCipher;
+import com.robwilliams.mibox.util.CryptoContext;
+
+/**
+ * Measures encryption and decryption throughput of one big file: the JetS3t format (one AES-CBC stream, see
+ * CryptoContext) against the chunked AES-GCM format (see ChunkedCipher) on 1, 2, 4... threads up to the given number.
+ * Everything happens in memory, so the disk isn't measured. Both formats encrypt and decrypt a few MB first, so the
+ * JIT has compiled them before anything is timed.
+ * <br><br>
+ * The JVM only uses AES-NI (and the carry-less multiply GCM needs) on processors that have them, so note which
+ * processor the numbers come from.
+ * <br><br>
+ * This is not a unit test, run it by hand:
+ * <pre>
+ * java com.robwilliams.mibox.benchmark.BlobCipherBenchmark [megabytes] [threads] [rounds] [chunk size]
+ * </pre>
+ * The default is 256 MB, one thread per processor, 3 rounds and 1 MB chunks.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class BlobCipherBenchmark {
+
+	private static final String KEY = "benchmark key";
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		int chunkSize = args.length > 3 ? Integer.parseInt(args[3]) : 1024 * 1024;
+		byte[] data = new byte[megabytes * 1024 * 1024];
+		new Random(42).nextBytes(data);
+		byte[] contentDigest = MessageDigest.getInstance("SHA-256").digest(data);
+		System.out.println(megabytes + " MB, " + Runtime.getRuntime().availableProcessors() + " processors ("
+						   + System.getProperty("os.arch") + "), " + rounds + " rounds, " + chunkSize + " byte chunks");
+
+		CryptoContext legacy = CryptoContext.get(KEY, "PBEWITHSHA256AND128BITAES-CBC-BC", "2");
+		warmUp(legacy, chunkSize);
+		for (int round = 1; round <= rounds; round++) {
+			long start = System.nanoTime();
+			byte[] sealed = readAll(legacy.encrypt(new ByteArrayInputStream(data)), true);
+			long encrypt = System.nanoTime() - start;
+			start = System.nanoTime();
+			readAll(legacy.decrypt(new ByteArrayInputStream(sealed)), false);
+			long decrypt = System.nanoTime() - start;
+			System.out.println("round " + round + ": jets3t encrypt " + rate(data.length, encrypt) + " MB/s, decrypt "
+							   + rate(data.length, decrypt) + " MB/s");
+		}
+
+		for (int threads = 1; threads <= maxThreads; threads = threads < maxThreads ? Math.min(threads * 2, maxThreads) : threads + 1) {
+			ExecutorService workers = Executors.newFixedThreadPool(threads);
+			try {
+				ChunkedCipher cipher = new ChunkedCipher(KEY, workers, threads);
+				warmUp(cipher, chunkSize);
+				for (int round = 1; round <= rounds; round++) {
+					long start = System.nanoTime();
+					byte[] sealed = readAll(cipher.encrypt(new ByteArrayInputStream(data), data.length, contentDigest, chunkSize), true);
+					long encrypt = System.nanoTime() - start;
+					start = System.nanoTime();
+					readAll(cipher.decrypt(new ByteArrayInputStream(sealed)), false);
+					long decrypt = System.nanoTime() - start;
+					System.out.println("round " + round + ": chunked, " + threads + " threads: encrypt " + rate(data.length, encrypt)
+									   + " MB/s, decrypt " + rate(data.length, decrypt) + " MB/s");
+				}
+			} finally {
+				workers.shutdown();
+			}
+		}
+	}
+
+	private static void warmUp(CryptoContext legacy, int chunkSize) throws Exception {
+		byte[] data = new byte[Math.max(4, chunkSize / (1024 * 1024)) * 1024 * 1024];
+		for (int i = 0; i < 50; i++) {
+			readAll(legacy.decrypt(new ByteArrayInputStream(readAll(legacy.encrypt(new ByteArrayInputStream(data)), true))), false);
+		}
+	}
+
+	private static void warmUp(ChunkedCipher cipher, int chunkSize) throws Exception {
+		byte[] data = new byte[Math.max(4, chunkSize / (1024 * 1024)) * 1024 * 1024];
+		for (int i = 0; i < 50; i++) {
+			byte[] sealed = readAll(cipher.encrypt(new ByteArrayInputStream(data), data.length, new byte[32], chunkSize), true);
+			readAll(cipher.decrypt(new ByteArrayInputStream(sealed)), false);
+		}
+	}
+
+	private static String rate(long bytes, long nanos) {
+		return String.format("%.0f", bytes / (1024.0 * 1024.0) / (nanos / 1e9));
+	}
+
+	// read a stream to the end, keeping what was read if asked to
+	private static byte[] readAll(InputStream in, boolean keep) throws Exception {
+		byte[] kept = keep ? new byte[16 * 1024] : null;
+		int size = 0;
+		byte[] buffer = new byte[64 * 1024];
+		try {
+			int len;
+			while ((len = in.read(buffer)) >= 0) {
+				if (keep) {
+					if (size + len > kept.length) {
+						kept = Arrays.copyOf(kept, Math.max(size + len, kept.length * 2));
+					}
+					System.arraycopy(buffer, 0, kept, size, len);
+				}
+				size += len;
+			}
+		} finally {
+			in.close();
+		}
+		return keep ? Arrays.copyOf(kept, size) : null;
+	}
+}
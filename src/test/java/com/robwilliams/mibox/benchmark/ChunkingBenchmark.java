@@ -0,0 +1,91 @@
+package com.robwilliams.mibox.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.robwilliams.mibox.util.ContentChunker;
+import com.robwilliams.mibox.util.ContentChunker.Chunk;
+
+/**
+ * Measures how fast ContentChunker splits (and hashes) a big file, and how much of an edited copy of the file
+ * ChunkedStorage wouldn't need to upload again: the file is changed in a few places, some by overwriting bytes and
+ * some by inserting them, and the chunks of the new version are looked up in the chunks of the old one.
+ * Everything happens in memory, so the disk isn't measured.
+ * <br><br>
+ * This is not a unit test, run it by hand:
+ * <pre>
+ * java com.robwilliams.mibox.benchmark.ChunkingBenchmark [megabytes] [edits] [rounds] [average chunk size]
+ * </pre>
+ * The default is 256 MB, 20 edits, 3 rounds and 1 MB chunks.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class ChunkingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int edits = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		int chunkSize = args.length > 3 ? Integer.parseInt(args[3]) : 1024 * 1024;
+		ContentChunker chunker = new ContentChunker(chunkSize);
+		Random random = new Random(42);
+		byte[] data = new byte[megabytes * 1024 * 1024];
+		random.nextBytes(data);
+		byte[] edited = edit(data, edits, random);
+		System.out.println(megabytes + " MB, " + edits + " edits, " + rounds + " rounds, " + chunker.getAverageBytes()
+						   + " byte chunks on average");
+
+		// so the JIT has compiled the chunker before anything is timed
+		for (int i = 0; i < 20; i++) {
+			chunker.split(new ByteArrayInputStream(data, 0, 8 * 1024 * 1024), null);
+		}
+		for (int round = 1; round <= rounds; round++) {
+			long start = System.nanoTime();
+			List<Chunk> before = chunker.split(new ByteArrayInputStream(data), null);
+			long split = System.nanoTime() - start;
+			List<Chunk> after = chunker.split(new ByteArrayInputStream(edited), null);
+
+			Set<String> stored = new HashSet<String>();
+			for (Chunk chunk : before) {
+				stored.add(chunk.hash);
+			}
+			long newBytes = 0;
+			for (Chunk chunk : after) {
+				if (stored.add(chunk.hash)) {
+					newBytes += chunk.length;
+				}
+			}
+			System.out.println("round " + round + ": split " + rate(data.length, split) + " MB/s, " + before.size() + " chunks; edited copy: "
+							   + newBytes + " of " + edited.length + " bytes to upload, dedup ratio "
+							   + String.format("%.1f", edited.length / (double) newBytes) + ", " + (edited.length - newBytes) + " bytes saved");
+		}
+	}
+
+	// a copy of the data with a few bytes overwritten or inserted in random places
+	private static byte[] edit(byte[] data, int edits, Random random) {
+		byte[] edited = data.clone();
+		for (int i = 0; i < edits; i++) {
+			byte[] bytes = new byte[1 + random.nextInt(4096)];
+			random.nextBytes(bytes);
+			int position = random.nextInt(edited.length - bytes.length);
+			if (i % 2 == 0) {
+				System.arraycopy(bytes, 0, edited, position, bytes.length);
+			} else {
+				byte[] longer = new byte[edited.length + bytes.length];
+				System.arraycopy(edited, 0, longer, 0, position);
+				System.arraycopy(bytes, 0, longer, position, bytes.length);
+				System.arraycopy(edited, position, longer, position + bytes.length, edited.length - position);
+				edited = longer;
+			}
+		}
+		return edited;
+	}
+
+	private static String rate(long bytes, long nanos) {
+		return String.format("%.0f", bytes / (1024.0 * 1024.0) / (nanos / 1e9));
+	}
+}
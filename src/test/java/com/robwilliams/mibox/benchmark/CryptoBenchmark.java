@@ -0,0 +1,110 @@
+package com.robwilliams.mibox.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jets3t.service.security.EncryptionUtil;
+
+import com.robwilliams.mibox.util.CryptoContext;
+
+/**
+ * Measures what encrypting costs per file when the files are small, so that setting up the encryption is most of
+ * the work: a new EncryptionUtil per file, as S3Util and BlobDownloader used to do, against the shared CryptoContext.
+ * The files are encrypted from memory on several threads, like the upload workers do, so the disk isn't measured.
+ * <br><br>
+ * Deriving the key for every file is slow enough that the old way is only timed on the first few thousand files.
+ * <br><br>
+ * This is not a unit test, run it by hand:
+ * <pre>
+ * java com.robwilliams.mibox.benchmark.CryptoBenchmark [files] [file size] [threads] [rounds]
+ * </pre>
+ * The default is 100000 files of 1 KB, one thread per processor and 3 rounds.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class CryptoBenchmark {
+
+	private static final String ALGORITHM = "PBEWITHSHA256AND128BITAES-CBC-BC";
+	private static final String VERSION = "2";
+	private static final String KEY = "benchmark key";
+	private static final int LEGACY_FILES = 2000;
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+		byte[] data = new byte[size];
+		new Random(42).nextBytes(data);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		System.out.println(files + " files of " + size + " bytes, " + threads + " threads, " + rounds + " rounds");
+
+		try {
+			for (int round = 1; round <= rounds; round++) {
+				int legacyFiles = Math.min(files, LEGACY_FILES);
+				long start = System.nanoTime();
+				long legacyBytes = encrypt(executor, threads, legacyFiles, data, false);
+				long legacy = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				long bytes = encrypt(executor, threads, files, data, true);
+				long shared = System.nanoTime() - start;
+
+				System.out.println("round " + round + ": new EncryptionUtil per file " + perFile(legacy, legacyFiles) + " us/file ("
+								   + legacyFiles + " files, " + legacyBytes + " bytes), CryptoContext " + perFile(shared, files)
+								   + " us/file (" + files + " files, " + bytes + " bytes)");
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static String perFile(long nanos, int files) {
+		return String.format("%.2f", nanos / 1000.0 / files);
+	}
+
+	// encrypt the data as that many files, split between the threads; returns how many encrypted bytes came out
+	private static long encrypt(ExecutorService executor, int threads, final int files, final byte[] data,
+			final boolean shared) throws Exception {
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for (int t = 0; t < threads; t++) {
+			final int count = files / threads + (t < files % threads ? 1 : 0);
+			results.add(executor.submit(new Callable<Long>() {
+				public Long call() throws Exception {
+					long bytes = 0;
+					byte[] buffer = new byte[64 * 1024];
+					for (int i = 0; i < count; i++) {
+						InputStream in;
+						if (shared) {
+							in = CryptoContext.get(KEY, ALGORITHM, VERSION).encrypt(new ByteArrayInputStream(data));
+						} else {
+							in = new EncryptionUtil(KEY, ALGORITHM, VERSION).encrypt(new ByteArrayInputStream(data));
+						}
+						try {
+							int len;
+							while ((len = in.read(buffer)) >= 0) {
+								bytes += len;
+							}
+						} finally {
+							in.close();
+						}
+					}
+					return bytes;
+				}
+			}));
+		}
+		long bytes = 0;
+		for (Future<Long> result : results) {
+			bytes += result.get();
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,100 @@
+package com.robwilliams.mibox.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import com.robwilliams.mibox.util.BinaryDelta;
+import com.robwilliams.mibox.util.BlockSignature;
+
+/**
+ * Measures how fast BinaryDelta makes deltas of a big file, and how big they are, for the two kinds of change deltas
+ * are meant for: a log that had some lines appended, and a database that had a few pages rewritten in place.
+ * Everything happens in memory and the deltas are only counted, so the disk isn't measured.
+ * <br><br>
+ * This is not a unit test, run it by hand:
+ * <pre>
+ * java com.robwilliams.mibox.benchmark.DeltaBenchmark [megabytes] [appended KB] [rewritten pages] [rounds]
+ * </pre>
+ * The default is 256 MB, 1024 KB appended, 50 rewritten 4 KB pages and 3 rounds.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class DeltaBenchmark {
+
+	private static final String BASE_HASH = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+	private static final int PAGE_BYTES = 4096;
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int appendedKB = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+		int pages = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+		Random random = new Random(42);
+		byte[] base = new byte[megabytes * 1024 * 1024];
+		random.nextBytes(base);
+
+		byte[] appended = new byte[base.length + appendedKB * 1024];
+		System.arraycopy(base, 0, appended, 0, base.length);
+		byte[] tail = new byte[appendedKB * 1024];
+		random.nextBytes(tail);
+		System.arraycopy(tail, 0, appended, base.length, tail.length);
+
+		byte[] rewritten = base.clone();
+		byte[] page = new byte[PAGE_BYTES];
+		for (int i = 0; i < pages; i++) {
+			random.nextBytes(page);
+			System.arraycopy(page, 0, rewritten, random.nextInt(base.length / PAGE_BYTES) * PAGE_BYTES, PAGE_BYTES);
+		}
+
+		int blockBytes = BlockSignature.blockBytesFor(base.length);
+		System.out.println(megabytes + " MB, " + blockBytes + " byte blocks, " + appendedKB + " KB appended, " + pages
+						   + " pages rewritten, " + rounds + " rounds");
+		long start = System.nanoTime();
+		BlockSignature signature = BlockSignature.of(new ByteArrayInputStream(base), blockBytes);
+		System.out.println("signature: " + rate(base.length, System.nanoTime() - start) + " MB/s, "
+						   + signature.toBytes().length + " bytes");
+
+		// so the JIT has compiled the encoder before anything is timed
+		for (int i = 0; i < 3; i++) {
+			delta(signature, rewritten);
+		}
+		for (int round = 1; round <= rounds; round++) {
+			report(round, "appended", signature, appended);
+			report(round, "rewritten", signature, rewritten);
+		}
+	}
+
+	private static void report(int round, String name, BlockSignature signature, byte[] version) throws Exception {
+		long start = System.nanoTime();
+		long bytes = delta(signature, version);
+		long nanos = System.nanoTime() - start;
+		System.out.println("round " + round + ": " + name + ": " + rate(version.length, nanos) + " MB/s, delta " + bytes
+						   + " bytes for " + version.length + " (" + String.format("%.0f", version.length / (double) bytes) + "x smaller)");
+	}
+
+	private static long delta(BlockSignature signature, byte[] version) throws Exception {
+		CountingOutputStream out = new CountingOutputStream();
+		BinaryDelta.encode(signature, BASE_HASH, new ByteArrayInputStream(version), version.length, out, null, null);
+		return out.count;
+	}
+
+	private static String rate(long bytes, long nanos) {
+		return String.format("%.0f", bytes / (1024.0 * 1024.0) / (nanos / 1e9));
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.robwilliams.mibox.benchmark;
+
+import java.io.File;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.j256.ormlite.table.TableUtils;
+import com.robwilliams.mibox.dataObjects.MiBoxFile;
+import com.robwilliams.mibox.util.FileIndex;
+import com.robwilliams.mibox.util.MappedFileIndex;
+import com.robwilliams.mibox.util.SQLiteConnectionSource;
+import com.robwilliams.mibox.util.SQLiteFileIndex;
+
+/**
+ * Compares the SQLite and the memory-mapped file index engines on a throwaway index: writing it, looking
+ * up random files by name, and the scan getLocalFileSnapshots(...) starts every sync with.
+ * <br><br>
+ * This is not a unit test, run it by hand (with sqlite-jdbc on the class path):
+ * <pre>
+ * java com.robwilliams.mibox.benchmark.FileIndexBenchmark [files] [rounds]
+ * </pre>
+ * The default is 200000 files and 5 rounds.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class FileIndexBenchmark {
+
+	private static final int LOOKUPS = 100000;
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		File database = File.createTempFile("mibox-bench", ".db");
+		File mappedFile = File.createTempFile("mibox-bench", ".mmap");
+		mappedFile.delete();
+		database.deleteOnExit();
+		mappedFile.deleteOnExit();
+
+		SQLiteConnectionSource connectionSource = new SQLiteConnectionSource("jdbc:sqlite:" + database.getPath(), "NORMAL", 256L * 1024 * 1024, 1);
+		TableUtils.createTableIfNotExists(connectionSource, MiBoxFile.class);
+		SQLiteFileIndex sqlite = new SQLiteFileIndex(connectionSource, 1);
+		MappedFileIndex mapped = new MappedFileIndex(mappedFile, true);
+		try {
+			System.out.println("Index of " + files + " files, " + rounds + " rounds of " + LOOKUPS + " lookups and a scan");
+			System.out.println("write: sqlite " + fill(sqlite, files) + " ms, mapped " + fill(mapped, files) + " ms");
+			for (int round = 1; round <= rounds; round++) {
+				System.out.println("round " + round + ": "
+								   + "lookups sqlite " + lookUp(sqlite, files) + " ms, mapped " + lookUp(mapped, files) + " ms; "
+								   + "scan sqlite " + scan(sqlite) + " ms, mapped " + scan(mapped) + " ms");
+			}
+		} finally {
+			sqlite.close();
+			mapped.close();
+			connectionSource.close();
+		}
+	}
+
+	private static long fill(FileIndex index, int files) throws Exception {
+		long start = System.nanoTime();
+		Map<String, MiBoxFile> batch = new LinkedHashMap<String, MiBoxFile>();
+		for (int i = 0; i < files; i++) {
+			String name = name(i);
+			// half the files were synced recently, the scan hands those over whole
+			Date lastSyncTime = new Date(i % 2 == 0 ? 1000 : 3000);
+			batch.put(name, new MiBoxFile(name, "0123456789abcdef0123456789abcdef", new Date(i), new Date(i),
+										  "fedcba9876543210fedcba9876543210", lastSyncTime));
+			if (batch.size() == 1000) {
+				index.write(batch);
+				batch.clear();
+			}
+		}
+		index.write(batch);
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static long lookUp(FileIndex index, int files) throws Exception {
+		Random random = new Random(42); // same files for both engines
+		long checksum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < LOOKUPS; i++) {
+			checksum += index.queryForName(name(random.nextInt(files))).getLastModifiedTime().getTime();
+		}
+		if (checksum == 42) System.out.println(); // keep the JIT from dropping the loop body
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static long scan(FileIndex index) throws Exception {
+		final long[] checksum = new long[1];
+		long start = System.nanoTime();
+		index.scan(new Date(2000), new FileIndex.ScanVisitor() {
+			public void visitRecentlySynced(MiBoxFile record) {
+				checksum[0] += record.getLastModifiedTime().getTime();
+			}
+			public void visitSynced(String name, long lastModifiedTime) {
+				checksum[0] += name.length() + lastModifiedTime;
+			}
+		});
+		if (checksum[0] == 42) System.out.println();
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static String name(int i) {
+		return "dir" + (i % 100) + "/sub" + (i % 1000) + "/file" + i + ".txt";
+	}
+}
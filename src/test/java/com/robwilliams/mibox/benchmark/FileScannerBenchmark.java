@@ -0,0 +1,97 @@
+package com.robwilliams.mibox.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.robwilliams.mibox.util.FileScanner;
+import com.robwilliams.mibox.util.FileUtil;
+
+/**
+ * Compares the old FileUtil.listFiles(...) walk against FileScanner, doing the same per-file
+ * work the local scan in SyncMaster needs (relative path + last modified time).
+ * <br><br>
+ * This is not a unit test, run it by hand:
+ * <pre>
+ * java com.robwilliams.mibox.benchmark.FileScannerBenchmark [directory] [rounds]
+ * </pre>
+ * If no directory is given, a throwaway tree of 100 directories x 500 files is generated.
+ * Run it twice in a row to compare against a warm OS file cache.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class FileScannerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		File root = args.length > 0 ? new File(args[0]) : generateTree(100, 500);
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int threads = Runtime.getRuntime().availableProcessors();
+		System.out.println("Scanning " + root.getAbsolutePath() + ", " + rounds + " rounds, " + threads + " scanner threads");
+
+		for (int round = 1; round <= rounds; round++) {
+			long start = System.nanoTime();
+			long count = scanWithListFiles(root);
+			long listFilesMillis = (System.nanoTime() - start) / 1000000;
+
+			start = System.nanoTime();
+			long scannerCount = scanWithFileScanner(root, threads);
+			long scannerMillis = (System.nanoTime() - start) / 1000000;
+
+			System.out.println("round " + round + ": listFiles " + listFilesMillis + " ms (" + count + " files), "
+							   + "FileScanner " + scannerMillis + " ms (" + scannerCount + " files)");
+		}
+	}
+
+	// same work as the old loop in SyncMaster.getLocalFileSnapshots
+	private static long scanWithListFiles(File root) {
+		long count = 0;
+		long checksum = 0;
+		Collection<File> files = FileUtil.listFiles(root, null, true);
+		for (File file : files) {
+			if (file.isDirectory()) continue;
+			String relativePath = root.toURI().relativize(file.toURI()).getPath();
+			checksum += relativePath.length() + file.lastModified();
+			count++;
+		}
+		if (checksum == 42) System.out.println(); // keep the JIT from dropping the loop body
+		return count;
+	}
+
+	private static long scanWithFileScanner(File root, int threads) throws Exception {
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong checksum = new AtomicLong();
+		FileScanner scanner = new FileScanner(threads);
+		try {
+			scanner.scan(root.toPath(), new FileScanner.Visitor() {
+				public void visitFile(String relativePath, BasicFileAttributes attributes) {
+					checksum.addAndGet(relativePath.length() + attributes.lastModifiedTime().toMillis());
+					count.incrementAndGet();
+				}
+			});
+		} finally {
+			scanner.shutdown();
+		}
+		if (checksum.get() == 42) System.out.println();
+		return count.get();
+	}
+
+	private static File generateTree(int directories, int filesPerDirectory) throws IOException {
+		File root = File.createTempFile("mibox-scan", "");
+		root.delete();
+		root.mkdir();
+		for (int d = 0; d < directories; d++) {
+			File directory = new File(root, "dir" + (d % 10) + File.separator + "sub" + d);
+			directory.mkdirs();
+			for (int f = 0; f < filesPerDirectory; f++) {
+				FileOutputStream out = new FileOutputStream(new File(directory, "file" + f + ".txt"));
+				out.write(f);
+				out.close();
+			}
+		}
+		return root;
+	}
+}
@@ -0,0 +1,168 @@
+package com.robwilliams.mibox.benchmark;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.robwilliams.mibox.Global;
+import com.robwilliams.mibox.HashMergePlanner;
+import com.robwilliams.mibox.MergePlanner;
+import com.robwilliams.mibox.MergePlanner.ActionKind;
+import com.robwilliams.mibox.snapshots.CloudFileSnapshot;
+import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
+import com.robwilliams.mibox.snapshots.actions.CloudFileAddedAction;
+import com.robwilliams.mibox.snapshots.actions.CloudFileChangedAction;
+import com.robwilliams.mibox.snapshots.actions.DummyFileAction;
+import com.robwilliams.mibox.snapshots.actions.LocalFileAddedAction;
+import com.robwilliams.mibox.snapshots.actions.LocalFileChangedAction;
+import com.robwilliams.mibox.snapshots.actions.LocalFileConflictAction;
+import com.robwilliams.mibox.snapshots.actions.LocalFileUnchangedAction;
+
+/**
+ * Measures what planning a big initial sync costs per file: HashMergePlanner (classifying on several
+ * threads, sharing the no-op action, building debug lines only when they're written) against the serial
+ * planning prepareMerge used to do, which is copied below as legacyPrepareMerge(...) and builds a new
+ * DummyFileAction and a debug line for every file. Also times classifying alone, on one thread and with classifyAll(...).
+ * <br><br>
+ * The files are a mix of local additions, cloud additions and files changed on both sides, but no deletes,
+ * since those need SimpleDB. Debug lines are turned off, the way they would be on a box this big.
+ * <br><br>
+ * This is not a unit test, run it by hand:
+ * <pre>
+ * java com.robwilliams.mibox.benchmark.PlanningBenchmark [files] [rounds]
+ * </pre>
+ * The default is 1000000 files and 5 rounds.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class PlanningBenchmark {
+
+	private static long checksum; // keeps the JIT from dropping work whose result isn't used
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		Global.getLogger().setDebugEnabled(false);
+		MergePlanner planner = new HashMergePlanner();
+
+		System.out.println(files + " files, " + rounds + " rounds, " + Runtime.getRuntime().availableProcessors() + " processors");
+		for (int round = 1; round <= rounds; round++) {
+			Map<String, LocalFileSnapshot> local = new HashMap<String, LocalFileSnapshot>();
+			Map<String, CloudFileSnapshot> cloud = new HashMap<String, CloudFileSnapshot>();
+			fill(local, cloud, files);
+			System.gc(); // don't charge the garbage of filling the maps to planning
+			long start = System.nanoTime();
+			legacyPrepareMerge(local, cloud);
+			long legacy = System.nanoTime() - start;
+
+			local.clear();
+			cloud.clear();
+			fill(local, cloud, files);
+			System.gc();
+			start = System.nanoTime();
+			planner.prepareMerge(local, cloud);
+			long planned = System.nanoTime() - start;
+
+			LocalFileSnapshot[] locals = new LocalFileSnapshot[local.size()];
+			CloudFileSnapshot[] clouds = new CloudFileSnapshot[local.size()];
+			int i = 0;
+			for (LocalFileSnapshot snapshot : local.values()) {
+				locals[i] = snapshot;
+				clouds[i++] = cloud.get(snapshot.getFileName());
+			}
+			start = System.nanoTime();
+			for (i = 0; i < locals.length; i++) {
+				checksum += MergePlanner.classify(locals[i], clouds[i]).ordinal();
+			}
+			long serialClassify = System.nanoTime() - start;
+			start = System.nanoTime();
+			ActionKind[] kinds = MergePlanner.classifyAll(locals, clouds);
+			long parallelClassify = System.nanoTime() - start;
+			checksum += kinds.length;
+
+			System.out.println("round " + round + ": legacy " + perFile(legacy, files) + " ns/file, HashMergePlanner "
+							   + perFile(planned, files) + " ns/file; classifying " + locals.length + " pairs: serial "
+							   + perFile(serialClassify, locals.length) + " ns/pair, classifyAll " + perFile(parallelClassify, locals.length) + " ns/pair");
+		}
+		if (checksum == 42) System.out.println();
+	}
+
+	private static String perFile(long nanos, int files) {
+		return String.format("%.1f", (double) nanos / files);
+	}
+
+	// 40% local additions, 40% cloud additions, 20% changed on both sides in various ways
+	private static void fill(Map<String, LocalFileSnapshot> local, Map<String, CloudFileSnapshot> cloud, int files) {
+		for (int i = 0; i < files; i++) {
+			String name = "dir" + (i % 100) + "/file" + i;
+			int kind = i % 10;
+			if (kind < 4) {
+				local.put(name, new LocalFileSnapshot(name, new Date(i), hash(i), new Date(0), "", new Date(0), true));
+			} else if (kind < 8) {
+				cloud.put(name, new CloudFileSnapshot(name, new Date(i), hash(i), "otherbox", 0));
+			} else {
+				// unchanged, local change, cloud change or conflict
+				int change = (i / 10) % 4;
+				long cloudTime = change == 1 ? i - 1 : change == 0 ? i : i + 1;
+				String cloudHash = change == 0 ? hash(i) : hash(i + 1);
+				local.put(name, new LocalFileSnapshot(name, new Date(i), hash(i), new Date(change == 3 ? i - 2 : 0), hash(i + 2), new Date(0), true));
+				cloud.put(name, new CloudFileSnapshot(name, new Date(cloudTime), cloudHash, "otherbox", 0));
+			}
+		}
+	}
+
+	private static String hash(int i) {
+		return String.format("%032x", i);
+	}
+
+	// what prepareMerge did for these files before, minus the deletes
+	private static void legacyPrepareMerge(Map<String, LocalFileSnapshot> localFileSnapshots, Map<String, CloudFileSnapshot> cloudFileSnapshots) {
+		for (LocalFileSnapshot localFileSnapshot : localFileSnapshots.values()) {
+			CloudFileSnapshot relatedCloudFileSnapshot = cloudFileSnapshots.get(localFileSnapshot.getFileName());
+			if (relatedCloudFileSnapshot == null) {
+				localFileSnapshot.setAction(new LocalFileAddedAction(localFileSnapshot));
+				debug("Added action chosen for local file: " + localFileSnapshot.getFileName());
+			} else if (localFileSnapshot.getLastModifiedTime() == relatedCloudFileSnapshot.getLastModifiedTime()) {
+				if (localFileSnapshot.hasSameHash(relatedCloudFileSnapshot)) {
+					localFileSnapshot.setAction(new LocalFileUnchangedAction(localFileSnapshot));
+					relatedCloudFileSnapshot.setAction(new DummyFileAction());
+					debug("Unchanged action chosen for local file: " + localFileSnapshot.getFileName());
+				} else {
+					localFileSnapshot.setAction(new LocalFileConflictAction(localFileSnapshot, relatedCloudFileSnapshot));
+					relatedCloudFileSnapshot.setAction(new DummyFileAction());
+					debug("Conflict due to diff hash/same LMD: " + localFileSnapshot.getFileName());
+				}
+			} else if (localFileSnapshot.getLastSyncedLastModifiedTime() != 0
+					&& localFileSnapshot.getLastSyncedLastModifiedTime() < relatedCloudFileSnapshot.getLastModifiedTime()
+					&& localFileSnapshot.getLastSyncedLastModifiedTime() < localFileSnapshot.getLastModifiedTime()
+					&& !localFileSnapshot.isHashLastSynced()) {
+				localFileSnapshot.setAction(new LocalFileConflictAction(localFileSnapshot, relatedCloudFileSnapshot));
+				relatedCloudFileSnapshot.setAction(new DummyFileAction());
+				debug("Conflict due to last sync'd LMD: " + localFileSnapshot.getFileName());
+			} else if (localFileSnapshot.getLastModifiedTime() > relatedCloudFileSnapshot.getLastModifiedTime()) {
+				localFileSnapshot.setAction(new LocalFileChangedAction(localFileSnapshot));
+				relatedCloudFileSnapshot.setAction(new DummyFileAction());
+				debug("Changed action chosen for local file: " + localFileSnapshot.getFileName());
+			} else {
+				localFileSnapshot.setAction(new DummyFileAction());
+				relatedCloudFileSnapshot.setAction(new CloudFileChangedAction(relatedCloudFileSnapshot));
+				debug("Changed action chosen for cloud file: " + relatedCloudFileSnapshot.getFileName());
+			}
+		}
+		for (CloudFileSnapshot cloudFileSnapshot : cloudFileSnapshots.values()) {
+			if (cloudFileSnapshot.getAction() != null) {
+				continue;
+			}
+			if (localFileSnapshots.get(cloudFileSnapshot.getFileName()) == null) {
+				cloudFileSnapshot.setAction(new CloudFileAddedAction(cloudFileSnapshot));
+				debug("Added action chosen for cloud file: " + cloudFileSnapshot.getFileName());
+			}
+		}
+	}
+
+	// the old code built every debug line, whether or not it was going to be written
+	private static void debug(String message) {
+		checksum += message.length();
+	}
+}
@@ -0,0 +1,206 @@
+package com.robwilliams.mibox.benchmark;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import com.robwilliams.mibox.snapshots.CloudFileSnapshot;
+import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
+import com.robwilliams.mibox.util.DateUtil;
+import com.robwilliams.mibox.util.HashUtil;
+
+/**
+ * Measures what holding the snapshots of a big sync costs: heap still in use once they're all built,
+ * and the time spent in garbage collection building them. The compact snapshots are compared against
+ * LegacyLocalSnapshot/LegacyCloudSnapshot, which keep the fields the way snapshots used to (Dates, hex
+ * Strings, a File per local snapshot and a String per host name). Also times the date codec against
+ * building a SimpleDateFormat per call, as DateUtil used to.
+ * <br><br>
+ * This is not a unit test, run it by hand, on its own JVM for steady numbers:
+ * <pre>
+ * java -Xmx4g com.robwilliams.mibox.benchmark.SnapshotHeapBenchmark [files] [legacy|compact]
+ * </pre>
+ * The default is 1000000 files, each with a local and a cloud snapshot, and both models. The GC numbers
+ * of the second model are flattered by the heap the first one grew, so compare them in separate runs.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class SnapshotHeapBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		String model = args.length > 1 ? args[1] : "both";
+		System.out.println(files + " files, a local and a cloud snapshot each");
+
+		// build both models once first so the JIT has warmed up, then measure
+		buildLegacy(files / 10);
+		buildCompact(files / 10);
+		if (!model.equals("compact")) {
+			measure("legacy", files, false);
+		}
+		if (!model.equals("legacy")) {
+			measure("compact", files, true);
+		}
+
+		int dates = Math.min(files, 1000000);
+		System.out.println("date codec, " + dates + " format+parse: per-call SimpleDateFormat " + timeLegacyDates(dates)
+						   + " ms, DateUtil " + timeDateUtil(dates) + " ms");
+	}
+
+	private static void measure(String name, int files, boolean compact) throws Exception {
+		long heapBefore = usedHeapAfterGC();
+		long gcCountBefore = gcCount();
+		long gcMillisBefore = gcMillis();
+		long start = System.nanoTime();
+		Object[] snapshots = compact ? buildCompact(files) : buildLegacy(files);
+		long buildMillis = (System.nanoTime() - start) / 1000000;
+		long gcCount = gcCount() - gcCountBefore;
+		long gcMillis = gcMillis() - gcMillisBefore;
+		long retained = usedHeapAfterGC() - heapBefore;
+		System.out.println(name + ": " + (retained / (1024 * 1024)) + " MB retained (" + (retained / files) + " bytes per file), built in "
+						   + buildMillis + " ms with " + gcCount + " collections taking " + gcMillis + " ms");
+		if (snapshots.length == 42) System.out.println(); // keep the maps reachable until they're measured
+	}
+
+	private static Object[] buildCompact(int files) {
+		Map<String, LocalFileSnapshot> local = new HashMap<String, LocalFileSnapshot>();
+		Map<String, CloudFileSnapshot> cloud = new HashMap<String, CloudFileSnapshot>();
+		Random random = new Random(42);
+		for (int i = 0; i < files; i++) {
+			String name = name(i);
+			String hash = randomHash(random);
+			local.put(name, new LocalFileSnapshot(name, new Date(i), hash, new Date(i), hash, new Date(i), true));
+			// the way CloudFileSnapshot(Item) keeps the host name
+			String source = new String("host" + (i % 3)).intern();
+			cloud.put(name, new CloudFileSnapshot(name, new Date(i + 1), randomHash(random), source, 0));
+		}
+		return new Object[] { local, cloud };
+	}
+
+	private static Object[] buildLegacy(int files) {
+		Map<String, LegacyLocalSnapshot> local = new HashMap<String, LegacyLocalSnapshot>();
+		Map<String, LegacyCloudSnapshot> cloud = new HashMap<String, LegacyCloudSnapshot>();
+		Random random = new Random(42);
+		for (int i = 0; i < files; i++) {
+			String name = name(i);
+			String hash = randomHash(random);
+			local.put(name, new LegacyLocalSnapshot(name, new Date(i), hash, new Date(i), new String(hash), new Date(i),
+													new File("/home/someone/MiBox/" + name)));
+			cloud.put(name, new LegacyCloudSnapshot(name, new Date(i + 1), randomHash(random), new String("host" + (i % 3)), 0));
+		}
+		return new Object[] { local, cloud };
+	}
+
+	private static long timeLegacyDates(int dates) throws Exception {
+		long checksum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < dates; i++) {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S");
+			format.setTimeZone(TimeZone.getTimeZone("America/Seattle"));
+			String string = format.format(new Date(i * 1000L));
+			format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S");
+			format.setTimeZone(TimeZone.getTimeZone("America/Seattle"));
+			checksum += format.parse(string).getTime();
+		}
+		if (checksum == 42) System.out.println();
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static long timeDateUtil(int dates) throws Exception {
+		long checksum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < dates; i++) {
+			checksum += DateUtil.parse(DateUtil.dateToString(new Date(i * 1000L))).getTime();
+		}
+		if (checksum == 42) System.out.println();
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static long usedHeapAfterGC() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private static String name(int i) {
+		return "dir" + (i % 100) + "/sub" + (i % 1000) + "/file" + i + ".txt";
+	}
+
+	private static String randomHash(Random random) {
+		byte[] md5 = new byte[16];
+		random.nextBytes(md5);
+		return HashUtil.toHex(md5);
+	}
+
+	// the fields LocalFileSnapshot used to have
+	@SuppressWarnings("unused")
+	private static class LegacyLocalSnapshot {
+		final String fileName;
+		final Date lastModifiedDate;
+		final String hash;
+		final Object action = null;
+		final Date lastSyncedLastModifiedDate;
+		final String lastSyncedHash;
+		final Object s3Object = null;
+		final File localFile;
+		final Date lastSyncTime;
+		final boolean existsLocally = true;
+
+		LegacyLocalSnapshot(String fileName, Date lastModifiedDate, String hash, Date lastSyncedLastModifiedDate,
+							String lastSyncedHash, Date lastSyncTime, File localFile) {
+			this.fileName = fileName;
+			this.lastModifiedDate = lastModifiedDate;
+			this.hash = hash;
+			this.lastSyncedLastModifiedDate = lastSyncedLastModifiedDate;
+			this.lastSyncedHash = lastSyncedHash;
+			this.lastSyncTime = lastSyncTime;
+			this.localFile = localFile;
+		}
+	}
+
+	// the fields CloudFileSnapshot used to have
+	@SuppressWarnings("unused")
+	private static class LegacyCloudSnapshot {
+		final String fileName;
+		final Date lastModifiedDate;
+		final String hash;
+		final Object action = null;
+		final String source;
+		final int pendingDeletes;
+		final long size = -1;
+
+		LegacyCloudSnapshot(String fileName, Date lastModifiedDate, String hash, String source, int pendingDeletes) {
+			this.fileName = fileName;
+			this.lastModifiedDate = lastModifiedDate;
+			this.hash = hash;
+			this.source = source;
+			this.pendingDeletes = pendingDeletes;
+		}
+	}
+}
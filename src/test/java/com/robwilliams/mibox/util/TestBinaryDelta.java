@@ -0,0 +1,125 @@
+package com.robwilliams.mibox.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test making deltas between versions of a file and applying them, with small blocks so that files have many.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class TestBinaryDelta {
+
+	private static final int BLOCK = BlockSignature.MIN_BLOCK_BYTES;
+	private static final String BASE_HASH = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+	private byte[] base;
+	private File baseFile;
+
+	@Before
+	public void setUp() throws Exception {
+		base = data(300 * BLOCK + 123, 1);
+		baseFile = File.createTempFile("MiBoxTest", ".base");
+		FileOutputStream out = new FileOutputStream(baseFile);
+		try {
+			out.write(base);
+		} finally {
+			out.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		baseFile.delete();
+	}
+
+	@Test
+	public void testAppendedFile() throws Exception {
+		byte[] appended = new byte[base.length + 5000];
+		System.arraycopy(base, 0, appended, 0, base.length);
+		System.arraycopy(data(5000, 2), 0, appended, base.length, 5000);
+		byte[] delta = roundTrip(appended);
+		// the new bytes, and at most a block of the old end
+		assertTrue(delta.length + " byte delta", delta.length < 5000 + 2 * BLOCK);
+	}
+
+	@Test
+	public void testEditedFile() throws Exception {
+		byte[] edited = base.clone();
+		System.arraycopy(data(100, 3), 0, edited, 50 * BLOCK + 7, 100);
+		byte[] inserted = new byte[edited.length + 33];
+		System.arraycopy(edited, 0, inserted, 0, 200 * BLOCK);
+		System.arraycopy(edited, 200 * BLOCK, inserted, 200 * BLOCK + 33, edited.length - 200 * BLOCK);
+		byte[] delta = roundTrip(inserted);
+		assertTrue(delta.length + " byte delta", delta.length < 5 * BLOCK);
+
+		// nothing in common
+		roundTrip(data(base.length, 4));
+		// and nothing at all
+		roundTrip(new byte[0]);
+	}
+
+	@Test
+	public void testSignatureSurvivesStorage() throws Exception {
+		BlockSignature signature = BlockSignature.of(new ByteArrayInputStream(base), BLOCK);
+		assertEquals(300, signature.getBlockCount());
+		BlockSignature stored = BlockSignature.fromBytes(signature.toBytes());
+		assertEquals(BLOCK, stored.getBlockBytes());
+		assertEquals(300, stored.getBlockCount());
+		assertEquals(42, stored.find(weak(base, 42 * BLOCK), base, 42 * BLOCK, MessageDigest.getInstance("MD5")));
+		assertEquals(-1, stored.find(weak(base, 42 * BLOCK + 1), base, 42 * BLOCK + 1, MessageDigest.getInstance("MD5")));
+	}
+
+	// make a delta from the base to the new version, check that it applies back to the new version, and return it
+	private byte[] roundTrip(byte[] version) throws Exception {
+		BlockSignature signature = BlockSignature.of(new ByteArrayInputStream(base), BLOCK);
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		MessageDigest wholeDigest = MessageDigest.getInstance("SHA-256");
+		BlockSignature.Builder versionSignature = new BlockSignature.Builder(BLOCK);
+		BinaryDelta.encode(signature, BASE_HASH, new ByteArrayInputStream(version), version.length, delta, wholeDigest, versionSignature);
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(version), wholeDigest.digest());
+		assertEquals(version.length / BLOCK, versionSignature.build().getBlockCount());
+
+		ByteArrayInputStream in = new ByteArrayInputStream(delta.toByteArray());
+		assertEquals(BASE_HASH, BinaryDelta.readBaseHash(in));
+		ByteArrayOutputStream applied = new ByteArrayOutputStream();
+		RandomAccessFile baseData = new RandomAccessFile(baseFile, "r");
+		try {
+			BinaryDelta.apply(in, baseData, applied);
+		} finally {
+			baseData.close();
+		}
+		assertArrayEquals(version, applied.toByteArray());
+		return delta.toByteArray();
+	}
+
+	private static int weak(byte[] data, int off) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < BLOCK; i++) {
+			a += data[off + i] & 0xff;
+			b += (BLOCK - i) * (data[off + i] & 0xff);
+		}
+		return BlockSignature.weak(a, b);
+	}
+
+	private static byte[] data(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
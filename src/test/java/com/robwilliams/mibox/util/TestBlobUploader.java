@@ -0,0 +1,237 @@
+package com.robwilliams.mibox.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.junit.After;
+import org.junit.Test;
+
+import com.j256.ormlite.table.TableUtils;
+import com.robwilliams.mibox.ConfigMaster;
+import com.robwilliams.mibox.Global;
+import com.robwilliams.mibox.dataObjects.PendingUpload;
+import com.robwilliams.mibox.dataObjects.UploadedPart;
+import com.robwilliams.mibox.util.BlobUploader.Part;
+
+/**
+ * Test how BlobUploader cuts files into multipart upload parts, and how it resumes (or restarts) multipart
+ * uploads left behind by an earlier sync. The latter needs an S3 stand-in (e.g. MinIO) set up as s3Endpoint
+ * in mibox.properties, and is skipped without one. Its files are at least multipartThresholdBytes long.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class TestBlobUploader {
+	
+	private static final long MB = 1024 * 1024;
+
+	private RestS3Service s3;
+	private String bucketName;
+	private File dataFile;
+	private byte[] data;
+	private String key;
+	private int partSize;
+
+	@Test
+	public void testPartsCoverWholeFile() {
+		List<Part> parts = BlobUploader.planParts(50 * MB + 123, 16 * MB);
+		assertEquals(4, parts.size());
+		long offset = 0;
+		for (int i = 0; i < parts.size(); i++) {
+			// parts are numbered from 1 and follow each other without gaps
+			assertEquals(i + 1, parts.get(i).number);
+			assertEquals(offset, parts.get(i).offset);
+			offset += parts.get(i).length;
+		}
+		assertEquals(50 * MB + 123, offset);
+		assertEquals(2 * MB + 123, parts.get(3).length);
+	}
+	
+	@Test
+	public void testExactMultipleHasNoEmptyPart() {
+		List<Part> parts = BlobUploader.planParts(32 * MB, 16 * MB);
+		assertEquals(2, parts.size());
+		assertEquals(16 * MB, parts.get(1).length);
+	}
+	
+	@Test
+	public void testPartSizeIsAtLeastS3Minimum() {
+		List<Part> parts = BlobUploader.planParts(12 * MB, 1 * MB);
+		assertEquals(3, parts.size());
+		assertEquals(BlobUploader.MIN_PART_SIZE, parts.get(0).length);
+	}
+	
+	@Test
+	public void testPartsGrowToStayUnderMaxParts() {
+		long length = 200000 * MB; // ~195 GB in 16 MB parts would be 12500 parts
+		List<Part> parts = BlobUploader.planParts(length, 16 * MB);
+		assertTrue(parts.size() <= BlobUploader.MAX_PARTS);
+		Part last = parts.get(parts.size() - 1);
+		assertEquals(length, last.offset + last.length);
+	}
+	
+	@Test
+	public void testResumesFromPendingUpload() throws Exception {
+		useStandIn();
+		// part 1 as an earlier sync left it, but with other bytes, so the result shows it isn't uploaded again
+		byte[] otherPart = random(partSize, 2);
+		MultipartUpload upload = startUpload(otherPart, partSize, md5Hex(data));
+		BlobUploader.upload(objectToUpload());
+
+		byte[] expected = data.clone();
+		System.arraycopy(otherPart, 0, expected, 0, partSize);
+		assertEquals(md5Hex(expected), uploadedMd5Hex());
+		assertForgotten();
+		assertGone(upload);
+	}
+	
+	@Test
+	public void testPartSizeChangeRestarts() throws Exception {
+		useStandIn();
+		MultipartUpload upload = startUpload(random(partSize, 2), 2L * partSize, md5Hex(data));
+		BlobUploader.upload(objectToUpload());
+
+		assertEquals(md5Hex(data), uploadedMd5Hex());
+		assertForgotten();
+		assertGone(upload); // aborted, not only forgotten
+	}
+	
+	@Test
+	public void testChangedDataRestarts() throws Exception {
+		useStandIn();
+		// same key and length, but the earlier sync was uploading other bytes (e.g. in another blobFormat)
+		MultipartUpload upload = startUpload(random(partSize, 2), partSize, md5Hex(random(data.length, 3)));
+		BlobUploader.upload(objectToUpload());
+
+		assertEquals(md5Hex(data), uploadedMd5Hex());
+		assertForgotten();
+		assertGone(upload);
+	}
+	
+	@Test
+	public void testVanishedUploadRestarts() throws Exception {
+		useStandIn();
+		MultipartUpload upload = startUpload(random(partSize, 2), partSize, md5Hex(data));
+		// as if S3 expired it since
+		s3.multipartAbortUpload(upload);
+		BlobUploader.upload(objectToUpload());
+
+		assertEquals(md5Hex(data), uploadedMd5Hex());
+		assertForgotten();
+	}
+	
+	@After
+	public void after() throws Exception {
+		if (s3 == null) return;
+		try {
+			s3.deleteObject(bucketName, key);
+		} finally {
+			Global.getPendingUploadDAO().deleteById(key);
+			Global.getUploadedPartDAO().delete(Global.getUploadedPartDAO().queryForEq("hash", key));
+			Global.cleanUp();
+			dataFile.delete();
+		}
+	}
+	
+	// skip the test unless there is a stand-in, otherwise make a file worth a multipart upload of at least 3 parts
+	private void useStandIn() throws Exception {
+		assumeNotNull(ConfigMaster.getConfig().getS3Endpoint());
+		TableUtils.createTableIfNotExists(Global.getORMLiteConnection(), PendingUpload.class);
+		TableUtils.createTableIfNotExists(Global.getORMLiteConnection(), UploadedPart.class);
+		s3 = Global.getS3();
+		bucketName = Global.getConfig().getHashDataMapBucket();
+		s3.createBucket(bucketName);
+
+		long length = Math.max(Global.getConfig().getMultipartThresholdBytes(),
+				3 * Math.max(Global.getConfig().getMultipartPartSizeBytes(), BlobUploader.MIN_PART_SIZE));
+		partSize = (int) BlobUploader.planParts(length, Global.getConfig().getMultipartPartSizeBytes()).get(0).length;
+		data = random((int) length + 123, 1);
+		key = md5Hex(data);
+		dataFile = File.createTempFile("MiBoxTest", ".tmp");
+		FileOutputStream out = new FileOutputStream(dataFile);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+	
+	private S3Object objectToUpload() {
+		S3Object object = new S3Object(key);
+		object.setDataInputFile(dataFile);
+		object.setContentLength(dataFile.length());
+		object.setMd5Hash(HashUtil.fromHex(key));
+		return object;
+	}
+	
+	// start a multipart upload of the data file and upload part 1 with the given bytes, recording both in the
+	// local DB as an interrupted sync would have, with the given part size and MD5
+	private MultipartUpload startUpload(byte[] part1, long recordedPartSize, String recordedMd5) throws Exception {
+		MultipartUpload upload = s3.multipartStartUpload(bucketName, objectToUpload());
+		S3Object partObject = new S3Object(key);
+		partObject.setDataInputStream(new ByteArrayInputStream(part1));
+		partObject.setContentLength(part1.length);
+		MultipartPart part = s3.multipartUploadPart(upload, 1, partObject);
+		Global.getPendingUploadDAO().create(new PendingUpload(key, upload.getUploadId(), recordedPartSize, dataFile.length(),
+				recordedMd5, new Date()));
+		Global.getUploadedPartDAO().create(new UploadedPart(key, 1, part.getEtag(), part1.length));
+		return upload;
+	}
+	
+	private String uploadedMd5Hex() throws Exception {
+		S3Object object = s3.getObject(bucketName, key);
+		MessageDigest digest = MessageDigest.getInstance("MD5");
+		InputStream in = object.getDataInputStream();
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int len;
+			while ((len = in.read(buffer)) >= 0) {
+				digest.update(buffer, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+		return HashUtil.toHex(digest.digest());
+	}
+	
+	private void assertForgotten() throws Exception {
+		assertNull(Global.getPendingUploadDAO().queryForId(key));
+		assertEquals(0, Global.getUploadedPartDAO().queryForEq("hash", key).size());
+	}
+	
+	private void assertGone(MultipartUpload upload) throws Exception {
+		try {
+			s3.multipartListParts(upload);
+			fail("Upload " + upload.getUploadId() + " still exists");
+		} catch (ServiceException ex) {
+			assertEquals("NoSuchUpload", ex.getErrorCode());
+		}
+	}
+	
+	private static String md5Hex(byte[] data) throws Exception {
+		return HashUtil.toHex(MessageDigest.getInstance("MD5").digest(data));
+	}
+	
+	private static byte[] random(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,172 @@
+package com.robwilliams.mibox.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test encrypting and decrypting blobs with ChunkedCipher, with small chunks so that files have many of them.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class TestChunkedCipher {
+
+	private static final int CHUNK = 1000;
+
+	private ExecutorService workers;
+	private ChunkedCipher cipher;
+
+	@Before
+	public void setUp() throws Exception {
+		workers = Executors.newFixedThreadPool(3);
+		cipher = new ChunkedCipher("secret", workers, 3);
+	}
+
+	@After
+	public void tearDown() {
+		workers.shutdown();
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		for (int length : new int[] { 0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 25 * CHUNK + 17 }) {
+			byte[] data = data(length);
+			byte[] sealed = encrypt(data);
+			assertEquals(ChunkedCipher.sealedLength(length, CHUNK), sealed.length);
+			assertArrayEquals(data, readFully(cipher.decrypt(new ByteArrayInputStream(sealed))));
+		}
+	}
+
+	@Test
+	public void testSameContentSameBlob() throws Exception {
+		byte[] data = data(5 * CHUNK);
+		assertArrayEquals(encrypt(data), encrypt(data));
+		// and another box with the same encryptionKey gets the same blob too
+		assertArrayEquals(encrypt(data), readFully(new ChunkedCipher("secret", workers, 3).encrypt(
+				new ByteArrayInputStream(data), data.length, sha256(data), CHUNK)));
+	}
+
+	@Test
+	public void testChunkSizeChangesKey() throws Exception {
+		// chunk 1 holds other bytes with another chunk size, so it mustn't be sealed with the same key and nonce
+		byte[] data = data(5 * CHUNK);
+		byte[] sealed = encrypt(data);
+		byte[] otherChunks = readFully(cipher.encrypt(new ByteArrayInputStream(data), data.length, sha256(data), CHUNK / 2));
+		assertFalse(Arrays.equals(wrappedKey(sealed), wrappedKey(otherChunks)));
+		assertArrayEquals(data, readFully(cipher.decrypt(new ByteArrayInputStream(otherChunks))));
+	}
+
+	@Test
+	public void testTamperingIsCaught() throws Exception {
+		byte[] sealed = encrypt(data(10 * CHUNK));
+
+		byte[] flipped = sealed.clone();
+		flipped[ChunkedCipher.HEADER_BYTES + 5 * CHUNK] ^= 1;
+		assertDoesNotDecrypt(flipped);
+
+		byte[] truncated = Arrays.copyOf(sealed, sealed.length - CHUNK - ChunkedCipher.TAG_BYTES);
+		assertDoesNotDecrypt(truncated);
+
+		// two chunks swapped
+		byte[] swapped = sealed.clone();
+		int chunk = CHUNK + ChunkedCipher.TAG_BYTES;
+		System.arraycopy(sealed, ChunkedCipher.HEADER_BYTES, swapped, ChunkedCipher.HEADER_BYTES + chunk, chunk);
+		System.arraycopy(sealed, ChunkedCipher.HEADER_BYTES + chunk, swapped, ChunkedCipher.HEADER_BYTES, chunk);
+		assertDoesNotDecrypt(swapped);
+
+		// a blob from a box with a different encryptionKey
+		try {
+			new ChunkedCipher("other secret", workers, 3).decrypt(new ByteArrayInputStream(sealed));
+			fail("Blob decrypted with the wrong key");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDecryptRange() throws Exception {
+		byte[] data = data(10 * CHUNK + 300);
+		File file = File.createTempFile("MiBoxTest", ".blob");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(encrypt(data));
+			} finally {
+				out.close();
+			}
+			RandomAccessFile blob = new RandomAccessFile(file, "r");
+			try {
+				int[][] ranges = { { 0, 10 }, { 1500, 200 }, { 900, 2500 }, { 10 * CHUNK, 300 }, { 0, data.length }, { 42, 0 } };
+				for (int[] range : ranges) {
+					assertArrayEquals(Arrays.copyOfRange(data, range[0], range[0] + range[1]),
+							cipher.decryptRange(blob.getChannel(), range[0], range[1]));
+				}
+			} finally {
+				blob.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	private void assertDoesNotDecrypt(byte[] sealed) throws Exception {
+		try {
+			readFully(cipher.decrypt(new ByteArrayInputStream(sealed)));
+			fail("Damaged blob decrypted");
+		} catch (IOException ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("chunk") || ex.getMessage().contains("Chunk"));
+		}
+	}
+
+	private static byte[] wrappedKey(byte[] sealed) {
+		return Arrays.copyOfRange(sealed, ChunkedCipher.HEADER_BYTES - ChunkedCipher.WRAPPED_KEY_BYTES, ChunkedCipher.HEADER_BYTES);
+	}
+
+	private byte[] encrypt(byte[] data) throws Exception {
+		return readFully(cipher.encrypt(new ByteArrayInputStream(data), data.length, sha256(data), CHUNK));
+	}
+
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	private static byte[] sha256(byte[] data) throws Exception {
+		return MessageDigest.getInstance("SHA-256").digest(data);
+	}
+
+	private static byte[] readFully(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[777];
+			int len;
+			while ((len = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+}
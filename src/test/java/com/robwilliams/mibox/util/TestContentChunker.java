@@ -0,0 +1,86 @@
+package com.robwilliams.mibox.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.robwilliams.mibox.util.ContentChunker.Chunk;
+
+/**
+ * Test splitting data into content-defined chunks, with small chunks so that the data has many of them.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class TestContentChunker {
+
+	private final ContentChunker chunker = new ContentChunker(4096);
+
+	@Test
+	public void testChunksCoverData() throws Exception {
+		byte[] data = data(1000 * 1000, 1);
+		MessageDigest wholeDigest = MessageDigest.getInstance("SHA-256");
+		List<Chunk> chunks = chunker.split(new ByteArrayInputStream(data), wholeDigest);
+		assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), wholeDigest.digest());
+
+		long offset = 0;
+		for (int i = 0; i < chunks.size(); i++) {
+			Chunk chunk = chunks.get(i);
+			assertEquals(offset, chunk.offset);
+			assertTrue(chunk.length <= chunker.getMaxBytes());
+			assertTrue(chunk.length >= chunker.getMinBytes() || i == chunks.size() - 1);
+			byte[] bytes = Arrays.copyOfRange(data, (int) chunk.offset, (int) chunk.offset + chunk.length);
+			assertEquals(HashUtil.toHex(MessageDigest.getInstance("SHA-256").digest(bytes)), chunk.hash);
+			offset += chunk.length;
+		}
+		assertEquals(data.length, offset);
+		// about the average size, not just cut at the biggest size every time
+		assertTrue(chunks.size() > data.length / (2 * chunker.getAverageBytes()));
+
+		// and the manifest lists the same chunks
+		ChunkManifest manifest = ChunkManifest.read(new ByteArrayInputStream(new ChunkManifest(chunks).toBytes()));
+		assertEquals(data.length, manifest.getLength());
+		assertEquals(chunks.size(), manifest.getChunks().size());
+		assertEquals(chunks.get(7).hash, manifest.getChunks().get(7).hash);
+
+		assertEquals(0, chunker.split(new ByteArrayInputStream(new byte[0]), null).size());
+	}
+
+	@Test
+	public void testInsertionOnlyChangesNearbyChunks() throws Exception {
+		byte[] data = data(1000 * 1000, 2);
+		byte[] edited = new byte[data.length + 10];
+		System.arraycopy(data, 0, edited, 0, 500 * 1000);
+		System.arraycopy(data, 500 * 1000, edited, 500 * 1000 + 10, data.length - 500 * 1000);
+
+		List<Chunk> before = chunker.split(new ByteArrayInputStream(data), null);
+		Set<String> hashes = new HashSet<String>();
+		for (Chunk chunk : before) {
+			hashes.add(chunk.hash);
+		}
+		List<Chunk> after = chunker.split(new ByteArrayInputStream(edited), null);
+		int changed = 0;
+		for (Chunk chunk : after) {
+			if (!hashes.contains(chunk.hash)) {
+				changed++;
+			}
+		}
+		assertTrue(changed + " chunks changed", changed >= 1 && changed <= 2);
+	}
+
+	private static byte[] data(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
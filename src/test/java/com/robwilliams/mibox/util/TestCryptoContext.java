@@ -0,0 +1,62 @@
+package com.robwilliams.mibox.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test that CryptoContext is shared and that reusing its ciphers gives the same results as fresh ones.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class TestCryptoContext {
+
+	private static final String ALGORITHM = "PBEWITHSHA256AND128BITAES-CBC-BC";
+
+	@Test
+	public void testOneContextPerKey() throws Exception {
+		assertSame(CryptoContext.get("secret", ALGORITHM, "2"), CryptoContext.get("secret", ALGORITHM, "2"));
+		assertNotSame(CryptoContext.get("secret", ALGORITHM, "2"), CryptoContext.get("other secret", ALGORITHM, "2"));
+	}
+
+	@Test
+	public void testReusedCiphersRoundTrip() throws Exception {
+		CryptoContext context = CryptoContext.get("secret", ALGORITHM, "2");
+		byte[] data = new byte[100000];
+		new Random(42).nextBytes(data);
+
+		byte[] encrypted = readFully(context.encrypt(new ByteArrayInputStream(data)));
+		// the second time around the thread's ciphers are reused
+		assertArrayEquals(encrypted, readFully(context.encrypt(new ByteArrayInputStream(data))));
+		assertArrayEquals(data, readFully(context.decrypt(new ByteArrayInputStream(encrypted))));
+		assertArrayEquals(data, readFully(context.decrypt(new ByteArrayInputStream(encrypted))));
+
+		// a stream abandoned half way mustn't spoil the next one
+		InputStream abandoned = context.encrypt(new ByteArrayInputStream(data));
+		abandoned.read(new byte[1000]);
+		abandoned.close();
+		assertArrayEquals(encrypted, readFully(context.encrypt(new ByteArrayInputStream(data))));
+	}
+
+	private static byte[] readFully(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[4096];
+			int len;
+			while ((len = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+}
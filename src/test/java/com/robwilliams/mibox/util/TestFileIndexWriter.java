@@ -0,0 +1,140 @@
+package com.robwilliams.mibox.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.robwilliams.mibox.dataObjects.MiBoxFile;
+
+/**
+ * Test that FileIndexWriter commits a change only after the cloud writes queued before it were sent,
+ * without flushing the SimpleDBWriteBuffer itself. Nothing is sent or committed on a timer here,
+ * since both delays are an hour.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class TestFileIndexWriter {
+
+	private static final long HOUR = 60 * 60 * 1000;
+	private static final String HASH = "0123456789abcdef0123456789abcdef";
+	private static final List<ReplaceableAttribute> ATTRIBUTES = Arrays.asList(new ReplaceableAttribute("hash", HASH, true));
+
+	// what reached SimpleDB and the index, in order
+	private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+	private RuntimeException sdbFailure;
+	private SimpleDBWriteBuffer cloudWrites;
+	private FileIndexWriter writer;
+
+	@Before
+	public void setUp() {
+		AmazonSimpleDB sdb = (AmazonSimpleDB) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { AmazonSimpleDB.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (sdbFailure != null) throw sdbFailure;
+						events.add(method.getName());
+						return null;
+					}
+				});
+		FileIndex index = new FileIndex() {
+			public MiBoxFile queryForName(String name) {
+				return null;
+			}
+
+			public List<MiBoxFile> queryForPrefix(String directoryPrefix) {
+				return Collections.emptyList();
+			}
+
+			public void scan(Date lastSyncDate, ScanVisitor visitor) {
+			}
+
+			public void write(Map<String, MiBoxFile> changes) {
+				events.add("write " + changes.keySet());
+			}
+
+			public void close() {
+			}
+		};
+		cloudWrites = new SimpleDBWriteBuffer(sdb, HOUR);
+		writer = new FileIndexWriter(index, cloudWrites, 1, HOUR);
+	}
+
+	@After
+	public void tearDown() {
+		sdbFailure = null;
+		writer.shutdown();
+		cloudWrites.shutdown();
+	}
+
+	@Test
+	public void testWaitsForCloudWrites() throws Exception {
+		cloudWrites.put("CloudFiles", "a", ATTRIBUTES);
+		MiBoxFile a = record("a");
+		writer.createOrUpdate(a); // a full batch, but its cloud write is still waiting
+		assertEquals(Collections.emptyList(), events);
+		assertSame(a, writer.queryForId("a"));
+
+		cloudWrites.flush();
+		writer.createOrUpdate(record("b")); // no cloud writes of its own
+		assertEquals(Arrays.asList("batchPutAttributes", "write [a, b]"), events);
+	}
+
+	@Test
+	public void testLaterCloudWritesDontHoldBack() throws Exception {
+		cloudWrites.put("CloudFiles", "a", ATTRIBUTES);
+		cloudWrites.flush();
+		events.clear();
+		// queued after a's change, so it doesn't have to be sent first
+		writer.delete("a");
+		cloudWrites.put("CloudFiles", "b", ATTRIBUTES);
+		assertEquals(Arrays.asList("write [a]"), events);
+	}
+
+	@Test
+	public void testFlushSendsCloudWritesFirst() throws Exception {
+		cloudWrites.put("CloudFiles", "a", ATTRIBUTES);
+		writer.createOrUpdate(record("a"));
+		writer.flush();
+		assertEquals(Arrays.asList("batchPutAttributes", "write [a]"), events);
+	}
+
+	@Test
+	public void testFailedCloudWritesDropChanges() throws Exception {
+		cloudWrites.put("CloudFiles", "a", ATTRIBUTES);
+		writer.createOrUpdate(record("a"));
+		sdbFailure = new IllegalStateException("SimpleDB is down");
+		try {
+			writer.flush();
+			fail("flush() should have thrown");
+		} catch (IllegalStateException ex) {
+			assertSame(sdbFailure, ex);
+		}
+		assertNull(writer.queryForId("a"));
+
+		// the failure was reported, so later changes go through again
+		sdbFailure = null;
+		writer.createOrUpdate(record("b"));
+		assertEquals(Arrays.asList("write [b]"), events);
+	}
+
+	private static MiBoxFile record(String name) {
+		return new MiBoxFile(name, HASH, new Date(1000), new Date(1000), HASH, new Date(2000));
+	}
+}
@@ -0,0 +1,43 @@
+package com.robwilliams.mibox.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Test content hashes, and telling them apart from hashes of encrypted data.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class TestHashUtil {
+
+	@Test
+	public void testContentHashIsSha256OfFile() throws Exception {
+		File file = File.createTempFile("MiBoxTest", ".txt");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write("abc".getBytes("US-ASCII"));
+			} finally {
+				out.close();
+			}
+			String hash = HashUtil.contentHash(file);
+			assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hash);
+			assertTrue(HashUtil.isContentHash(hash));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testEncryptedDataHashIsNotContentHash() {
+		assertFalse(HashUtil.isContentHash("0123456789abcdef0123456789abcdef"));
+		assertFalse(HashUtil.isContentHash(null));
+	}
+}
@@ -0,0 +1,176 @@
+package com.robwilliams.mibox.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.robwilliams.mibox.dataObjects.MiBoxFile;
+
+/**
+ * Test the memory-mapped file index on a throwaway file.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class TestMappedFileIndex {
+
+	private static final String HASH1 = "0123456789abcdef0123456789abcdef";
+	private static final String HASH2 = "fedcba9876543210fedcba9876543210";
+
+	private File file;
+	private MappedFileIndex index;
+
+	@Before
+	public void before() throws Exception {
+		file = File.createTempFile("mibox-index", ".mmap");
+		file.delete(); // the index creates it
+		index = new MappedFileIndex(file, false);
+	}
+
+	@After
+	public void after() {
+		index.close();
+		file.delete();
+		new File(file.getPath() + ".compact").delete();
+	}
+
+	@Test
+	public void testRecordsSurviveReopening() throws Exception {
+		MiBoxFile record = new MiBoxFile("dir/file1", HASH1, new Date(1000), new Date(2000), "", new Date(3000));
+		write("dir/file1", record);
+		write("dir/file2", new MiBoxFile("dir/file2", HASH2, new Date(1), null, null, new Date(2)));
+		index.close();
+
+		index = new MappedFileIndex(file, false);
+		assertEquals(2, index.size());
+		MiBoxFile read = index.queryForName("dir/file1");
+		assertEquals("dir/file1", read.getName());
+		assertEquals(HASH1, read.getHash());
+		assertEquals(new Date(1000), read.getLastModifiedTime());
+		assertEquals(new Date(2000), read.getLastSyncedLastModifiedTime());
+		assertEquals("", read.getLastSyncedHash());
+		assertEquals(new Date(3000), read.getLastSyncTime());
+		// nulls stay nulls
+		assertNull(index.queryForName("dir/file2").getLastSyncedHash());
+		assertNull(index.queryForName("dir/file2").getLastSyncedLastModifiedTime());
+		assertNull(index.queryForName("dir/file3"));
+	}
+
+	@Test
+	public void testUpdateAndDelete() throws Exception {
+		write("file", new MiBoxFile("file", HASH1, new Date(1), new Date(1), HASH1, new Date(1)));
+		write("file", new MiBoxFile("file", HASH2, new Date(5), new Date(1), HASH1, new Date(6)));
+		assertEquals(1, index.size());
+		assertEquals(HASH2, index.queryForName("file").getHash());
+		assertEquals(0, index.getDeadBytes());
+
+		write("file", null);
+		assertNull(index.queryForName("file"));
+		assertEquals(0, index.size());
+		assertTrue(index.getDeadBytes() > 0);
+	}
+
+	@Test
+	public void testManyFilesWithDeletesInBetween() throws Exception {
+		// enough files to grow the file and the lookup table several times, and to trigger compaction
+		Map<String, MiBoxFile> batch = new LinkedHashMap<String, MiBoxFile>();
+		for (int i = 0; i < 20000; i++) {
+			String name = "some/longer/directory/name/file" + i;
+			batch.put(name, new MiBoxFile(name, HASH1, new Date(i), new Date(i), HASH2, new Date(i)));
+		}
+		index.write(batch);
+		batch.clear();
+		for (int i = 0; i < 20000; i += 3) {
+			batch.put("some/longer/directory/name/file" + i, null);
+		}
+		for (int i = 0; i < 20000; i += 2) {
+			batch.put("some/longer/directory/name/file" + i, null);
+		}
+		index.write(batch);
+
+		for (int i = 0; i < 20000; i++) {
+			MiBoxFile record = index.queryForName("some/longer/directory/name/file" + i);
+			if (i % 3 == 0 || i % 2 == 0) {
+				assertNull(record);
+			} else {
+				assertEquals(new Date(i), record.getLastModifiedTime());
+			}
+		}
+		// two thirds of the records are dead, which is worth compacting
+		assertEquals(0, index.getDeadBytes());
+		assertEquals(6667, index.size());
+		assertFalse(new File(file.getPath() + ".compact").exists());
+
+		index.close();
+		index = new MappedFileIndex(file, false);
+		assertEquals(6667, index.size());
+		assertEquals(new Date(1), index.queryForName("some/longer/directory/name/file1").getLastModifiedTime());
+	}
+
+	@Test
+	public void testUnfinishedCompactionIsIgnored() throws Exception {
+		write("file", new MiBoxFile("file", HASH1, new Date(1), new Date(1), "", new Date(1)));
+		index.close();
+		// a side file whose header was never written
+		File compacted = new File(file.getPath() + ".compact");
+		RandomAccessFile side = new RandomAccessFile(compacted, "rw");
+		try {
+			side.setLength(4096);
+		} finally {
+			side.close();
+		}
+
+		index = new MappedFileIndex(file, false);
+		assertFalse(compacted.exists());
+		assertEquals(1, index.size());
+		assertEquals(HASH1, index.queryForName("file").getHash());
+	}
+
+	@Test
+	public void testScanAndPrefix() throws Exception {
+		write("a/old", new MiBoxFile("a/old", HASH1, new Date(10), new Date(10), HASH1, new Date(100)));
+		write("a/new", new MiBoxFile("a/new", HASH1, new Date(20), new Date(20), HASH1, new Date(300)));
+		write("ab", new MiBoxFile("ab", HASH1, new Date(30), new Date(30), HASH1, new Date(100)));
+
+		final Map<String, Long> synced = new HashMap<String, Long>();
+		final Map<String, MiBoxFile> recent = new HashMap<String, MiBoxFile>();
+		index.scan(new Date(200), new FileIndex.ScanVisitor() {
+			public void visitRecentlySynced(MiBoxFile record) {
+				recent.put(record.getName(), record);
+			}
+			public void visitSynced(String name, long lastModifiedTime) {
+				synced.put(name, lastModifiedTime);
+			}
+		});
+		assertEquals(1, recent.size());
+		assertEquals(new Date(20), recent.get("a/new").getLastModifiedTime());
+		assertEquals(2, synced.size());
+		assertEquals(10L, synced.get("a/old").longValue());
+		assertEquals(30L, synced.get("ab").longValue());
+
+		assertEquals(2, index.queryForPrefix("a/").size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsNonHexHash() throws Exception {
+		write("file", new MiBoxFile("file", "not a hash", new Date(1), new Date(1), "", new Date(1)));
+	}
+
+	private void write(String name, MiBoxFile record) throws Exception {
+		Map<String, MiBoxFile> batch = new HashMap<String, MiBoxFile>();
+		batch.put(name, record);
+		index.write(batch);
+	}
+}
@@ -0,0 +1,85 @@
+package com.robwilliams.mibox.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.robwilliams.mibox.snapshots.CloudFileSnapshot;
+import com.robwilliams.mibox.snapshots.LocalFileSnapshot;
+
+/**
+ * Test sorting snapshots with SnapshotSorter, with most of them written to runs on disk.
+ * <br><br>
+ * @author Rob Williams
+ *
+ */
+public class TestSnapshotSorter {
+
+	private static final String HASH = "0123456789abcdef0123456789abcdef";
+
+	@Test
+	public void testSortsAcrossManyRuns() throws Exception {
+		// enough runs of 10 to have them merged into one along the way
+		SnapshotSorter<CloudFileSnapshot> sorter = new SnapshotSorter<CloudFileSnapshot>(SnapshotSorter.CLOUD, 10, null);
+		try {
+			Random random = new Random(42);
+			for (int i = 0; i < 2000; i++) {
+				int n = random.nextInt(1000000);
+				sorter.add(new CloudFileSnapshot("file" + n + "_" + i, new Date(i), HASH, "host", 0));
+			}
+			assertEquals(2000, sorter.size());
+			assertTrue(sorter.getRunCount() < 64);
+
+			Iterator<CloudFileSnapshot> sorted = sorter.sorted();
+			String previous = "";
+			int count = 0;
+			while (sorted.hasNext()) {
+				String fileName = sorted.next().getFileName();
+				assertTrue(fileName.compareTo(previous) > 0);
+				previous = fileName;
+				count++;
+			}
+			assertEquals(2000, count);
+		} finally {
+			sorter.close();
+		}
+	}
+
+	@Test
+	public void testSnapshotsSurviveTheDisk() throws Exception {
+		SnapshotSorter<LocalFileSnapshot> sorter = new SnapshotSorter<LocalFileSnapshot>(SnapshotSorter.LOCAL, 1, null);
+		try {
+			sorter.add(new LocalFileSnapshot("b", new Date(1000), HASH, null, "", new Date(3000), false));
+			sorter.add(new LocalFileSnapshot("a", new Date(1), "not hex", new Date(2), HASH, null, true));
+
+			Iterator<LocalFileSnapshot> sorted = sorter.sorted();
+			LocalFileSnapshot a = sorted.next();
+			assertEquals("a", a.getFileName());
+			assertEquals(new Date(1), a.getLastModifiedDate());
+			assertEquals("not hex", a.getHash());
+			assertEquals(new Date(2), a.getLastSyncedLastModifiedDate());
+			assertEquals(HASH, a.getLastSyncedHash());
+			assertNull(a.getLastSyncTime());
+			assertTrue(a.existsLocally());
+			assertNull(a.getLocalFile());
+
+			LocalFileSnapshot b = sorted.next();
+			assertEquals("b", b.getFileName());
+			assertEquals(HASH, b.getHash());
+			assertNull(b.getLastSyncedLastModifiedDate());
+			assertEquals("", b.getLastSyncedHash());
+			assertEquals(new Date(3000), b.getLastSyncTime());
+			assertFalse(b.existsLocally());
+			assertFalse(sorted.hasNext());
+		} finally {
+			sorter.close();
+		}
+	}
+}